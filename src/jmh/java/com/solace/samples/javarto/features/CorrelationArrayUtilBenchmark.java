@@ -0,0 +1,84 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CorrelationArrayUtil#correlate(Object)} and
+ * {@link CorrelationArrayUtil#uncorrelate(long)} uncontended, and contended
+ * the way a publisher and an acknowledging context thread, or several
+ * publishers, would use a shared instance. The baseline for
+ * {@link CorrelationRegistryBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@SuppressWarnings("deprecation")
+public class CorrelationArrayUtilBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		final CorrelationArrayUtil<Object> correlationArray = new CorrelationArrayUtil<Object>(
+				Object.class);
+		final Object msgInfo = new Object();
+	}
+
+	@State(Scope.Thread)
+	public static class LastKey {
+		long key = 1;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object roundTripSingleThread(Shared shared) {
+		return shared.correlationArray.uncorrelate(shared.correlationArray
+				.correlate(shared.msgInfo));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object roundTripFourThreads(Shared shared) {
+		return shared.correlationArray.uncorrelate(shared.correlationArray
+				.correlate(shared.msgInfo));
+	}
+
+	/**
+	 * One publisher thread correlating while one callback thread uncorrelates
+	 * the keys it has seen.
+	 */
+	@Benchmark
+	@Group("publishAndAck")
+	@GroupThreads(1)
+	public long publish(Shared shared, LastKey lastKey) {
+		return lastKey.key = shared.correlationArray.correlate(shared.msgInfo);
+	}
+
+	@Benchmark
+	@Group("publishAndAck")
+	@GroupThreads(1)
+	public Object ack(Shared shared, LastKey lastKey) {
+		// Walks the keys in publish order, the same way acks arrive
+		long key = lastKey.key;
+		lastKey.key = (key >= 511) ? 1 : key + 1;
+		return shared.correlationArray.uncorrelate(key);
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link CorrelationArrayUtilBenchmark} scenarios against
+ * {@link CorrelationRegistry}, same window size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class CorrelationRegistryBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Shared {
+		final CorrelationRegistry<Object> registry = new CorrelationRegistry<Object>(
+				256);
+		final Object msgInfo = new Object();
+	}
+
+	@State(Scope.Thread)
+	public static class NextKey {
+		long key = 1;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object roundTripSingleThread(Shared shared) {
+		return shared.registry.uncorrelate(shared.registry
+				.correlate(shared.msgInfo));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object roundTripFourThreads(Shared shared) {
+		return shared.registry.uncorrelate(shared.registry
+				.correlate(shared.msgInfo));
+	}
+
+	/**
+	 * One publisher thread correlating while one callback thread uncorrelates
+	 * the keys in publish order. The publisher does not wait when the registry
+	 * is full so the group cannot stall at the end of an iteration.
+	 */
+	@Benchmark
+	@Group("publishAndAck")
+	@GroupThreads(1)
+	public long publish(Shared shared) {
+		return shared.registry.tryCorrelate(shared.msgInfo);
+	}
+
+	@Benchmark
+	@Group("publishAndAck")
+	@GroupThreads(1)
+	public Object ack(Shared shared, NextKey nextKey) {
+		Object msgInfo = shared.registry.uncorrelate(nextKey.key);
+		if (msgInfo != null)
+			nextKey.key++;
+		return msgInfo;
+	}
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+
+/**
+ * The Java side of {@link AbstractSample.MessageCallbackSample#onMessage(Handle)},
+ * counting only or keeping (taking) every message, and the
+ * {@link LatencyHistogram} recording done by the Perf sample callbacks.
+ *
+ * There is no broker or native library involved, the callback receives a
+ * proxy Handle whose getRxMessage() and takeRxMessage() do nothing, so these
+ * numbers are the sample's own per-message overhead on the context thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageCallbackBenchmark {
+
+	@Param({ "heap", "direct" })
+	String bufferType;
+
+	AbstractSample.MessageCallbackSample countingCallback;
+	AbstractSample.MessageCallbackSample keepingCallback;
+	Handle rxHandle;
+	LatencyHistogram histogram;
+	ByteBuffer rxContent;
+
+	@Setup
+	public void setup() {
+		// No printing from the callbacks
+		AbstractSample.beSilent();
+		countingCallback = new AbstractSample.MessageCallbackSample("count");
+		keepingCallback = new AbstractSample.MessageCallbackSample("keep");
+		keepingCallback.keepRxMessages(true);
+		rxHandle = newRxHandle();
+		histogram = new LatencyHistogram();
+		rxContent = "direct".equals(bufferType) ? ByteBuffer
+				.allocateDirect(100) : ByteBuffer.allocate(100);
+		rxContent.putLong(0, System.nanoTime());
+	}
+
+	@Setup(Level.Iteration)
+	public void clearKeptMessages() {
+		// The handles were never bound, so there is nothing to destroy
+		keepingCallback.getRxMessages().clear();
+	}
+
+	@Benchmark
+	public int onMessageCounting() {
+		countingCallback.onMessage(rxHandle);
+		return countingCallback.getMessageCount();
+	}
+
+	@Benchmark
+	public int onMessageKeeping() {
+		keepingCallback.onMessage(rxHandle);
+		return keepingCallback.getMessageCount();
+	}
+
+	@Benchmark
+	public LatencyHistogram recordLatency() {
+		histogram.record(System.nanoTime() - rxContent.getLong(0));
+		return histogram;
+	}
+
+	static Handle newRxHandle() {
+		return (Handle) Proxy.newProxyInstance(
+				MessageCallbackBenchmark.class.getClassLoader(), new Class<?>[] {
+						Handle.class, MessageSupport.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						Class<?> type = method.getReturnType();
+						if (type == boolean.class)
+							return Boolean.FALSE;
+						if (type == int.class)
+							return Integer.valueOf(0);
+						if (type == long.class)
+							return Long.valueOf(0);
+						return null;
+					}
+				});
+	}
+
+}
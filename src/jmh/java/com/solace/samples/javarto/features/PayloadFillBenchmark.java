@@ -0,0 +1,70 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The payload fill loop shared by {@link PerfPubSub} and {@link PerfADPubSub}
+ * ({@link SampleUtils#fillPayload(ByteBuffer, int, int)}), plus the latency
+ * stamp and read-back done in their -lat and -rate modes, on heap and direct
+ * ByteBuffers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PayloadFillBenchmark {
+
+	@Param({ "16", "100", "1024", "16384" })
+	int msgSize;
+
+	@Param({ "heap", "direct" })
+	String bufferType;
+
+	ByteBuffer buffer;
+
+	int seed;
+
+	@Setup
+	public void setup() {
+		buffer = "direct".equals(bufferType) ? ByteBuffer
+				.allocateDirect(msgSize) : ByteBuffer.allocate(msgSize);
+	}
+
+	@Benchmark
+	public ByteBuffer fillPayload() {
+		SampleUtils.fillPayload(buffer, msgSize, seed++);
+		return buffer;
+	}
+
+	@Benchmark
+	public ByteBuffer fillPayloadAndStamp() {
+		SampleUtils.fillPayload(buffer, msgSize, seed++);
+		buffer.putLong(0, System.nanoTime());
+		return buffer;
+	}
+
+	@Benchmark
+	public long readStamp() {
+		return System.nanoTime() - buffer.getLong(0);
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solace.samples.javarto.features.SampleUtils.UserVpn;
+
+/**
+ * {@link AbstractSample#getSessionProps(SessionConfiguration, int)}, for
+ * plain and secure session configurations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SessionPropsBenchmark {
+
+	@Param({ "false", "true" })
+	boolean secure;
+
+	@Param({ "0", "10" })
+	int spare;
+
+	SessionConfiguration config;
+
+	final AbstractSample sample = new AbstractSample() {
+		@Override
+		protected void run(String[] args, SessionConfiguration config,
+				Level logLevel) {
+		}
+
+		@Override
+		protected void printUsage(boolean secureSession) {
+		}
+
+		@Override
+		protected void finish(int status) {
+		}
+	};
+
+	@Setup
+	public void setup() {
+		if (secure) {
+			SecureSessionConfiguration secureConfig = new SecureSessionConfiguration();
+			secureConfig.setValidateCertificates(false);
+			secureConfig.setTrustStoreDir("/tmp/truststore");
+			config = secureConfig;
+			config.setHost("tcps://localhost:55443");
+		} else {
+			config = new SessionConfiguration();
+			config.setHost("localhost:55555");
+		}
+		config.setRouterUsername(UserVpn.parse("default@default"));
+		config.setRouterPassword("default");
+		config.setCompression(true);
+	}
+
+	@Benchmark
+	public String[] getSessionProps() {
+		return sample.getSessionProps(config, spare);
+	}
+
+}
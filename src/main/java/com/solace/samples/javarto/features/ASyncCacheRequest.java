@@ -4,6 +4,8 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -36,8 +38,10 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * </ul>
  * 
  * This sample sends an asynchronous cache request. The cache request is not
- * blocking, so the sample application is made to sleep when it reaches the end
- * of execution. This gives the cache time to respond to the request.
+ * blocking, so the sample application waits for the request to complete when
+ * it reaches the end of execution. A {@link TimingWheel} timer gives up on the
+ * request should the cache not respond in time, the way outstanding
+ * operations are timed out without a blocking call per operation.
  * 
  * Cached messages returned as a result of the cache request are handled by the
  * Session's message receive callback in the normal manner. This sample uses a
@@ -64,6 +68,18 @@ public class ASyncCacheRequest extends AbstractSample {
 
 	private static boolean SOLCACHE_EVENT_REQUEST_COMPLETED_NOTICE = false;
 
+	// Past the default cache request timeout of 10 seconds
+	private static final int CACHE_REQUEST_TIMEOUT_MS = 11 * 1000;
+
+	private static TimingWheel timingWheel;
+
+	// The timer of the cache request, cancelled by its completion
+	private static volatile long cacheRequestTimerId;
+
+	// Counted down on completion or timeout
+	private static final CountDownLatch cacheRequestDone = new CountDownLatch(
+			1);
+
 	@Override
 	protected void printUsage(boolean secureSession) {
 		String usage = ArgumentsParser.getCommonUsage(secureSession);
@@ -181,6 +197,20 @@ public class ASyncCacheRequest extends AbstractSample {
 		 */
 
 		long requestId = System.currentTimeMillis();
+
+		// Armed before sending, the completion may come first
+		timingWheel = new TimingWheel(1, 100, TimeUnit.MILLISECONDS, 128)
+				.start();
+		cacheRequestTimerId = timingWheel.schedule(
+				TimeUnit.MILLISECONDS.toNanos(CACHE_REQUEST_TIMEOUT_MS),
+				requestId, new TimingWheel.ExpiryListener() {
+					public void onExpiry(long expiredRequestId) {
+						print("Cache request [" + expiredRequestId
+								+ "] timed out");
+						cacheRequestDone.countDown();
+					}
+				});
+
 		rc = cacheSessionHandle.sendCacheRequest(requestId, topic,
 				SolEnum.CacheRequest.NO_WAIT_REPLY | SolEnum.CacheRequest.NO_SUBSCRIBE,
 				SolEnum.CacheLiveDataAction.QUEUE, 0);
@@ -193,9 +223,10 @@ public class ASyncCacheRequest extends AbstractSample {
 		 * Wait for a response. (The default timeout to wait for a response from
 		 * the cache is 10 seconds.)
 		 *************************************************************************/
-		print("Waiting for cache response. Sleeping for 11 seconds.");
+		print("Waiting for cache response, up to "
+				+ CACHE_REQUEST_TIMEOUT_MS / 1000 + " seconds.");
 		try {
-			Thread.sleep(11 * 1000);
+			cacheRequestDone.await();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
@@ -226,6 +257,9 @@ public class ASyncCacheRequest extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
+		if (timingWheel != null)
+			timingWheel.stop();
+
 		finish_DestroyHandle(cacheSessionHandle, "cacheSessionHandle");
 
 		finish_DestroyHandle(txMessageHandle, "messageHandle");
@@ -298,6 +332,11 @@ public class ASyncCacheRequest extends AbstractSample {
 				break;
 
 			}
+
+			// Completed in time, unless the timer expired already
+			if (cacheSessionEvent.getEnumCacheRequestEventCode() == SolEnum.CacheRequestEventCode.REQUEST_COMPLETED_NOTICE
+					&& timingWheel.cancel(cacheRequestTimerId))
+				cacheRequestDone.countDown();
 		}
 
 	}
@@ -4,12 +4,11 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.io.IOException;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -30,11 +29,11 @@ import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.MessageSupport;
 import com.solacesystems.solclientj.core.handle.MutableLong;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Destination;
 import com.solacesystems.solclientj.core.resource.Endpoint;
 import com.solacesystems.solclientj.core.resource.Queue;
-import com.solacesystems.solclientj.core.resource.Topic;
 
 public abstract class AbstractSample {
 
@@ -52,6 +51,13 @@ public abstract class AbstractSample {
 
 	ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
+	// Set by samples exporting their results, written once they finish
+	private BenchmarkResult benchmarkResult;
+	private String exportBasename;
+
+	// Set by fail()
+	private boolean failed = false;
+
 	public AbstractSample() {
 	}
 
@@ -61,7 +67,12 @@ public abstract class AbstractSample {
 	private SessionEventCallbackSample _defaultSessionEventCallbackSample = new SessionEventCallbackSample(
 			"");
 
-	private ByteBuffer messageContentBuffer = ByteBuffer.allocateDirect(512);
+	// Used by common_publishMessage, rebuilt when the session or message changes
+	private MessagePublisher commonPublisher;
+
+	private static final int COMMON_PAYLOAD_CAPACITY = 512;
+
+	private static final String COMMON_PAYLOAD_PREFIX = "Some message about topic ";
 
 	protected static void beSilent() {
 		printAssertionSuccess = false;
@@ -149,6 +160,8 @@ public abstract class AbstractSample {
 			ex.printStackTrace();
 			finishCode = 1;
 		} finally {
+			if (failed)
+				finishCode = 1;
 			finish(finishCode);
 			if (monitorMemory) {
 				scheduler.shutdown();
@@ -156,8 +169,43 @@ public abstract class AbstractSample {
 				monitor.checkUsedMemory();
 				monitor.report();
 			}
+			if (benchmarkResult != null)
+				writeResult();
 			print("Exited.");
 		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Marks the run as failed, the sample carries on reporting and then exits
+	 * with status 1
+	 */
+	protected void fail(String message) {
+		error(message, null);
+		failed = true;
+	}
+
+	/**
+	 * Exports the result when the sample finishes, with the used memory
+	 * recorded by the monitor (-mm) if it ran.
+	 *
+	 * @param basename
+	 *            path of the exported files, without extension
+	 */
+	protected void exportResult(BenchmarkResult result, String basename) {
+		this.benchmarkResult = result;
+		this.exportBasename = basename;
+	}
+
+	private void writeResult() {
+		if (monitorMemory)
+			monitor.exportTo(benchmarkResult);
+		try {
+			benchmarkResult.export(exportBasename);
+		} catch (IOException e) {
+			error("Failed exporting the results to " + exportBasename, e);
+		}
 	}
 
 	protected static void assertReturnCode(String operation, int returnCode,
@@ -400,49 +448,55 @@ public abstract class AbstractSample {
 			MessageHandle aMessageHandle, String topicStr,
 			int messageDeliveryModeFlags) {
 
-		Topic topic = Solclient.Allocator.newTopic(topicStr);
-		common_publishMessage(aSessionHandle, aMessageHandle, topic,
+		MessagePublisher publisher = getCommonPublisher(aSessionHandle,
+				aMessageHandle);
+		// The native destination is cached per topic string
+		publisher.beginPayload().putUtf8(COMMON_PAYLOAD_PREFIX)
+				.putUtf8(topicStr);
+		commonSend(publisher, publisher.destination(topicStr),
 				messageDeliveryModeFlags);
-
 	}
 
 	protected void common_publishMessage(SessionHandle aSessionHandle,
 			MessageHandle aMessageHandle, Destination destination,
 			int messageDeliveryModeFlags) {
 
+		MessagePublisher publisher = getCommonPublisher(aSessionHandle,
+				aMessageHandle);
+		publisher.beginPayload().putUtf8(COMMON_PAYLOAD_PREFIX)
+				.putUtf8(destination.getName());
+		commonSend(publisher, publisher.destination(destination),
+				messageDeliveryModeFlags);
+	}
+
+	private MessagePublisher getCommonPublisher(SessionHandle aSessionHandle,
+			MessageHandle aMessageHandle) {
+
 		if (aSessionHandle == null)
 			throw new IllegalArgumentException("SessionHandle may not be null");
 
 		if (aMessageHandle == null)
 			throw new IllegalArgumentException("MessageHandle may not be null");
 
-		int rc = 0;
-
-		if (!aMessageHandle.isBound()) {
-			// Allocate the message
-			rc = Solclient.createMessageForHandle(aMessageHandle);
-			assertReturnCode("Solclient.createMessageForHandle()", rc,
-					SolEnum.ReturnCode.OK);
+		if (commonPublisher == null
+				|| commonPublisher.getSessionHandle() != aSessionHandle
+				|| commonPublisher.getMessageHandle() != aMessageHandle) {
+			if (commonPublisher != null)
+				commonPublisher.destroy();
+			commonPublisher = new MessagePublisher(aSessionHandle,
+					aMessageHandle, COMMON_PAYLOAD_CAPACITY);
 		}
+		return commonPublisher;
+	}
 
-		/* Set the message delivery mode. */
-		aMessageHandle.setMessageDeliveryMode(messageDeliveryModeFlags);
-
-		// Set the destination/topic
-		aMessageHandle.setDestination(destination);
-
-		String message = "Some message about topic " + destination.getName();
-		messageContentBuffer.clear();
-		messageContentBuffer.put(message.getBytes(Charset.defaultCharset()));
-		messageContentBuffer.flip();
-
-		/* Add some content to the message. */
-		aMessageHandle.setBinaryAttachment(messageContentBuffer);
-
+	private void commonSend(MessagePublisher publisher,
+			NativeDestinationHandle destination, int messageDeliveryModeFlags) {
 		/* Send the message. */
-		rc = aSessionHandle.send(aMessageHandle);
-		assertReturnCode("SessionHandle.send()", rc, SolEnum.ReturnCode.OK,
-				SolEnum.ReturnCode.OK);
+		int rc = publisher.send(destination, messageDeliveryModeFlags);
+		// Only go through the assertion when it fails or is printed, it
+		// allocates
+		if (rc != SolEnum.ReturnCode.OK || printAssertionSuccess)
+			assertReturnCode("SessionHandle.send()", rc, SolEnum.ReturnCode.OK);
 	}
 
 	protected abstract void run(String[] args, SessionConfiguration config,
@@ -475,6 +529,10 @@ public abstract class AbstractSample {
 	}
 
 	public void finish_Solclient() {
+		if (commonPublisher != null) {
+			commonPublisher.destroy();
+			commonPublisher = null;
+		}
 		print("All done");
 	}
 
@@ -509,8 +567,13 @@ public abstract class AbstractSample {
 
 	public static class MessageCallbackSample implements MessageCallback {
 
+		// Most kept messages held in native memory at once
+		static final int KEPT_RX_MESSAGES_CAPACITY = 1024;
+
 		private boolean _keepRxMessage = false;
-		private java.util.List<MessageHandle> _rxMessages = new java.util.LinkedList<MessageHandle>();
+		// Bounded pool the kept messages are taken into, created on demand
+		private MessageHandlePool _rxMessagePool = null;
+		private int droppedCount = 0;
 		private int messageCount = 0;
 
 		String m_id;
@@ -525,13 +588,17 @@ public abstract class AbstractSample {
 			setMessageCount(getMessageCount() + 1);
 
 			if (this._keepRxMessage) {
-				if (logCallbacks)
+				MessageHandle takenMessage = _rxMessagePool
+						.take(messageSupport);
+				if (takenMessage == null) {
+					droppedCount++;
+					if (logCallbacks)
+						print(m_id + " -> Received message [" + messageCount
+								+ "], all " + _rxMessagePool.getCapacity()
+								+ " kept message handles in use, not keeping it");
+				} else if (logCallbacks)
 					print(m_id + " -> Received message [" + messageCount
 							+ "], adding it to received messages list");
-				MessageHandle takenMessage = Solclient.Allocator
-						.newMessageHandle();
-				messageSupport.takeRxMessage(takenMessage);
-				this._rxMessages.add(takenMessage);
 			} else {
 				if (logCallbacks) {
                                     MessageHandle rxMessage = messageSupport.getRxMessage();
@@ -551,14 +618,43 @@ public abstract class AbstractSample {
 
 		public void keepRxMessages(boolean keep) {
 			this._keepRxMessage = keep;
+			if (keep && _rxMessagePool == null)
+				_rxMessagePool = new MessageHandlePool(KEPT_RX_MESSAGES_CAPACITY);
 		}
 
 		public void setId(String id) {
 			this.m_id = id;
 		}
 
+		/**
+		 * @return the kept messages not released yet
+		 */
 		public java.util.List<MessageHandle> getRxMessages() {
-			return this._rxMessages;
+			if (_rxMessagePool == null)
+				return new ArrayList<MessageHandle>();
+			return _rxMessagePool.getInUseHandles();
+		}
+
+		/**
+		 * Frees a kept message once processed, its handle is reused for the
+		 * next one
+		 */
+		public void releaseRxMessage(MessageHandle messageHandle) {
+			_rxMessagePool.release(messageHandle);
+		}
+
+		/**
+		 * @return the pool of kept messages, null unless keeping them
+		 */
+		public MessageHandlePool getRxMessagePool() {
+			return _rxMessagePool;
+		}
+
+		/**
+		 * @return received messages not kept, all handles being in use
+		 */
+		public int getDroppedCount() {
+			return droppedCount;
 		}
 
 		public int getMessageCount() {
@@ -570,21 +666,15 @@ public abstract class AbstractSample {
 		}
 
 		public void destroy() {
-			if (_rxMessages.size() > 0) {
-				print(String.format("Destroying %d kept messages",
-						_rxMessages.size()));
-				for (Iterator<MessageHandle> iterator = _rxMessages.iterator(); iterator
-						.hasNext();) {
-
-					MessageHandle messageHandle = (MessageHandle) iterator
-							.next();
-					try {
-						messageHandle.destroy();
-					} catch (Throwable t) {
-						error("Unable to destroy a messageHandle ", t);
-					}
-					print(".");
-				}
+			if (_rxMessagePool != null) {
+				int inUse = _rxMessagePool.getInUse();
+				if (inUse > 0)
+					print(String.format("Destroying %d kept messages", inUse));
+				_rxMessagePool.destroy();
+				if (droppedCount > 0)
+					print(String.format(
+							"%d messages were not kept, peak of %d kept messages",
+							droppedCount, _rxMessagePool.getPeakInUse()));
 			}
 		}
 
@@ -678,7 +768,10 @@ public abstract class AbstractSample {
 	public static class Monitor implements Runnable {
 
 		Runtime runtime = Runtime.getRuntime();
-		List<Long> usedMemoryHistory = new ArrayList<Long>();
+
+		// Grows by doubling, a sample boxes nothing
+		long[] usedMemoryHistory = new long[1024];
+		int usedMemorySamples = 0;
 
 		@Override
 		public void run() {
@@ -694,22 +787,48 @@ public abstract class AbstractSample {
 			lastTotalMemory = runtime.totalMemory();
 			lastFreeMemory = runtime.freeMemory();
 			lastUsedMemory = lastTotalMemory - lastFreeMemory;
-			usedMemoryHistory.add(lastUsedMemory);
+			if (usedMemorySamples == usedMemoryHistory.length)
+				usedMemoryHistory = Arrays.copyOf(usedMemoryHistory,
+						usedMemorySamples * 2);
+			usedMemoryHistory[usedMemorySamples++] = lastUsedMemory;
 		}
 
 		public void report() {
-			for (int i = 0; i < usedMemoryHistory.size(); i++) {
-				System.out.println("UsedMemory:" + usedMemoryHistory.get(i));
+			for (int i = 0; i < usedMemorySamples; i++) {
+				System.out.println("UsedMemory:" + usedMemoryHistory[i]);
 			}
 
 			printGCStats();
 		}
 
+		/**
+		 * Adds the used memory history as a series and the GC totals as
+		 * metrics
+		 */
+		public void exportTo(BenchmarkResult result) {
+			List<double[]> rows = new ArrayList<double[]>();
+			for (int i = 0; i < usedMemorySamples; i++) {
+				rows.add(new double[] { i, usedMemoryHistory[i] });
+			}
+			List<String> columns = new ArrayList<String>();
+			columns.add("sample");
+			columns.add("used_bytes");
+			result.putSeries("memory", columns, rows);
+			result.putMetric("gc_count", getTotalGarbageCollections());
+			result.putMetric("gc_time_ms", getTotalGarbageCollectionTime());
+		}
+
 	}
 
 	public static void printGCStats() {
+		System.out.println("Total Garbage Collections: "
+				+ getTotalGarbageCollections());
+		System.out.println("Total Garbage Collection Time (ms): "
+				+ getTotalGarbageCollectionTime());
+	}
+
+	public static long getTotalGarbageCollections() {
 		long totalGarbageCollections = 0;
-		long garbageCollectionTime = 0;
 
 		for (GarbageCollectorMXBean gc : ManagementFactory
 				.getGarbageCollectorMXBeans()) {
@@ -719,6 +838,18 @@ public abstract class AbstractSample {
 			if (count >= 0) {
 				totalGarbageCollections += count;
 			}
+		}
+		return totalGarbageCollections;
+	}
+
+	/**
+	 * @return milliseconds
+	 */
+	public static long getTotalGarbageCollectionTime() {
+		long garbageCollectionTime = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
 
 			long time = gc.getCollectionTime();
 
@@ -726,11 +857,7 @@ public abstract class AbstractSample {
 				garbageCollectionTime += time;
 			}
 		}
-
-		System.out.println("Total Garbage Collections: "
-				+ totalGarbageCollections);
-		System.out.println("Total Garbage Collection Time (ms): "
-				+ garbageCollectionTime);
+		return garbageCollectionTime;
 	}
 
 }
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.SolEnum.MessageOutcome;
+import com.solacesystems.solclientj.core.handle.FlowHandle;
+
+/**
+ * Collects the Guaranteed message ids received on a client acknowledgement
+ * Flow and acknowledges them in batches.
+ *
+ * The message callback calls {@link #add(long)} instead of acknowledging each
+ * message, the batch is flushed from the callback when it holds batchSize
+ * ids, or from a timer thread once the oldest id has waited maxDelay. The ids
+ * are still acknowledged one by one (the API acknowledges by message id), but
+ * in bursts off the per-message path. A flush swaps the batch for a spare
+ * array under the lock and acknowledges it outside, so adding ids is not held
+ * up while the timer thread acknowledges a batch, unless the next batch fills
+ * meanwhile.
+ *
+ * The trade off is explicit: up to batchSize messages, or maxDelay worth of
+ * messages, are received but not yet acknowledged, and are redelivered if the
+ * Flow goes down before the next flush. Call {@link #close()} before
+ * destroying the Flow to acknowledge what is left.
+ */
+public class AckAccumulator {
+
+	private final FlowHandle flowHandle;
+
+	// null to acknowledge with ack(), the outcome to settle() with otherwise
+	private final MessageOutcome outcome;
+
+	private long[] pending;
+
+	// The batch being acknowledged, swapped with pending by the flusher
+	// holding flushLock
+	private long[] flushing;
+
+	private int pendingCount = 0;
+
+	// Held while acknowledging, without the lock of the accumulator
+	private final Object flushLock = new Object();
+
+	private final long maxDelayNanos;
+
+	private long oldestNanos;
+
+	private long acknowledgedCount = 0;
+
+	private long errorCount = 0;
+
+	private long batchFlushCount = 0;
+
+	private long timerFlushCount = 0;
+
+	private volatile boolean closed = false;
+
+	private Thread timer;
+
+	/**
+	 * Acknowledges with FlowHandle.ack(msgId)
+	 *
+	 * @param batchSize
+	 *            number of ids flushed at once from the callback
+	 * @param maxDelayMs
+	 *            longest time an id waits for its acknowledgement
+	 */
+	public AckAccumulator(FlowHandle flowHandle, int batchSize, long maxDelayMs) {
+		this(flowHandle, batchSize, maxDelayMs, null);
+	}
+
+	/**
+	 * Settles with FlowHandle.settle(msgId, outcome), the Flow must support the
+	 * outcome
+	 */
+	public AckAccumulator(FlowHandle flowHandle, int batchSize,
+			long maxDelayMs, MessageOutcome outcome) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be positive");
+		if (maxDelayMs < 1)
+			throw new IllegalArgumentException("maxDelayMs must be positive");
+		this.flowHandle = flowHandle;
+		this.outcome = outcome;
+		this.pending = new long[batchSize];
+		this.flushing = new long[batchSize];
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+	}
+
+	/**
+	 * Starts the timer thread flushing batches older than maxDelay.
+	 *
+	 * @return this
+	 */
+	public synchronized AckAccumulator start() {
+		if (timer == null) {
+			timer = new Thread("AckAccumulator") {
+				public void run() {
+					long tickNanos = Math.max(maxDelayNanos / 2, 100000);
+					while (!closed) {
+						LockSupport.parkNanos(tickNanos);
+						flushIfDue();
+					}
+				}
+			};
+			timer.setDaemon(true);
+			timer.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Called from the message callback with
+	 * getRxMessage().getGuaranteedMessageId()
+	 */
+	public void add(long msgId) {
+		for (;;) {
+			synchronized (this) {
+				if (pendingCount < pending.length) {
+					if (pendingCount == 0)
+						oldestNanos = System.nanoTime();
+					pending[pendingCount++] = msgId;
+					if (pendingCount < pending.length)
+						return;
+					batchFlushCount++;
+					break;
+				}
+			}
+			// Another thread filled the batch and has yet to flush it
+			flushPending(false);
+		}
+		flushPending(false);
+	}
+
+	/**
+	 * Flushes the batch if its oldest id has waited maxDelay.
+	 */
+	public void flushIfDue() {
+		flushPending(true);
+	}
+
+	/**
+	 * Acknowledges all pending ids now.
+	 *
+	 * @return the number of ids flushed
+	 */
+	public int flush() {
+		return flushPending(false);
+	}
+
+	/**
+	 * Stops the timer and flushes what is left.
+	 */
+	public void close() {
+		closed = true;
+		Thread t;
+		synchronized (this) {
+			t = timer;
+		}
+		if (t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	private int flushPending(boolean ifDue) {
+		synchronized (flushLock) {
+			long[] batch;
+			int count;
+			synchronized (this) {
+				if (pendingCount == 0 || (ifDue
+						&& System.nanoTime() - oldestNanos < maxDelayNanos))
+					return 0;
+				if (ifDue)
+					timerFlushCount++;
+				batch = pending;
+				count = pendingCount;
+				pending = flushing;
+				flushing = batch;
+				pendingCount = 0;
+			}
+
+			long acknowledged = 0;
+			for (int i = 0; i < count; i++) {
+				int rc = (outcome == null) ? flowHandle.ack(batch[i])
+						: flowHandle.settle(batch[i], outcome);
+				if (rc == SolEnum.ReturnCode.OK)
+					acknowledged++;
+			}
+			synchronized (this) {
+				acknowledgedCount += acknowledged;
+				errorCount += count - acknowledged;
+			}
+			return count;
+		}
+	}
+
+	public synchronized int getBatchSize() {
+		return pending.length;
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	public synchronized long getAcknowledgedCount() {
+		return acknowledgedCount;
+	}
+
+	public synchronized long getErrorCount() {
+		return errorCount;
+	}
+
+	public synchronized long getBatchFlushCount() {
+		return batchFlushCount;
+	}
+
+	public synchronized long getTimerFlushCount() {
+		return timerFlushCount;
+	}
+
+}
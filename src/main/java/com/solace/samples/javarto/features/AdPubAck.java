@@ -33,11 +33,13 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * along with SessionEventCode which indicates the success or failure of sending
  * the message.
  * 
- * In this specific sample, the publisher is using a sparse array utility, the
- * array index is the correlation key, the array bucket holds whatever structure
- * is desired for tracking the message and its state. In the callback,
- * correlated objects are cleared from the array and further processing can
- * occur with them as desired.
+ * In this specific sample, the publisher is using an in-flight message table,
+ * the correlation key indexes a slot holding the message id, send time, state
+ * flags and retry count in primitive arrays, so no tracking object is created
+ * per message. In the callback, the state of the message is updated and its
+ * slot released, further processing can occur with it as desired.
+ * Acknowledgements for keys no longer in flight are counted as unknown rather
+ * than matched with the wrong message.
  * 
  * For simplicity, this sample treats both message acceptance and rejection the
  * same way: the message is freed. In real world applications, the client should
@@ -52,7 +54,7 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * sample chooses to avoid processing the message within the callback.
  * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
- * GC-free.<br>
+ * GC-free (the message tracking is, the console output is not).<br>
  * See Perf* samples for GC-free examples. </strong>
  */
 public class AdPubAck extends AbstractSample {
@@ -82,45 +84,25 @@ public class AdPubAck extends AbstractSample {
 		finish(1);
 	}
 
-	/*
-	 * Used to track the correlation state for a given message publisher event
-	 * callback when the message is acknowledged or rejected.
-	 */
-	class MsgInfo {
-		public volatile boolean acked = false;
-		public volatile boolean accepted = false;
-
-		public final long id;
-
-		public MsgInfo(long id) {
-			this.id = id;
-		}
-
-		@Override
-		public String toString() {
-			return id + ": acked[" + acked + "] accepted [" + accepted + "]";
-		}
-	}
-
 	public static class AdPubAckEventAdapter implements SessionEventCallback,
 			MessageCallback {
 
-		// An sample Correlation Array Utility for making correlationKey and
-		// tracking associated objects
-		CorrelationArrayUtil<MsgInfo> correlationArrayMsgInfo = new CorrelationArrayUtil<MsgInfo>(
-				MsgInfo.class);
+		// Used to track the state of a given message between the publisher and
+		// the event callback when the message is acknowledged or rejected
+		InFlightMessageTable inFlightTable = new InFlightMessageTable(256);
 
-		public CorrelationArrayUtil<MsgInfo> getCorrelationArrayMsgInfo() {
-			return correlationArrayMsgInfo;
+		public InFlightMessageTable getInFlightTable() {
+			return inFlightTable;
 		}
 
-		public void setCorrelationArrayMsgInfo(
-				CorrelationArrayUtil<MsgInfo> correlationArrayMsgInfo) {
-			this.correlationArrayMsgInfo = correlationArrayMsgInfo;
+		public void setInFlightTable(InFlightMessageTable inFlightTable) {
+			this.inFlightTable = inFlightTable;
 		}
 
 		private int acknowledgedCount = 0;
 
+		private int unknownAckCount = 0;
+
 		@Override
 		public void onEvent(SessionHandle sessionHandle) {
 
@@ -130,34 +112,22 @@ public class AdPubAck extends AbstractSample {
 
 			long correlationKey = se.getCorrelationKey();
 
-			MsgInfo msgInfo = correlationArrayMsgInfo
-					.uncorrelate(correlationKey);
-			if (msgInfo != null)
-				setAcknowledgedCount(getAcknowledgedCount() + 1);
-
 			SolclientErrorInfo solclientErrorInfo = Solclient
 					.getLastErrorInfo();
 
 			switch (sessionEventCode) {
 			case SolEnum.SessionEventCode.ACKNOWLEDGEMENT:
 
-				if (msgInfo != null) {
-					msgInfo.acked = true;
-					msgInfo.accepted = true;
-				}
 				print("AdPubAckEventAdapter - Received ACKNOWLEDGEMENT for correlationKey ["
-						+ correlationKey + "]  MsgInfo [" + msgInfo + "]");
+						+ correlationKey + "]  MsgInfo ["
+						+ acknowledge(correlationKey, true) + "]");
 
 				break;
 			case SolEnum.SessionEventCode.REJECTED_MSG_ERROR:
-				if (msgInfo != null) {
-					msgInfo.acked = true;
-					msgInfo.accepted = false;
-				}
 				print("AdPubAckEventAdapter - Received REJECTED_MSG_ERROR for correlationKey ["
 						+ correlationKey
 						+ "]  MsgInfo ["
-						+ msgInfo
+						+ acknowledge(correlationKey, false)
 						+ "] "
 						+ solclientErrorInfo);
 				break;
@@ -195,6 +165,31 @@ public class AdPubAck extends AbstractSample {
 			print("AdPubAckEventAdapter - Received onMessage");
 		}
 
+		/*
+		 * Updates the state of the message and frees its slot
+		 * 
+		 * @return a description of the message for printing
+		 */
+		private String acknowledge(long correlationKey, boolean accepted) {
+			int slot = inFlightTable.acknowledge(correlationKey, accepted);
+			if (slot < 0) {
+				unknownAckCount++;
+				return "unknown";
+			}
+			setAcknowledgedCount(getAcknowledgedCount() + 1);
+			String msgInfo = inFlightTable.getId(slot) + ": acked["
+					+ inFlightTable.isAcked(slot) + "] accepted ["
+					+ inFlightTable.isAccepted(slot) + "] latency ["
+					+ (System.nanoTime() - inFlightTable.getSendNanos(slot))
+					/ 1000 + " us]";
+			inFlightTable.release(correlationKey);
+			return msgInfo;
+		}
+
+		public int getUnknownAckCount() {
+			return unknownAckCount;
+		}
+
 		public int getAcknowledgedCount() {
 			return acknowledgedCount;
 		}
@@ -268,12 +263,11 @@ public class AdPubAck extends AbstractSample {
 
 		for (int i = 0; i < numberOfMessageToPublish; i++) {
 
-			// Track it
-			MsgInfo msgInfo = new MsgInfo(i);
-			long correlationKey = adPubAckEventAdapter
-					.getCorrelationArrayMsgInfo().correlate(msgInfo);
+			// Track it, waiting for acknowledgements while the table is full
+			long correlationKey = adPubAckEventAdapter.getInFlightTable().add(
+					i, System.nanoTime());
 
-			// Using CorrelationArrayUtil generated correlationKey
+			// Using InFlightMessageTable generated correlationKey
 			txMessageHandle.setCorrelationKey(correlationKey);
 
 			String msg = "AdPubAck MsgInfo [" + i + "] correlationKey ["
@@ -313,6 +307,9 @@ public class AdPubAck extends AbstractSample {
 		assertExpectedCount("Acknowledged count ", numberOfMessageToPublish,
 				adPubAckEventAdapter.getAcknowledgedCount());
 
+		print("Unknown acknowledgements ["
+				+ adPubAckEventAdapter.getUnknownAckCount() + "]");
+
 		print("Test Passed");
 
 	}
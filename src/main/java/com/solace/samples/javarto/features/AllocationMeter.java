@@ -0,0 +1,191 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the bytes allocated per message by the threads of a run, the
+ * publisher and the callback threads, and checks them against a budget.
+ *
+ * Allocation is read from the per-thread counters of the HotSpot
+ * com.sun.management.ThreadMXBean, which count every TLAB and outside TLAB
+ * allocation of a thread, so that a sample can prove it is GC-free rather
+ * than hope no collection happened to run. Each thread is a {@link Probe}
+ * begun and ended around the steady state, after the warm-up, the bytes
+ * being divided by the messages the thread handled meanwhile.
+ *
+ * A probe allocates nothing between its begin and end on the measured thread,
+ * other threads can be read from the main thread. A thread gone by the end of
+ * the run measures itself with {@link #getAllocatedBytes(long)} and hands its
+ * numbers over with {@link #record(String, long, long)}.
+ */
+public class AllocationMeter {
+
+	/**
+	 * Bytes per message allowed unless told otherwise: anything allocated per
+	 * message takes at least 16 bytes, one-off allocations spread over a run
+	 * stay well under one
+	 */
+	public static final double DEFAULT_BUDGET_BYTES_PER_MESSAGE = 1.0;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	private final double budgetBytesPerMessage;
+
+	private final List<Probe> probes = new ArrayList<Probe>();
+
+	/**
+	 * The allocation of one thread over the steady state
+	 */
+	public final class Probe {
+
+		final String name;
+		final long threadId;
+		final IntervalReporter.Counter messages;
+
+		private long startBytes;
+		private long startMessages;
+		long bytes = -1;
+		long messageCount;
+
+		Probe(String name, long threadId, IntervalReporter.Counter messages) {
+			this.name = name;
+			this.threadId = threadId;
+			this.messages = messages;
+		}
+
+		public void begin() {
+			startMessages = messages.get();
+			// Last, nothing of begin() counted
+			startBytes = getAllocatedBytes(threadId);
+		}
+
+		public void end() {
+			// First, nothing of end() counted
+			long endBytes = getAllocatedBytes(threadId);
+			messageCount = messages.get() - startMessages;
+			bytes = (endBytes < 0 || startBytes < 0) ? -1 : endBytes
+					- startBytes;
+		}
+
+		public double getBytesPerMessage() {
+			return messageCount == 0 ? 0 : (double) bytes / messageCount;
+		}
+
+		boolean isWithinBudget() {
+			return bytes < 0 || getBytesPerMessage() <= budgetBytesPerMessage;
+		}
+	}
+
+	/**
+	 * @param budgetBytesPerMessage
+	 *            most bytes a thread may allocate per message
+	 */
+	public AllocationMeter(double budgetBytesPerMessage) {
+		this.budgetBytesPerMessage = budgetBytesPerMessage;
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspotBean = null;
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			hotspotBean = (com.sun.management.ThreadMXBean) bean;
+			if (hotspotBean.isThreadAllocatedMemorySupported()) {
+				hotspotBean.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				hotspotBean = null;
+			}
+		}
+		this.threadBean = hotspotBean;
+	}
+
+	/**
+	 * @return false when this JVM does not count allocation per thread
+	 */
+	public boolean isSupported() {
+		return threadBean != null;
+	}
+
+	/**
+	 * @return the bytes a thread allocated since it started, -1 if unknown
+	 */
+	public long getAllocatedBytes(long threadId) {
+		return threadBean == null ? -1 : threadBean
+				.getThreadAllocatedBytes(threadId);
+	}
+
+	/**
+	 * @param messages
+	 *            the messages handled by the thread so far
+	 * @return a probe to begin and end on the steady state
+	 */
+	public Probe watch(String name, long threadId,
+			IntervalReporter.Counter messages) {
+		Probe probe = new Probe(name, threadId, messages);
+		probes.add(probe);
+		return probe;
+	}
+
+	/**
+	 * Adds the numbers of a thread that measured itself
+	 */
+	public void record(String name, long bytes, long messages) {
+		Probe probe = new Probe(name, 0, null);
+		probe.bytes = bytes;
+		probe.messageCount = messages;
+		probes.add(probe);
+	}
+
+	/**
+	 * Prints the allocation of each thread against the budget
+	 *
+	 * @return true if every thread stayed within the budget
+	 */
+	public boolean printReport() {
+		System.out.printf("%nAllocation per message, budget %.1f bytes:%n",
+				budgetBytesPerMessage);
+		if (!isSupported()) {
+			System.out
+					.println("\t not measured, this JVM does not count allocation per thread");
+			return true;
+		}
+		boolean withinBudget = true;
+		for (int i = 0; i < probes.size(); i++) {
+			Probe probe = probes.get(i);
+			if (probe.bytes < 0) {
+				System.out.printf("\t %-16s unknown, the thread is gone%n",
+						probe.name);
+				continue;
+			}
+			System.out.printf(
+					"\t %-16s %12d bytes over %10d messages = %10.3f bytes/message %s%n",
+					probe.name, probe.bytes, probe.messageCount,
+					probe.getBytesPerMessage(),
+					probe.isWithinBudget() ? "ok" : "OVER BUDGET");
+			withinBudget &= probe.isWithinBudget();
+		}
+		return withinBudget;
+	}
+
+	/**
+	 * Adds an alloc_name_bytes_per_msg metric per thread
+	 */
+	public void exportTo(BenchmarkResult result) {
+		for (int i = 0; i < probes.size(); i++) {
+			Probe probe = probes.get(i);
+			if (probe.bytes >= 0)
+				result.putMetric("alloc_" + probe.name.replace(' ', '_')
+						+ "_bytes_per_msg", probe.getBytesPerMessage());
+		}
+		result.putMetadata("alloc_budget_bytes_per_msg",
+				Double.toString(budgetBytesPerMessage));
+	}
+
+	public double getBudgetBytesPerMessage() {
+		return budgetBytesPerMessage;
+	}
+
+}
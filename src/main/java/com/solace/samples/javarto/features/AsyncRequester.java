@@ -0,0 +1,599 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+
+/**
+ * Sends direct requests without waiting for each reply, keeping up to a window
+ * of requests outstanding on one session, where sessionHandle.sendRequest
+ * blocks for the reply and caps throughput at one request per round trip.
+ *
+ * Each request gets a long correlation key from {@link CorrelationSlots},
+ * indexing a slot of primitive arrays that hold the application's request id
+ * and the send time. The key travels as the
+ * request's correlation id, {@link #CORRELATION_PREFIX} followed by the key,
+ * which the replier keeps in its reply with sessionHandle.sendReply or
+ * setCorrelationIdFromMessage, as the {@link ReplierEngine} does. The payload
+ * goes through untouched. Correlating a reply reads the digits of its
+ * correlation id and indexes an array, no map; the API creates a String for
+ * the correlation id of each request and reply.
+ *
+ * The requester thread calls {@link #request(MessageHandle, ByteBuffer, long,
+ * ReplyListener)}, held back while the window is full. The session message
+ * callback hands replies to {@link #onReply(MessageHandle)}, which completes
+ * the request by calling its {@link ReplyListener} on the context thread.
+ * {@link #request(MessageHandle, ByteBuffer)} returns a future instead, at
+ * the cost of a few objects per request.
+ *
+ * Given a {@link TimingWheel}, each request also gets a timer, cancelled by
+ * its reply. A request without a reply in time is completed by
+ * {@link ReplyListener#onTimeout(long)} on the tick thread and frees its place
+ * in the window, its reply counting as unknown should it come later. The
+ * thread completing a request cancels its timers before freeing its slot, so
+ * a wheel with room for the window's timers always has room for the next
+ * request. Should it still be full the request goes without a timeout, and is
+ * counted.
+ *
+ * With {@link #setHedging(TimingWheel, MessageHandle, double)} a request
+ * still without a reply after a percentile of the recent round trips is sent
+ * a second time, by the tick thread of a wheel fine enough to time a round
+ * trip: one slow replier or path then no longer makes the tail latency. The
+ * copy carries the same key after {@link #HEDGE_PREFIX}, the first of the two
+ * replies completes the request and the other is discarded by its correlation
+ * id. The round trip of the first copy alone is recorded besides, to show
+ * what hedging saved.
+ */
+public class AsyncRequester {
+
+	/** Prefix of the correlation id of each request, before its key */
+	public static final String CORRELATION_PREFIX = "rq:";
+
+	/** Prefix of the correlation id of a hedged copy of a request */
+	public static final String HEDGE_PREFIX = "rqh:";
+
+	/** Round trips the hedge delay is computed from, and then recomputed */
+	public static final int HEDGE_SAMPLES = 256;
+
+	/**
+	 * Completes a request, called on the context thread: it must not block nor
+	 * send requests
+	 */
+	public interface ReplyListener {
+
+		/**
+		 * @param payload
+		 *            the reply's binary attachment, valid during the call
+		 *            only, like the reply
+		 */
+		void onReply(long requestId, MessageHandle reply, ByteBuffer payload,
+				long roundTripNanos);
+
+		/**
+		 * Called on the tick thread of the {@link TimingWheel} when no reply
+		 * came in time
+		 */
+		void onTimeout(long requestId);
+	}
+
+	private final SessionHandle sessionHandle;
+
+	private final Destination replyTo;
+
+	// Publishing a key publishes the other fields of its slot between the
+	// requester and the context thread
+	private final CorrelationSlots slots;
+
+	private final long[] requestIds;
+
+	private final long[] sendNanos;
+
+	private final ReplyListener[] listeners;
+
+	private final long[] timerIds;
+
+	private final long[] hedgeTimerIds;
+
+	// null without request timeouts
+	private TimingWheel timingWheel;
+
+	private long timeoutNanos;
+
+	private final TimingWheel.ExpiryListener expiryListener = new TimingWheel.ExpiryListener() {
+		public void onExpiry(long key) {
+			expire(key);
+		}
+	};
+
+	// null without hedging
+	private TimingWheel hedgeWheel;
+
+	// Used by the tick thread of the hedgeWheel only
+	private MessageHandle hedgeMessageHandle;
+
+	private double hedgePercentile;
+
+	// The content of each outstanding request, for its hedge
+	private ByteBuffer[] hedgePayloads;
+
+	// 1 while the tick thread sends a hedge from the slot, which is not
+	// reused meanwhile
+	private AtomicIntegerArray hedgePins;
+
+	// 0 until HEDGE_SAMPLES round trips came
+	private volatile long hedgeDelayNanos = 0;
+
+	private final TimingWheel.ExpiryListener hedgeListener = new TimingWheel.ExpiryListener() {
+		public void onExpiry(long key) {
+			hedge(key);
+		}
+	};
+
+	// Written by the requester thread only
+	private volatile long untimedCount = 0;
+
+	private final int maxPayloadSize;
+
+	// Written by the context thread only
+	private final ByteBuffer rxContent;
+
+	private long unknownReplyCount = 0;
+
+	private long hedgeWinCount = 0;
+
+	private long discardedReplyCount = 0;
+
+	// The last request of each slot completed by its hedge, until the reply
+	// to its first copy comes
+	private long[] hedgeWinKeys;
+
+	private long[] hedgeWinSendNanos;
+
+	private final LatencyHistogram recentLatency = new LatencyHistogram();
+
+	private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+
+	private final LatencyHistogram firstCopyLatency = new LatencyHistogram();
+
+	// Written by the tick thread only
+	private volatile long timedOutCount = 0;
+
+	private volatile long hedgedCount = 0;
+
+	/**
+	 * @param replyTo
+	 *            where replies are sent, a topic the session subscribed to
+	 * @param windowSize
+	 *            maximum number of requests waiting for their reply
+	 * @param maxPayloadSize
+	 *            largest request and reply payload
+	 */
+	public AsyncRequester(SessionHandle sessionHandle, Destination replyTo,
+			int windowSize, int maxPayloadSize) {
+		this.sessionHandle = sessionHandle;
+		this.replyTo = replyTo;
+		this.slots = new CorrelationSlots(windowSize);
+		int capacity = slots.getCapacity();
+		this.requestIds = new long[capacity];
+		this.sendNanos = new long[capacity];
+		this.listeners = new ReplyListener[capacity];
+		this.timerIds = new long[capacity];
+		this.hedgeTimerIds = new long[capacity];
+		this.maxPayloadSize = maxPayloadSize;
+		this.rxContent = ByteBuffer.allocateDirect(maxPayloadSize);
+	}
+
+	/**
+	 * Times requests out, call before the first request.
+	 *
+	 * @param timingWheel
+	 *            a started wheel, with room for the window's timers
+	 * @param timeout
+	 *            time for a reply to come
+	 * @return this
+	 */
+	public AsyncRequester setTimeout(TimingWheel timingWheel, long timeout,
+			TimeUnit unit) {
+		this.timingWheel = timingWheel;
+		this.timeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Hedges requests, call before the first request.
+	 *
+	 * @param hedgeWheel
+	 *            a started wheel with room for the window's timers, ticking
+	 *            a fraction of a round trip, its tick thread sends the hedges
+	 * @param hedgeMessageHandle
+	 *            a message with the destination and delivery mode of the
+	 *            requests, the hedges are sent with it
+	 * @param percentile
+	 *            of the recent round trips a request waits for before being
+	 *            hedged, 95 hedges about 5% of the requests
+	 * @return this
+	 */
+	public AsyncRequester setHedging(TimingWheel hedgeWheel,
+			MessageHandle hedgeMessageHandle, double percentile) {
+		if (percentile <= 0 || percentile >= 100)
+			throw new IllegalArgumentException("percentile out of range: "
+					+ percentile);
+		this.hedgePercentile = percentile;
+		int capacity = slots.getCapacity();
+		ByteBuffer payloads = ByteBuffer.allocateDirect(capacity
+				* maxPayloadSize);
+		this.hedgePayloads = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			payloads.limit((i + 1) * maxPayloadSize);
+			payloads.position(i * maxPayloadSize);
+			hedgePayloads[i] = payloads.slice();
+		}
+		this.hedgePins = new AtomicIntegerArray(capacity);
+		this.hedgeWinKeys = new long[capacity];
+		this.hedgeWinSendNanos = new long[capacity];
+		hedgeMessageHandle.setReplyTo(replyTo);
+		this.hedgeMessageHandle = hedgeMessageHandle;
+		this.hedgeWheel = hedgeWheel;
+		return this;
+	}
+
+	/**
+	 * Sends a request, waiting while the window is full.
+	 *
+	 * @param payload
+	 *            the request content, from its position to its limit, left
+	 *            unchanged
+	 * @param requestId
+	 *            the application's id for the request, handed back with the
+	 *            reply
+	 * @return the correlation key of the request
+	 * @throws IllegalStateException
+	 *             if the request could not be sent, it is not outstanding
+	 */
+	public long request(MessageHandle txMessageHandle, ByteBuffer payload,
+			long requestId, ReplyListener listener) {
+		long key = slots.acquire();
+		int slot = slots.indexOf(key);
+		// The slot acquired first, then unpinned: a hedge pinning it after
+		// no longer finds its key in flight
+		if (hedgePins != null) {
+			while (hedgePins.get(slot) != 0) {
+				LockSupport.parkNanos(1000);
+			}
+		}
+
+		int position = payload.position();
+		txMessageHandle.setCorrelationId(CORRELATION_PREFIX + key);
+		txMessageHandle.setBinaryAttachment(payload);
+		txMessageHandle.setReplyTo(replyTo);
+		payload.position(position);
+
+		long hedgeDelay = hedgeDelayNanos;
+		if (hedgeWheel != null && hedgeDelay > 0) {
+			ByteBuffer hedgePayload = hedgePayloads[slot];
+			hedgePayload.clear();
+			hedgePayload.put(payload);
+			hedgePayload.flip();
+			payload.position(position);
+		}
+
+		requestIds[slot] = requestId;
+		listeners[slot] = listener;
+		timerIds[slot] = 0;
+		hedgeTimerIds[slot] = 0;
+		// The timer id is stored before the key publishes the slot, for the
+		// reply to cancel it. The timer cannot fire before then, it is a
+		// tick away at least.
+		if (timingWheel != null) {
+			long timerId = timingWheel.schedule(timeoutNanos, key,
+					expiryListener);
+			if (timerId == 0)
+				untimedCount = untimedCount + 1;
+			timerIds[slot] = timerId;
+		}
+		// Without room in the hedge wheel the request is just not hedged
+		if (hedgeWheel != null && hedgeDelay > 0
+				&& (timingWheel == null || hedgeDelay < timeoutNanos))
+			hedgeTimerIds[slot] = hedgeWheel.schedule(hedgeDelay, key,
+					hedgeListener);
+		sendNanos[slot] = System.nanoTime();
+		slots.publish(key);
+
+		int rc = sessionHandle.send(txMessageHandle);
+		if (rc != SolEnum.ReturnCode.OK) {
+			if (slots.claim(key))
+				free(key, slot);
+			AbstractSample.assertReturnCode("sessionHandle.send()", rc,
+					SolEnum.ReturnCode.OK);
+		}
+		return key;
+	}
+
+	/**
+	 * Sends a request and returns a future of the reply's payload.
+	 */
+	public CompletableFuture<byte[]> request(MessageHandle txMessageHandle,
+			ByteBuffer payload) {
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		request(txMessageHandle, payload, 0, new ReplyListener() {
+			public void onReply(long requestId, MessageHandle reply,
+					ByteBuffer replyPayload, long roundTripNanos) {
+				byte[] content = new byte[replyPayload.remaining()];
+				replyPayload.get(content);
+				future.complete(content);
+			}
+
+			public void onTimeout(long requestId) {
+				future.completeExceptionally(new TimeoutException(
+						"No reply after " + timeoutNanos / 1000000 + " ms"));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Called from the session message callback with a reply.
+	 *
+	 * @return true if the reply completed an outstanding request, false for
+	 *         an unknown, late or duplicate reply, or the second reply to a
+	 *         hedged request
+	 */
+	public boolean onReply(MessageHandle reply) {
+		long now = System.nanoTime();
+		String correlationId = reply.getCorrelationId();
+		long key = CorrelationSlots.parseKey(correlationId,
+				CORRELATION_PREFIX);
+		boolean hedge = false;
+		if (key == 0 && hedgeWheel != null) {
+			key = CorrelationSlots.parseKey(correlationId, HEDGE_PREFIX);
+			hedge = key != 0;
+		}
+		int slot = slots.indexOf(key);
+		// Unless the timer expired it
+		if (!slots.claim(key)) {
+			discardOrIgnore(key, slot, hedge, now);
+			return false;
+		}
+		long requestId = requestIds[slot];
+		long sentNanos = sendNanos[slot];
+		long roundTripNanos = now - sentNanos;
+		ReplyListener listener = listeners[slot];
+		free(key, slot);
+
+		rxContent.clear();
+		reply.getBinaryAttachment(rxContent);
+		rxContent.flip();
+
+		roundTripLatency.record(roundTripNanos);
+		if (hedgeWheel != null) {
+			if (hedge) {
+				// The first copy is still due, its reply tells what the
+				// hedge saved
+				hedgeWinCount++;
+				hedgeWinKeys[slot] = key;
+				hedgeWinSendNanos[slot] = sentNanos;
+			} else {
+				firstCopyLatency.record(roundTripNanos);
+			}
+			recentLatency.record(roundTripNanos);
+			if (recentLatency.getTotalCount() >= HEDGE_SAMPLES) {
+				hedgeDelayNanos = Math.max(1,
+						recentLatency.getValueAtPercentile(hedgePercentile));
+				recentLatency.reset();
+			}
+		}
+		if (listener != null)
+			listener.onReply(requestId, reply, rxContent, roundTripNanos);
+		return true;
+	}
+
+	// Called on the context thread with a reply to no outstanding request
+	private void discardOrIgnore(long key, int slot, boolean hedge, long now) {
+		if (hedgeWheel == null || key == 0) {
+			unknownReplyCount++;
+		} else if (hedge) {
+			// The first copy won
+			discardedReplyCount++;
+		} else if (hedgeWinKeys[slot] == key) {
+			// The hedge won, by this much at least
+			discardedReplyCount++;
+			firstCopyLatency.record(now - hedgeWinSendNanos[slot]);
+			hedgeWinKeys[slot] = 0;
+		} else if (slots.isAcquired(key)) {
+			// The hedge won long ago, the slot completed another since
+			discardedReplyCount++;
+		} else {
+			unknownReplyCount++;
+		}
+	}
+
+	// Called on the tick thread
+	private void expire(long key) {
+		// Unless the reply came meanwhile
+		if (!slots.claim(key))
+			return;
+		int slot = slots.indexOf(key);
+		long requestId = requestIds[slot];
+		ReplyListener listener = listeners[slot];
+		free(key, slot);
+		timedOutCount = timedOutCount + 1;
+		if (listener != null)
+			listener.onTimeout(requestId);
+	}
+
+	// Called by the thread that claimed the key, the timers are cancelled
+	// before the requester can reuse the slot and schedule its own
+	private void free(long key, int slot) {
+		if (timingWheel != null)
+			timingWheel.cancel(timerIds[slot]);
+		if (hedgeWheel != null)
+			hedgeWheel.cancel(hedgeTimerIds[slot]);
+		listeners[slot] = null;
+		slots.release(key);
+	}
+
+	// Called on the tick thread of the hedgeWheel, sends the request again
+	private void hedge(long key) {
+		int slot = slots.indexOf(key);
+		// Pinned before the key is checked, the requester cannot reuse the
+		// slot and its payload until the hedge is sent, even if the reply
+		// frees it meanwhile
+		hedgePins.set(slot, 1);
+		try {
+			if (!slots.isInFlight(key))
+				return;
+			ByteBuffer hedgePayload = hedgePayloads[slot];
+			hedgePayload.position(0);
+			hedgeMessageHandle.setCorrelationId(HEDGE_PREFIX + key);
+			hedgeMessageHandle.setBinaryAttachment(hedgePayload);
+			int rc = sessionHandle.send(hedgeMessageHandle);
+			if (rc == SolEnum.ReturnCode.OK)
+				hedgedCount = hedgedCount + 1;
+		} finally {
+			hedgePins.set(slot, 0);
+		}
+	}
+
+	/**
+	 * Waits for all outstanding requests to be replied to.
+	 *
+	 * @return true if the window drained before the timeout
+	 */
+	public boolean awaitEmpty(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (getInFlight() > 0) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getWindowSize() {
+		return slots.getWindowSize();
+	}
+
+	public long getInFlight() {
+		return slots.getInFlight();
+	}
+
+	public long getSentCount() {
+		return slots.getAcquiredCount();
+	}
+
+	public long getCompletedCount() {
+		return slots.getReleasedCount();
+	}
+
+	public long getUnknownReplyCount() {
+		return unknownReplyCount;
+	}
+
+	public long getTimedOutCount() {
+		return timedOutCount;
+	}
+
+	/**
+	 * @return requests sent without a timeout, the wheel being full
+	 */
+	public long getUntimedCount() {
+		return untimedCount;
+	}
+
+	public boolean isHedging() {
+		return hedgeWheel != null;
+	}
+
+	/**
+	 * @return the current hedge delay, 0 until enough round trips came
+	 */
+	public long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+	/**
+	 * @return requests sent a second time
+	 */
+	public long getHedgedCount() {
+		return hedgedCount;
+	}
+
+	/**
+	 * @return requests completed by the reply to their hedge
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWinCount;
+	}
+
+	/**
+	 * @return second replies to hedged requests, discarded, and late replies
+	 *         to timed out requests while hedging
+	 */
+	public long getDiscardedReplyCount() {
+		return discardedReplyCount;
+	}
+
+	/**
+	 * Read once the window is drained, it is recorded by the context thread.
+	 *
+	 * @return the round trips of the first copy of the requests, as they
+	 *         would have been without hedging; first copies that never got a
+	 *         reply are missing, which flatters the unhedged tail
+	 */
+	public LatencyHistogram getFirstCopyLatency() {
+		return firstCopyLatency;
+	}
+
+	/**
+	 * Prints the hedge rate and the round trip percentiles with hedging next
+	 * to those of the first copies alone
+	 */
+	public void printHedgeReport() {
+		long requests = slots.getReleasedCount();
+		System.out.printf(
+				"%nHedging: %d of %d requests hedged (%.2f%%), %d completed by the hedge, %d second replies discarded, delay now %.1f us%n",
+				hedgedCount, requests, requests == 0 ? 0.0 : 100.0
+						* hedgedCount / requests, hedgeWinCount,
+				discardedReplyCount, hedgeDelayNanos / 1000.0);
+		if (hedgeWheel.getFullCount() > 0)
+			System.out.printf("\t %d requests not hedged, the hedge wheel being full%n",
+					hedgeWheel.getFullCount());
+		double[] percentiles = { 50, 90, 99, 99.9 };
+		System.out.printf("\t %-7s %12s %12s %12s%n", "", "hedged",
+				"first copy", "saved");
+		for (int i = 0; i < percentiles.length; i++) {
+			long hedged = roundTripLatency.getValueAtPercentile(percentiles[i]);
+			long firstCopy = firstCopyLatency
+					.getValueAtPercentile(percentiles[i]);
+			System.out.printf("\t p%-6s %9.1f us %9.1f us %9.1f us%n",
+					LatencyHistogram.formatPercentile(percentiles[i]),
+					hedged / 1000.0, firstCopy / 1000.0,
+					(firstCopy - hedged) / 1000.0);
+		}
+	}
+
+	/**
+	 * Read once the window is drained, it is recorded by the context thread.
+	 */
+	public LatencyHistogram getRoundTripLatency() {
+		return roundTripLatency;
+	}
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ *
+ * BenchmarkCompare.java
+ *
+ * Compares two benchmark results exported as JSON by the Perf samples (-export)
+ * and flags the regressions beyond a threshold:
+ * <ul>
+ * <li>a throughput (metric ending in _rate) lower by more than the threshold,
+ * <li>a latency or cost (metric ending in _us or _ms) higher by more than the
+ * threshold.
+ * </ul>
+ * Other metrics are listed for information. Exits with status 1 when a
+ * regression is found, so that it can gate an upgrade script.
+ *
+ */
+public class BenchmarkCompare {
+
+	static final double DEFAULT_THRESHOLD_PERCENT = 5.0;
+
+	private static void printUsage() {
+		System.out
+				.println("Usage: BenchmarkCompare baseline.json candidate.json [-t thresholdPercent]");
+		System.out
+				.println("\t -t thresholdPercent : change flagged as a regression [default: "
+						+ DEFAULT_THRESHOLD_PERCENT + "]\n");
+	}
+
+	/**
+	 * @return the number of regressions
+	 */
+	static int compare(BenchmarkResult baseline, BenchmarkResult candidate,
+			double thresholdPercent) {
+		System.out.printf("Baseline:  %s %s, %s%n", baseline.getSample(),
+				baseline.getMetadata().get("timestamp"), baseline
+						.getMetadata().get("args"));
+		System.out.printf("Candidate: %s %s, %s%n", candidate.getSample(),
+				candidate.getMetadata().get("timestamp"), candidate
+						.getMetadata().get("args"));
+		for (String key : new String[] { "java.version", "cores", "host" }) {
+			String before = baseline.getMetadata().get(key);
+			String after = candidate.getMetadata().get(key);
+			if (before != null && !before.equals(after))
+				System.out.printf("Warning: %s differs, %s vs %s%n", key,
+						before, after);
+		}
+
+		System.out.printf("%n%-32s %16s %16s %9s%n", "metric", "baseline",
+				"candidate", "change");
+		Map<String, Double> before = baseline.getComparableMetrics();
+		Map<String, Double> after = candidate.getComparableMetrics();
+		int regressions = 0;
+		for (Map.Entry<String, Double> entry : before.entrySet()) {
+			String name = entry.getKey();
+			Double candidateValue = after.get(name);
+			if (candidateValue == null) {
+				System.out.printf("%-32s %16.3f %16s%n", name,
+						entry.getValue(), "missing");
+				continue;
+			}
+			double baselineValue = entry.getValue();
+			double changePercent = (baselineValue == 0) ? 0
+					: 100.0 * (candidateValue - baselineValue)
+							/ Math.abs(baselineValue);
+			String verdict = "";
+			int direction = directionOf(name);
+			if (direction != 0 && -direction * changePercent > thresholdPercent) {
+				verdict = "REGRESSION";
+				regressions++;
+			} else if (direction != 0
+					&& direction * changePercent > thresholdPercent) {
+				verdict = "improved";
+			}
+			System.out.printf("%-32s %16.3f %16.3f %+8.1f%% %s%n", name,
+					baselineValue, candidateValue, changePercent, verdict);
+		}
+		for (String name : after.keySet()) {
+			if (!before.containsKey(name))
+				System.out.printf("%-32s %16s %16.3f%n", name, "missing",
+						after.get(name));
+		}
+
+		System.out.printf("%n%d regression(s) beyond %.1f%%%n", regressions,
+				thresholdPercent);
+		return regressions;
+	}
+
+	/**
+	 * @return 1 if higher is better, -1 if lower is better, 0 if unknown
+	 */
+	static int directionOf(String metric) {
+		if (metric.endsWith("_rate"))
+			return 1;
+		if (metric.endsWith("_us") || metric.endsWith("_ms"))
+			return -1;
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		String baselineFile = null;
+		String candidateFile = null;
+		double thresholdPercent = DEFAULT_THRESHOLD_PERCENT;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-t")) {
+					thresholdPercent = Double.parseDouble(args[++i]);
+				} else if (baselineFile == null) {
+					baselineFile = args[i];
+				} else if (candidateFile == null) {
+					candidateFile = args[i];
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			baselineFile = null;
+		}
+		if (baselineFile == null || candidateFile == null) {
+			printUsage();
+			System.exit(2);
+		}
+
+		try {
+			int regressions = compare(
+					BenchmarkResult.readJson(new File(baselineFile)),
+					BenchmarkResult.readJson(new File(candidateFile)),
+					thresholdPercent);
+			System.exit(regressions > 0 ? 1 : 0);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+
+}
@@ -0,0 +1,649 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The results of a benchmark run in a machine readable form: run metadata,
+ * final metrics, latency histogram summaries and time series.
+ *
+ * {@link #export(String)} writes basename.json with everything,
+ * basename.csv with the metadata, metrics and histogram summaries as name,value
+ * rows, and one basename-series.csv per time series. Results written as JSON
+ * are read back by {@link #readJson(File)}, for {@link BenchmarkCompare}.
+ *
+ * Metric names tell the comparison which way is better: names ending in _rate
+ * are throughputs, higher is better, names ending in _us or _ms are latencies
+ * or costs, lower is better.
+ */
+public class BenchmarkResult {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Arguments whose value is not written out
+	private static final List<String> SECRET_ARGS = Arrays.asList("-w",
+			"-pkfpwd");
+
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9,
+			99.99 };
+
+	private final String sample;
+
+	private final Map<String, String> metadata = new LinkedHashMap<String, String>();
+
+	private final Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+
+	private final Map<String, Map<String, Double>> histograms = new LinkedHashMap<String, Map<String, Double>>();
+
+	private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+
+	/**
+	 * Named columns and rows of values
+	 */
+	public static final class Series {
+		final List<String> columns;
+		final List<double[]> rows;
+
+		Series(List<String> columns, List<double[]> rows) {
+			this.columns = columns;
+			this.rows = rows;
+		}
+
+		public List<String> getColumns() {
+			return columns;
+		}
+
+		public List<double[]> getRows() {
+			return rows;
+		}
+	}
+
+	/**
+	 * Starts a result with the metadata of this run: arguments (passwords
+	 * masked), time, JVM, OS and host
+	 */
+	public BenchmarkResult(String sample, String[] args) {
+		this(sample);
+		metadata.put("args", maskSecrets(args));
+		SimpleDateFormat iso = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		metadata.put("timestamp", iso.format(new Date()));
+		String[] properties = { "java.version", "java.vendor",
+				"java.vm.name", "os.name", "os.arch", "os.version" };
+		for (String property : properties) {
+			metadata.put(property, System.getProperty(property, ""));
+		}
+		metadata.put("cores",
+				Integer.toString(Runtime.getRuntime().availableProcessors()));
+		metadata.put("max_heap_mb",
+				Long.toString(Runtime.getRuntime().maxMemory() / 1048576));
+		try {
+			metadata.put("host", InetAddress.getLocalHost().getHostName());
+		} catch (IOException e) {
+			metadata.put("host", "unknown");
+		}
+	}
+
+	private BenchmarkResult(String sample) {
+		this.sample = sample;
+	}
+
+	private static String maskSecrets(String[] args) {
+		StringBuilder masked = new StringBuilder();
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0)
+				masked.append(' ');
+			masked.append(args[i]);
+			if (SECRET_ARGS.contains(args[i]) && i + 1 < args.length) {
+				masked.append(" ****");
+				i++;
+			}
+		}
+		return masked.toString();
+	}
+
+	public void putMetadata(String key, String value) {
+		metadata.put(key, value);
+	}
+
+	/**
+	 * @param name
+	 *            ending in _rate if higher is better, _us or _ms if lower is
+	 */
+	public void putMetric(String name, double value) {
+		metrics.put(name, value);
+	}
+
+	/**
+	 * Keeps the count, min, mean, percentiles and max of the histogram, in
+	 * microseconds
+	 */
+	public void putHistogram(String name, LatencyHistogram histogram) {
+		Map<String, Double> summary = new LinkedHashMap<String, Double>();
+		summary.put("count", (double) histogram.getTotalCount());
+		summary.put("min_us", histogram.getMinValue() / 1000.0);
+		summary.put("mean_us", histogram.getMean() / 1000.0);
+		for (double percentile : PERCENTILES) {
+			summary.put("p" + formatPercentile(percentile) + "_us",
+					histogram.getValueAtPercentile(percentile) / 1000.0);
+		}
+		summary.put("max_us", histogram.getMaxValue() / 1000.0);
+		histograms.put(name, summary);
+	}
+
+	public void putSeries(String name, List<String> columns,
+			List<double[]> rows) {
+		series.put(name, new Series(columns, rows));
+	}
+
+	/**
+	 * Adds the time series of an interval reporter
+	 */
+	public void putSeries(String name, IntervalReporter reporter) {
+		putSeries(name, reporter.getColumnNames(), reporter.getRows());
+	}
+
+	public String getSample() {
+		return sample;
+	}
+
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	public Map<String, Double> getMetrics() {
+		return metrics;
+	}
+
+	public Map<String, Map<String, Double>> getHistograms() {
+		return histograms;
+	}
+
+	public Map<String, Series> getSeries() {
+		return series;
+	}
+
+	/**
+	 * @return the metrics and the histogram summaries, named
+	 *         histogram_statistic, count excepted
+	 */
+	public Map<String, Double> getComparableMetrics() {
+		Map<String, Double> comparable = new LinkedHashMap<String, Double>(
+				metrics);
+		for (Map.Entry<String, Map<String, Double>> histogram : histograms
+				.entrySet()) {
+			for (Map.Entry<String, Double> statistic : histogram.getValue()
+					.entrySet()) {
+				if (!"count".equals(statistic.getKey()))
+					comparable.put(histogram.getKey() + "_"
+							+ statistic.getKey(), statistic.getValue());
+			}
+		}
+		return comparable;
+	}
+
+	/**
+	 * Writes basename.json, basename.csv and a basename-series.csv per time
+	 * series
+	 */
+	public void export(String basename) throws IOException {
+		File json = new File(basename + ".json");
+		writeJson(json);
+		File csv = new File(basename + ".csv");
+		writeCsv(csv);
+		System.out.printf("%nResults exported to %s and %s%n", json, csv);
+		for (String name : series.keySet()) {
+			File seriesCsv = new File(basename + "-" + name + ".csv");
+			writeSeriesCsv(seriesCsv, name);
+			System.out.printf("Time series %s exported to %s%n", name,
+					seriesCsv);
+		}
+	}
+
+	public void writeJson(File file) throws IOException {
+		PrintWriter out = newWriter(file);
+		try {
+			out.println("{");
+			out.printf("  \"sample\": %s,%n", quote(sample));
+			out.println("  \"metadata\": {");
+			int i = 0;
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				out.printf("    %s: %s%s%n", quote(entry.getKey()),
+						quote(entry.getValue()),
+						++i < metadata.size() ? "," : "");
+			}
+			out.println("  },");
+			out.println("  \"metrics\": {");
+			writeJsonNumbers(out, metrics, "    ");
+			out.println("  },");
+			out.println("  \"histograms\": {");
+			i = 0;
+			for (Map.Entry<String, Map<String, Double>> entry : histograms
+					.entrySet()) {
+				out.printf("    %s: {%n", quote(entry.getKey()));
+				writeJsonNumbers(out, entry.getValue(), "      ");
+				out.printf("    }%s%n", ++i < histograms.size() ? "," : "");
+			}
+			out.println("  },");
+			out.println("  \"series\": {");
+			i = 0;
+			for (Map.Entry<String, Series> entry : series.entrySet()) {
+				Series s = entry.getValue();
+				out.printf("    %s: {%n", quote(entry.getKey()));
+				out.print("      \"columns\": [");
+				for (int c = 0; c < s.columns.size(); c++) {
+					out.print((c > 0 ? ", " : "") + quote(s.columns.get(c)));
+				}
+				out.println("],");
+				out.println("      \"rows\": [");
+				for (int r = 0; r < s.rows.size(); r++) {
+					out.print("        [");
+					double[] row = s.rows.get(r);
+					for (int c = 0; c < row.length; c++) {
+						out.print((c > 0 ? ", " : "") + formatNumber(row[c]));
+					}
+					out.println(r + 1 < s.rows.size() ? "]," : "]");
+				}
+				out.println("      ]");
+				out.printf("    }%s%n", ++i < series.size() ? "," : "");
+			}
+			out.println("  }");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Failed writing " + file);
+	}
+
+	private static void writeJsonNumbers(PrintWriter out,
+			Map<String, Double> numbers, String indent) {
+		int i = 0;
+		for (Map.Entry<String, Double> entry : numbers.entrySet()) {
+			out.printf("%s%s: %s%s%n", indent, quote(entry.getKey()),
+					formatNumber(entry.getValue()),
+					++i < numbers.size() ? "," : "");
+		}
+	}
+
+	/**
+	 * Writes section,name,value rows: the metadata, the metrics and the
+	 * histogram summaries
+	 */
+	public void writeCsv(File file) throws IOException {
+		PrintWriter out = newWriter(file);
+		try {
+			out.println("section,name,value");
+			out.printf("metadata,sample,%s%n", csv(sample));
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				out.printf("metadata,%s,%s%n", csv(entry.getKey()),
+						csv(entry.getValue()));
+			}
+			for (Map.Entry<String, Double> entry : getComparableMetrics()
+					.entrySet()) {
+				out.printf("metric,%s,%s%n", csv(entry.getKey()),
+						formatNumber(entry.getValue()));
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Failed writing " + file);
+	}
+
+	/**
+	 * Writes a time series, a header of the column names then a row per line
+	 */
+	public void writeSeriesCsv(File file, String name) throws IOException {
+		Series s = series.get(name);
+		if (s == null)
+			throw new IllegalArgumentException("No series named " + name);
+		PrintWriter out = newWriter(file);
+		try {
+			for (int c = 0; c < s.columns.size(); c++) {
+				out.print((c > 0 ? "," : "") + csv(s.columns.get(c)));
+			}
+			out.println();
+			for (double[] row : s.rows) {
+				for (int c = 0; c < row.length; c++) {
+					out.print((c > 0 ? "," : "") + formatNumber(row[c]));
+				}
+				out.println();
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError())
+			throw new IOException("Failed writing " + file);
+	}
+
+	private static PrintWriter newWriter(File file) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+				file), UTF8));
+	}
+
+	private static String formatNumber(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return String.format(Locale.ROOT, "%.3f", value).replaceFirst(
+				"\\.?0+$", "");
+	}
+
+	private static String formatPercentile(double percentile) {
+		if (percentile == Math.rint(percentile))
+			return Long.toString((long) percentile);
+		return Double.toString(percentile);
+	}
+
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					quoted.append(String.format("\\u%04x", (int) c));
+				else
+					quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+			return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Reads a result written by {@link #writeJson(File)}
+	 */
+	public static BenchmarkResult readJson(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		StringBuilder text = new StringBuilder();
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				text.append(new String(buffer, 0, read, UTF8));
+			}
+		} finally {
+			in.close();
+		}
+		Object parsed;
+		try {
+			parsed = new JsonReader(text.toString()).readDocument();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Not a benchmark result " + file + ": "
+					+ e.getMessage(), e);
+		}
+		if (!(parsed instanceof Map))
+			throw new IOException("Not a benchmark result " + file);
+		Map<?, ?> root = (Map<?, ?>) parsed;
+		BenchmarkResult result = new BenchmarkResult(String.valueOf(root
+				.get("sample")));
+		for (Map.Entry<?, ?> entry : asMap(root.get("metadata")).entrySet()) {
+			result.metadata.put((String) entry.getKey(),
+					String.valueOf(entry.getValue()));
+		}
+		result.metrics.putAll(asNumbers(root.get("metrics")));
+		for (Map.Entry<?, ?> entry : asMap(root.get("histograms")).entrySet()) {
+			result.histograms.put((String) entry.getKey(),
+					asNumbers(entry.getValue()));
+		}
+		for (Map.Entry<?, ?> entry : asMap(root.get("series")).entrySet()) {
+			Map<?, ?> s = asMap(entry.getValue());
+			List<String> columns = new ArrayList<String>();
+			for (Object column : asList(s.get("columns"))) {
+				columns.add(String.valueOf(column));
+			}
+			List<double[]> rows = new ArrayList<double[]>();
+			for (Object row : asList(s.get("rows"))) {
+				List<?> values = asList(row);
+				double[] r = new double[values.size()];
+				for (int c = 0; c < r.length; c++) {
+					r[c] = toDouble(values.get(c));
+				}
+				rows.add(r);
+			}
+			result.series.put((String) entry.getKey(), new Series(columns,
+					rows));
+		}
+		return result;
+	}
+
+	private static Map<?, ?> asMap(Object o) {
+		return (o instanceof Map) ? (Map<?, ?>) o
+				: new LinkedHashMap<String, Object>();
+	}
+
+	private static List<?> asList(Object o) {
+		return (o instanceof List) ? (List<?>) o : new ArrayList<Object>();
+	}
+
+	private static Map<String, Double> asNumbers(Object o) {
+		Map<String, Double> numbers = new LinkedHashMap<String, Double>();
+		for (Map.Entry<?, ?> entry : asMap(o).entrySet()) {
+			numbers.put((String) entry.getKey(), toDouble(entry.getValue()));
+		}
+		return numbers;
+	}
+
+	private static double toDouble(Object o) {
+		return (o instanceof Double) ? (Double) o : Double.NaN;
+	}
+
+	/**
+	 * Just enough JSON for the files written above: objects, arrays, strings,
+	 * numbers, true, false and null
+	 */
+	static final class JsonReader {
+		private final String text;
+		private int position = 0;
+
+		JsonReader(String text) {
+			this.text = text;
+		}
+
+		Object readDocument() {
+			Object value = readValue();
+			skipWhitespace();
+			if (position != text.length())
+				throw error("Trailing characters");
+			return value;
+		}
+
+		private Object readValue() {
+			skipWhitespace();
+			if (position >= text.length())
+				throw error("Unexpected end");
+			char c = text.charAt(position);
+			switch (c) {
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '"':
+				return readString();
+			default:
+				if (text.startsWith("true", position)) {
+					position += 4;
+					return Boolean.TRUE;
+				}
+				if (text.startsWith("false", position)) {
+					position += 5;
+					return Boolean.FALSE;
+				}
+				if (text.startsWith("null", position)) {
+					position += 4;
+					return null;
+				}
+				return readNumber();
+			}
+		}
+
+		private Map<String, Object> readObject() {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			position++;
+			skipWhitespace();
+			if (peek() == '}') {
+				position++;
+				return object;
+			}
+			for (;;) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error("Expected a name");
+				String name = readString();
+				skipWhitespace();
+				expect(':');
+				object.put(name, readValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private List<Object> readArray() {
+			List<Object> array = new ArrayList<Object>();
+			position++;
+			skipWhitespace();
+			if (peek() == ']') {
+				position++;
+				return array;
+			}
+			for (;;) {
+				array.add(readValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect(']');
+					return array;
+				}
+			}
+		}
+
+		private String readString() {
+			StringBuilder s = new StringBuilder();
+			position++;
+			for (;;) {
+				if (position >= text.length())
+					throw error("Unterminated string");
+				char c = text.charAt(position++);
+				if (c == '"')
+					return s.toString();
+				if (c != '\\') {
+					s.append(c);
+					continue;
+				}
+				char escaped = text.charAt(position++);
+				switch (escaped) {
+				case 'n':
+					s.append('\n');
+					break;
+				case 'r':
+					s.append('\r');
+					break;
+				case 't':
+					s.append('\t');
+					break;
+				case 'b':
+					s.append('\b');
+					break;
+				case 'f':
+					s.append('\f');
+					break;
+				case 'u':
+					s.append((char) Integer.parseInt(
+							text.substring(position, position + 4), 16));
+					position += 4;
+					break;
+				default:
+					s.append(escaped);
+				}
+			}
+		}
+
+		private Double readNumber() {
+			int start = position;
+			while (position < text.length()
+					&& "+-0123456789.eE".indexOf(text.charAt(position)) >= 0)
+				position++;
+			if (start == position)
+				throw error("Unexpected character");
+			try {
+				return Double.valueOf(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw error("Bad number");
+			}
+		}
+
+		private char peek() {
+			if (position >= text.length())
+				throw error("Unexpected end");
+			return text.charAt(position);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("Expected '" + c + "'");
+			position++;
+		}
+
+		private void skipWhitespace() {
+			while (position < text.length()
+					&& Character.isWhitespace(text.charAt(position)))
+				position++;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at offset "
+					+ position);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free registry binding an object to a long correlation key, the
+ * replacement for {@link CorrelationArrayUtil}.
+ *
+ * The keys and slots are those of {@link CorrelationSlots}: the low bits of a
+ * key index a power of two array of slots and the remaining high bits are the
+ * generation, the number of times the sequence wrapped around the array. Each
+ * slot remembers the full key it holds, so:
+ * <ul>
+ * <li>a slot still in flight is never overwritten, the registry reports itself
+ * full instead ({@link #tryCorrelate(Object)} returns 0,
+ * {@link #correlate(Object)} waits);
+ * <li>an acknowledgement for an older generation or a duplicate one is
+ * detected, {@link #uncorrelate(long)} returns null and counts it rather than
+ * returning the wrong object.
+ * </ul>
+ * Any number of threads may correlate and uncorrelate concurrently. Key 0 is
+ * never handed out, it stays reserved for "no correlation".
+ *
+ * @param <T>
+ */
+public class CorrelationRegistry<T> {
+
+	private final CorrelationSlots slots;
+
+	private final AtomicReferenceArray<T> slotObjects;
+
+	private final AtomicLong staleCount = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            maximum number of keys in flight, rounded up to a power of two
+	 */
+	public CorrelationRegistry(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity out of range: "
+					+ capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.slots = new CorrelationSlots(size);
+		this.slotObjects = new AtomicReferenceArray<T>(size);
+	}
+
+	/**
+	 * Correlates without waiting.
+	 *
+	 * @return a correlationKey, or 0 if the slot the next key maps to is still
+	 *         in flight
+	 */
+	public long tryCorrelate(T t) {
+		long key = slots.tryAcquire();
+		if (key != 0)
+			put(key, t);
+		return key;
+	}
+
+	/**
+	 * Correlates, waiting for the oldest key to be uncorrelated while the
+	 * registry is full.
+	 *
+	 * @return a correlationKey
+	 */
+	public long correlate(T t) {
+		long key = slots.acquire();
+		put(key, t);
+		return key;
+	}
+
+	/**
+	 * Correlates, waiting at most the given time while the registry is full.
+	 *
+	 * @return a correlationKey, or 0 on timeout
+	 */
+	public long correlate(T t, long timeout, TimeUnit unit) {
+		long key = slots.acquire(timeout, unit);
+		if (key != 0)
+			put(key, t);
+		return key;
+	}
+
+	// Publishes the object along with the acquired key
+	private void put(long key, T t) {
+		slotObjects.set(slots.indexOf(key), t);
+		slots.publish(key);
+	}
+
+	/**
+	 * Given a correlationKey, remove the correlation and return whatever was
+	 * correlated with it.
+	 *
+	 * @param key
+	 *            a correlationKey
+	 * @return the correlated object, or null for a key that is not in flight
+	 *         (stale generation, duplicate or unknown)
+	 */
+	public T uncorrelate(long key) {
+		if (!slots.claim(key)) {
+			staleCount.incrementAndGet();
+			return null;
+		}
+		int slot = slots.indexOf(key);
+		T t = slotObjects.get(slot);
+		slotObjects.set(slot, null);
+		slots.release(key);
+		return t;
+	}
+
+	/**
+	 * @return the object correlated with the key without removing it, or null
+	 */
+	public T peek(long key) {
+		if (!slots.isInFlight(key))
+			return null;
+		T t = slotObjects.get(slots.indexOf(key));
+		// Still the same key, the object was not released in between
+		return slots.isInFlight(key) ? t : null;
+	}
+
+	public int getCapacity() {
+		return slots.getCapacity();
+	}
+
+	/**
+	 * @return the number of keys correlated and not yet uncorrelated
+	 */
+	public long getInFlight() {
+		return slots.getInFlight();
+	}
+
+	/**
+	 * @return how many uncorrelate calls were for keys not in flight
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	public int indexOf(long key) {
+		return slots.indexOf(key);
+	}
+
+	public long generationOf(long key) {
+		return slots.generationOf(key);
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The correlation keys and slot states shared by the
+ * {@link CorrelationRegistry}, {@link InFlightMessageTable},
+ * {@link GuaranteedPublishWindow}, {@link AsyncRequester} and
+ * {@link ScatterGatherRequester}, each keeping its own per-slot fields in
+ * arrays indexed by {@link #indexOf(long)}.
+ *
+ * Keys come from a single atomic sequence. The low bits of a key index a
+ * power of two array of slots and the remaining high bits are the generation.
+ * A slot goes through these states, each seen once:
+ * <ul>
+ * <li>free for key k, until {@link #tryAcquire()} hands k out;
+ * <li>held by the thread that acquired k, filling the fields of the slot,
+ * until {@link #publish(long)};
+ * <li>in flight, until the thread completing k wins {@link #claim(long)};
+ * <li>held by that thread, reading the fields and cancelling timers, until
+ * {@link #release(long)} frees the slot for the key a generation later.
+ * </ul>
+ * A slot is never overwritten while in flight, and a stale or duplicate key
+ * fails to claim it. At most windowSize keys are between acquire and release.
+ * Any number of threads may acquire and complete keys concurrently. Key 0 is
+ * never handed out, it stays reserved for "no correlation".
+ */
+public class CorrelationSlots {
+
+	// Slot states besides "holds key k": held by a thread filling or emptying
+	// it (stored as -k), or free for key k (stored as FREE + k)
+	private static final long FREE = Long.MIN_VALUE;
+
+	// Digits of a key in a correlation id, 18 cannot overflow a long
+	private static final int MAX_KEY_DIGITS = 18;
+
+	private final int windowSize;
+
+	private final int mask;
+
+	private final int indexBits;
+
+	private final AtomicLongArray slotKeys;
+
+	private final AtomicLong nextKey = new AtomicLong(1);
+
+	private final AtomicLong released = new AtomicLong();
+
+	/**
+	 * @param windowSize
+	 *            maximum number of keys acquired and not released, the slots
+	 *            are rounded up to a power of two
+	 */
+	public CorrelationSlots(int windowSize) {
+		if (windowSize < 1 || windowSize > (1 << 30))
+			throw new IllegalArgumentException("windowSize out of range: "
+					+ windowSize);
+		this.windowSize = windowSize;
+		int size = Integer.highestOneBit(windowSize);
+		if (size < windowSize)
+			size <<= 1;
+		this.mask = size - 1;
+		this.indexBits = Integer.numberOfTrailingZeros(size);
+		this.slotKeys = new AtomicLongArray(size);
+		// Free for the first key of each slot, key 0 is never handed out
+		for (int slot = 0; slot < size; slot++) {
+			slotKeys.set(slot, FREE + (slot == 0 ? size : slot));
+		}
+	}
+
+	/**
+	 * Acquires the next key without waiting, its slot is held by the caller
+	 * until {@link #publish(long)} or {@link #release(long)}.
+	 *
+	 * @return a key, or 0 if the window is full or the slot of the next key
+	 *         still in use
+	 */
+	public long tryAcquire() {
+		for (;;) {
+			long key = nextKey.get();
+			int slot = indexOf(key);
+			long current = slotKeys.get(slot);
+			if (current == FREE + key
+					&& key - 1 - released.get() < windowSize) {
+				if (slotKeys.compareAndSet(slot, FREE + key, -key)) {
+					nextKey.compareAndSet(key, key + 1);
+					return key;
+				}
+			} else if (current == key || current == -key) {
+				// Another thread acquired this key, help it move the sequence on
+				nextKey.compareAndSet(key, key + 1);
+			} else if (nextKey.get() == key) {
+				return 0;
+			}
+			// else the key was handed out meanwhile, retry with the next one
+		}
+	}
+
+	/**
+	 * Acquires the next key, waiting while the window is full.
+	 */
+	public long acquire() {
+		long key;
+		int spins = 0;
+		while ((key = tryAcquire()) == 0) {
+			backOff(spins++);
+		}
+		return key;
+	}
+
+	/**
+	 * Acquires the next key, waiting at most the given time while the window
+	 * is full.
+	 *
+	 * @return a key, or 0 on timeout
+	 */
+	public long acquire(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long key;
+		int spins = 0;
+		while ((key = tryAcquire()) == 0) {
+			if (System.nanoTime() - deadline >= 0)
+				return 0;
+			backOff(spins++);
+		}
+		return key;
+	}
+
+	/**
+	 * Puts an acquired or claimed key in flight, publishing the fields of its
+	 * slot written before.
+	 */
+	public void publish(long key) {
+		slotKeys.lazySet(indexOf(key), key);
+	}
+
+	/**
+	 * Takes a key out of flight, its slot is held by the caller until
+	 * {@link #release(long)} or {@link #publish(long)}.
+	 *
+	 * @return false for a key not in flight (stale, duplicate or unknown), or
+	 *         claimed by another thread
+	 */
+	public boolean claim(long key) {
+		return key > 0 && slotKeys.compareAndSet(indexOf(key), key, -key);
+	}
+
+	/**
+	 * Frees the slot of an acquired or claimed key for the key of the next
+	 * generation.
+	 */
+	public void release(long key) {
+		slotKeys.set(indexOf(key), FREE + key + mask + 1);
+		released.incrementAndGet();
+	}
+
+	/**
+	 * A volatile read, the fields written before {@link #publish(long)} are
+	 * visible when it returns true.
+	 */
+	public boolean isInFlight(long key) {
+		return key > 0 && slotKeys.get(indexOf(key)) == key;
+	}
+
+	/**
+	 * @return whether the key was handed out, in flight or not
+	 */
+	public boolean isAcquired(long key) {
+		return key > 0 && key < nextKey.get();
+	}
+
+	public int indexOf(long key) {
+		return (int) (key & mask);
+	}
+
+	public long generationOf(long key) {
+		return key >>> indexBits;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return the number of slots, the window size rounded up to a power of
+	 *         two
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the number of keys acquired and not yet released
+	 */
+	public long getInFlight() {
+		return getAcquiredCount() - released.get();
+	}
+
+	public long getAcquiredCount() {
+		return nextKey.get() - 1;
+	}
+
+	public long getReleasedCount() {
+		return released.get();
+	}
+
+	/**
+	 * @return the key following the prefix of a correlation id, 0 if it is
+	 *         not one of ours. Reads the digits in place, where substring and
+	 *         parseLong would create a String.
+	 */
+	public static long parseKey(String correlationId, String prefix) {
+		if (correlationId == null || !correlationId.startsWith(prefix))
+			return 0;
+		int length = correlationId.length();
+		if (length == prefix.length()
+				|| length > prefix.length() + MAX_KEY_DIGITS)
+			return 0;
+		long key = 0;
+		for (int i = prefix.length(); i < length; i++) {
+			char digit = correlationId.charAt(i);
+			if (digit < '0' || digit > '9')
+				return 0;
+			key = key * 10 + (digit - '0');
+		}
+		return key;
+	}
+
+	private static void backOff(int spins) {
+		if (spins < 100) {
+			// spin
+		} else if (spins < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(10000);
+		}
+	}
+
+}
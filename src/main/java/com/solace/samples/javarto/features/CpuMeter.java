@@ -0,0 +1,205 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the CPU time spent per message by the threads of a run and by the
+ * whole process, the cost a throughput figure hides: a publisher spinning on
+ * a full core and one mostly parked can show the same msg/s.
+ *
+ * Thread CPU time is read from the {@link ThreadMXBean}, process CPU time from
+ * the HotSpot com.sun.management.OperatingSystemMXBean. Each is a
+ * {@link Probe} begun and ended around the measured run, reporting the
+ * microseconds of CPU per message and the share of a core it kept busy, or
+ * the cores for the process, over the wall clock time of the probe.
+ *
+ * A thread gone by the end of the run measures itself with
+ * {@link #getCurrentThreadCpuNanos()} and hands its numbers over with
+ * {@link #record(String, long, long, long)}.
+ */
+public class CpuMeter {
+
+	// The thread id of the process probe
+	private static final long PROCESS = -1;
+
+	private final ThreadMXBean threadBean;
+
+	private final com.sun.management.OperatingSystemMXBean osBean;
+
+	private final int cores = Runtime.getRuntime().availableProcessors();
+
+	private final List<Probe> probes = new ArrayList<Probe>();
+
+	/**
+	 * The CPU time of a thread or of the process over the measured run
+	 */
+	public final class Probe {
+
+		final String name;
+		final long threadId;
+		final IntervalReporter.Counter messages;
+
+		private long startCpuNanos;
+		private long startWallNanos;
+		private long startMessages;
+		long cpuNanos = -1;
+		long wallNanos;
+		long messageCount;
+
+		Probe(String name, long threadId, IntervalReporter.Counter messages) {
+			this.name = name;
+			this.threadId = threadId;
+			this.messages = messages;
+		}
+
+		public void begin() {
+			startMessages = messages.get();
+			startWallNanos = System.nanoTime();
+			startCpuNanos = getCpuNanos(threadId);
+		}
+
+		public void end() {
+			long endCpuNanos = getCpuNanos(threadId);
+			wallNanos = System.nanoTime() - startWallNanos;
+			messageCount = messages.get() - startMessages;
+			cpuNanos = (endCpuNanos < 0 || startCpuNanos < 0) ? -1
+					: endCpuNanos - startCpuNanos;
+		}
+
+		/**
+		 * @return microseconds of CPU per message, NaN if not measured
+		 */
+		public double getMicrosPerMessage() {
+			if (cpuNanos < 0 || messageCount == 0)
+				return Double.NaN;
+			return cpuNanos / 1000.0 / messageCount;
+		}
+
+		/**
+		 * @return the cores kept busy on average, 1.0 for one full core
+		 */
+		public double getCoresUsed() {
+			return wallNanos == 0 ? 0 : (double) cpuNanos / wallNanos;
+		}
+	}
+
+	public CpuMeter() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean.isThreadCpuTimeSupported()) {
+			bean.setThreadCpuTimeEnabled(true);
+			this.threadBean = bean;
+		} else {
+			this.threadBean = null;
+		}
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory
+				.getOperatingSystemMXBean();
+		this.osBean = (os instanceof com.sun.management.OperatingSystemMXBean) ? (com.sun.management.OperatingSystemMXBean) os
+				: null;
+	}
+
+	/**
+	 * @return the CPU time of a thread, or of the process, -1 if unknown
+	 */
+	long getCpuNanos(long threadId) {
+		if (threadId == PROCESS)
+			return osBean == null ? -1 : osBean.getProcessCpuTime();
+		return threadBean == null ? -1 : threadBean.getThreadCpuTime(threadId);
+	}
+
+	/**
+	 * @return the CPU time of the whole process, -1 if unknown
+	 */
+	public long getProcessCpuNanos() {
+		return getCpuNanos(PROCESS);
+	}
+
+	/**
+	 * @return the CPU time of the calling thread, -1 if unknown
+	 */
+	public long getCurrentThreadCpuNanos() {
+		return threadBean == null ? -1 : threadBean.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @param messages
+	 *            the messages handled by the thread so far
+	 * @return a probe to begin and end around the measured run
+	 */
+	public Probe watchThread(String name, long threadId,
+			IntervalReporter.Counter messages) {
+		Probe probe = new Probe(name, threadId, messages);
+		probes.add(probe);
+		return probe;
+	}
+
+	/**
+	 * @param messages
+	 *            the messages sent so far, the process cost is per message
+	 *            sent and received
+	 * @return a probe of the whole process
+	 */
+	public Probe watchProcess(IntervalReporter.Counter messages) {
+		Probe probe = new Probe("process", PROCESS, messages);
+		probes.add(probe);
+		return probe;
+	}
+
+	/**
+	 * Adds the numbers of a thread that measured itself
+	 */
+	public void record(String name, long cpuNanos, long wallNanos,
+			long messages) {
+		Probe probe = new Probe(name, 0, null);
+		probe.cpuNanos = cpuNanos;
+		probe.wallNanos = wallNanos;
+		probe.messageCount = messages;
+		probes.add(probe);
+	}
+
+	/**
+	 * Prints the CPU per message of each probe next to the rate it was
+	 * measured at
+	 */
+	public void printReport(double messagesPerSecond) {
+		System.out.printf("%nCPU per message at %.0f msg/second:%n",
+				messagesPerSecond);
+		for (int i = 0; i < probes.size(); i++) {
+			Probe probe = probes.get(i);
+			if (probe.cpuNanos < 0) {
+				System.out.printf("\t %-16s not measured by this JVM%n",
+						probe.name);
+				continue;
+			}
+			System.out.printf(
+					"\t %-16s %10.3f us/message, %6.2f cores busy (of %d) over %10d messages%n",
+					probe.name, probe.getMicrosPerMessage(),
+					probe.getCoresUsed(), cores, probe.messageCount);
+		}
+		if (osBean != null)
+			System.out.printf("\t process CPU load now %.1f%%%n",
+					100.0 * osBean.getProcessCpuLoad());
+	}
+
+	/**
+	 * Adds cpu_name_per_msg_us and cpu_name_cores metrics per probe
+	 */
+	public void exportTo(BenchmarkResult result) {
+		for (int i = 0; i < probes.size(); i++) {
+			Probe probe = probes.get(i);
+			if (probe.cpuNanos < 0)
+				continue;
+			String prefix = "cpu_" + probe.name.replace(' ', '_');
+			result.putMetric(prefix + "_per_msg_us",
+					probe.getMicrosPerMessage());
+			result.putMetric(prefix + "_cores", probe.getCoresUsed());
+		}
+	}
+
+}
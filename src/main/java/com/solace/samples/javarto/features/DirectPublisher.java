@@ -0,0 +1,190 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * The send path of {@link PerfPubSub} on one session: picks the destination,
+ * fills the payload, writes the sequence and latency stamps, sends and
+ * counts. The single publisher, each publisher thread and the sweep all send
+ * through it.
+ *
+ * Not thread safe, one publisher per sending thread.
+ */
+public class DirectPublisher implements SweepRunner.Publisher {
+
+	// Most native destinations kept when spreading over topics
+	static final int MAX_DESTINATION_CACHE = 65536;
+
+	private final SessionHandle sessionHandle;
+
+	private final MessageHandle messageHandle;
+
+	private final ByteBuffer payload;
+
+	private final int msgSize;
+
+	// null unless spreading over topics
+	private TopicWorkload workload;
+	private TopicWorkload.Picker picker;
+	private NativeDestinationCache destinationCache;
+
+	// -1 unless stamping the sequence, else the stream told apart by the
+	// subscriber
+	private int sequenceStream = -1;
+
+	private boolean stampLatency = false;
+
+	// Carries on across calls, from the warm-up to the measured messages
+	private long nextSequence = 0;
+
+	// Written by the sending thread, read by the interval reporter. Counted
+	// with an ordered write, not a full volatile store per message.
+	private volatile long sentCount = 0;
+
+	private static final AtomicLongFieldUpdater<DirectPublisher> SENT_COUNT = AtomicLongFieldUpdater
+			.newUpdater(DirectPublisher.class, "sentCount");
+
+	/**
+	 * @param messageHandle
+	 *            the created message reused for every send
+	 * @param topicHandle
+	 *            the destination unless spreading over topics
+	 * @param payload
+	 *            holds at least msgSize bytes
+	 */
+	public DirectPublisher(SessionHandle sessionHandle,
+			MessageHandle messageHandle, NativeDestinationHandle topicHandle,
+			ByteBuffer payload, int msgSize) {
+		this.sessionHandle = sessionHandle;
+		this.messageHandle = messageHandle;
+		this.payload = payload;
+		this.msgSize = msgSize;
+		messageHandle.setDestination(topicHandle);
+	}
+
+	/**
+	 * Picks the destination of each message from the workload, through a
+	 * cache of native destinations, the topics being pre-encoded
+	 *
+	 * @param pickerSeed
+	 *            seed of this publisher's picks
+	 */
+	public DirectPublisher spreadOver(TopicWorkload workload, long pickerSeed) {
+		this.workload = workload;
+		this.picker = workload.newPicker(pickerSeed);
+		this.destinationCache = new NativeDestinationCache(Math.min(
+				workload.getCardinality(), MAX_DESTINATION_CACHE),
+				workload.getMaxTopicLength());
+		return this;
+	}
+
+	/**
+	 * Writes a {@link ReceiveStats} stamp of the stream and message sequence at
+	 * {@link PerfPubSub#SEQUENCE_STAMP_OFFSET}
+	 */
+	public DirectPublisher stampSequence(int stream) {
+		this.sequenceStream = stream;
+		return this;
+	}
+
+	/**
+	 * Writes a System.nanoTime() stamp at the start of the payload, as late as
+	 * possible before sending
+	 */
+	public DirectPublisher stampLatency() {
+		this.stampLatency = true;
+		return this;
+	}
+
+	/**
+	 * Sends the next count messages, the warm-up and the measured messages
+	 * going through this same code
+	 */
+	public void publish(int count) {
+		for (int i = 0; i < count; i++) {
+
+			if (picker != null)
+				messageHandle.setDestination(pickDestination());
+
+			if (msgSize > 0) {
+
+				SampleUtils.fillPayload(payload, msgSize, (int) nextSequence);
+
+				if (sequenceStream >= 0)
+					payload.putLong(PerfPubSub.SEQUENCE_STAMP_OFFSET,
+							ReceiveStats.stamp(sequenceStream, nextSequence));
+
+				// Stamp as late as possible, right before the copy and send
+				if (stampLatency)
+					payload.putLong(0, System.nanoTime());
+
+				messageHandle.setBinaryAttachment(payload);
+
+			}
+
+			nextSequence++;
+			sendMessage();
+		}
+	}
+
+	/**
+	 * Sends one sweep message, the latency stamp written at its start
+	 */
+	@Override
+	public void send(ByteBuffer sweepPayload) {
+		sweepPayload.putLong(0, System.nanoTime());
+		messageHandle.setBinaryAttachment(sweepPayload);
+		sendMessage();
+	}
+
+	private void sendMessage() {
+		sessionHandle.send(messageHandle);
+		SENT_COUNT.lazySet(this, sentCount + 1);
+	}
+
+	/**
+	 * A cache hit allocates nothing
+	 */
+	private NativeDestinationHandle pickDestination() {
+		int topicIndex = picker.next();
+		return destinationCache.get(workload.getTopicBytes(),
+				workload.offsetOf(topicIndex), workload.lengthOf(topicIndex));
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * Prints the destination cache counters, if spreading over topics
+	 */
+	public void printDestinationCacheStats(String indent) {
+		if (destinationCache == null)
+			return;
+		System.out.printf(
+				"%sDestination cache of %d: %d hits, %d misses, %d evictions%n",
+				indent, destinationCache.getCapacity(),
+				destinationCache.getHitCount(),
+				destinationCache.getMissCount(),
+				destinationCache.getEvictionCount());
+	}
+
+	/**
+	 * Destroys the cached destinations, the session and message are the
+	 * caller's
+	 */
+	public void destroy() {
+		if (destinationCache != null)
+			destinationCache.destroy();
+	}
+
+}
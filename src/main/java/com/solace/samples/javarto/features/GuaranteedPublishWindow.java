@@ -0,0 +1,228 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A window of in-flight Guaranteed messages, tracked by correlation key.
+ *
+ * The correlation key set on the message comes from {@link CorrelationSlots}
+ * and indexes an array slot, as in the {@link InFlightMessageTable} of
+ * {@link AdPubAck}. Here the slots are primitive arrays holding the send time
+ * of each in-flight message, so the publish and acknowledgement paths create
+ * no garbage, and the publisher is held back once the configured number of
+ * messages are unacknowledged instead of overwriting slots still in use.
+ *
+ * The publisher thread calls {@link #acquire()}, {@link #markSent(long)} and
+ * then sends; the session event callback calls
+ * {@link #acknowledge(long, boolean)} for ACKNOWLEDGEMENT and
+ * REJECTED_MSG_ERROR events. The time from markSent to acknowledgement is
+ * recorded into a {@link LatencyHistogram} owned by the callback thread.
+ *
+ * Given a {@link TimingWheel}, a message left unacknowledged past the ack
+ * timeout is given up on by the tick thread: it frees its place in the window
+ * and counts as timed out, its acknowledgement as unknown should it come
+ * later.
+ */
+public class GuaranteedPublishWindow {
+
+	// Publishing a key publishes sendNanos between the publisher and the
+	// callback thread
+	private final CorrelationSlots slots;
+
+	private final long[] sendNanos;
+
+	private final long[] timerIds;
+
+	// null without ack timeouts
+	private TimingWheel timingWheel;
+
+	private long ackTimeoutNanos;
+
+	private final TimingWheel.ExpiryListener expiryListener = new TimingWheel.ExpiryListener() {
+		public void onExpiry(long key) {
+			expire(key);
+		}
+	};
+
+	// Written by the publisher thread only
+	private volatile long untimedCount = 0;
+
+	// Written by the callback thread only
+	private long rejectedCount = 0;
+
+	private long unknownAckCount = 0;
+
+	// Written by the tick thread only
+	private volatile long timedOutCount = 0;
+
+	private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+	/**
+	 * @param windowSize
+	 *            maximum number of unacknowledged messages
+	 */
+	public GuaranteedPublishWindow(int windowSize) {
+		this.slots = new CorrelationSlots(windowSize);
+		this.sendNanos = new long[slots.getCapacity()];
+		this.timerIds = new long[slots.getCapacity()];
+	}
+
+	/**
+	 * Gives up on unacknowledged messages, call before the first message.
+	 *
+	 * @param timingWheel
+	 *            a started wheel, with room for the window's timers
+	 * @return this
+	 */
+	public GuaranteedPublishWindow setAckTimeout(TimingWheel timingWheel,
+			long timeout, TimeUnit unit) {
+		this.timingWheel = timingWheel;
+		this.ackTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Reserves the next correlation key, waiting while the window is full.
+	 *
+	 * @return a correlation key (never 0) for txMessageHandle.setCorrelationKey
+	 */
+	public long acquire() {
+		return slots.acquire();
+	}
+
+	/**
+	 * Records the send time, call right before sending the message.
+	 */
+	public void markSent(long key) {
+		int slot = slots.indexOf(key);
+		timerIds[slot] = 0;
+		// The timer id is stored before the key publishes the slot, for the
+		// acknowledgement to cancel it. The timer cannot fire before then, it
+		// is a tick away at least.
+		if (timingWheel != null) {
+			long timerId = timingWheel.schedule(ackTimeoutNanos, key,
+					expiryListener);
+			if (timerId == 0)
+				untimedCount = untimedCount + 1;
+			timerIds[slot] = timerId;
+		}
+		sendNanos[slot] = System.nanoTime();
+		slots.publish(key);
+	}
+
+	/**
+	 * Releases a key whose message could not be sent, after markSent.
+	 */
+	public void cancel(long key) {
+		if (slots.claim(key))
+			free(key);
+	}
+
+	/**
+	 * Called from the session event callback.
+	 *
+	 * @return true if the key was in flight, false for an unknown or duplicate
+	 *         acknowledgement
+	 */
+	public boolean acknowledge(long key, boolean accepted) {
+		long now = System.nanoTime();
+		// Unless the timer expired it
+		if (!slots.claim(key)) {
+			unknownAckCount++;
+			return false;
+		}
+		long latency = now - sendNanos[slots.indexOf(key)];
+		free(key);
+		ackLatency.record(latency);
+		if (!accepted)
+			rejectedCount++;
+		return true;
+	}
+
+	// Called on the tick thread
+	private void expire(long key) {
+		if (!slots.claim(key))
+			return;
+		free(key);
+		timedOutCount = timedOutCount + 1;
+	}
+
+	// Called by the thread that claimed the key, the timer is cancelled
+	// before the publisher can reuse the slot and schedule its own
+	private void free(long key) {
+		if (timingWheel != null)
+			timingWheel.cancel(timerIds[slots.indexOf(key)]);
+		slots.release(key);
+	}
+
+	/**
+	 * Waits for all in-flight messages to be acknowledged.
+	 *
+	 * @return true if the window drained before the timeout
+	 */
+	public boolean awaitEmpty(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (getInFlight() > 0) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getWindowSize() {
+		return slots.getWindowSize();
+	}
+
+	public long getInFlight() {
+		return slots.getInFlight();
+	}
+
+	/**
+	 * @return acknowledged, cancelled or timed out keys
+	 */
+	public long getAcknowledgedCount() {
+		return slots.getReleasedCount();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	public long getUnknownAckCount() {
+		return unknownAckCount;
+	}
+
+	/**
+	 * @return how many messages were given up on, unacknowledged past the ack
+	 *         timeout
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount;
+	}
+
+	/**
+	 * @return how many messages went without an ack timeout, the wheel being
+	 *         full
+	 */
+	public long getUntimedCount() {
+		return untimedCount;
+	}
+
+	/**
+	 * Read once the window is drained, it is recorded by the callback thread.
+	 */
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+}
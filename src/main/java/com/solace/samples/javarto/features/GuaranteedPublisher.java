@@ -0,0 +1,151 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * The send path of {@link PerfADPubSub} on one session: waits for the send
+ * time at a fixed rate and for room in the window, fills the payload, writes
+ * the latency and sequence stamps, sends and counts. The warm-up, the
+ * measured messages and the sweep all send through it.
+ *
+ * Not thread safe, one publisher per sending thread.
+ */
+public class GuaranteedPublisher implements SweepRunner.Publisher {
+
+	private final SessionHandle sessionHandle;
+
+	private final MessageHandle messageHandle;
+
+	private final ByteBuffer payload;
+
+	private final int msgSize;
+
+	// null to send without waiting for acknowledgements
+	private final GuaranteedPublishWindow publishWindow;
+
+	// null to send as fast as possible
+	private RateController rateController;
+
+	private boolean stampSequence = false;
+
+	// Carries on across calls, from the warm-up to the measured messages
+	private long nextSequence = 0;
+
+	// Written by the sending thread, read by the interval reporter. Counted
+	// with an ordered write, not a full volatile store per message.
+	private volatile long sentCount = 0;
+
+	private static final AtomicLongFieldUpdater<GuaranteedPublisher> SENT_COUNT = AtomicLongFieldUpdater
+			.newUpdater(GuaranteedPublisher.class, "sentCount");
+
+	/**
+	 * @param messageHandle
+	 *            the created message reused for every send, its destination
+	 *            and delivery mode set
+	 * @param payload
+	 *            holds at least msgSize bytes
+	 * @param publishWindow
+	 *            null to not wait for room in a window
+	 */
+	public GuaranteedPublisher(SessionHandle sessionHandle,
+			MessageHandle messageHandle, ByteBuffer payload, int msgSize,
+			GuaranteedPublishWindow publishWindow) {
+		this.sessionHandle = sessionHandle;
+		this.messageHandle = messageHandle;
+		this.payload = payload;
+		this.msgSize = msgSize;
+		this.publishWindow = publishWindow;
+	}
+
+	/**
+	 * Waits for the next send time of the started controller before each
+	 * message, stamped with its intended then its actual send time
+	 */
+	public GuaranteedPublisher atFixedRate(RateController rateController) {
+		this.rateController = rateController;
+		return this;
+	}
+
+	/**
+	 * Writes a {@link ReceiveStats} stamp of the message sequence at
+	 * {@link PerfADPubSub#SEQUENCE_STAMP_OFFSET}
+	 */
+	public GuaranteedPublisher stampSequence() {
+		this.stampSequence = true;
+		return this;
+	}
+
+	/**
+	 * Sends the next count messages, the warm-up and the measured messages
+	 * going through this same code
+	 */
+	public void publish(int count) {
+		for (int i = 0; i < count; i++) {
+
+			long intendedNanos = 0;
+			if (rateController != null)
+				intendedNanos = rateController.awaitNext();
+
+			// Fill some message content
+			if (msgSize > 0) {
+
+				SampleUtils.fillPayload(payload, msgSize, (int) nextSequence);
+
+				if (rateController != null) {
+					payload.putLong(0, intendedNanos);
+					payload.putLong(8, System.nanoTime());
+				}
+
+				if (stampSequence)
+					payload.putLong(PerfADPubSub.SEQUENCE_STAMP_OFFSET,
+							ReceiveStats.stamp(0, nextSequence));
+
+				messageHandle.setBinaryAttachment(payload);
+
+			}
+
+			nextSequence++;
+			sendMessage();
+		}
+	}
+
+	/**
+	 * Sends one sweep message, with no intended time both stamps are the
+	 * actual send time
+	 */
+	@Override
+	public void send(ByteBuffer sweepPayload) {
+		long now = System.nanoTime();
+		sweepPayload.putLong(0, now);
+		sweepPayload.putLong(8, now);
+		messageHandle.setBinaryAttachment(sweepPayload);
+		sendMessage();
+	}
+
+	private void sendMessage() {
+		if (publishWindow != null) {
+			long correlationKey = publishWindow.acquire();
+			messageHandle.setCorrelationKey(correlationKey);
+			publishWindow.markSent(correlationKey);
+			if (sessionHandle.send(messageHandle) != SolEnum.ReturnCode.OK)
+				publishWindow.cancel(correlationKey);
+		} else {
+			sessionHandle.send(messageHandle);
+		}
+		SENT_COUNT.lazySet(this, sentCount + 1);
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+/**
+ * Runs the receive side handoff mode of {@link PerfPubSub}: the context
+ * thread copies each message into a {@link MessageHandoffRing} and worker
+ * threads process them. Each worker records into its own histograms the
+ * context thread to worker latency and, when the payload carries a latency
+ * stamp, the end-to-end latency, merged in the report.
+ */
+public class HandoffWorkers {
+
+	private final MessageHandoffRing handoffRing;
+
+	private final Worker[] workers;
+
+	private final boolean measureLatency;
+
+	/**
+	 * @param payloadSize
+	 *            bytes of payload copied per message
+	 * @param measureLatency
+	 *            true if the payload starts with a System.nanoTime() stamp
+	 */
+	public HandoffWorkers(int workerCount, int ringSize, int payloadSize,
+			MessageHandoffRing.WaitStrategy waitStrategy, boolean measureLatency) {
+		this.measureLatency = measureLatency;
+		this.workers = new Worker[workerCount];
+		for (int w = 0; w < workerCount; w++) {
+			workers[w] = new Worker(measureLatency);
+		}
+		this.handoffRing = new MessageHandoffRing(ringSize, payloadSize,
+				waitStrategy);
+	}
+
+	/**
+	 * Starts the worker threads
+	 */
+	public HandoffWorkers start() {
+		handoffRing.start(workers);
+		return this;
+	}
+
+	/**
+	 * @return the ring the context thread offers the messages to
+	 */
+	public MessageHandoffRing getRing() {
+		return handoffRing;
+	}
+
+	/**
+	 * Waits a while for the workers to process the messages handed off so far
+	 */
+	public void awaitDrained() {
+		for (int idleChecks = 0; handoffRing.getBacklog() > 0
+				&& idleChecks < 100; idleChecks++) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the warm-up in the histograms of every worker
+	 */
+	public void markWarmup(WarmupPhase warmup) {
+		for (Worker worker : workers) {
+			warmup.markHistograms(worker.handoffLatency,
+					worker.endToEndLatency);
+		}
+	}
+
+	/**
+	 * Stops the worker threads, the messages left in the ring are not
+	 * processed
+	 */
+	public void stop() {
+		handoffRing.stop();
+	}
+
+	/**
+	 * Prints the handoff counters and the latency merged over the workers, and
+	 * records them, once stopped
+	 *
+	 * @param warmup
+	 *            the values recorded before its end are left out, null if none
+	 */
+	public void report(WarmupPhase warmup, BenchmarkResult result) {
+		LatencyHistogram handoffLatency = new LatencyHistogram();
+		LatencyHistogram endToEndLatency = new LatencyHistogram();
+		System.out.printf(
+				"%nHanded off %d messages to %d workers (%s wait), %d dropped with the ring full%n",
+				handoffRing.getOfferedCount(), workers.length,
+				handoffRing.getWaitStrategy(), handoffRing.getRejectedCount());
+		for (int w = 0; w < workers.length; w++) {
+			System.out.printf("Worker %d: processed %d messages%n", w,
+					workers[w].processedCount);
+			handoffLatency.add(measuredPart(warmup, workers[w].handoffLatency));
+			if (measureLatency)
+				endToEndLatency.add(measuredPart(warmup,
+						workers[w].endToEndLatency));
+		}
+		handoffLatency.printPercentiles("Context thread to worker latency");
+		result.putMetric("handoff_dropped", handoffRing.getRejectedCount());
+		result.putHistogram("handoff", handoffLatency);
+		if (measureLatency) {
+			endToEndLatency.printPercentiles("End-to-end latency");
+			result.putHistogram("end_to_end", endToEndLatency);
+		}
+	}
+
+	private static LatencyHistogram measuredPart(WarmupPhase warmup,
+			LatencyHistogram histogram) {
+		return warmup == null ? histogram : warmup.measuredPart(histogram);
+	}
+
+	/**
+	 * Processes handed off messages on a worker thread, each worker records
+	 * into its own histograms
+	 */
+	static class Worker implements MessageHandoffRing.Handler {
+
+		final LatencyHistogram handoffLatency = new LatencyHistogram();
+		final LatencyHistogram endToEndLatency;
+
+		// Read after the ring is stopped
+		long processedCount = 0;
+
+		Worker(boolean measureLatency) {
+			this.endToEndLatency = measureLatency ? new LatencyHistogram()
+					: null;
+		}
+
+		@Override
+		public void onSlot(MessageHandoffRing.Slot slot) {
+			long now = System.nanoTime();
+			handoffLatency.record(now - slot.getReceiveNanos());
+			if (endToEndLatency != null)
+				endToEndLatency.record(now - slot.getPayload().getLong(0));
+			processedCount++;
+		}
+	}
+
+}
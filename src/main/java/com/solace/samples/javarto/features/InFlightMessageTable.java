@@ -0,0 +1,176 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message state of in-flight Guaranteed messages, kept in primitive
+ * arrays indexed by correlation key instead of one tracking object per
+ * message.
+ *
+ * Each slot holds the message id, the send time, state flags and a retry
+ * count, one array per field (struct of arrays). The arrays are allocated up
+ * front, so tracking a message and handling its acknowledgement create no
+ * garbage however many messages are published.
+ *
+ * The keys come from {@link CorrelationSlots}. The publisher thread calls
+ * {@link #add(long, long)}, held back while the table is full, and sets the
+ * returned key on the message with setCorrelationKey. The session event
+ * callback calls {@link #acknowledge(long, boolean)}, which takes the key out
+ * of flight, reads the fields of the returned slot and calls
+ * {@link #release(long)} once done with it, or
+ * {@link #markRetry(long, long)} to send the message again.
+ */
+public class InFlightMessageTable {
+
+	public static final int SENT = 0x1;
+
+	public static final int ACKED = 0x2;
+
+	public static final int ACCEPTED = 0x4;
+
+	private static final int FLAGS_MASK = 0xff;
+
+	private static final int RETRY_SHIFT = 8;
+
+	// Publishing a key publishes the other fields of its slot between the
+	// publisher and the callback thread
+	private final CorrelationSlots slots;
+
+	private final long[] ids;
+
+	private final long[] sendNanos;
+
+	// Flags in the low byte, retry count above
+	private final int[] states;
+
+	/**
+	 * @param capacity
+	 *            maximum number of messages in flight, rounded up to a power of
+	 *            two
+	 */
+	public InFlightMessageTable(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity out of range: "
+					+ capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.slots = new CorrelationSlots(size);
+		this.ids = new long[size];
+		this.sendNanos = new long[size];
+		this.states = new int[size];
+	}
+
+	/**
+	 * Tracks a message about to be sent, waiting while the table is full.
+	 *
+	 * @param id
+	 *            the application's id for the message
+	 * @param sendNanos
+	 *            the send time, in System.nanoTime() terms
+	 * @return a correlationKey
+	 */
+	public long add(long id, long sendNanos) {
+		return put(slots.acquire(), id, sendNanos);
+	}
+
+	/**
+	 * Tracks a message about to be sent, waiting at most the given time while
+	 * the table is full.
+	 *
+	 * @return a correlationKey, or 0 on timeout
+	 */
+	public long add(long id, long sendNanos, long timeout, TimeUnit unit) {
+		long key = slots.acquire(timeout, unit);
+		return key == 0 ? 0 : put(key, id, sendNanos);
+	}
+
+	private long put(long key, long id, long sendNanos) {
+		int slot = slots.indexOf(key);
+		this.ids[slot] = id;
+		this.sendNanos[slot] = sendNanos;
+		this.states[slot] = SENT;
+		slots.publish(key);
+		return key;
+	}
+
+	/**
+	 * Records the outcome of an ACKNOWLEDGEMENT or REJECTED_MSG_ERROR event,
+	 * the key is no longer in flight: a duplicate event finds no slot.
+	 *
+	 * @return the slot of the message, or -1 for a key not in flight
+	 */
+	public int acknowledge(long key, boolean accepted) {
+		if (!slots.claim(key))
+			return -1;
+		int slot = slots.indexOf(key);
+		int flags = ACKED | (accepted ? ACCEPTED : 0);
+		states[slot] = (states[slot] & ~FLAGS_MASK) | flags;
+		return slot;
+	}
+
+	/**
+	 * Records that an acknowledged message is sent again under the same key,
+	 * which is in flight again.
+	 */
+	public void markRetry(long key, long sendNanos) {
+		int slot = slots.indexOf(key);
+		this.sendNanos[slot] = sendNanos;
+		states[slot] = ((getRetryCount(slot) + 1) << RETRY_SHIFT) | SENT;
+		slots.publish(key);
+	}
+
+	/**
+	 * Frees the slot of an acknowledged key for a new message.
+	 */
+	public void release(long key) {
+		slots.release(key);
+	}
+
+	/**
+	 * @return the slot holding the key, or -1 for a key not in flight
+	 */
+	public int slotOf(long key) {
+		return slots.isInFlight(key) ? slots.indexOf(key) : -1;
+	}
+
+	public long getId(int slot) {
+		return ids[slot];
+	}
+
+	public long getSendNanos(int slot) {
+		return sendNanos[slot];
+	}
+
+	public int getFlags(int slot) {
+		return states[slot] & FLAGS_MASK;
+	}
+
+	public int getRetryCount(int slot) {
+		return states[slot] >>> RETRY_SHIFT;
+	}
+
+	public boolean isAcked(int slot) {
+		return (states[slot] & ACKED) != 0;
+	}
+
+	public boolean isAccepted(int slot) {
+		return (states[slot] & ACCEPTED) != 0;
+	}
+
+	public int getCapacity() {
+		return slots.getCapacity();
+	}
+
+	/**
+	 * @return the number of messages added and not yet released
+	 */
+	public long getInFlight() {
+		return slots.getInFlight();
+	}
+
+}
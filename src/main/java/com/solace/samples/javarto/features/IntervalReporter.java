@@ -0,0 +1,356 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prints a time series of a run, one line per interval, so that warm-up, JIT,
+ * GC and flow control stalls show up instead of being averaged away.
+ *
+ * A daemon thread samples the registered counters every interval: rates
+ * (per second), deltas (per interval) and gauges (as is). Counters are read
+ * through {@link Counter}, the hot path only keeps primitive, single writer
+ * volatile or atomic counters and never calls the reporter. Latency
+ * histograms are copied and diffed against the previous copy to give the
+ * percentiles of the interval alone. GC count and time, used heap and direct
+ * buffer memory are always reported.
+ *
+ * The rows are kept, in the order of {@link #getColumnNames()}, for export
+ * once the run is over.
+ */
+public class IntervalReporter {
+
+	/**
+	 * Reads a counter of the hot path, from the reporter thread
+	 */
+	public interface Counter {
+		long get();
+	}
+
+	private static final int RATE = 0;
+
+	private static final int DELTA = 1;
+
+	private static final int GAUGE = 2;
+
+	private static final int MIN_COLUMN_WIDTH = 9;
+
+	private static final double[] LATENCY_PERCENTILES = { 50.0, 99.0 };
+
+	private final long intervalMs;
+
+	private final List<Column> columns = new ArrayList<Column>();
+
+	private final List<LatencyColumns> latencies = new ArrayList<LatencyColumns>();
+
+	private final List<String> columnNames = new ArrayList<String>();
+
+	private final List<double[]> rows = new ArrayList<double[]>();
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	private final BufferPoolMXBean directBuffers;
+
+	private Thread reporter;
+
+	private volatile boolean running = false;
+
+	private long lastGcCount;
+
+	private long lastGcMs;
+
+	static final class Column {
+		final String name;
+		final int kind;
+		final Counter counter;
+		long last;
+
+		Column(String name, int kind, Counter counter) {
+			this.name = name;
+			this.kind = kind;
+			this.counter = counter;
+		}
+	}
+
+	static final class LatencyColumns {
+		final String name;
+		final LatencyHistogram histogram;
+		// Preallocated, the reporter thread allocates no histogram per row
+		LatencyHistogram previous = new LatencyHistogram();
+		LatencyHistogram current = new LatencyHistogram();
+		final LatencyHistogram interval = new LatencyHistogram();
+
+		LatencyColumns(String name, LatencyHistogram histogram) {
+			this.name = name;
+			this.histogram = histogram;
+		}
+	}
+
+	/**
+	 * @param intervalMs
+	 *            time between two rows
+	 */
+	public IntervalReporter(long intervalMs) {
+		if (intervalMs < 1)
+			throw new IllegalArgumentException("intervalMs must be positive");
+		this.intervalMs = intervalMs;
+		BufferPoolMXBean direct = null;
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName()))
+				direct = pool;
+		}
+		this.directBuffers = direct;
+	}
+
+	/**
+	 * Reports the increase of a counter per second, tx/s or rx/s
+	 *
+	 * @return this
+	 */
+	public IntervalReporter addRate(String name, Counter counter) {
+		return add(new Column(name, RATE, counter));
+	}
+
+	/**
+	 * Reports the increase of a counter over the interval
+	 *
+	 * @return this
+	 */
+	public IntervalReporter addDelta(String name, Counter counter) {
+		return add(new Column(name, DELTA, counter));
+	}
+
+	/**
+	 * Reports the value of a counter, a window depth or a backlog
+	 *
+	 * @return this
+	 */
+	public IntervalReporter addGauge(String name, Counter counter) {
+		return add(new Column(name, GAUGE, counter));
+	}
+
+	private synchronized IntervalReporter add(Column column) {
+		if (reporter != null)
+			throw new IllegalStateException("Already started");
+		columns.add(column);
+		return this;
+	}
+
+	/**
+	 * Reports p50, p99 and max in microseconds of the values recorded over the
+	 * interval. The histogram has a single writer of its own, which must then
+	 * write a volatile counter also added to this reporter: counters are read
+	 * before histograms, which makes the recorded values visible.
+	 *
+	 * @return this
+	 */
+	public synchronized IntervalReporter addLatency(String name,
+			LatencyHistogram histogram) {
+		if (reporter != null)
+			throw new IllegalStateException("Already started");
+		latencies.add(new LatencyColumns(name, histogram));
+		return this;
+	}
+
+	/**
+	 * Prints the header and starts sampling
+	 *
+	 * @return this
+	 */
+	public synchronized IntervalReporter start() {
+		if (reporter != null)
+			throw new IllegalStateException("Already started");
+		columnNames.add("time_s");
+		for (Column column : columns) {
+			columnNames.add(column.kind == RATE ? column.name + "/s"
+					: column.name);
+			column.last = column.counter.get();
+		}
+		for (LatencyColumns latency : latencies) {
+			columnNames.add(latency.name + "_p50_us");
+			columnNames.add(latency.name + "_p99_us");
+			columnNames.add(latency.name + "_max_us");
+			latency.previous.copyFrom(latency.histogram);
+		}
+		columnNames.add("gc");
+		columnNames.add("gc_ms");
+		columnNames.add("heap_mb");
+		columnNames.add("direct_mb");
+		lastGcCount = AbstractSample.getTotalGarbageCollections();
+		lastGcMs = AbstractSample.getTotalGarbageCollectionTime();
+
+		StringBuilder header = new StringBuilder();
+		for (String name : columnNames) {
+			header.append(String.format("%" + widthOf(name) + "s ", name));
+		}
+		System.out.println(header);
+
+		running = true;
+		reporter = new Thread("IntervalReporter") {
+			public void run() {
+				report();
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+		return this;
+	}
+
+	/**
+	 * Stops sampling, then prints the min, mean and max of the rates
+	 */
+	public void stop() {
+		Thread toJoin;
+		synchronized (this) {
+			running = false;
+			toJoin = reporter;
+		}
+		if (toJoin == null)
+			return;
+		LockSupport.unpark(toJoin);
+		try {
+			toJoin.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		printRateSummary();
+	}
+
+	private void report() {
+		long intervalNanos = intervalMs * 1000000L;
+		long startNanos = System.nanoTime();
+		long lastNanos = startNanos;
+		long nextNanos = startNanos + intervalNanos;
+		while (running) {
+			long waitNanos = nextNanos - System.nanoTime();
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(waitNanos);
+				continue;
+			}
+			long now = System.nanoTime();
+			double[] row = sample(now - startNanos, now - lastNanos);
+			synchronized (rows) {
+				rows.add(row);
+			}
+			printRow(row);
+			lastNanos = now;
+			nextNanos += intervalNanos;
+		}
+	}
+
+	private double[] sample(long sinceStartNanos, long elapsedNanos) {
+		double[] row = new double[columnNames.size()];
+		int c = 0;
+		row[c++] = sinceStartNanos / 1e9;
+		// Counters first, their volatile reads publish the histograms
+		for (Column column : columns) {
+			long value = column.counter.get();
+			switch (column.kind) {
+			case RATE:
+				row[c++] = (value - column.last) / (elapsedNanos / 1e9);
+				break;
+			case DELTA:
+				row[c++] = value - column.last;
+				break;
+			default:
+				row[c++] = value;
+				break;
+			}
+			column.last = value;
+		}
+		for (LatencyColumns latency : latencies) {
+			latency.current.copyFrom(latency.histogram);
+			latency.interval.copyFrom(latency.current);
+			latency.interval.subtract(latency.previous);
+			row[c++] = latency.interval.getValueAtPercentile(LATENCY_PERCENTILES[0]) / 1000.0;
+			row[c++] = latency.interval.getValueAtPercentile(LATENCY_PERCENTILES[1]) / 1000.0;
+			row[c++] = latency.interval.getMaxValue() / 1000.0;
+			LatencyHistogram swap = latency.previous;
+			latency.previous = latency.current;
+			latency.current = swap;
+		}
+		long gcCount = AbstractSample.getTotalGarbageCollections();
+		long gcMs = AbstractSample.getTotalGarbageCollectionTime();
+		row[c++] = gcCount - lastGcCount;
+		row[c++] = gcMs - lastGcMs;
+		lastGcCount = gcCount;
+		lastGcMs = gcMs;
+		row[c++] = memory.getHeapMemoryUsage().getUsed() / 1048576.0;
+		row[c++] = (directBuffers != null) ? directBuffers.getMemoryUsed() / 1048576.0
+				: 0;
+		return row;
+	}
+
+	private void printRow(double[] row) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < row.length; i++) {
+			String format = (i == 0 || isMemoryColumn(i)) ? "%"
+					+ widthOf(columnNames.get(i)) + ".1f " : "%"
+					+ widthOf(columnNames.get(i)) + ".0f ";
+			line.append(String.format(format, row[i]));
+		}
+		System.out.println(line);
+	}
+
+	private void printRateSummary() {
+		List<double[]> snapshot = getRows();
+		if (snapshot.isEmpty())
+			return;
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).kind != RATE)
+				continue;
+			double min = Double.MAX_VALUE;
+			double max = 0;
+			double sum = 0;
+			for (double[] row : snapshot) {
+				double rate = row[i + 1];
+				min = Math.min(min, rate);
+				max = Math.max(max, rate);
+				sum += rate;
+			}
+			System.out.printf(
+					"%s per %d ms interval: min %.0f, mean %.0f, max %.0f over %d intervals%n",
+					columnNames.get(i + 1), intervalMs, min, sum
+							/ snapshot.size(), max, snapshot.size());
+		}
+	}
+
+	private boolean isMemoryColumn(int index) {
+		return index >= columnNames.size() - 2;
+	}
+
+	private static int widthOf(String name) {
+		return Math.max(name.length(), MIN_COLUMN_WIDTH);
+	}
+
+	public long getIntervalMs() {
+		return intervalMs;
+	}
+
+	/**
+	 * @return the column names, time_s first
+	 */
+	public List<String> getColumnNames() {
+		return new ArrayList<String>(columnNames);
+	}
+
+	/**
+	 * @return the rows sampled so far, one value per column
+	 */
+	public List<double[]> getRows() {
+		synchronized (rows) {
+			return new ArrayList<double[]>(rows);
+		}
+	}
+
+}
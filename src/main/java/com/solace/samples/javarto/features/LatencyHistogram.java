@@ -0,0 +1,254 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.Arrays;
+
+/**
+ * A preallocated, allocation-free latency histogram.
+ *
+ * Values (nanoseconds) are recorded into log-linear buckets: every power of
+ * two range is split into 128 linear sub-buckets, which keeps the relative
+ * error of a reported value under 1%. All buckets are allocated up front, so
+ * {@link #record(long)} never allocates and can be called from a message
+ * callback.
+ *
+ * Recording is not synchronized, a histogram is meant to have a single
+ * writer thread. Use one histogram per writer and {@link #add(LatencyHistogram)}
+ * them together for reporting.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 8;
+
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+	private static final double[] REPORT_PERCENTILES = { 50.0, 90.0, 99.0,
+			99.9, 99.99 };
+
+	private final long highestTrackableValue;
+
+	private final long[] counts;
+
+	private long totalCount = 0;
+
+	private long minValue = Long.MAX_VALUE;
+
+	private long maxValue = 0;
+
+	/**
+	 * A histogram able to track values up to one hour in nanoseconds
+	 */
+	public LatencyHistogram() {
+		this(3600L * 1000 * 1000 * 1000);
+	}
+
+	/**
+	 * @param highestTrackableValue
+	 *            values above this are counted in the last bucket, the exact
+	 *            maximum is still tracked
+	 */
+	public LatencyHistogram(long highestTrackableValue) {
+		if (highestTrackableValue < SUB_BUCKET_COUNT)
+			throw new IllegalArgumentException(
+					"highestTrackableValue must be at least "
+							+ SUB_BUCKET_COUNT);
+		this.highestTrackableValue = highestTrackableValue;
+		this.counts = new long[indexOf(highestTrackableValue) + 1];
+	}
+
+	/**
+	 * Records a single value, negative values are recorded as zero.
+	 *
+	 * @param value
+	 *            the latency in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		if (value < minValue)
+			minValue = value;
+		if (value > maxValue)
+			maxValue = value;
+		counts[indexOf(Math.min(value, highestTrackableValue))]++;
+		totalCount++;
+	}
+
+	/**
+	 * Adds all the values recorded in another histogram to this one, both must
+	 * have the same highestTrackableValue.
+	 */
+	public void add(LatencyHistogram other) {
+		if (other.counts.length != counts.length)
+			throw new IllegalArgumentException(
+					"Histograms have different ranges");
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		if (other.minValue < minValue)
+			minValue = other.minValue;
+		if (other.maxValue > maxValue)
+			maxValue = other.maxValue;
+	}
+
+	/**
+	 * Makes this histogram a copy of another one. The other histogram may be
+	 * recorded into meanwhile, its writer publishing its counts through a
+	 * volatile write the copying thread read first: the copy then holds at
+	 * least the values recorded until that write, min and max to bucket
+	 * precision.
+	 */
+	public void copyFrom(LatencyHistogram other) {
+		if (other.counts.length != counts.length)
+			throw new IllegalArgumentException(
+					"Histograms have different ranges");
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			long count = other.counts[i];
+			counts[i] = count;
+			total += count;
+		}
+		// From the counts, consistent with them
+		totalCount = total;
+		updateMinMaxFromCounts();
+	}
+
+	/**
+	 * Removes the values recorded in an earlier copy of this histogram, leaving
+	 * those recorded since. Min and max are then known to bucket precision.
+	 */
+	public void subtract(LatencyHistogram earlier) {
+		if (earlier.counts.length != counts.length)
+			throw new IllegalArgumentException(
+					"Histograms have different ranges");
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = Math.max(counts[i] - earlier.counts[i], 0);
+			total += counts[i];
+		}
+		totalCount = total;
+		updateMinMaxFromCounts();
+	}
+
+	private void updateMinMaxFromCounts() {
+		minValue = Long.MAX_VALUE;
+		maxValue = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0) {
+				minValue = lowestValueOf(i);
+				break;
+			}
+		}
+		for (int i = counts.length - 1; i >= 0; i--) {
+			if (counts[i] != 0) {
+				maxValue = highestValueOf(i);
+				break;
+			}
+		}
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		minValue = Long.MAX_VALUE;
+		maxValue = 0;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public long getMinValue() {
+		return totalCount == 0 ? 0 : minValue;
+	}
+
+	public long getMaxValue() {
+		return maxValue;
+	}
+
+	public double getMean() {
+		if (totalCount == 0)
+			return 0;
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] != 0)
+				sum += (double) counts[i] * medianValueOf(i);
+		}
+		return sum / totalCount;
+	}
+
+	/**
+	 * @param percentile
+	 *            0.0 to 100.0
+	 * @return the highest value (within bucket precision) below which the
+	 *         given percentage of recorded values fall
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+		if (percentile >= 100.0)
+			return maxValue;
+		long countAtPercentile = (long) Math.ceil(percentile / 100.0
+				* totalCount);
+		if (countAtPercentile < 1)
+			countAtPercentile = 1;
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= countAtPercentile)
+				return Math.min(highestValueOf(i), maxValue);
+		}
+		return maxValue;
+	}
+
+	/**
+	 * Prints p50/p90/p99/p99.9/p99.99/max in microseconds
+	 */
+	public void printPercentiles(String title) {
+		System.out.printf("%n%s: %d samples, min %.1f us, mean %.1f us%n",
+				title, totalCount, getMinValue() / 1000.0, getMean() / 1000.0);
+		for (int i = 0; i < REPORT_PERCENTILES.length; i++) {
+			System.out.printf("\t p%-6s %12.1f us%n",
+					formatPercentile(REPORT_PERCENTILES[i]),
+					getValueAtPercentile(REPORT_PERCENTILES[i]) / 1000.0);
+		}
+		System.out.printf("\t %-7s %12.1f us%n", "max", maxValue / 1000.0);
+	}
+
+	static String formatPercentile(double percentile) {
+		if (percentile == Math.rint(percentile))
+			return Long.toString((long) percentile);
+		return Double.toString(percentile);
+	}
+
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+		// value >>> shift lands in the upper half of the sub-buckets
+		int shift = 63 - Long.numberOfLeadingZeros(value)
+				- SUB_BUCKET_HALF_BITS;
+		return (shift << SUB_BUCKET_HALF_BITS) + (int) (value >>> shift);
+	}
+
+	private static long lowestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+		int shift = (index >> SUB_BUCKET_HALF_BITS) - 1;
+		long subBucket = index - ((long) shift << SUB_BUCKET_HALF_BITS);
+		return subBucket << shift;
+	}
+
+	private static long highestValueOf(int index) {
+		return lowestValueOf(index + 1) - 1;
+	}
+
+	private static long medianValueOf(int index) {
+		return (lowestValueOf(index) + highestValueOf(index)) / 2;
+	}
+
+}
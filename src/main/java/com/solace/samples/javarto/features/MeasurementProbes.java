@@ -0,0 +1,143 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+/**
+ * The allocation and CPU probes of a measured run of the Perf samples: the
+ * publisher thread, the callback thread and the process, each per message,
+ * for the {@link AllocationMeter} and {@link CpuMeter} given, either may be
+ * null when not measured.
+ *
+ * {@link #begin} before the first measured message, {@link #endPublisher()}
+ * right after the last one is sent, {@link #end()} once they came back, then
+ * {@link #report}.
+ */
+public class MeasurementProbes {
+
+	private final AllocationMeter allocationMeter;
+
+	private final CpuMeter cpuMeter;
+
+	// Null when not measured
+	private AllocationMeter.Probe allocPublisherProbe;
+	private AllocationMeter.Probe allocCallbackProbe;
+	private CpuMeter.Probe cpuPublisherProbe;
+	private CpuMeter.Probe cpuCallbackProbe;
+	private CpuMeter.Probe cpuProcessProbe;
+
+	/**
+	 * @param allocationMeter
+	 *            null to not measure allocation
+	 * @param cpuMeter
+	 *            null to not measure CPU time
+	 */
+	public MeasurementProbes(AllocationMeter allocationMeter, CpuMeter cpuMeter) {
+		this.allocationMeter = allocationMeter;
+		this.cpuMeter = cpuMeter;
+	}
+
+	/**
+	 * Begins the probes, those of the calling thread last since reading other
+	 * threads allocates
+	 *
+	 * @param received
+	 *            messages received by the callback, null if no subscriber
+	 * @param callbackThreadId
+	 *            0 if no message was received yet
+	 * @param publisher
+	 *            true if the calling thread is the publisher
+	 */
+	public void begin(IntervalReporter.Counter sent,
+			IntervalReporter.Counter received, long callbackThreadId,
+			boolean publisher) {
+		if (allocationMeter == null && cpuMeter == null)
+			return;
+		if (received == null)
+			callbackThreadId = 0;
+		else if (callbackThreadId == 0)
+			System.out
+					.println("No message received yet, not measuring the callback thread");
+		long publisherThreadId = Thread.currentThread().getId();
+
+		if (cpuMeter != null) {
+			cpuProcessProbe = cpuMeter.watchProcess(sent);
+			if (callbackThreadId != 0)
+				cpuCallbackProbe = cpuMeter.watchThread("callback",
+						callbackThreadId, received);
+			if (publisher)
+				cpuPublisherProbe = cpuMeter.watchThread("publisher",
+						publisherThreadId, sent);
+		}
+		if (allocationMeter != null) {
+			if (callbackThreadId != 0)
+				allocCallbackProbe = allocationMeter.watch("callback",
+						callbackThreadId, received);
+			if (publisher)
+				allocPublisherProbe = allocationMeter.watch("publisher",
+						publisherThreadId, sent);
+		}
+
+		if (cpuProcessProbe != null)
+			cpuProcessProbe.begin();
+		if (cpuCallbackProbe != null)
+			cpuCallbackProbe.begin();
+		if (allocCallbackProbe != null)
+			allocCallbackProbe.begin();
+		if (cpuPublisherProbe != null)
+			cpuPublisherProbe.begin();
+		if (allocPublisherProbe != null)
+			allocPublisherProbe.begin();
+	}
+
+	/**
+	 * Ends the probes of the publisher, right after its last message
+	 */
+	public void endPublisher() {
+		if (allocPublisherProbe != null)
+			allocPublisherProbe.end();
+		if (cpuPublisherProbe != null)
+			cpuPublisherProbe.end();
+	}
+
+	/**
+	 * Ends the callback and process probes, once the messages came back
+	 */
+	public void end() {
+		if (allocCallbackProbe != null)
+			allocCallbackProbe.end();
+		if (cpuCallbackProbe != null)
+			cpuCallbackProbe.end();
+		if (cpuProcessProbe != null)
+			cpuProcessProbe.end();
+	}
+
+	/**
+	 * Prints and exports the CPU and allocation per message
+	 *
+	 * @param messagesPerSecond
+	 *            the send rate, for the cores used
+	 * @return false if the allocation per message is above the budget
+	 */
+	public boolean report(BenchmarkResult result, double messagesPerSecond) {
+		if (cpuMeter != null) {
+			cpuMeter.printReport(messagesPerSecond);
+			cpuMeter.exportTo(result);
+		}
+		if (allocationMeter == null)
+			return true;
+		boolean withinBudget = allocationMeter.printReport();
+		allocationMeter.exportTo(result);
+		return withinBudget;
+	}
+
+	/**
+	 * @return the failure message when {@link #report} returned false
+	 */
+	public String getBudgetExceededMessage() {
+		return "Allocation per message above the budget of "
+				+ allocationMeter.getBudgetBytesPerMessage() + " bytes";
+	}
+
+}
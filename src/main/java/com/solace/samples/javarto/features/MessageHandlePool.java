@@ -0,0 +1,202 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+
+/**
+ * A bounded pool of MessageHandles for received messages that are taken from
+ * the callback and processed later, possibly on another thread.
+ *
+ * All handles are allocated up front. {@link #take(MessageSupport)} takes the
+ * received message into a free handle, {@link #release(MessageHandle)} frees
+ * the native message and returns the handle for reuse. When all handles are
+ * in use take returns null, so the number of messages held in native memory
+ * never exceeds the capacity however bursty the traffic.
+ *
+ * The pool keeps track of when each handle was acquired: handles released
+ * twice or not from this pool are refused, handles held longer than expected
+ * can be listed with {@link #countHeldLongerThan(long, TimeUnit)}, and
+ * {@link #destroy()} reports the handles never released.
+ */
+public class MessageHandlePool {
+
+	private final MessageHandle[] handles;
+
+	private final Map<MessageHandle, Integer> indexes;
+
+	// Stack of free handle indexes
+	private final int[] free;
+
+	private int freeCount;
+
+	// 0 when free
+	private final long[] acquiredNanos;
+
+	private int peakInUse = 0;
+
+	private long acquireCount = 0;
+
+	private long exhaustedCount = 0;
+
+	/**
+	 * @param capacity
+	 *            maximum number of handles in use at once
+	 */
+	public MessageHandlePool(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.handles = new MessageHandle[capacity];
+		this.indexes = new IdentityHashMap<MessageHandle, Integer>(capacity);
+		this.free = new int[capacity];
+		this.acquiredNanos = new long[capacity];
+		for (int i = 0; i < capacity; i++) {
+			handles[i] = Solclient.Allocator.newMessageHandle();
+			indexes.put(handles[i], i);
+			// Hands out the lowest indexes first
+			free[i] = capacity - 1 - i;
+		}
+		this.freeCount = capacity;
+	}
+
+	/**
+	 * @return a free handle, or null if all are in use
+	 */
+	public synchronized MessageHandle acquire() {
+		if (freeCount == 0) {
+			exhaustedCount++;
+			return null;
+		}
+		int index = free[--freeCount];
+		acquiredNanos[index] = Math.max(System.nanoTime(), 1);
+		acquireCount++;
+		int inUse = handles.length - freeCount;
+		if (inUse > peakInUse)
+			peakInUse = inUse;
+		return handles[index];
+	}
+
+	/**
+	 * Takes the received message into a pooled handle, to be called from the
+	 * message callback.
+	 *
+	 * @return the handle holding the message, or null if all are in use and
+	 *         the message was not taken
+	 */
+	public MessageHandle take(MessageSupport messageSupport) {
+		MessageHandle handle = acquire();
+		if (handle == null)
+			return null;
+		int rc = messageSupport.takeRxMessage(handle);
+		if (rc != SolEnum.ReturnCode.OK) {
+			release(handle);
+			return null;
+		}
+		return handle;
+	}
+
+	/**
+	 * Frees the message held by the handle and returns the handle to the pool.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the handle does not belong to this pool
+	 * @throws IllegalStateException
+	 *             if the handle was already released
+	 */
+	public synchronized void release(MessageHandle handle) {
+		Integer index = indexes.get(handle);
+		if (index == null)
+			throw new IllegalArgumentException(
+					"MessageHandle not from this pool");
+		if (acquiredNanos[index] == 0)
+			throw new IllegalStateException("MessageHandle released twice");
+		if (handle.isBound())
+			handle.destroy();
+		acquiredNanos[index] = 0;
+		free[freeCount++] = index;
+	}
+
+	/**
+	 * @return the number of handles acquired longer ago than the given time,
+	 *         likely leaked
+	 */
+	public synchronized int countHeldLongerThan(long time, TimeUnit unit) {
+		long oldest = System.nanoTime() - unit.toNanos(time);
+		int count = 0;
+		for (int i = 0; i < acquiredNanos.length; i++) {
+			if (acquiredNanos[i] != 0 && acquiredNanos[i] - oldest < 0)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the handles currently acquired, oldest index first
+	 */
+	public synchronized List<MessageHandle> getInUseHandles() {
+		List<MessageHandle> inUse = new ArrayList<MessageHandle>(getInUse());
+		for (int i = 0; i < handles.length; i++) {
+			if (acquiredNanos[i] != 0)
+				inUse.add(handles[i]);
+		}
+		return inUse;
+	}
+
+	/**
+	 * Frees the messages of all handles, released or not.
+	 *
+	 * @return the number of handles that were never released
+	 */
+	public synchronized int destroy() {
+		int leaked = 0;
+		for (int i = 0; i < handles.length; i++) {
+			if (acquiredNanos[i] != 0) {
+				leaked++;
+				acquiredNanos[i] = 0;
+				free[freeCount++] = i;
+			}
+			try {
+				if (handles[i].isBound())
+					handles[i].destroy();
+			} catch (Throwable t) {
+				// Keep going with the other handles
+			}
+		}
+		return leaked;
+	}
+
+	public int getCapacity() {
+		return handles.length;
+	}
+
+	public synchronized int getInUse() {
+		return handles.length - freeCount;
+	}
+
+	public synchronized int getPeakInUse() {
+		return peakInUse;
+	}
+
+	public synchronized long getAcquireCount() {
+		return acquireCount;
+	}
+
+	/**
+	 * @return how many times a handle was asked for with none free
+	 */
+	public synchronized long getExhaustedCount() {
+		return exhaustedCount;
+	}
+
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+
+/**
+ * Hands received messages from the context thread over to a pool of worker
+ * threads, so that the message callback returns right away and the context
+ * thread is never held up by slow processing.
+ *
+ * The ring is a preallocated array of slots, each slot owning either a
+ * MessageHandle the received message is taken into, or a direct ByteBuffer the
+ * binary attachment is copied into. The context thread is the single producer:
+ * {@link #offer(MessageSupport)} fills the next slot and publishes it with an
+ * ordered write of its sequence, without locks or allocation. Each worker
+ * claims the next published slot with a CAS, runs its {@link Handler} on it and
+ * hands the slot back. A slot is only reused once its handler is done, so a
+ * full ring means the workers are behind and offer returns false rather than
+ * blocking the context thread.
+ *
+ * Idle workers wait according to a {@link WaitStrategy}, trading CPU for
+ * handoff latency.
+ */
+public class MessageHandoffRing {
+
+	/**
+	 * How an idle worker waits for the next message
+	 */
+	public enum WaitStrategy {
+		/** Lowest latency, burns a core per worker */
+		BUSY_SPIN {
+			@Override
+			void idle(int attempt) {
+			}
+		},
+		/** Spins, then gives the core to other runnable threads */
+		YIELD {
+			@Override
+			void idle(int attempt) {
+				if (attempt > SPIN_TRIES)
+					Thread.yield();
+			}
+		},
+		/** Spins, yields, then sleeps, least CPU when traffic is sparse */
+		PARK {
+			@Override
+			void idle(int attempt) {
+				if (attempt > 2 * SPIN_TRIES)
+					LockSupport.parkNanos(PARK_NANOS);
+				else if (attempt > SPIN_TRIES)
+					Thread.yield();
+			}
+		};
+
+		abstract void idle(int attempt);
+
+		/**
+		 * @param name
+		 *            spin, yield or park
+		 */
+		public static WaitStrategy fromName(String name) {
+			if ("spin".equalsIgnoreCase(name))
+				return BUSY_SPIN;
+			if ("yield".equalsIgnoreCase(name))
+				return YIELD;
+			if ("park".equalsIgnoreCase(name))
+				return PARK;
+			throw new IllegalArgumentException("Unknown wait strategy [" + name
+					+ "], expected spin, yield or park");
+		}
+	}
+
+	/**
+	 * Processes one message on a worker thread. A handler instance is only
+	 * called from its own worker, so it can keep single writer state.
+	 */
+	public interface Handler {
+		void onSlot(Slot slot);
+	}
+
+	/**
+	 * A preallocated entry of the ring, valid only for the duration of
+	 * {@link Handler#onSlot(Slot)}
+	 */
+	public static final class Slot {
+		private final MessageHandle message;
+		private final ByteBuffer payload;
+		private long sequence;
+		private long receiveNanos;
+
+		Slot(int payloadCapacity) {
+			if (payloadCapacity > 0) {
+				this.message = null;
+				this.payload = ByteBuffer.allocateDirect(payloadCapacity);
+			} else {
+				this.message = Solclient.Allocator.newMessageHandle();
+				this.payload = null;
+			}
+		}
+
+		/**
+		 * @return the taken message, null when the ring copies payloads
+		 */
+		public MessageHandle getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return the copied binary attachment, null when the ring takes
+		 *         messages. Read it with absolute gets.
+		 */
+		public ByteBuffer getPayload() {
+			return payload;
+		}
+
+		/**
+		 * @return the position of the message in the order received
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return System.nanoTime() when the context thread offered the message
+		 */
+		public long getReceiveNanos() {
+			return receiveNanos;
+		}
+	}
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final long PARK_NANOS = 50000;
+
+	private final int mask;
+
+	private final Slot[] slots;
+
+	// Slot i of lap n is free for sequence s = n*capacity+i while its state
+	// is s, and published once it is s+1
+	private final AtomicLongArray states;
+
+	private final WaitStrategy waitStrategy;
+
+	// Written by the producer (context) thread only
+	private long producerSequence = 0;
+
+	// Written by the producer with ordered writes, not a full volatile store
+	// per message, read by the workers and the reporter
+	private volatile long offeredCount = 0;
+
+	private volatile long rejectedCount = 0;
+
+	private static final AtomicLongFieldUpdater<MessageHandoffRing> OFFERED_COUNT = AtomicLongFieldUpdater
+			.newUpdater(MessageHandoffRing.class, "offeredCount");
+
+	private static final AtomicLongFieldUpdater<MessageHandoffRing> REJECTED_COUNT = AtomicLongFieldUpdater
+			.newUpdater(MessageHandoffRing.class, "rejectedCount");
+
+	private final AtomicLong consumerSequence = new AtomicLong();
+
+	private volatile boolean running = false;
+
+	private Thread[] workers;
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two of at least 2
+	 * @param payloadCapacity
+	 *            size of the direct buffer each slot copies the binary
+	 *            attachment into, at least the largest message size; 0 to take
+	 *            the whole message into a MessageHandle instead
+	 * @param waitStrategy
+	 *            how idle workers wait
+	 */
+	public MessageHandoffRing(int capacity, int payloadCapacity,
+			WaitStrategy waitStrategy) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity out of range: "
+					+ capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		// A single slot would be free for s+1 once published for s
+		size = Math.max(size, 2);
+		this.mask = size - 1;
+		this.slots = new Slot[size];
+		this.states = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot(payloadCapacity);
+			states.set(i, i);
+		}
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Starts one worker thread per handler.
+	 */
+	public synchronized void start(Handler[] handlers) {
+		if (workers != null)
+			throw new IllegalStateException("Already started");
+		running = true;
+		workers = new Thread[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			final Handler handler = handlers[i];
+			workers[i] = new Thread("MessageHandoffRing-worker-" + i) {
+				public void run() {
+					work(handler);
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Called from the message callback, takes or copies the received message
+	 * into the next slot.
+	 *
+	 * @return false if the ring is full, the message was not handed off
+	 */
+	public boolean offer(MessageSupport messageSupport) {
+		long sequence = producerSequence;
+		int index = (int) (sequence & mask);
+		if (states.get(index) != sequence) {
+			REJECTED_COUNT.lazySet(this, rejectedCount + 1);
+			return false;
+		}
+		Slot slot = slots[index];
+		slot.sequence = sequence;
+		slot.receiveNanos = System.nanoTime();
+		if (slot.payload != null) {
+			slot.payload.clear();
+			messageSupport.getRxMessage().getBinaryAttachment(slot.payload);
+		} else {
+			messageSupport.takeRxMessage(slot.message);
+		}
+		producerSequence = sequence + 1;
+		OFFERED_COUNT.lazySet(this, sequence + 1);
+		states.lazySet(index, sequence + 1);
+		return true;
+	}
+
+	/**
+	 * Lets the workers finish the messages already offered and stops them. The
+	 * producer must have stopped offering.
+	 */
+	public void stop() {
+		Thread[] toJoin;
+		synchronized (this) {
+			running = false;
+			toJoin = workers;
+		}
+		if (toJoin == null)
+			return;
+		for (int i = 0; i < toJoin.length; i++) {
+			try {
+				toJoin[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void work(Handler handler) {
+		int attempt = 0;
+		for (;;) {
+			long sequence = consumerSequence.get();
+			int index = (int) (sequence & mask);
+			long state = states.get(index);
+			if (state == sequence + 1) {
+				if (consumerSequence.compareAndSet(sequence, sequence + 1)) {
+					process(handler, index, sequence);
+					attempt = 0;
+				}
+			} else if (state <= sequence) {
+				// Nothing published yet, or still processed from the last lap
+				if (!running)
+					return;
+				waitStrategy.idle(++attempt);
+			}
+			// else another worker claimed it, retry
+		}
+	}
+
+	private void process(Handler handler, int index, long sequence) {
+		Slot slot = slots[index];
+		try {
+			handler.onSlot(slot);
+		} catch (Throwable t) {
+			t.printStackTrace();
+		} finally {
+			if (slot.message != null && slot.message.isBound())
+				slot.message.destroy();
+			// Free for the next lap
+			states.lazySet(index, sequence + slots.length);
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public long getOfferedCount() {
+		return offeredCount;
+	}
+
+	/**
+	 * @return messages the context thread could not hand off, the ring being
+	 *         full
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return messages offered and not yet claimed by a worker
+	 */
+	public long getBacklog() {
+		return offeredCount - consumerSequence.get();
+	}
+
+}
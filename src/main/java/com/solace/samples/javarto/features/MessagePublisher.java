@@ -0,0 +1,307 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * A publisher facade whose steady state send path allocates nothing.
+ *
+ * <ul>
+ * <li>Destinations are resolved once into a NativeDestinationHandle and
+ * cached, Topics by name in a bounded {@link NativeDestinationCache}, any
+ * other Destination as the single most recent one. A handle is only valid
+ * until the next lookup, which may evict it.
+ * <li>The payload is written straight into a reused direct ByteBuffer with
+ * the put methods, {@link #putUtf8(CharSequence)} encoding US-ASCII text
+ * without going through a String or a byte[].
+ * <li>{@link #send(NativeDestinationHandle, int)} returns the return code and
+ * counts failures instead of building an assertion message per send.
+ * </ul>
+ *
+ * Typical use:
+ *
+ * <pre>
+ * NativeDestinationHandle topic = publisher.destination(&quot;a/b&quot;);
+ * for (...) {
+ * 	publisher.beginPayload().putUtf8(&quot;price &quot;).putLong(price);
+ * 	publisher.send(topic, SolEnum.MessageDeliveryMode.DIRECT);
+ * }
+ * </pre>
+ *
+ * Not thread safe, one publisher per sending thread.
+ */
+public class MessagePublisher {
+
+	private final SessionHandle sessionHandle;
+
+	private final MessageHandle messageHandle;
+
+	private final ByteBuffer payload;
+
+	private final NativeDestinationCache topicDestinations;
+
+	// The last non Topic destination and its native handle
+	private Destination lastDestination;
+
+	private NativeDestinationHandle lastDestinationHandle;
+
+	private long sentCount = 0;
+
+	private long failedCount = 0;
+
+	private int lastReturnCode = SolEnum.ReturnCode.OK;
+
+	static final int DEFAULT_TOPIC_CACHE_CAPACITY = 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @param messageHandle
+	 *            the message reused for every send, allocated if not bound
+	 * @param payloadCapacity
+	 *            size of the reused payload buffer
+	 */
+	public MessagePublisher(SessionHandle sessionHandle,
+			MessageHandle messageHandle, int payloadCapacity) {
+		this(sessionHandle, messageHandle, payloadCapacity,
+				DEFAULT_TOPIC_CACHE_CAPACITY);
+	}
+
+	/**
+	 * @param topicCacheCapacity
+	 *            number of topic native destinations kept
+	 */
+	public MessagePublisher(SessionHandle sessionHandle,
+			MessageHandle messageHandle, int payloadCapacity,
+			int topicCacheCapacity) {
+		if (sessionHandle == null)
+			throw new IllegalArgumentException("SessionHandle may not be null");
+		if (messageHandle == null)
+			throw new IllegalArgumentException("MessageHandle may not be null");
+		this.sessionHandle = sessionHandle;
+		this.messageHandle = messageHandle;
+		this.payload = ByteBuffer.allocateDirect(payloadCapacity);
+		this.topicDestinations = new NativeDestinationCache(
+				topicCacheCapacity);
+		if (!messageHandle.isBound()) {
+			int rc = Solclient.createMessageForHandle(messageHandle);
+			if (rc != SolEnum.ReturnCode.OK)
+				throw new IllegalStateException(
+						"Solclient.createMessageForHandle() failed, rc " + rc);
+		}
+	}
+
+	/**
+	 * @return the cached native destination for the topic, created on a miss
+	 */
+	public NativeDestinationHandle destination(CharSequence topic) {
+		return topicDestinations.get(topic);
+	}
+
+	/**
+	 * @return the cached native destination for the topic given as UTF-8
+	 *         bytes, created on a miss
+	 */
+	public NativeDestinationHandle destination(byte[] topic, int offset,
+			int length) {
+		return topicDestinations.get(topic, offset, length);
+	}
+
+	/**
+	 * @return the cached native destination, a Topic looked up by name and
+	 *         any other Destination kept while it is the one last used
+	 */
+	public NativeDestinationHandle destination(Destination destination) {
+		if (destination instanceof Topic)
+			return topicDestinations.get(destination.getName());
+		if (destination != lastDestination) {
+			// Created first, a failure keeps the previous one
+			NativeDestinationHandle handle = createNativeDestination(destination);
+			destroyLastDestination();
+			lastDestination = destination;
+			lastDestinationHandle = handle;
+		}
+		return lastDestinationHandle;
+	}
+
+	private void destroyLastDestination() {
+		NativeDestinationHandle handle = lastDestinationHandle;
+		lastDestination = null;
+		lastDestinationHandle = null;
+		if (handle != null && handle.isBound())
+			handle.destroy();
+	}
+
+	private NativeDestinationHandle createNativeDestination(
+			Destination destination) {
+		NativeDestinationHandle handle = Solclient.Allocator
+				.newNativeDestinationHandle();
+		int rc = Solclient.createNativeDestinationForHandle(handle,
+				destination);
+		if (rc != SolEnum.ReturnCode.OK)
+			throw new IllegalStateException(
+					"Solclient.createNativeDestinationForHandle() failed for ["
+							+ destination.getName() + "], rc " + rc);
+		return handle;
+	}
+
+	/**
+	 * Starts a new payload, discarding the previous one.
+	 *
+	 * @return this
+	 */
+	public MessagePublisher beginPayload() {
+		payload.clear();
+		return this;
+	}
+
+	/**
+	 * Appends the characters encoded as UTF-8, US-ASCII text without
+	 * allocating
+	 *
+	 * @return this
+	 */
+	public MessagePublisher putUtf8(CharSequence chars) {
+		int length = chars.length();
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c >= 0x80) {
+				// Not worth a hand written encoder, allocates
+				payload.put(chars.subSequence(i, length).toString()
+						.getBytes(UTF8));
+				break;
+			}
+			payload.put((byte) c);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation of the value
+	 *
+	 * @return this
+	 */
+	public MessagePublisher putDecimal(long value) {
+		if (value == Long.MIN_VALUE)
+			return putUtf8("-9223372036854775808");
+		if (value < 0) {
+			payload.put((byte) '-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (divisor <= value / 10)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10) {
+			payload.put((byte) ('0' + (value / divisor) % 10));
+		}
+		return this;
+	}
+
+	/**
+	 * @return this
+	 */
+	public MessagePublisher putLong(long value) {
+		payload.putLong(value);
+		return this;
+	}
+
+	/**
+	 * @return this
+	 */
+	public MessagePublisher putInt(int value) {
+		payload.putInt(value);
+		return this;
+	}
+
+	/**
+	 * @return this
+	 */
+	public MessagePublisher putBytes(byte[] bytes, int offset, int length) {
+		payload.put(bytes, offset, length);
+		return this;
+	}
+
+	/**
+	 * @return the payload buffer, to write into directly after
+	 *         {@link #beginPayload()}
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Sends the payload written since {@link #beginPayload()}, with an empty
+	 * binary attachment if nothing was written, not the previous message's.
+	 *
+	 * @param messageDeliveryMode
+	 *            a SolEnum.MessageDeliveryMode
+	 * @return the return code of SessionHandle.send()
+	 */
+	public int send(NativeDestinationHandle destination,
+			int messageDeliveryMode) {
+		messageHandle.setMessageDeliveryMode(messageDeliveryMode);
+		messageHandle.setDestination(destination);
+		payload.flip();
+		messageHandle.setBinaryAttachment(payload);
+		int rc = sessionHandle.send(messageHandle);
+		if (rc == SolEnum.ReturnCode.OK)
+			sentCount++;
+		else
+			failedCount++;
+		lastReturnCode = rc;
+		return rc;
+	}
+
+	public MessageHandle getMessageHandle() {
+		return messageHandle;
+	}
+
+	public SessionHandle getSessionHandle() {
+		return sessionHandle;
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return the topic cache, for its hit, miss and eviction counts
+	 */
+	public NativeDestinationCache getTopicDestinations() {
+		return topicDestinations;
+	}
+
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	public int getLastReturnCode() {
+		return lastReturnCode;
+	}
+
+	/**
+	 * Destroys the cached native destinations, the message handle belongs to
+	 * the caller
+	 */
+	public void destroy() {
+		topicDestinations.destroy();
+		try {
+			destroyLastDestination();
+		} catch (Throwable t) {
+			// Nothing else to release
+		}
+	}
+
+}
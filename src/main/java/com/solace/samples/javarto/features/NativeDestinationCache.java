@@ -0,0 +1,305 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+
+/**
+ * A bounded cache of topic NativeDestinationHandles keyed by the topic bytes,
+ * least recently used entries being evicted and destroyed.
+ *
+ * Lookups hash the topic bytes into an open addressing table (linear probing)
+ * and compare them against copies kept in one preallocated byte array, so a
+ * hit allocates nothing. Recency is a doubly linked list threaded through int
+ * arrays. Only a miss allocates, to create the Topic and its native
+ * destination.
+ *
+ * A returned handle is valid until the next lookup, which may evict it: set it
+ * on the message and send before looking up another topic. Not thread safe.
+ */
+public class NativeDestinationCache {
+
+	public static final int MAX_TOPIC_BYTES = 250;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int NONE = -1;
+
+	private final int capacity;
+
+	private final int maxTopicBytes;
+
+	// Per entry
+	private final NativeDestinationHandle[] handles;
+	private final byte[] keys;
+	private final int[] keyLengths;
+	private final int[] hashes;
+	private final int[] tablePositions;
+	private final int[] newer;
+	private final int[] older;
+
+	// Entry index + 1, 0 when empty
+	private final int[] table;
+	private final int tableMask;
+
+	private int size = 0;
+	private int newest = NONE;
+	private int oldest = NONE;
+
+	// Encoding scratch for CharSequence lookups
+	private final byte[] scratch;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * @param capacity
+	 *            number of native destinations kept
+	 */
+	public NativeDestinationCache(int capacity) {
+		this(capacity, MAX_TOPIC_BYTES);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of native destinations kept
+	 * @param maxTopicBytes
+	 *            longest topic, in UTF-8 bytes, the cache has room for
+	 */
+	public NativeDestinationCache(int capacity, int maxTopicBytes) {
+		if (capacity < 1 || capacity > (1 << 28))
+			throw new IllegalArgumentException("capacity out of range: "
+					+ capacity);
+		this.capacity = capacity;
+		this.maxTopicBytes = maxTopicBytes;
+		this.handles = new NativeDestinationHandle[capacity];
+		this.keys = new byte[capacity * maxTopicBytes];
+		this.keyLengths = new int[capacity];
+		this.hashes = new int[capacity];
+		this.tablePositions = new int[capacity];
+		this.newer = new int[capacity];
+		this.older = new int[capacity];
+		// At most half full
+		int tableSize = Integer.highestOneBit(capacity) << 2;
+		this.table = new int[tableSize];
+		this.tableMask = tableSize - 1;
+		this.scratch = new byte[maxTopicBytes];
+	}
+
+	/**
+	 * @return the native destination of the topic, created on a miss
+	 */
+	public NativeDestinationHandle get(CharSequence topic) {
+		int length = topic.length();
+		if (length > maxTopicBytes)
+			throw new IllegalArgumentException("Topic longer than "
+					+ maxTopicBytes + " bytes");
+		for (int i = 0; i < length; i++) {
+			char c = topic.charAt(i);
+			if (c >= 0x80) {
+				// Not worth a hand written encoder, allocates
+				byte[] bytes = topic.toString().getBytes(UTF8);
+				return get(bytes, 0, bytes.length);
+			}
+			scratch[i] = (byte) c;
+		}
+		return get(scratch, 0, length);
+	}
+
+	/**
+	 * @return the native destination of the topic given as UTF-8 bytes,
+	 *         created on a miss
+	 */
+	public NativeDestinationHandle get(byte[] topic, int offset, int length) {
+		if (length > maxTopicBytes)
+			throw new IllegalArgumentException("Topic longer than "
+					+ maxTopicBytes + " bytes");
+		int hash = hash(topic, offset, length);
+		int position = hash & tableMask;
+		int slot;
+		while ((slot = table[position]) != 0) {
+			int entry = slot - 1;
+			if (hashes[entry] == hash
+					&& keyEquals(entry, topic, offset, length)) {
+				hitCount++;
+				touch(entry);
+				return handles[entry];
+			}
+			position = (position + 1) & tableMask;
+		}
+
+		// Created first, a failure leaves the cache as it was
+		NativeDestinationHandle handle = createNativeDestination(topic,
+				offset, length);
+		missCount++;
+		int entry;
+		if (size < capacity) {
+			entry = size++;
+		} else {
+			entry = oldest;
+			evict(entry);
+			// The eviction may have opened a hole earlier on the probe sequence
+			position = hash & tableMask;
+			while (table[position] != 0)
+				position = (position + 1) & tableMask;
+		}
+		handles[entry] = handle;
+		System.arraycopy(topic, offset, keys, entry * maxTopicBytes, length);
+		keyLengths[entry] = length;
+		hashes[entry] = hash;
+		table[position] = entry + 1;
+		tablePositions[entry] = position;
+		linkNewest(entry);
+		return handle;
+	}
+
+	// Package private for the tests to create fake handles
+	NativeDestinationHandle createNativeDestination(byte[] topic, int offset,
+			int length) {
+		String topicStr = new String(topic, offset, length, UTF8);
+		NativeDestinationHandle handle = Solclient.Allocator
+				.newNativeDestinationHandle();
+		int rc = Solclient.createNativeDestinationForHandle(handle,
+				Solclient.Allocator.newTopic(topicStr));
+		if (rc != SolEnum.ReturnCode.OK)
+			throw new IllegalStateException(
+					"Solclient.createNativeDestinationForHandle() failed for ["
+							+ topicStr + "], rc " + rc);
+		return handle;
+	}
+
+	private void evict(int entry) {
+		evictionCount++;
+		unlink(entry);
+		removeFromTable(tablePositions[entry]);
+		destroyHandle(entry);
+	}
+
+	private void destroyHandle(int entry) {
+		NativeDestinationHandle handle = handles[entry];
+		handles[entry] = null;
+		if (handle != null && handle.isBound())
+			handle.destroy();
+	}
+
+	/*
+	 * Backward shift deletion: moves the following entries of the probe
+	 * sequence up so that lookups never stop at the hole.
+	 */
+	private void removeFromTable(int hole) {
+		int position = hole;
+		for (;;) {
+			position = (position + 1) & tableMask;
+			int slot = table[position];
+			if (slot == 0)
+				break;
+			int home = hashes[slot - 1] & tableMask;
+			// Can the entry at position be moved back to the hole?
+			boolean homeAfterHole = (hole <= position) ? (home > hole
+					&& home <= position) : (home > hole || home <= position);
+			if (!homeAfterHole) {
+				table[hole] = slot;
+				tablePositions[slot - 1] = hole;
+				hole = position;
+			}
+		}
+		table[hole] = 0;
+	}
+
+	private boolean keyEquals(int entry, byte[] topic, int offset, int length) {
+		if (keyLengths[entry] != length)
+			return false;
+		int base = entry * maxTopicBytes;
+		for (int i = 0; i < length; i++) {
+			if (keys[base + i] != topic[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	// FNV-1a, mixed so that the low bits used by the table are well spread
+	static int hash(byte[] bytes, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			h ^= bytes[offset + i];
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private void touch(int entry) {
+		if (entry != newest) {
+			unlink(entry);
+			linkNewest(entry);
+		}
+	}
+
+	private void linkNewest(int entry) {
+		older[entry] = newest;
+		newer[entry] = NONE;
+		if (newest != NONE)
+			newer[newest] = entry;
+		newest = entry;
+		if (oldest == NONE)
+			oldest = entry;
+	}
+
+	private void unlink(int entry) {
+		int o = older[entry];
+		int n = newer[entry];
+		if (o != NONE)
+			newer[o] = n;
+		else
+			oldest = n;
+		if (n != NONE)
+			older[n] = o;
+		else
+			newest = o;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Destroys all the cached native destinations and empties the cache.
+	 */
+	public void destroy() {
+		for (int entry = 0; entry < size; entry++) {
+			try {
+				destroyHandle(entry);
+			} catch (Throwable t) {
+				// Keep going with the other handles
+			}
+		}
+		Arrays.fill(table, 0);
+		size = 0;
+		newest = NONE;
+		oldest = NONE;
+	}
+
+}
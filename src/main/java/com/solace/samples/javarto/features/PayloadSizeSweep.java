@@ -0,0 +1,295 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The plan and the results of a payload size sweep: which sizes to run, how
+ * many messages per step, and the throughput and latency measured at each
+ * size, printed as a curve and exported for comparison.
+ *
+ * Sizes are given as a list, 16,1024,65536, or as a geometric range,
+ * 16-1048576 doubling or 16-1048576x4 growing by 4 at each step. Each step
+ * sends about the same number of bytes, so that small sizes get enough
+ * messages to be stable and large sizes do not take forever.
+ *
+ * A step is run for each variant, the buffer kind for instance, the first
+ * variant being the reference the others are compared to at the same size.
+ * The CPU time per message of a step can be added to it, giving the cost
+ * curve by size next to the throughput one.
+ */
+public class PayloadSizeSweep {
+
+	/** Bytes sent per step unless told otherwise */
+	public static final long DEFAULT_BYTES_PER_STEP = 256L * 1024 * 1024;
+
+	/** Fewest messages measured per step */
+	static final long MIN_MESSAGES_PER_STEP = 1000;
+
+	/** Messages sent before each step is measured, as a fraction of it */
+	static final double WARMUP_FRACTION = 0.1;
+
+	private final int[] sizes;
+
+	private final long bytesPerStep;
+
+	private final long maxMessagesPerStep;
+
+	private final List<String> variants = new ArrayList<String>();
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	private boolean withCpu = false;
+
+	/**
+	 * One size with one variant
+	 */
+	static final class Step {
+		final String variant;
+		final int size;
+		final long messages;
+		final long received;
+		final double sendRate;
+		final double receiveRate;
+		final double p50Us;
+		final double p99Us;
+		final double maxUs;
+		double publisherCpuUs = Double.NaN;
+		double processCpuUs = Double.NaN;
+
+		Step(String variant, int size, long messages, long received,
+				double sendRate, double receiveRate, LatencyHistogram latency) {
+			this.variant = variant;
+			this.size = size;
+			this.messages = messages;
+			this.received = received;
+			this.sendRate = sendRate;
+			this.receiveRate = receiveRate;
+			this.p50Us = latency.getValueAtPercentile(50.0) / 1000.0;
+			this.p99Us = latency.getValueAtPercentile(99.0) / 1000.0;
+			this.maxUs = latency.getMaxValue() / 1000.0;
+		}
+	}
+
+	/**
+	 * @param sizes
+	 *            payload sizes, in the order run
+	 * @param bytesPerStep
+	 *            payload bytes measured per step
+	 * @param maxMessagesPerStep
+	 *            most messages measured per step
+	 */
+	public PayloadSizeSweep(int[] sizes, long bytesPerStep,
+			long maxMessagesPerStep) {
+		if (sizes.length == 0)
+			throw new IllegalArgumentException("No size to sweep");
+		this.sizes = sizes.clone();
+		this.bytesPerStep = bytesPerStep;
+		this.maxMessagesPerStep = maxMessagesPerStep;
+	}
+
+	/**
+	 * @param spec
+	 *            a,b,c or min-max or min-maxxfactor
+	 */
+	public static int[] parseSizes(String spec) {
+		try {
+			if (spec.indexOf('-') > 0) {
+				String[] range = spec.split("-", 2);
+				int min = Integer.parseInt(range[0].trim());
+				String maxSpec = range[1].trim();
+				int factor = 2;
+				int x = maxSpec.indexOf('x');
+				if (x > 0) {
+					factor = Integer.parseInt(maxSpec.substring(x + 1));
+					maxSpec = maxSpec.substring(0, x);
+				}
+				int max = Integer.parseInt(maxSpec);
+				if (min < 1 || max < min || factor < 2)
+					throw new IllegalArgumentException();
+				List<Integer> sizes = new ArrayList<Integer>();
+				for (long size = min; size <= max; size *= factor) {
+					sizes.add((int) size);
+				}
+				if (sizes.get(sizes.size() - 1) != max)
+					sizes.add(max);
+				return toArray(sizes);
+			}
+			String[] list = spec.split(",");
+			int[] sizes = new int[list.length];
+			for (int i = 0; i < list.length; i++) {
+				sizes[i] = Integer.parseInt(list[i].trim());
+				if (sizes[i] < 1)
+					throw new IllegalArgumentException();
+			}
+			return sizes;
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Bad sizes [" + spec
+					+ "], expected a,b,c or min-max or min-maxxfactor");
+		}
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	public int[] getSizes() {
+		return sizes.clone();
+	}
+
+	public int getMinSize() {
+		int min = Integer.MAX_VALUE;
+		for (int size : sizes) {
+			min = Math.min(min, size);
+		}
+		return min;
+	}
+
+	public int getMaxSize() {
+		int max = 0;
+		for (int size : sizes) {
+			max = Math.max(max, size);
+		}
+		return max;
+	}
+
+	/**
+	 * @return the messages measured at this size
+	 */
+	public long messagesFor(int size) {
+		long messages = bytesPerStep / size;
+		return Math.max(Math.min(messages, maxMessagesPerStep),
+				Math.min(MIN_MESSAGES_PER_STEP, maxMessagesPerStep));
+	}
+
+	/**
+	 * @return the messages sent before measuring at this size
+	 */
+	public long warmupMessagesFor(int size) {
+		return Math.max((long) (messagesFor(size) * WARMUP_FRACTION), 1);
+	}
+
+	/**
+	 * Records a measured step
+	 *
+	 * @param sendNanos
+	 *            time to send the messages
+	 * @param receiveNanos
+	 *            time from the first send to the last message received
+	 * @param latency
+	 *            the latency of the step's messages only
+	 */
+	public void record(String variant, int size, long messages,
+			long received, long sendNanos, long receiveNanos,
+			LatencyHistogram latency) {
+		if (!variants.contains(variant))
+			variants.add(variant);
+		steps.add(new Step(variant, size, messages, received, messages
+				/ (sendNanos / 1e9), received / (receiveNanos / 1e9), latency));
+	}
+
+	/**
+	 * Adds the CPU microseconds per message to the step recorded last
+	 */
+	public void recordCpu(double publisherMicrosPerMessage,
+			double processMicrosPerMessage) {
+		Step step = steps.get(steps.size() - 1);
+		step.publisherCpuUs = publisherMicrosPerMessage;
+		step.processCpuUs = processMicrosPerMessage;
+		withCpu = true;
+	}
+
+	/**
+	 * Prints a row per size and variant, the other variants against the first
+	 */
+	public void printTable(String title) {
+		System.out.printf("%n%s%n", title);
+		System.out.printf("%9s %-8s %12s %10s %12s %10s %10s %10s %8s %10s",
+				"size", "variant", "tx msg/s", "tx MB/s", "rx msg/s",
+				"p50 us", "p99 us", "max us", "lost", "tx vs " + variants.get(0));
+		if (withCpu)
+			System.out.printf(" %12s %12s", "pub cpu us", "proc cpu us");
+		System.out.println();
+		for (Step step : steps) {
+			Step reference = find(variants.get(0), step.size);
+			String versus = (reference == null || reference == step) ? ""
+					: String.format(Locale.ROOT, "%+.1f%%", 100.0
+							* (step.sendRate - reference.sendRate)
+							/ reference.sendRate);
+			System.out.printf(
+					"%9d %-8s %12.0f %10.1f %12.0f %10.1f %10.1f %10.1f %8d %10s",
+					step.size, step.variant, step.sendRate, step.sendRate
+							* step.size / 1048576.0, step.receiveRate,
+					step.p50Us, step.p99Us, step.maxUs, step.messages
+							- step.received, versus);
+			if (withCpu)
+				System.out.printf(" %12.3f %12.3f", step.publisherCpuUs,
+						step.processCpuUs);
+			System.out.println();
+		}
+	}
+
+	private Step find(String variant, int size) {
+		for (Step step : steps) {
+			if (step.variant.equals(variant) && step.size == size)
+				return step;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the curve as a series, and variant_size_tx_rate,
+	 * variant_size_rx_rate and variant_size_p99_us metrics, named alike from
+	 * run to run so that runs with different settings compare size by size
+	 */
+	public void exportTo(BenchmarkResult result) {
+		List<String> columns = new ArrayList<String>();
+		columns.add("size");
+		columns.add("variant");
+		columns.add("tx_rate");
+		columns.add("rx_rate");
+		columns.add("p50_us");
+		columns.add("p99_us");
+		columns.add("max_us");
+		columns.add("lost");
+		if (withCpu) {
+			columns.add("publisher_cpu_us");
+			columns.add("process_cpu_us");
+		}
+		List<double[]> rows = new ArrayList<double[]>();
+		for (Step step : steps) {
+			double[] row = { step.size, variants.indexOf(step.variant),
+					step.sendRate, step.receiveRate, step.p50Us, step.p99Us,
+					step.maxUs, step.messages - step.received };
+			if (withCpu) {
+				row = Arrays.copyOf(row, row.length + 2);
+				row[row.length - 2] = step.publisherCpuUs;
+				row[row.length - 1] = step.processCpuUs;
+			}
+			rows.add(row);
+			String prefix = step.variant + "_" + step.size + "_";
+			result.putMetric(prefix + "tx_rate", step.sendRate);
+			result.putMetric(prefix + "rx_rate", step.receiveRate);
+			result.putMetric(prefix + "p99_us", step.p99Us);
+			if (withCpu)
+				result.putMetric(prefix + "cpu_per_msg_us", step.processCpuUs);
+		}
+		result.putSeries("sweep", columns, rows);
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < variants.size(); i++) {
+			names.append(i > 0 ? "," : "").append(variants.get(i));
+		}
+		result.putMetadata("sweep_variants", names.toString());
+	}
+
+}
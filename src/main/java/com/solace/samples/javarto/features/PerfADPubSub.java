@@ -6,6 +6,8 @@ package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -13,12 +15,14 @@ import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
 import com.solacesystems.solclientj.core.event.FlowEventCallback;
 import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.event.SessionEvent;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
 import com.solacesystems.solclientj.core.handle.FlowHandle;
 import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.MutableLong;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Destination;
 import com.solacesystems.solclientj.core.resource.Queue;
@@ -32,6 +36,38 @@ import com.solacesystems.solclientj.core.resource.Queue;
  * <li>Binding to a Queue (temporary or durable)
  * <li>Publishing to a Queue
  * <li>Acknowledgments of messages on callback.
+ * <li>Optionally (-rate), publishing at a fixed offered load with a
+ * {@link RateController}. Each message then carries its intended and actual
+ * send times, and the flow callback records latency against both, the
+ * intended one being corrected for coordinated omission.
+ * <li>Optionally (-window), capping the number of unacknowledged messages
+ * with a {@link GuaranteedPublishWindow} and measuring the publish to broker
+ * acknowledgement latency through correlation keys. With -ackTimeout, a
+ * {@link TimingWheel} gives up on messages left unacknowledged too long.
+ * <li>Optionally (-ackBatch), acknowledging received messages in batches with
+ * an {@link AckAccumulator} rather than one by one from the callback.
+ * <li>Optionally (-verify), verifying on the flow callback that every message
+ * came once and in order, from a sequence stamp in the payload or the API
+ * generated sequence number, with {@link ReceiveStats} reporting the receive
+ * rate, loss, duplicates and reordering per interval.
+ * <li>Optionally (-interval), an {@link IntervalReporter} time series of the
+ * send, receive and acknowledgement rates, window depth, latency percentiles,
+ * GC and memory.
+ * <li>Optionally (-export), the run metadata, rates, latency histograms and
+ * time series written out as JSON and CSV in a {@link BenchmarkResult}, to
+ * compare runs with {@link BenchmarkCompare}.
+ * <li>Optionally (-sweep), a {@link PayloadSizeSweep} over payload sizes on
+ * the one session and flow, heap and direct ByteBuffers at each size, giving
+ * the throughput and latency curve by size.
+ * <li>Optionally (-warmup, -jitwait), a {@link WarmupPhase} of messages sent
+ * the same way before measuring, by count or duration and until the JIT
+ * settles, left out of the rates and latency.
+ * <li>Optionally (-alloc), an {@link AllocationMeter} of the bytes allocated
+ * per message by the publisher and flow callback threads once warmed up,
+ * failing the run above a budget.
+ * <li>Optionally (-cpu), a {@link CpuMeter} of the CPU time per message of
+ * the publisher and flow callback threads and of the whole process, reported
+ * next to the rate, and by size with -sweep.
  * </ul>
  * 
  * For the case of a durable queue, this sample requires that a durable Queue
@@ -53,6 +89,42 @@ public class PerfADPubSub extends AbstractSample {
 	private int numOfMessages = 1000000;
 	private int msgSize = 100;
 	private ByteBuffer content;
+	private double targetRate = 0;
+	private int windowSize = 0;
+	// 0 to wait for every acknowledgement
+	private long ackTimeoutMs = 0;
+	private TimingWheel timingWheel;
+	private int ackBatchSize = 0;
+	private long ackMaxDelayMs = 10;
+	private ReceiveStats receiveStats;
+	private boolean verifyFromSequenceNumber = false;
+	// 0 for no time series
+	private long reportIntervalMs = 0;
+	private PayloadSizeSweep sweep;
+	private WarmupPhase warmup;
+	private AllocationMeter allocationMeter;
+	private CpuMeter cpuMeter;
+
+	// Over the measured run with -alloc and -cpu
+	private MeasurementProbes probes;
+
+	// Sends the warm-up, the measured messages and the sweep
+	private GuaranteedPublisher publisher;
+
+	// Intended send time then actual send time, at the start of the payload
+	static final int LATENCY_STAMPS_SIZE = 16;
+
+	// The sequence stamp follows the latency stamps
+	static final int SEQUENCE_STAMP_OFFSET = LATENCY_STAMPS_SIZE;
+
+	// Messages sent between warm-up checks
+	static final int WARMUP_CHUNK = 1000;
+
+	// Most time a sweep step waits with no message coming back
+	static final long SWEEP_IDLE_TIMEOUT_NANOS = 10000L * 1000 * 1000;
+
+	// Ticks per ack timeout, and buckets of the timing wheel
+	static final int ACK_TIMEOUT_TICKS = 128;
 
 	private static boolean quit = false;
 
@@ -67,6 +139,43 @@ public class PerfADPubSub extends AbstractSample {
 		System.out
 				.println("\t -s messagesize: message size to publish [default "
 						+ msgSize + "] \n");
+		System.out
+				.println("\t -rate msgPerSecond: publish at a fixed rate and measure latency, message size must be at least "
+						+ LATENCY_STAMPS_SIZE + " [default: as fast as possible] \n");
+		System.out
+				.println("\t -window size: maximum unacknowledged messages, measures publish to ack latency [default: no window] \n");
+		System.out
+				.println("\t -ackTimeout ms: with -window, give up on a message unacknowledged for this long [default: wait] \n");
+		System.out
+				.println("\t -ackBatch size: acknowledge received messages in batches of this size [default: ack each message] \n");
+		System.out
+				.println("\t -ackDelay ms: longest time a received message waits for its batched ack [default "
+						+ ackMaxDelayMs + "] \n");
+		System.out
+				.println("\t -verify [payload|seqnum]: verify loss, duplicates and ordering on the flow, from a stamp in the payload (message size must be at least "
+						+ (SEQUENCE_STAMP_OFFSET + ReceiveStats.STAMP_SIZE)
+						+ ") or the generated sequence number [default: payload] \n");
+		System.out
+				.println("\t -interval seconds: print rates, latency, GC and memory every interval [default: every second with -verify, otherwise none] \n");
+		System.out
+				.println("\t -sweep sizes: measure each payload size, as a,b,c or min-max[xfactor] (e.g. 16-1048576), heap and direct ByteBuffers [default: none] \n");
+		System.out
+				.println("\t -sweepmb MB: payload megabytes measured per sweep step, at most -n messages [default: "
+						+ PayloadSizeSweep.DEFAULT_BYTES_PER_STEP / 1048576
+						+ "] \n");
+		System.out
+				.println("\t -warmup messages|seconds s|ms ms: send this many messages, or for this long, before measuring [default: none] \n");
+		System.out
+				.println("\t -jitwait [maxSeconds]: also warm up until the JIT compilation time settles, for at most maxSeconds [default: "
+						+ WarmupPhase.DEFAULT_MAX_DURATION_MS / 1000 + "] \n");
+		System.out
+				.println("\t -alloc [bytes]: measure the bytes allocated per message once warmed up, fail above this budget [default: "
+						+ AllocationMeter.DEFAULT_BUDGET_BYTES_PER_MESSAGE
+						+ "] \n");
+		System.out
+				.println("\t -cpu: measure the CPU time per message of the publisher, the callback thread and the process [default: false] \n");
+		System.out
+				.println("\t -export basename: write the results to basename.json and basename.csv, compare runs with BenchmarkCompare [default: none] \n");
 
 		finish(1);
 	}
@@ -95,6 +204,7 @@ public class PerfADPubSub extends AbstractSample {
 					isDurable = Boolean.parseBoolean(isDurableBoolStr);
 				} catch (Exception e) {
 					printUsage(config instanceof SecureSessionConfiguration);
+					return;
 				}
 			}
 
@@ -107,9 +217,166 @@ public class PerfADPubSub extends AbstractSample {
 				if (msgSize < 0) {
 					System.out.println("messageSize should positive");
 					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+			}
+
+			if (cmdLineArgs.containsKey("-rate")) {
+				targetRate = Double.parseDouble(cmdLineArgs.get("-rate"));
+				if (targetRate <= 0 || msgSize < LATENCY_STAMPS_SIZE) {
+					System.out.println("-rate should be positive, with a messageSize of at least "
+							+ LATENCY_STAMPS_SIZE);
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+			}
+			boolean fixedRate = targetRate > 0;
+
+			GuaranteedPublishWindow publishWindow = null;
+			if (cmdLineArgs.containsKey("-window")) {
+				windowSize = Integer.parseInt(cmdLineArgs.get("-window"));
+				if (windowSize < 1) {
+					System.out.println("window size should be positive");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				publishWindow = new GuaranteedPublishWindow(windowSize);
+			}
+			if (cmdLineArgs.containsKey("-ackTimeout")) {
+				ackTimeoutMs = Long.parseLong(cmdLineArgs.get("-ackTimeout"));
+				if (ackTimeoutMs < 1 || publishWindow == null) {
+					System.out
+							.println("ack timeout should be positive, and needs a window");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				// The wheel covers the timeout in about a lap
+				timingWheel = new TimingWheel(windowSize, Math.max(
+						ackTimeoutMs / ACK_TIMEOUT_TICKS, 1),
+						TimeUnit.MILLISECONDS, ACK_TIMEOUT_TICKS).start();
+				publishWindow.setAckTimeout(timingWheel, ackTimeoutMs,
+						TimeUnit.MILLISECONDS);
+			}
+
+			if (cmdLineArgs.containsKey("-ackBatch")) {
+				ackBatchSize = Integer.parseInt(cmdLineArgs.get("-ackBatch"));
+				if (ackBatchSize < 1) {
+					System.out.println("ack batch size should be positive");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+			}
+			if (cmdLineArgs.containsKey("-ackDelay")) {
+				ackMaxDelayMs = Long.parseLong(cmdLineArgs.get("-ackDelay"));
+				if (ackMaxDelayMs < 1) {
+					System.out.println("ack delay should be positive");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+			}
+
+			if (cmdLineArgs.containsKey("-verify")) {
+				String source = cmdLineArgs.get("-verify");
+				if ("seqnum".equalsIgnoreCase(source)) {
+					verifyFromSequenceNumber = true;
+				} else if ((source.length() > 0 && !"payload"
+						.equalsIgnoreCase(source))
+						|| msgSize < SEQUENCE_STAMP_OFFSET
+								+ ReceiveStats.STAMP_SIZE) {
+					System.out.println("-verify should be payload or seqnum, payload with a messageSize of at least "
+							+ (SEQUENCE_STAMP_OFFSET + ReceiveStats.STAMP_SIZE));
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				// Generated sequence numbers start at 1
+				receiveStats = new ReceiveStats(1,
+						verifyFromSequenceNumber ? 1 : 0);
+			}
+			if (cmdLineArgs.containsKey("-interval")) {
+				reportIntervalMs = Long.parseLong(cmdLineArgs
+						.get("-interval")) * 1000;
+				if (reportIntervalMs < 1000) {
+					System.out.println("interval should be positive");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+			} else if (receiveStats != null) {
+				reportIntervalMs = 1000;
+			}
+			boolean stampSequence = receiveStats != null
+					&& !verifyFromSequenceNumber;
+
+			if (cmdLineArgs.containsKey("-sweep")) {
+				long bytesPerStep = cmdLineArgs.containsKey("-sweepmb") ? Long
+						.parseLong(cmdLineArgs.get("-sweepmb")) * 1048576
+						: PayloadSizeSweep.DEFAULT_BYTES_PER_STEP;
+				sweep = new PayloadSizeSweep(
+						PayloadSizeSweep.parseSizes(cmdLineArgs.get("-sweep")),
+						bytesPerStep, numOfMessages);
+				if (fixedRate || receiveStats != null
+						|| sweep.getMinSize() < LATENCY_STAMPS_SIZE) {
+					System.out.println("-sweep can not be combined with -rate or -verify, and needs message sizes of at least "
+							+ LATENCY_STAMPS_SIZE);
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
 				}
 			}
 
+			if (cmdLineArgs.containsKey("-warmup")
+					|| cmdLineArgs.containsKey("-jitwait")) {
+				if (sweep != null) {
+					System.out.println("-sweep warms up each size, it can not be combined with -warmup or -jitwait");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				String maxSeconds = cmdLineArgs.get("-jitwait");
+				warmup = new WarmupPhase(cmdLineArgs.containsKey("-warmup") ? cmdLineArgs
+						.get("-warmup") : "", cmdLineArgs.containsKey("-jitwait"),
+						(maxSeconds == null || maxSeconds.length() == 0) ? WarmupPhase.DEFAULT_MAX_DURATION_MS
+								: Long.parseLong(maxSeconds) * 1000);
+			}
+
+			if (cmdLineArgs.containsKey("-alloc")) {
+				if (sweep != null) {
+					System.out.println("-sweep can not be combined with -alloc");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				String budget = cmdLineArgs.get("-alloc");
+				allocationMeter = new AllocationMeter(budget.length() == 0 ? AllocationMeter.DEFAULT_BUDGET_BYTES_PER_MESSAGE
+						: Double.parseDouble(budget));
+			}
+			if (cmdLineArgs.containsKey("-cpu"))
+				cpuMeter = new CpuMeter();
+			probes = new MeasurementProbes(allocationMeter, cpuMeter);
+			// Per message costs in the steady state only
+			if ((allocationMeter != null || cpuMeter != null)
+					&& warmup == null && sweep == null)
+				warmup = new WarmupPhase(
+						Integer.toString(WarmupPhase.DEFAULT_MESSAGES), false,
+						WarmupPhase.DEFAULT_MAX_DURATION_MS);
+
+			BenchmarkResult result = new BenchmarkResult(getClass()
+					.getSimpleName(), args);
+			result.putMetadata("message_size", sweep != null ? cmdLineArgs
+					.get("-sweep") : Integer.toString(msgSize));
+			result.putMetadata("messages", Integer.toString(numOfMessages));
+			result.putMetadata("durable", Boolean.toString(isDurable));
+			result.putMetadata("compression",
+					Boolean.toString(config.isCompression()));
+			result.putMetadata("target_rate", Double.toString(targetRate));
+			result.putMetadata("window", Integer.toString(windowSize));
+			result.putMetadata("ack_batch", Integer.toString(ackBatchSize));
+			if (cmdLineArgs.containsKey("-export")) {
+				String basename = cmdLineArgs.get("-export");
+				if (basename.length() == 0) {
+					System.out.println("-export should be followed by a file basename");
+					printUsage(config instanceof SecureSessionConfiguration);
+					return;
+				}
+				exportResult(result, basename);
+			}
+
 			content = ByteBuffer.allocateDirect(msgSize);
 
 			// Init
@@ -127,8 +394,15 @@ public class PerfADPubSub extends AbstractSample {
 
 			// Session
 			print(" Creating a session ...");
-			String[] sessionProps = getSessionProps(config, 0);
-			CustomEventsAdapter sessionCustomEventsAdapter = new CustomEventsAdapter();
+			int spareRoom = verifyFromSequenceNumber ? 2 : 0;
+			String[] sessionProps = getSessionProps(config, spareRoom);
+			if (verifyFromSequenceNumber) {
+				int sessionPropsIndex = sessionProps.length - spareRoom;
+				sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.GENERATE_SEQUENCE_NUMBER;
+				sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+			}
+			CustomEventsAdapter sessionCustomEventsAdapter = new CustomEventsAdapter(
+					publishWindow);
 
 			rc = contextHandle.createSessionForHandle(sessionHandle,
 					sessionProps, sessionCustomEventsAdapter,
@@ -165,8 +439,30 @@ public class PerfADPubSub extends AbstractSample {
 			flowProperties[flowProps++] = SolEnum.AckMode.CLIENT;
 
 			CustomFlowEventCallback flowEventCallback = new CustomFlowEventCallback();
-			FlowMessageAckCallback flowMessageAckCallback = new FlowMessageAckCallback(
-					numOfMessages);
+			FlowMessageAckCallback flowMessageAckCallback;
+			if (sweep != null)
+				// Runs until the sweep is done, latency of every size
+				flowMessageAckCallback = new FlowMessageAckCallback(
+						Integer.MAX_VALUE, sweep.getMaxSize());
+			else
+				flowMessageAckCallback = fixedRate ? new FlowMessageAckCallback(
+						numOfMessages, msgSize) : new FlowMessageAckCallback(
+						numOfMessages);
+			// The count to quit at is known once warmed up
+			if (warmup != null)
+				flowMessageAckCallback.expect(Integer.MAX_VALUE);
+
+			AckAccumulator ackAccumulator = null;
+			if (ackBatchSize > 0) {
+				// Trades up to a batch of redeliveries, should the Flow go
+				// down, for fewer calls on the message callback path
+				ackAccumulator = new AckAccumulator(flowHandle, ackBatchSize,
+						ackMaxDelayMs).start();
+				flowMessageAckCallback.setAckAccumulator(ackAccumulator);
+			}
+			if (receiveStats != null)
+				flowMessageAckCallback.setReceiveStats(receiveStats,
+						verifyFromSequenceNumber, msgSize);
 
 			Queue queue = null;
 			if (isDurable) {
@@ -220,36 +516,75 @@ public class PerfADPubSub extends AbstractSample {
 								+ content.capacity() + "]");
 			}
 
-			long startTime = System.currentTimeMillis();
-
-			// Send them as fast as possible
-			for (int i = 0; i < numOfMessages; i++) {
-
-				// Fill some message content
-				if (msgSize > 0) {
+			RateController rateController = null;
+			if (fixedRate) {
+				rateController = new RateController(targetRate);
+				print("Fixed rate of [" + targetRate
+						+ "] msg/second, spinning for the last ["
+						+ rateController.getSpinThresholdNanos()
+						+ "] ns of each wait");
+				rateController.start();
+			}
 
-					content.clear();
+			publisher = new GuaranteedPublisher(sessionHandle,
+					txMessageHandle, content, msgSize, publishWindow);
+			if (fixedRate)
+				publisher.atFixedRate(rateController);
+			if (stampSequence)
+				publisher.stampSequence();
+
+			// Warm-up, through the same code as the measured messages
+			int warmupSent = 0;
+			if (warmup != null) {
+				System.out.printf("%nWarming up ...%n");
+				warmup.begin();
+				while (!warmup.isDone(warmupSent)) {
+					int chunk = warmup.nextChunk(warmupSent, WARMUP_CHUNK);
+					publisher.publish(chunk);
+					warmupSent += chunk;
+				}
+				warmup.printSummary(warmupSent);
+				waitForWarmup(flowMessageAckCallback, publishWindow, warmupSent);
+				warmup.markHistograms(flowMessageAckCallback.getIntendedLatency(),
+						flowMessageAckCallback.getActualLatency(),
+						publishWindow != null ? publishWindow.getAckLatency()
+								: null);
+				flowMessageAckCallback.expect(warmupSent + numOfMessages);
+				// The schedule starts over, the drain left it behind
+				if (fixedRate)
+					rateController.start();
+				result.putMetric("warmup_messages", warmupSent);
+				result.putMetadata("warmup_jit_settled",
+						Boolean.toString(warmup.isJitSettled()));
+			}
 
-					// Fill the byte buffer, using int ( 4 bytes )
-					for (int m = 0; m < msgSize / 4; m++) {
-						content.putInt(m + i);
-					}
+			IntervalReporter intervalReporter = null;
+			if (reportIntervalMs > 0) {
+				intervalReporter = newIntervalReporter(flowMessageAckCallback,
+						publishWindow, ackAccumulator);
+				System.out.println();
+				intervalReporter.start();
+			}
 
-					// Top up with bytes
-					int remainder = msgSize % 4;
-					for (byte b = 0; b < remainder; b++) {
-						content.put(b);
-					}
+			if (sweep != null) {
+				runSweep(config, flowMessageAckCallback, result);
+				if (intervalReporter != null) {
+					intervalReporter.stop();
+					result.putSeries("interval", intervalReporter);
+				}
+				if (ackAccumulator != null)
+					ackAccumulator.close();
+				return;
+			}
 
-					content.flip();
+			beginProbes(flowMessageAckCallback);
 
-					txMessageHandle.setBinaryAttachment(content);
+			long startTime = System.currentTimeMillis();
 
-				}
+			// Send them as fast as possible, or at the fixed rate
+			publisher.publish(numOfMessages);
 
-				rc = sessionHandle.send(txMessageHandle);
-				// Count, and can limit rate...
-			}
+			probes.endPublisher();
 
 			long elapsedMs = System.currentTimeMillis() - startTime;
 			double txRate = (double) numOfMessages / (double) elapsedMs;
@@ -257,6 +592,7 @@ public class PerfADPubSub extends AbstractSample {
 			System.out.printf(
 					"%nSent %d messages in %f seconds = %f msg/second%n",
 					numOfMessages, elapsedMs / 1000.0, txRate * 1000);
+			result.putMetric("tx_rate", txRate * 1000);
 
 			// Register a shutdown hook
 			Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -277,21 +613,246 @@ public class PerfADPubSub extends AbstractSample {
 
 			print("Quitting time");
 
+			probes.end();
+			reportProbes(result, txRate * 1000);
+
+			if (intervalReporter != null) {
+				intervalReporter.stop();
+				result.putSeries("interval", intervalReporter);
+			}
+			result.putMetric("received",
+					flowMessageAckCallback.getMessageCount() - warmupSent);
+
+			if (receiveStats != null) {
+				receiveStats.printSummary("Receive verification",
+						warmupSent + numOfMessages);
+				result.putMetric("lost", warmupSent + numOfMessages
+						- receiveStats.getUniqueCount());
+				result.putMetric("duplicates",
+						receiveStats.getDuplicateCount());
+				result.putMetric("reordered", receiveStats.getReorderedCount());
+			}
+
 			System.out.println();
 
-			if (flowMessageAckCallback.getMessageCount() != numOfMessages) {
-				throw new IllegalStateException(numOfMessages
+			if (flowMessageAckCallback.getMessageCount() != warmupSent
+					+ numOfMessages) {
+				throw new IllegalStateException((warmupSent + numOfMessages)
 						+ " messages were expected, got ["
 						+ flowMessageAckCallback.getMessageCount()
 						+ "] instead");
 			} else
 				print("Test Passed");
 
+			if (ackAccumulator != null) {
+				ackAccumulator.close();
+				System.out.printf(
+						"%nBatched acks of %d: %d acknowledged, %d errors, %d full batch flushes, %d timer flushes%n",
+						ackBatchSize, ackAccumulator.getAcknowledgedCount(),
+						ackAccumulator.getErrorCount(),
+						ackAccumulator.getBatchFlushCount(),
+						ackAccumulator.getTimerFlushCount());
+			}
+
+			if (publishWindow != null)
+				reportWindow(publishWindow, result);
+
+			if (fixedRate)
+				reportFixedRate(flowMessageAckCallback, result);
+
 		} catch (Throwable t) {
 			error("An error has occurred " + t.getMessage(), t);
 		}
 	}
 
+	/**
+	 * Waits a while for the last acknowledgements, then prints the window
+	 * counters and the publish to acknowledgement latency, and records them
+	 */
+	private void reportWindow(GuaranteedPublishWindow publishWindow,
+			BenchmarkResult result) {
+		if (!publishWindow.awaitEmpty(10000))
+			print("Timed out with [" + publishWindow.getInFlight()
+					+ "] messages still unacknowledged");
+		System.out.printf(
+				"%nWindow of %d: %d acknowledged, %d rejected, %d timed out, %d unknown acknowledgements%n",
+				windowSize, publishWindow.getAcknowledgedCount()
+						- publishWindow.getTimedOutCount(),
+				publishWindow.getRejectedCount(),
+				publishWindow.getTimedOutCount(),
+				publishWindow.getUnknownAckCount());
+		LatencyHistogram ackLatency = measuredPart(publishWindow
+				.getAckLatency());
+		ackLatency.printPercentiles("Publish to acknowledgement latency");
+		result.putMetric("rejected", publishWindow.getRejectedCount());
+		if (timingWheel != null) {
+			result.putMetric("ack_timed_out",
+					publishWindow.getTimedOutCount());
+			result.putMetric("ack_untimed",
+					publishWindow.getUntimedCount());
+			if (publishWindow.getUntimedCount() > 0)
+				print(publishWindow.getUntimedCount()
+						+ " messages had no ack timeout, the timing wheel being full");
+		}
+		result.putHistogram("ack", ackLatency);
+	}
+
+	/**
+	 * Prints the latency from the intended and from the actual send times,
+	 * and records them
+	 */
+	private void reportFixedRate(
+			FlowMessageAckCallback flowMessageAckCallback,
+			BenchmarkResult result) {
+		LatencyHistogram intendedLatency = measuredPart(flowMessageAckCallback
+				.getIntendedLatency());
+		LatencyHistogram actualLatency = measuredPart(flowMessageAckCallback
+				.getActualLatency());
+		intendedLatency
+				.printPercentiles("Latency from intended send time (corrected)");
+		actualLatency
+				.printPercentiles("Latency from actual send time (uncorrected)");
+		result.putHistogram("intended", intendedLatency);
+		result.putHistogram("actual", actualLatency);
+	}
+
+	/**
+	 * Waits for the warm-up messages to be received and acknowledged, so that
+	 * the histograms hold all of them when marked
+	 */
+	private void waitForWarmup(FlowMessageAckCallback flowMessageAckCallback,
+			GuaranteedPublishWindow publishWindow, int warmupSent) {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (flowMessageAckCallback.getMessageCount() < warmupSent
+				&& System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (publishWindow != null)
+			publishWindow.awaitEmpty(10000);
+		print("Received [" + flowMessageAckCallback.getMessageCount()
+				+ "] of [" + warmupSent + "] warm-up messages");
+	}
+
+	/**
+	 * Begins the allocation and CPU probes of the measured run, this thread
+	 * being the publisher
+	 */
+	private void beginProbes(
+			final FlowMessageAckCallback flowMessageAckCallback) {
+		probes.begin(new IntervalReporter.Counter() {
+			public long get() {
+				return publisher.getSentCount();
+			}
+		}, new IntervalReporter.Counter() {
+			public long get() {
+				return flowMessageAckCallback.getMessageCount();
+			}
+		}, flowMessageAckCallback.getThreadId(), true);
+	}
+
+	/**
+	 * Prints the CPU and allocation per message, the run fails above the
+	 * allocation budget
+	 */
+	private void reportProbes(BenchmarkResult result, double txRate) {
+		if (!probes.report(result, txRate))
+			fail(probes.getBudgetExceededMessage());
+	}
+
+	/**
+	 * @return the values recorded after the warm-up
+	 */
+	private LatencyHistogram measuredPart(LatencyHistogram histogram) {
+		return warmup == null ? histogram : warmup.measuredPart(histogram);
+	}
+
+	/**
+	 * Runs the sweep on the connected session and flow
+	 */
+	private void runSweep(SessionConfiguration config,
+			final FlowMessageAckCallback flowMessageAckCallback,
+			BenchmarkResult result) {
+		SweepRunner sweepRunner = new SweepRunner(sweep, cpuMeter,
+				new IntervalReporter.Counter() {
+					public long get() {
+						return flowMessageAckCallback.getMessageCount();
+					}
+				}, flowMessageAckCallback.getActualLatency(),
+				SWEEP_IDLE_TIMEOUT_NANOS);
+		sweepRunner.run(config.isCompression() ? "on" : "off", publisher,
+				result);
+	}
+
+	/**
+	 * The time series of the counters the publisher, the window and the flow
+	 * callback keep anyway
+	 */
+	private IntervalReporter newIntervalReporter(
+			final FlowMessageAckCallback flowMessageAckCallback,
+			final GuaranteedPublishWindow publishWindow,
+			final AckAccumulator ackAccumulator) {
+		IntervalReporter intervalReporter = new IntervalReporter(
+				reportIntervalMs);
+		intervalReporter.addRate("tx", new IntervalReporter.Counter() {
+			public long get() {
+				return publisher.getSentCount();
+			}
+		});
+		intervalReporter.addRate("rx", new IntervalReporter.Counter() {
+			public long get() {
+				return flowMessageAckCallback.getMessageCount();
+			}
+		});
+		if (publishWindow != null) {
+			intervalReporter.addRate("acked", new IntervalReporter.Counter() {
+				public long get() {
+					return publishWindow.getAcknowledgedCount();
+				}
+			});
+			intervalReporter.addGauge("window", new IntervalReporter.Counter() {
+				public long get() {
+					return publishWindow.getInFlight();
+				}
+			});
+		}
+		if (ackAccumulator != null) {
+			intervalReporter.addGauge("ackPending", new IntervalReporter.Counter() {
+				public long get() {
+					return ackAccumulator.getPendingCount();
+				}
+			});
+		}
+		if (receiveStats != null) {
+			intervalReporter.addGauge("missing", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getMissingCount();
+				}
+			});
+			intervalReporter.addDelta("dup", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getDuplicateCount();
+				}
+			});
+			intervalReporter.addDelta("reordered", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getReorderedCount();
+				}
+			});
+		}
+		// Each recorded before the counter above it is written
+		if (publishWindow != null)
+			intervalReporter.addLatency("ack", publishWindow.getAckLatency());
+		if (flowMessageAckCallback.getIntendedLatency() != null)
+			intervalReporter.addLatency("lat",
+					flowMessageAckCallback.getIntendedLatency());
+		return intervalReporter;
+	}
+
 	/**
 	 * Invoked when the sample finishes
 	 */
@@ -301,6 +862,9 @@ public class PerfADPubSub extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
+		if (timingWheel != null)
+			timingWheel.stop();
+
 		finish_DestroyHandle(flowHandle, "flowHandle");
 
 		finish_DestroyHandle(txMessageHandle, "messageHandle");
@@ -317,23 +881,79 @@ public class PerfADPubSub extends AbstractSample {
 
 	public static class FlowMessageAckCallback implements MessageCallback {
 
-		int expectedMax;
+		// Read on every message, set by the publisher once warmed up
+		private volatile int expectedMax;
+
+		// Single writer, the ordered write of MESSAGE_COUNT publishes the
+		// recorded latency
+		volatile int messageCount = 0;
+
+		private static final AtomicIntegerFieldUpdater<FlowMessageAckCallback> MESSAGE_COUNT = AtomicIntegerFieldUpdater
+				.newUpdater(FlowMessageAckCallback.class, "messageCount");
 
-		int messageCount = 0;
+		// The context thread, once a message came
+		private volatile long threadId = 0;
 
 		private int rc;
 
+		// Only used on fixed rate runs, touched from the context thread
+		private ByteBuffer rxContent;
+		private final LatencyHistogram intendedLatency;
+		private final LatencyHistogram actualLatency;
+
+		// null to acknowledge each message on the callback
+		private AckAccumulator ackAccumulator;
+
+		// null unless verifying, the sequence number only when generated
+		private ReceiveStats receiveStats;
+		private MutableLong sequenceNumber;
+
 		FlowMessageAckCallback(int max) {
 			expectedMax = max;
+			rxContent = null;
+			intendedLatency = null;
+			actualLatency = null;
+		}
+
+		/**
+		 * Also records the latency from the send time stamps carried in the
+		 * first {@link PerfADPubSub#LATENCY_STAMPS_SIZE} bytes
+		 */
+		FlowMessageAckCallback(int max, int msgSize) {
+			expectedMax = max;
+			rxContent = ByteBuffer.allocateDirect(msgSize);
+			intendedLatency = new LatencyHistogram();
+			actualLatency = new LatencyHistogram();
 		}
 
 		@Override
 		public void onMessage(Handle handle) {
 
-			messageCount++;
+			if (rxContent != null) {
+				long now = System.nanoTime();
+				rxContent.clear();
+				((MessageSupport) handle).getRxMessage().getBinaryAttachment(
+						rxContent);
+				if (intendedLatency != null) {
+					intendedLatency.record(now - rxContent.getLong(0));
+					actualLatency.record(now - rxContent.getLong(8));
+				}
+			}
+
+			if (receiveStats != null)
+				recordSequence(((MessageSupport) handle).getRxMessage());
 
-			rc = ((FlowHandle) handle).ack(((MessageSupport) handle)
-					.getRxMessage());
+			if (threadId == 0)
+				threadId = Thread.currentThread().getId();
+			MESSAGE_COUNT.lazySet(this, messageCount + 1);
+
+			if (ackAccumulator != null) {
+				ackAccumulator.add(((MessageSupport) handle).getRxMessage()
+						.getGuaranteedMessageId());
+				rc = SolEnum.ReturnCode.OK;
+			} else
+				rc = ((FlowHandle) handle).ack(((MessageSupport) handle)
+						.getRxMessage());
 
 			if (rc != SolEnum.ReturnCode.OK)
 				return; // Ignore the errors for now...
@@ -348,13 +968,81 @@ public class PerfADPubSub extends AbstractSample {
 			return messageCount;
 		}
 
+		long getThreadId() {
+			return threadId;
+		}
+
+		/**
+		 * Sets the message count to quit at
+		 */
+		void expect(int max) {
+			expectedMax = max;
+		}
+
+		private void recordSequence(MessageHandle rxMessage) {
+			if (sequenceNumber == null) {
+				receiveStats.recordStamp(rxContent
+						.getLong(SEQUENCE_STAMP_OFFSET));
+			} else if (rxMessage.getSequenceNumber(sequenceNumber) == SolEnum.ReturnCode.OK) {
+				receiveStats.record(0, sequenceNumber.getValue());
+			} else {
+				receiveStats.recordUnsequenced();
+			}
+		}
+
+		public void setAckAccumulator(AckAccumulator ackAccumulator) {
+			this.ackAccumulator = ackAccumulator;
+		}
+
+		/**
+		 * Records the sequence of each message received, read from the
+		 * generated sequence number or from the payload stamp
+		 */
+		public void setReceiveStats(ReceiveStats receiveStats,
+				boolean fromSequenceNumber, int msgSize) {
+			this.receiveStats = receiveStats;
+			if (fromSequenceNumber)
+				sequenceNumber = new MutableLong();
+			else if (rxContent == null)
+				rxContent = ByteBuffer.allocateDirect(msgSize);
+		}
+
+		public LatencyHistogram getIntendedLatency() {
+			return intendedLatency;
+		}
+
+		public LatencyHistogram getActualLatency() {
+			return actualLatency;
+		}
+
 	}
 
 	static class CustomEventsAdapter implements MessageCallback,
 			SessionEventCallback {
 
+		// null unless publishing with a window
+		private final GuaranteedPublishWindow publishWindow;
+
+		CustomEventsAdapter(GuaranteedPublishWindow publishWindow) {
+			this.publishWindow = publishWindow;
+		}
+
 		@Override
 		public void onEvent(SessionHandle sessionHandle) {
+			if (publishWindow == null)
+				return;
+
+			SessionEvent se = sessionHandle.getSessionEvent();
+			switch (se.getSessionEventCode()) {
+			case SolEnum.SessionEventCode.ACKNOWLEDGEMENT:
+				publishWindow.acknowledge(se.getCorrelationKey(), true);
+				break;
+			case SolEnum.SessionEventCode.REJECTED_MSG_ERROR:
+				publishWindow.acknowledge(se.getCorrelationKey(), false);
+				break;
+			default:
+				break;
+			}
 		}
 
 		@Override
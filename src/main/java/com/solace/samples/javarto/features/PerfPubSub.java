@@ -6,6 +6,7 @@ package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -16,6 +17,8 @@ import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
 import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.MutableLong;
 import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Topic;
@@ -29,6 +32,39 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * <li>Subscribing to a topic for direct messages.
  * <li>Publishing direct messages to a topic.
  * <li>Session Event are ignored, Message Events ignored.
+ * <li>Optionally (-lat), measuring end-to-end latency: a System.nanoTime()
+ * stamp is written into the binary attachment and read back on the
+ * subscriber callback into a preallocated {@link LatencyHistogram}.
+ * <li>Optionally (-threads N), publisher scaling: N independent context,
+ * session, message and destination sets each driven by their own publisher
+ * thread, compared against a single-thread baseline.
+ * <li>Optionally (-workers N), received messages are copied into a
+ * {@link MessageHandoffRing} on the context thread and processed by N
+ * worker threads, reporting the handoff latency, see {@link HandoffWorkers}.
+ * <li>Optionally (-topics N), publishing across a hierarchy of N topics
+ * described by a {@link TopicWorkload}, picked uniformly, round-robin or with
+ * a Zipf skew, through a {@link NativeDestinationCache}.
+ * <li>Optionally (-verify), verifying on the subscriber that every message
+ * came back once and in order, from a sequence stamp in the payload or the
+ * API generated sequence number, with {@link ReceiveStats} reporting the
+ * receive rate, loss, duplicates and reordering per interval.
+ * <li>Optionally (-interval), an {@link IntervalReporter} time series of the
+ * send and receive rates, handoff backlog, latency percentiles, GC and memory.
+ * <li>Optionally (-export), the run metadata, rates, latency histograms and
+ * time series written out as JSON and CSV in a {@link BenchmarkResult}, to
+ * compare runs with {@link BenchmarkCompare}.
+ * <li>Optionally (-sweep), a {@link PayloadSizeSweep} over payload sizes on
+ * the one connected session, heap and direct ByteBuffers at each size, giving
+ * the throughput and latency curve by size.
+ * <li>Optionally (-warmup, -jitwait), a {@link WarmupPhase} of messages sent
+ * the same way before measuring, by count or duration and until the JIT
+ * settles, left out of the rates and latency.
+ * <li>Optionally (-alloc), an {@link AllocationMeter} of the bytes allocated
+ * per message by the publisher and callback threads once warmed up, failing
+ * the run above a budget.
+ * <li>Optionally (-cpu), a {@link CpuMeter} of the CPU time per message of
+ * the publisher and callback threads and of the whole process, reported next
+ * to the rate, and by size with -sweep.
  * <ul>
  * 
  */
@@ -48,6 +84,46 @@ public class PerfPubSub extends AbstractSample {
 	private int msgSize = 100;
 	private ByteBuffer byteBuffer;
 	boolean useDirectByteBuffer = false;
+	boolean measureLatency = false;
+	private int numOfThreads = 1;
+	private int numOfWorkers = 0;
+	private MessageHandoffRing.WaitStrategy waitStrategy = MessageHandoffRing.WaitStrategy.PARK;
+	private TopicWorkload workload;
+	// null unless publishing from -threads
+	private PublisherThreads publisherThreads;
+	private ReceiveStats receiveStats;
+	private boolean verifyFromSequenceNumber = false;
+	private boolean stampSequence = false;
+	// 0 for no time series
+	private long reportIntervalMs = 0;
+	private IntervalReporter intervalReporter;
+	private PayloadSizeSweep sweep;
+	private WarmupPhase warmup;
+	private AllocationMeter allocationMeter;
+	private CpuMeter cpuMeter;
+
+	// Over the measured run with -alloc and -cpu
+	private MeasurementProbes probes;
+
+	// The single publisher, null with -threads
+	private DirectPublisher publisher;
+
+	// Exported with -export
+	private BenchmarkResult result;
+
+	// Room for the System.nanoTime() stamp at the start of the payload
+	static final int LATENCY_STAMP_SIZE = 8;
+
+	// The sequence stamp follows the latency stamp
+	static final int SEQUENCE_STAMP_OFFSET = LATENCY_STAMP_SIZE;
+
+	static final int HANDOFF_RING_SIZE = 8192;
+
+	// Messages sent between warm-up checks
+	static final int WARMUP_CHUNK = 1000;
+
+	// Most time a sweep step waits with no message coming back
+	static final long SWEEP_IDLE_TIMEOUT_NANOS = 2000L * 1000 * 1000;
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -62,6 +138,49 @@ public class PerfPubSub extends AbstractSample {
 		System.out
 				.println("\t -d [true|false] : use direct allocate ByteBuffer [default:"
 						+ useDirectByteBuffer + "]\n");
+		System.out
+				.println("\t -lat : measure end-to-end latency, message size must be at least "
+						+ LATENCY_STAMP_SIZE + " [default:" + measureLatency + "]\n");
+		System.out
+				.println("\t -threads N : publish from N threads, each with its own context and session [default:"
+						+ numOfThreads + "]\n");
+		System.out
+				.println("\t -workers N : hand received messages off to N worker threads [default: process on the context thread]\n");
+		System.out
+				.println("\t -wait spin|yield|park : how idle workers wait [default: park]\n");
+		System.out
+				.println("\t -topics N : publish to N topics below the sample topic [default: the sample topic only]\n");
+		System.out
+				.println("\t -depth D : topic levels below the sample topic with -topics [default: 3]\n");
+		System.out
+				.println("\t -pick uniform|rr|zipf : how topics are picked with -topics [default: uniform]\n");
+		System.out
+				.println("\t -zipf s : skew of the zipf pick [default: 1.0]\n");
+		System.out
+				.println("\t -verify [payload|seqnum] : verify loss, duplicates and ordering on the subscriber, from a stamp in the payload (message size must be at least "
+						+ (SEQUENCE_STAMP_OFFSET + ReceiveStats.STAMP_SIZE)
+						+ ") or the generated sequence number [default: payload]\n");
+		System.out
+				.println("\t -interval seconds : print rates, latency, GC and memory every interval [default: every second with -verify, otherwise none]\n");
+		System.out
+				.println("\t -sweep sizes : measure each payload size, as a,b,c or min-max[xfactor] (e.g. 16-1048576), heap and direct ByteBuffers [default: none]\n");
+		System.out
+				.println("\t -sweepmb MB : payload megabytes measured per sweep step, at most -n messages [default: "
+						+ PayloadSizeSweep.DEFAULT_BYTES_PER_STEP / 1048576
+						+ "]\n");
+		System.out
+				.println("\t -warmup messages|seconds s|ms ms : send this many messages, or for this long, before measuring [default: none]\n");
+		System.out
+				.println("\t -jitwait [maxSeconds] : also warm up until the JIT compilation time settles, for at most maxSeconds [default: "
+						+ WarmupPhase.DEFAULT_MAX_DURATION_MS / 1000 + "]\n");
+		System.out
+				.println("\t -alloc [bytes] : measure the bytes allocated per message once warmed up, fail above this budget [default: "
+						+ AllocationMeter.DEFAULT_BUDGET_BYTES_PER_MESSAGE
+						+ "]\n");
+		System.out
+				.println("\t -cpu : measure the CPU time per message of the publisher, the callback thread and the process [default: false]\n");
+		System.out
+				.println("\t -export basename : write the results to basename.json and basename.csv, compare runs with BenchmarkCompare [default: none]\n");
 
 	}
 
@@ -84,10 +203,169 @@ public class PerfPubSub extends AbstractSample {
 		if (cmdLineArgs.containsKey("-d"))
 			useDirectByteBuffer = true;
 
-		if (useDirectByteBuffer)
-			byteBuffer = ByteBuffer.allocateDirect(msgSize);
-		else
-			byteBuffer = ByteBuffer.allocate(msgSize);
+		// Measure end-to-end latency
+		if (cmdLineArgs.containsKey("-lat")) {
+			measureLatency = true;
+			if (msgSize < LATENCY_STAMP_SIZE) {
+				throw new IllegalArgumentException(
+						"-lat requires a message size of at least "
+								+ LATENCY_STAMP_SIZE);
+			}
+		}
+
+		// Publisher scaling mode
+		if (cmdLineArgs.containsKey("-threads")) {
+			numOfThreads = Integer.parseInt(cmdLineArgs.get("-threads"));
+			if (numOfThreads < 1) {
+				throw new IllegalArgumentException(
+						"-threads must be at least 1");
+			}
+			if (measureLatency) {
+				throw new IllegalArgumentException(
+						"-threads and -lat can not be combined");
+			}
+		}
+
+		// Receive side handoff to worker threads
+		if (cmdLineArgs.containsKey("-workers")) {
+			numOfWorkers = Integer.parseInt(cmdLineArgs.get("-workers"));
+			if (numOfWorkers < 1) {
+				throw new IllegalArgumentException(
+						"-workers must be at least 1");
+			}
+			if (cmdLineArgs.containsKey("-threads")) {
+				throw new IllegalArgumentException(
+						"-threads and -workers can not be combined");
+			}
+		}
+		if (cmdLineArgs.containsKey("-wait")) {
+			waitStrategy = MessageHandoffRing.WaitStrategy
+					.fromName(cmdLineArgs.get("-wait"));
+		}
+
+		// Receive side verification
+		if (cmdLineArgs.containsKey("-verify")) {
+			String source = cmdLineArgs.get("-verify");
+			if ("seqnum".equalsIgnoreCase(source)) {
+				verifyFromSequenceNumber = true;
+				if (cmdLineArgs.containsKey("-threads")) {
+					throw new IllegalArgumentException(
+							"-verify seqnum can not tell the publisher threads apart, use -verify payload");
+				}
+			} else if (source.length() > 0
+					&& !"payload".equalsIgnoreCase(source)) {
+				throw new IllegalArgumentException("Unknown -verify source ["
+						+ source + "], expected payload or seqnum");
+			} else if (msgSize < SEQUENCE_STAMP_OFFSET
+					+ ReceiveStats.STAMP_SIZE) {
+				throw new IllegalArgumentException(
+						"-verify requires a message size of at least "
+								+ (SEQUENCE_STAMP_OFFSET + ReceiveStats.STAMP_SIZE));
+			}
+			if (numOfWorkers > 0) {
+				throw new IllegalArgumentException(
+						"-verify and -workers can not be combined");
+			}
+			stampSequence = !verifyFromSequenceNumber;
+			// Generated sequence numbers start at 1
+			receiveStats = new ReceiveStats(numOfThreads,
+					verifyFromSequenceNumber ? 1 : 0);
+		}
+		if (cmdLineArgs.containsKey("-interval")) {
+			reportIntervalMs = Long.parseLong(cmdLineArgs.get("-interval")) * 1000;
+			if (reportIntervalMs < 1000) {
+				throw new IllegalArgumentException(
+						"-interval must be at least 1");
+			}
+		} else if (receiveStats != null) {
+			reportIntervalMs = 1000;
+		}
+
+		// Topic cardinality and distribution
+		if (cmdLineArgs.containsKey("-topics")) {
+			int cardinality = Integer.parseInt(cmdLineArgs.get("-topics"));
+			int depth = cmdLineArgs.containsKey("-depth") ? Integer
+					.parseInt(cmdLineArgs.get("-depth")) : 3;
+			TopicWorkload.Distribution distribution = cmdLineArgs
+					.containsKey("-pick") ? TopicWorkload.Distribution
+					.fromName(cmdLineArgs.get("-pick"))
+					: TopicWorkload.Distribution.UNIFORM;
+			double zipfExponent = cmdLineArgs.containsKey("-zipf") ? Double
+					.parseDouble(cmdLineArgs.get("-zipf")) : 1.0;
+			System.out.println(" Encoding the topics ...");
+			workload = new TopicWorkload(SampleUtils.SAMPLE_TOPIC, depth,
+					cardinality, distribution, zipfExponent);
+		}
+
+		// Payload size sweep on one session
+		if (cmdLineArgs.containsKey("-sweep")) {
+			for (String option : new String[] { "-threads", "-workers",
+					"-verify", "-topics", "-warmup", "-jitwait", "-alloc" }) {
+				if (cmdLineArgs.containsKey(option)) {
+					throw new IllegalArgumentException("-sweep and " + option
+							+ " can not be combined");
+				}
+			}
+			long bytesPerStep = cmdLineArgs.containsKey("-sweepmb") ? Long
+					.parseLong(cmdLineArgs.get("-sweepmb")) * 1048576
+					: PayloadSizeSweep.DEFAULT_BYTES_PER_STEP;
+			sweep = new PayloadSizeSweep(
+					PayloadSizeSweep.parseSizes(cmdLineArgs.get("-sweep")),
+					bytesPerStep, numOfMessages);
+			if (sweep.getMinSize() < LATENCY_STAMP_SIZE) {
+				throw new IllegalArgumentException(
+						"-sweep requires message sizes of at least "
+								+ LATENCY_STAMP_SIZE);
+			}
+			measureLatency = true;
+		}
+
+		// Warm-up before measuring
+		if (cmdLineArgs.containsKey("-warmup")
+				|| cmdLineArgs.containsKey("-jitwait")) {
+			String maxSeconds = cmdLineArgs.get("-jitwait");
+			warmup = new WarmupPhase(cmdLineArgs.containsKey("-warmup") ? cmdLineArgs
+					.get("-warmup") : "", cmdLineArgs.containsKey("-jitwait"),
+					(maxSeconds == null || maxSeconds.length() == 0) ? WarmupPhase.DEFAULT_MAX_DURATION_MS
+							: Long.parseLong(maxSeconds) * 1000);
+		}
+
+		// Allocation and CPU per message, in the steady state
+		if (cmdLineArgs.containsKey("-alloc")) {
+			String budget = cmdLineArgs.get("-alloc");
+			allocationMeter = new AllocationMeter(budget.length() == 0 ? AllocationMeter.DEFAULT_BUDGET_BYTES_PER_MESSAGE
+					: Double.parseDouble(budget));
+		}
+		if (cmdLineArgs.containsKey("-cpu"))
+			cpuMeter = new CpuMeter();
+		probes = new MeasurementProbes(allocationMeter, cpuMeter);
+		if ((allocationMeter != null || cpuMeter != null) && warmup == null
+				&& sweep == null)
+			warmup = new WarmupPhase(
+					Integer.toString(WarmupPhase.DEFAULT_MESSAGES), false,
+					WarmupPhase.DEFAULT_MAX_DURATION_MS);
+
+		result = new BenchmarkResult(getClass().getSimpleName(), args);
+		result.putMetadata("message_size", sweep != null ? cmdLineArgs
+				.get("-sweep") : Integer.toString(msgSize));
+		result.putMetadata("messages", Integer.toString(numOfMessages));
+		result.putMetadata("buffer", useDirectByteBuffer ? "direct" : "heap");
+		result.putMetadata("compression",
+				Boolean.toString(config.isCompression()));
+		result.putMetadata("threads", Integer.toString(numOfThreads));
+		result.putMetadata("workers", Integer.toString(numOfWorkers));
+		if (workload != null)
+			result.putMetadata("topics", workload.toString());
+		if (cmdLineArgs.containsKey("-export")) {
+			String basename = cmdLineArgs.get("-export");
+			if (basename.length() == 0) {
+				throw new IllegalArgumentException(
+						"-export requires a file basename");
+			}
+			exportResult(result, basename);
+		}
+
+		byteBuffer = allocatePayloadBuffer();
 
 		// Init
 		System.out.println(" Initializing the Java RTO Messaging API...");
@@ -97,15 +375,189 @@ public class PerfPubSub extends AbstractSample {
 		// We don't care for any output unless it is an error
 		Solclient.setLogLevel(Level.SEVERE);
 
+		if (cmdLineArgs.containsKey("-threads")) {
+			runPublisherThreads(config);
+			return;
+		}
+
+		HandoffWorkers handoffWorkers = null;
+		MessageHandoffRing handoffRing = null;
+		CustomEventsAdapter adapter;
+		if (numOfWorkers > 0) {
+			handoffWorkers = new HandoffWorkers(numOfWorkers,
+					HANDOFF_RING_SIZE, Math.max(msgSize, LATENCY_STAMP_SIZE),
+					waitStrategy, measureLatency).start();
+			handoffRing = handoffWorkers.getRing();
+			adapter = new CustomEventsAdapter(handoffRing);
+		} else {
+			adapter = new CustomEventsAdapter(
+					measureLatency ? new LatencyHistogram() : null,
+					sweep != null ? sweep.getMaxSize() : msgSize);
+			if (receiveStats != null)
+				adapter.setReceiveStats(receiveStats, verifyFromSequenceNumber);
+		}
+		connectSubscriber(getPublisherSessionProps(config), adapter);
+
+		// Allocate the message
+		rc = Solclient.createMessageForHandle(txMessageHandle);
+		assertReturnCode("Solclient.createMessage()", rc, SolEnum.ReturnCode.OK);
+		
+		// Allocate a Native Topic Destination
+		rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
+		assertReturnCode("Solclient.createNativeDestination()", rc,
+				SolEnum.ReturnCode.OK);
+
+		publisher = new DirectPublisher(sessionHandle, txMessageHandle,
+				topicHandle, byteBuffer, msgSize);
+
+		if (sweep != null) {
+			runSweep(config, adapter);
+			return;
+		}
+
+		if (workload != null)
+			publisher.spreadOver(workload, 1);
+		if (stampSequence)
+			publisher.stampSequence(0);
+		if (measureLatency)
+			publisher.stampLatency();
+
+		System.out.printf(
+				"%nWill publish %d messages of size %d in a %s ByteBuffer%n",
+				numOfMessages, msgSize, useDirectByteBuffer ? "DirectAllocated"
+						: "ArrayBacked");
+		printWorkload();
+
+		// Warm-up, through the same code as the measured messages
+		int warmupSent = 0;
+		if (warmup != null) {
+			System.out.printf("%nWarming up ...%n");
+			warmup.begin();
+			while (!warmup.isDone(warmupSent)) {
+				int chunk = warmup.nextChunk(warmupSent, WARMUP_CHUNK);
+				publisher.publish(chunk);
+				warmupSent += chunk;
+			}
+			warmup.printSummary(warmupSent);
+			if (handoffRing != null || measureLatency || receiveStats != null)
+				waitForWarmup(adapter, handoffWorkers, warmupSent);
+			markWarmupHistograms(adapter, handoffWorkers);
+			result.putMetric("warmup_messages", warmupSent);
+			result.putMetadata("warmup_jit_settled",
+					Boolean.toString(warmup.isJitSettled()));
+		}
+
+		startIntervalReporter(adapter, handoffRing);
+
+		beginProbes(adapter, true);
+
+		long startTime = System.currentTimeMillis();
+
+		// Make message content and send it
+		publisher.publish(numOfMessages);
+
+		probes.endPublisher();
+
+		long elapsedMs = System.currentTimeMillis() - startTime;
+		double txRate = (double) numOfMessages / (double) elapsedMs;
+
+		System.out.printf("%nSent %d messages in %f seconds = %f msg/second%n",
+				numOfMessages, elapsedMs / 1000.0, txRate * 1000);
+		result.putMetric("tx_rate", txRate * 1000);
+		publisher.printDestinationCacheStats("");
+
+		if (handoffRing != null || measureLatency || receiveStats != null)
+			waitForMessages(adapter, warmupSent + numOfMessages);
+		probes.end();
+		stopIntervalReporter();
+		result.putMetric("received", adapter.getMessageCount() - warmupSent);
+
+		if (handoffWorkers != null) {
+			handoffWorkers.stop();
+			handoffWorkers.report(warmup, result);
+		} else if (measureLatency) {
+			LatencyHistogram endToEndLatency = measuredPart(adapter
+					.getLatencyHistogram());
+			endToEndLatency.printPercentiles("End-to-end latency");
+			result.putHistogram("end_to_end", endToEndLatency);
+		}
+		printReceiveStats(warmupSent + numOfMessages);
+		reportProbes(txRate * 1000);
+
+	}
+
+	/**
+	 * Waits for the warm-up messages to be received, and processed when handed
+	 * off, so that the histograms hold all of them when marked
+	 */
+	private void waitForWarmup(CustomEventsAdapter adapter,
+			HandoffWorkers handoffWorkers, long warmupSent) {
+		waitForMessages(adapter, warmupSent);
+		if (handoffWorkers != null)
+			handoffWorkers.awaitDrained();
+	}
+
+	private void markWarmupHistograms(CustomEventsAdapter adapter,
+			HandoffWorkers handoffWorkers) {
+		warmup.markHistograms(adapter.getLatencyHistogram());
+		if (handoffWorkers != null)
+			handoffWorkers.markWarmup(warmup);
+	}
+
+	/**
+	 * Begins the allocation and CPU probes of the measured run
+	 *
+	 * @param adapter
+	 *            the subscriber, null if none
+	 * @param publisher
+	 *            true if the calling thread is the publisher
+	 */
+	private void beginProbes(final CustomEventsAdapter adapter,
+			boolean publisher) {
+		IntervalReporter.Counter sent = new IntervalReporter.Counter() {
+			public long get() {
+				return getSentCount();
+			}
+		};
+		IntervalReporter.Counter received = (adapter == null) ? null
+				: new IntervalReporter.Counter() {
+					public long get() {
+						return adapter.getMessageCount();
+					}
+				};
+		probes.begin(sent, received,
+				(adapter == null) ? 0 : adapter.getThreadId(), publisher);
+	}
+
+	/**
+	 * Prints the CPU and allocation per message, the run fails above the
+	 * allocation budget
+	 */
+	private void reportProbes(double txRate) {
+		if (!probes.report(result, txRate))
+			fail(probes.getBudgetExceededMessage());
+	}
+
+	/**
+	 * @return the values recorded after the warm-up
+	 */
+	private LatencyHistogram measuredPart(LatencyHistogram histogram) {
+		return warmup == null ? histogram : warmup.measuredPart(histogram);
+	}
+
+	/**
+	 * Creates the context and a session subscribed to the published topics,
+	 * the messages going to the adapter
+	 */
+	private void connectSubscriber(String[] sessionProps,
+			CustomEventsAdapter adapter) {
 		// Context
 		System.out.println(" Creating a context ...");
-		rc = Solclient.createContextForHandle(contextHandle, new String[0]);
+		int rc = Solclient.createContextForHandle(contextHandle, new String[0]);
 		assertReturnCode("Solclient.createContext()", rc, SolEnum.ReturnCode.OK);
 
 		// Session
 		System.out.println(" Creating a session ...");
-		String[] sessionProps = getSessionProps(config, 0);
-		CustomEventsAdapter adapter = new CustomEventsAdapter();
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
 				adapter, adapter);
 		assertReturnCode("contextHandle.createSession()", rc,
@@ -118,61 +570,259 @@ public class PerfPubSub extends AbstractSample {
 
 		// Subscribe
 		System.out.println(" Adding subscription ...");
-		rc = sessionHandle.subscribe(topic,
+		Topic subscription = (workload != null) ? Solclient.Allocator
+				.newTopic(workload.getSubscription()) : topic;
+		rc = sessionHandle.subscribe(subscription,
 				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
 		assertReturnCode("sessionHandle.subscribe()", rc, SolEnum.ReturnCode.OK);
+	}
 
-		// Allocate the message
-		rc = Solclient.createMessageForHandle(txMessageHandle);
-		assertReturnCode("Solclient.createMessage()", rc, SolEnum.ReturnCode.OK);
-		
-		// Allocate a Native Topic Destination
-		rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
+	/**
+	 * Destroys the main session, its context, message and topic, only created
+	 * with -threads when verifying
+	 */
+	private void disconnectSubscriber() {
+		if (!contextHandle.isBound())
+			return;
 
-		System.out.printf(
-				"%nWill publish %d messages of size %d in a %s ByteBuffer%n",
-				numOfMessages, msgSize, useDirectByteBuffer ? "DirectAllocated"
-						: "ArrayBacked");
+		finish_DestroyHandle(topicHandle, "topicHandle");
 
-		long startTime = System.currentTimeMillis();
+		finish_DestroyHandle(txMessageHandle, "messageHandle");
 
-		// Make message content and send it
-		for (int i = 0; i < numOfMessages; i++) {
+		finish_Disconnect(sessionHandle);
 
-			txMessageHandle.setDestination(topicHandle);
+		finish_DestroyHandle(sessionHandle, "sessionHandle");
 
-			if (msgSize > 0) {
+		finish_DestroyHandle(contextHandle, "contextHandle");
+	}
 
-				byteBuffer.clear();
+	/**
+	 * The session properties, with sequence numbers generated when verifying
+	 * from them
+	 */
+	private String[] getPublisherSessionProps(SessionConfiguration config) {
+		if (!verifyFromSequenceNumber)
+			return getSessionProps(config, 0);
+
+		int spareRoom = 2;
+		String[] sessionProps = getSessionProps(config, spareRoom);
+		int sessionPropsIndex = sessionProps.length - spareRoom;
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.GENERATE_SEQUENCE_NUMBER;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+		return sessionProps;
+	}
 
-				// Making up some pay-load ...
+	private void printReceiveStats(long expected) {
+		if (receiveStats == null)
+			return;
+		receiveStats.printSummary("Receive verification", expected);
+		result.putMetric("lost", expected - receiveStats.getUniqueCount());
+		result.putMetric("duplicates", receiveStats.getDuplicateCount());
+		result.putMetric("reordered", receiveStats.getReorderedCount());
+	}
 
-				// Fill the byte buffer, using int ( 4 bytes )
-				for (int x = 0; x < msgSize / 4; x++) {
-					byteBuffer.putInt(i + x);
+	/**
+	 * Starts the time series, if asked for, on the counters the publishers and
+	 * the subscriber keep anyway
+	 *
+	 * @param adapter
+	 *            the subscriber, null if none
+	 * @param handoffRing
+	 *            null unless handing messages off to workers
+	 */
+	private void startIntervalReporter(final CustomEventsAdapter adapter,
+			final MessageHandoffRing handoffRing) {
+		if (reportIntervalMs == 0)
+			return;
+		intervalReporter = new IntervalReporter(reportIntervalMs);
+		intervalReporter.addRate("tx", new IntervalReporter.Counter() {
+			public long get() {
+				return getSentCount();
+			}
+		});
+		if (adapter != null) {
+			intervalReporter.addRate("rx", new IntervalReporter.Counter() {
+				public long get() {
+					return adapter.getMessageCount();
 				}
-
-				// Top up with bytes
-				int remainder = msgSize % 4;
-				for (byte b = 0; b < remainder; b++) {
-					byteBuffer.put(b);
+			});
+		}
+		if (handoffRing != null) {
+			intervalReporter.addGauge("backlog", new IntervalReporter.Counter() {
+				public long get() {
+					return handoffRing.getBacklog();
+				}
+			});
+		}
+		if (receiveStats != null) {
+			intervalReporter.addGauge("missing", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getMissingCount();
+				}
+			});
+			intervalReporter.addDelta("dup", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getDuplicateCount();
 				}
+			});
+			intervalReporter.addDelta("reordered", new IntervalReporter.Counter() {
+				public long get() {
+					return receiveStats.getReorderedCount();
+				}
+			});
+		}
+		// Recorded before the adapter message count is written
+		if (adapter != null && adapter.getLatencyHistogram() != null)
+			intervalReporter.addLatency("lat", adapter.getLatencyHistogram());
+		System.out.println();
+		intervalReporter.start();
+	}
 
-				byteBuffer.flip();
+	private void stopIntervalReporter() {
+		if (intervalReporter == null)
+			return;
+		intervalReporter.stop();
+		result.putSeries("interval", intervalReporter);
+	}
 
-				txMessageHandle.setBinaryAttachment(byteBuffer);
+	private long getSentCount() {
+		if (publisherThreads != null)
+			return publisherThreads.getSentCount();
+		return publisher.getSentCount();
+	}
 
-			}
+	private void printWorkload() {
+		if (workload != null)
+			System.out.printf("Across %s%n", workload);
+	}
 
-			rc = sessionHandle.send(txMessageHandle);
+	private ByteBuffer allocatePayloadBuffer() {
+		if (useDirectByteBuffer)
+			return ByteBuffer.allocateDirect(msgSize);
+		else
+			return ByteBuffer.allocate(msgSize);
+	}
+
+	/**
+	 * Runs a single-thread baseline on the first publisher set, then all the
+	 * sets concurrently, and reports the per-thread and aggregate rates.
+	 */
+	private void runPublisherThreads(SessionConfiguration config)
+			throws SolclientException {
+
+		// All publisher threads verified through one subscriber
+		CustomEventsAdapter adapter = null;
+		if (receiveStats != null) {
+			adapter = new CustomEventsAdapter(null, msgSize);
+			adapter.setReceiveStats(receiveStats, false);
+			connectSubscriber(getSessionProps(config, 0), adapter);
 		}
 
-		long elapsedMs = System.currentTimeMillis() - startTime;
-		double txRate = (double) numOfMessages / (double) elapsedMs;
+		publisherThreads = new PublisherThreads(numOfThreads, numOfMessages,
+				allocationMeter, cpuMeter);
+		publisherThreads.connect(getSessionProps(config, 0), topic,
+				new PublisherThreads.PublisherFactory() {
+					public DirectPublisher newPublisher(int id,
+							SessionHandle sessionHandle,
+							MessageHandle messageHandle,
+							NativeDestinationHandle topicHandle) {
+						DirectPublisher threadPublisher = new DirectPublisher(
+								sessionHandle, messageHandle, topicHandle,
+								allocatePayloadBuffer(), msgSize);
+						// Each thread picks its topics on its own
+						if (workload != null)
+							threadPublisher.spreadOver(workload, id + 1);
+						if (stampSequence)
+							threadPublisher.stampSequence(id);
+						return threadPublisher;
+					}
+				});
 
-		System.out.printf("%nSent %d messages in %f seconds = %f msg/second%n",
-				numOfMessages, elapsedMs / 1000.0, txRate * 1000);
+		System.out.printf(
+				"%nWill publish %d messages of size %d per thread in a %s ByteBuffer%n",
+				numOfMessages, msgSize, useDirectByteBuffer ? "DirectAllocated"
+						: "ArrayBacked");
+		printWorkload();
+
+		// Warm-up, the first set publishing alone through the same code
+		DirectPublisher baselinePublisher = publisherThreads
+				.getBaselinePublisher();
+		int warmupSent = 0;
+		if (warmup != null) {
+			System.out.printf("%nWarming up ...%n");
+			warmup.begin();
+			while (!warmup.isDone(warmupSent)) {
+				int chunk = warmup.nextChunk(warmupSent, WARMUP_CHUNK);
+				baselinePublisher.publish(chunk);
+				warmupSent += chunk;
+			}
+			warmup.printSummary(warmupSent);
+			result.putMetric("warmup_messages", warmupSent);
+			result.putMetadata("warmup_jit_settled",
+					Boolean.toString(warmup.isJitSettled()));
+		}
+
+		startIntervalReporter(adapter, null);
+
+		// Baseline, the first set publishing alone
+		publisherThreads.runBaseline();
+
+		// All sets at once, the publisher threads measuring themselves
+		beginProbes(adapter, false);
+		publisherThreads.runConcurrent();
+		double aggregateRate = publisherThreads.report(result);
+
+		// The first set also published the warm-up and the baseline
+		long expected = warmupSent + (long) numOfMessages
+				* (numOfThreads + 1);
+		if (adapter != null) {
+			waitForMessages(adapter, expected);
+			result.putMetric("received", adapter.getMessageCount() - warmupSent);
+		}
+		probes.end();
+		stopIntervalReporter();
+		printReceiveStats(expected);
+		reportProbes(aggregateRate);
+	}
 
+	/**
+	 * Runs the sweep on the connected session and its compression setting
+	 */
+	private void runSweep(SessionConfiguration config,
+			final CustomEventsAdapter adapter) {
+		SweepRunner sweepRunner = new SweepRunner(sweep, cpuMeter,
+				new IntervalReporter.Counter() {
+					public long get() {
+						return adapter.getMessageCount();
+					}
+				}, adapter.getLatencyHistogram(), SWEEP_IDLE_TIMEOUT_NANOS);
+
+		startIntervalReporter(adapter, null);
+		sweepRunner.run(config.isCompression() ? "on" : "off", publisher,
+				result);
+		stopIntervalReporter();
+	}
+
+	/**
+	 * Waits until all the messages came back to the subscriber, or until none
+	 * were received for a while (direct messages can be discarded).
+	 */
+	private void waitForMessages(CustomEventsAdapter adapter, long expected) {
+		long lastCount = -1;
+		int idleChecks = 0;
+		while (adapter.getMessageCount() < expected && idleChecks < 20) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			long count = adapter.getMessageCount();
+			idleChecks = (count == lastCount) ? idleChecks + 1 : 0;
+			lastCount = count;
+		}
+		System.out.printf("Received %d of %d messages%n",
+				adapter.getMessageCount(), expected);
 	}
 
 	/**
@@ -184,13 +834,13 @@ public class PerfPubSub extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
+		if (publisherThreads != null)
+			publisherThreads.destroy(this);
 
-		finish_Disconnect(sessionHandle);
+		if (publisher != null)
+			publisher.destroy();
 
-		finish_DestroyHandle(sessionHandle, "sessionHandle");
-
-		finish_DestroyHandle(contextHandle, "contextHandle");
+		disconnectSubscriber();
 
 		finish_Solclient();
 
@@ -199,12 +849,104 @@ public class PerfPubSub extends AbstractSample {
 	static class CustomEventsAdapter implements MessageCallback,
 			SessionEventCallback {
 
+		// Only touched from the context thread, null unless measuring latency
+		private final LatencyHistogram latencyHistogram;
+		private final int msgSize;
+		private ByteBuffer rxContent;
+
+		// null unless handing messages off to workers
+		private final MessageHandoffRing handoffRing;
+
+		// null unless verifying, the sequence number only when generated
+		private ReceiveStats receiveStats;
+		private MutableLong sequenceNumber;
+
+		// Written by the context thread with MESSAGE_COUNT
+		private volatile long messageCount = 0;
+
+		private static final AtomicLongFieldUpdater<CustomEventsAdapter> MESSAGE_COUNT = AtomicLongFieldUpdater
+				.newUpdater(CustomEventsAdapter.class, "messageCount");
+
+		// The context thread, once a message came
+		private volatile long threadId = 0;
+
+		CustomEventsAdapter(LatencyHistogram latencyHistogram, int msgSize) {
+			this.latencyHistogram = latencyHistogram;
+			this.msgSize = msgSize;
+			this.rxContent = (latencyHistogram != null) ? ByteBuffer
+					.allocateDirect(msgSize) : null;
+			this.handoffRing = null;
+		}
+
+		CustomEventsAdapter(MessageHandoffRing handoffRing) {
+			this.latencyHistogram = null;
+			this.msgSize = 0;
+			this.rxContent = null;
+			this.handoffRing = handoffRing;
+		}
+
+		/**
+		 * Records the sequence of each message received, read from the
+		 * generated sequence number or from the payload stamp
+		 */
+		void setReceiveStats(ReceiveStats receiveStats,
+				boolean fromSequenceNumber) {
+			this.receiveStats = receiveStats;
+			if (fromSequenceNumber)
+				sequenceNumber = new MutableLong();
+			else if (rxContent == null)
+				rxContent = ByteBuffer.allocateDirect(msgSize);
+		}
+
 		@Override
 		public void onEvent(SessionHandle sessionHandle) {
 		}
 
 		@Override
 		public void onMessage(Handle handle) {
+			if (handoffRing != null) {
+				// Never blocks, a full ring drops the message and counts it
+				handoffRing.offer((MessageSupport) handle);
+			} else if (rxContent != null || receiveStats != null) {
+				long now = System.nanoTime();
+				MessageHandle rxMessage = ((MessageSupport) handle)
+						.getRxMessage();
+				if (rxContent != null) {
+					rxContent.clear();
+					rxMessage.getBinaryAttachment(rxContent);
+				}
+				if (latencyHistogram != null)
+					latencyHistogram.record(now - rxContent.getLong(0));
+				if (receiveStats != null)
+					recordSequence(rxMessage);
+			}
+			if (threadId == 0)
+				threadId = Thread.currentThread().getId();
+			// Single writer, the ordered write publishes the recorded value
+			MESSAGE_COUNT.lazySet(this, messageCount + 1);
+		}
+
+		private void recordSequence(MessageHandle rxMessage) {
+			if (sequenceNumber == null) {
+				receiveStats.recordStamp(rxContent
+						.getLong(SEQUENCE_STAMP_OFFSET));
+			} else if (rxMessage.getSequenceNumber(sequenceNumber) == SolEnum.ReturnCode.OK) {
+				receiveStats.record(0, sequenceNumber.getValue());
+			} else {
+				receiveStats.recordUnsequenced();
+			}
+		}
+
+		long getMessageCount() {
+			return messageCount;
+		}
+
+		long getThreadId() {
+			return threadId;
+		}
+
+		LatencyHistogram getLatencyHistogram() {
+			return latencyHistogram;
 		}
 
 	}
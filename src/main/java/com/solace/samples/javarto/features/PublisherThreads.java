@@ -0,0 +1,332 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.event.SessionEventCallback;
+import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * Runs the publisher scaling mode of {@link PerfPubSub}: N independent
+ * context, session, message and destination sets, each sending through its own
+ * {@link DirectPublisher}. A single-thread baseline runs on the first set,
+ * then all the sets publish concurrently from their own threads, released
+ * together.
+ *
+ * The per-thread and aggregate rates are reported against the baseline, with
+ * the CPU time and bytes allocated of each thread when measured.
+ */
+public class PublisherThreads {
+
+	/**
+	 * Sets up the publisher of a set once its session is connected
+	 */
+	public interface PublisherFactory {
+
+		/**
+		 * @param id
+		 *            the set, from 0
+		 * @param messageHandle
+		 *            the created message of the set
+		 * @param topicHandle
+		 *            the created native destination of the topic
+		 */
+		DirectPublisher newPublisher(int id, SessionHandle sessionHandle,
+				MessageHandle messageHandle,
+				NativeDestinationHandle topicHandle);
+	}
+
+	private final PublisherSet[] publisherSets;
+
+	private final int messagesPerThread;
+
+	private final AllocationMeter allocationMeter;
+
+	private final CpuMeter cpuMeter;
+
+	private double baselineRate;
+
+	/**
+	 * @param allocationMeter
+	 *            null to not measure the bytes allocated
+	 * @param cpuMeter
+	 *            null to not measure CPU time
+	 */
+	public PublisherThreads(int threads, int messagesPerThread,
+			AllocationMeter allocationMeter, CpuMeter cpuMeter) {
+		this.publisherSets = new PublisherSet[threads];
+		this.messagesPerThread = messagesPerThread;
+		this.allocationMeter = allocationMeter;
+		this.cpuMeter = cpuMeter;
+		for (int t = 0; t < threads; t++) {
+			publisherSets[t] = new PublisherSet(t);
+		}
+	}
+
+	/**
+	 * Creates and connects every set, each publishing to the topic unless its
+	 * publisher picks otherwise
+	 */
+	public void connect(String[] sessionProps, Topic topic,
+			PublisherFactory factory) {
+		System.out.printf(" Creating %d publisher sets ...%n",
+				publisherSets.length);
+		for (PublisherSet publisherSet : publisherSets) {
+			publisherSet.connect(sessionProps, topic, factory);
+		}
+	}
+
+	/**
+	 * @return the publisher of the first set, the one of the baseline
+	 */
+	public DirectPublisher getBaselinePublisher() {
+		return publisherSets[0].publisher;
+	}
+
+	/**
+	 * Runs the first set alone on the calling thread
+	 *
+	 * @return its rate, in messages per second
+	 */
+	public double runBaseline() {
+		PublisherSet baselineSet = publisherSets[0];
+		baselineSet.run();
+		baselineRate = baselineSet.getRate();
+		System.out.printf("%nSingle-thread baseline: %f msg/second%n",
+				baselineRate);
+		return baselineRate;
+	}
+
+	/**
+	 * Runs all the sets at once, each on its own thread, and waits for them
+	 */
+	public void runConcurrent() {
+		CountDownLatch startSignal = new CountDownLatch(1);
+		Thread[] threads = new Thread[publisherSets.length];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(publisherSets[t].startingOn(startSignal),
+					"PerfPubSub-publisher-" + t);
+			threads[t].start();
+		}
+		startSignal.countDown();
+
+		for (int t = 0; t < threads.length; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Interrupted waiting for publisher threads", e);
+			}
+		}
+	}
+
+	/**
+	 * Prints the rate of each thread, the aggregate rate and the scaling
+	 * efficiency against the baseline, and records them
+	 *
+	 * @return the aggregate rate of the concurrent run, in messages per second
+	 */
+	public double report(BenchmarkResult result) {
+		long firstStart = Long.MAX_VALUE;
+		long lastEnd = Long.MIN_VALUE;
+		for (PublisherSet publisherSet : publisherSets) {
+			System.out.printf("Thread %d: sent %d messages in %f seconds = %f msg/second%n",
+					publisherSet.id, messagesPerThread,
+					publisherSet.getElapsedNanos() / 1e9,
+					publisherSet.getRate());
+			result.putMetric("thread_" + publisherSet.id + "_tx_rate",
+					publisherSet.getRate());
+			if (allocationMeter != null)
+				allocationMeter.record("publisher " + publisherSet.id,
+						publisherSet.allocatedBytes, messagesPerThread);
+			if (cpuMeter != null)
+				cpuMeter.record("publisher " + publisherSet.id,
+						publisherSet.cpuNanos, publisherSet.getElapsedNanos(),
+						messagesPerThread);
+			publisherSet.publisher.printDestinationCacheStats("\t ");
+			firstStart = Math.min(firstStart, publisherSet.startNanos);
+			lastEnd = Math.max(lastEnd, publisherSet.endNanos);
+		}
+
+		int threads = publisherSets.length;
+		long totalMessages = (long) messagesPerThread * threads;
+		double aggregateRate = totalMessages / ((lastEnd - firstStart) / 1e9);
+		System.out.printf(
+				"%nAggregate: %d threads sent %d messages = %f msg/second%n",
+				threads, totalMessages, aggregateRate);
+		System.out.printf(
+				"Scaling efficiency: %.1f%% of %d x single-thread baseline%n",
+				100.0 * aggregateRate / (threads * baselineRate), threads);
+		result.putMetric("baseline_tx_rate", baselineRate);
+		result.putMetric("tx_rate", aggregateRate);
+		result.putMetric("scaling_efficiency_pct", 100.0 * aggregateRate
+				/ (threads * baselineRate));
+		return aggregateRate;
+	}
+
+	/**
+	 * @return the messages sent so far by all the sets
+	 */
+	public long getSentCount() {
+		long count = 0;
+		for (PublisherSet publisherSet : publisherSets) {
+			if (publisherSet.publisher != null)
+				count += publisherSet.publisher.getSentCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Destroys what each set created, through the sample to log failures
+	 */
+	public void destroy(AbstractSample sample) {
+		for (PublisherSet publisherSet : publisherSets) {
+			publisherSet.destroy(sample);
+		}
+	}
+
+	/**
+	 * An independent context, session, message and native destination, so
+	 * that publisher threads share nothing in the API.
+	 */
+	class PublisherSet implements Runnable {
+
+		final int id;
+		private final ContextHandle contextHandle = Solclient.Allocator
+				.newContextHandle();
+		private final SessionHandle sessionHandle = Solclient.Allocator
+				.newSessionHandle();
+		private final MessageHandle txMessageHandle = Solclient.Allocator
+				.newMessageHandle();
+		private final NativeDestinationHandle topicHandle = Solclient.Allocator
+				.newNativeDestinationHandle();
+
+		// Created once connected, carries on from the baseline run to the
+		// concurrent one
+		DirectPublisher publisher;
+
+		private CountDownLatch startSignal;
+
+		// Written by the publisher thread, read after join()
+		long startNanos;
+		long endNanos;
+
+		// Over the concurrent run with -alloc and -cpu, read after join()
+		long allocatedBytes = -1;
+		long cpuNanos = -1;
+
+		PublisherSet(int id) {
+			this.id = id;
+		}
+
+		void connect(String[] sessionProps, Topic topic,
+				PublisherFactory factory) {
+			int rc = Solclient.createContextForHandle(contextHandle,
+					new String[0]);
+			AbstractSample.assertReturnCode("Solclient.createContext() " + id,
+					rc, SolEnum.ReturnCode.OK);
+
+			IgnoredEvents events = new IgnoredEvents();
+			rc = contextHandle.createSessionForHandle(sessionHandle,
+					sessionProps, events, events);
+			AbstractSample.assertReturnCode("contextHandle.createSession() "
+					+ id, rc, SolEnum.ReturnCode.OK);
+
+			rc = sessionHandle.connect();
+			AbstractSample.assertReturnCode("sessionHandle.connect() " + id,
+					rc, SolEnum.ReturnCode.OK);
+
+			rc = Solclient.createMessageForHandle(txMessageHandle);
+			AbstractSample.assertReturnCode("Solclient.createMessage() " + id,
+					rc, SolEnum.ReturnCode.OK);
+
+			rc = Solclient.createNativeDestinationForHandle(topicHandle, topic);
+			AbstractSample.assertReturnCode(
+					"Solclient.createNativeDestination() " + id, rc,
+					SolEnum.ReturnCode.OK);
+
+			publisher = factory.newPublisher(id, sessionHandle,
+					txMessageHandle, topicHandle);
+		}
+
+		Runnable startingOn(CountDownLatch startSignal) {
+			this.startSignal = startSignal;
+			return this;
+		}
+
+		@Override
+		public void run() {
+			if (startSignal != null) {
+				try {
+					startSignal.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+
+			// Measured on this thread, gone once joined
+			long threadId = Thread.currentThread().getId();
+			long startCpuNanos = (cpuMeter != null && startSignal != null) ? cpuMeter
+					.getCurrentThreadCpuNanos() : -1;
+			long startBytes = (allocationMeter != null && startSignal != null) ? allocationMeter
+					.getAllocatedBytes(threadId) : -1;
+
+			startNanos = System.nanoTime();
+			publisher.publish(messagesPerThread);
+			endNanos = System.nanoTime();
+
+			if (startBytes >= 0)
+				allocatedBytes = allocationMeter.getAllocatedBytes(threadId)
+						- startBytes;
+			if (startCpuNanos >= 0)
+				cpuNanos = cpuMeter.getCurrentThreadCpuNanos() - startCpuNanos;
+		}
+
+		long getElapsedNanos() {
+			return endNanos - startNanos;
+		}
+
+		double getRate() {
+			return messagesPerThread / (getElapsedNanos() / 1e9);
+		}
+
+		void destroy(AbstractSample sample) {
+			if (publisher != null)
+				publisher.destroy();
+			sample.finish_DestroyHandle(topicHandle, "topicHandle " + id);
+			sample.finish_DestroyHandle(txMessageHandle, "messageHandle " + id);
+			sample.finish_Disconnect(sessionHandle);
+			sample.finish_DestroyHandle(sessionHandle, "sessionHandle " + id);
+			sample.finish_DestroyHandle(contextHandle, "contextHandle " + id);
+		}
+	}
+
+	/**
+	 * The publisher sessions receive nothing, their events are ignored
+	 */
+	static class IgnoredEvents implements MessageCallback,
+			SessionEventCallback {
+
+		@Override
+		public void onEvent(SessionHandle sessionHandle) {
+		}
+
+		@Override
+		public void onMessage(Handle handle) {
+		}
+	}
+
+}
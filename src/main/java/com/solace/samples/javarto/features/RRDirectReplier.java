@@ -5,18 +5,17 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
-import com.solacesystems.solclientj.core.event.MessageCallback;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
-import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
-import com.solacesystems.solclientj.core.resource.Destination;
 import com.solacesystems.solclientj.core.resource.Topic;
 
 /**
@@ -40,6 +39,10 @@ import com.solacesystems.solclientj.core.resource.Topic;
  *  |-------------------|  <--ReplyToTopic---- |------------------|
  * </pre>
  * 
+ * Requests are served by a {@link ReplierEngine}: the session callback hands
+ * them to a pool of workers (-workers), each replying with its own message and
+ * buffers, so that the context thread only receives.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -53,11 +56,11 @@ public class RRDirectReplier extends AbstractSample {
 	private ContextHandle contextHandle = Solclient.Allocator
 			.newContextHandle();
 
-	private static ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
-	private static ByteBuffer txContent = ByteBuffer.allocateDirect(200);
+	private static final int MAX_PAYLOAD_SIZE = 200;
+
+	private ReplierEngine replierEngine;
 
-	private static MessageHandle txMessageHandle = Solclient.Allocator
-			.newMessageHandle();
+	private RequestNumberHandler requestHandler;
 
 	private static boolean quit = false;
 
@@ -68,6 +71,8 @@ public class RRDirectReplier extends AbstractSample {
 		usage += "\t[-t topic]\t Topic, default:" + SampleUtils.SAMPLE_TOPIC
 				+ "\n";
 		usage += "\t[-n number]\t Number of request messages to expect, default: 5\n";
+		usage += "\t[-workers number]\t Number of threads replying, default: "
+				+ ReplierEngine.DEFAULT_WORKERS + "\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -87,14 +92,17 @@ public class RRDirectReplier extends AbstractSample {
 		}
 
 		int numberOfRequestMessages = 5;
+		int workerCount = ReplierEngine.DEFAULT_WORKERS;
 
 		String strCount = config.getArgBag().get("-n");
-		if (strCount != null) {
-			try {
+		String strWorkers = config.getArgBag().get("-workers");
+		try {
+			if (strCount != null)
 				numberOfRequestMessages = Integer.parseInt(strCount);
-			} catch (NumberFormatException e) {
-				printUsage(config instanceof SecureSessionConfiguration);
-			}
+			if (strWorkers != null)
+				workerCount = Integer.parseInt(strWorkers);
+		} catch (NumberFormatException e) {
+			printUsage(config instanceof SecureSessionConfiguration);
 		}
 
 		// Init
@@ -150,12 +158,16 @@ public class RRDirectReplier extends AbstractSample {
 		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.DISABLE;
 
 		SessionEventCallback sessionEventCallback = getDefaultSessionEventCallback();
-		ReplierMessageReceivedCallback replierMessageReceivedCallback = new ReplierMessageReceivedCallback(
-				numberOfRequestMessages, destinationName);
+		requestHandler = new RequestNumberHandler(numberOfRequestMessages);
+		// The engine is the message callback, its workers reply
+		replierEngine = new ReplierEngine(sessionHandle, workerCount,
+				ReplierEngine.DEFAULT_RING_CAPACITY, MAX_PAYLOAD_SIZE,
+				SolEnum.MessageDeliveryMode.DIRECT,
+				MessageHandoffRing.WaitStrategy.PARK, requestHandler).start();
 
 		/* Create the Session. */
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
-				replierMessageReceivedCallback, sessionEventCallback);
+				replierEngine, sessionEventCallback);
 		assertReturnCode("contextHandle.createSession() - session", rc,
 				SolEnum.ReturnCode.OK);
 
@@ -183,9 +195,10 @@ public class RRDirectReplier extends AbstractSample {
 			}
 		});
 
-		// Do some waiting, the registered callback withh handle messages with
-		// replies, it will quit when done
-		while (!quit) {
+		// Do some waiting, the workers reply to the requests, quit when done
+		while (!quit
+				&& replierEngine.getRepliedCount()
+						+ replierEngine.getFailedCount() < numberOfRequestMessages) {
 			try {
 				Thread.sleep(300);
 			} catch (InterruptedException e) {
@@ -194,6 +207,16 @@ public class RRDirectReplier extends AbstractSample {
 		}
 
 		print("Quitting time");
+		print(String.format(
+				"%d requests, %d replies from %d workers, %d served on the context thread, %d failed",
+				replierEngine.getReceivedCount(),
+				replierEngine.getRepliedCount(),
+				replierEngine.getWorkerCount(),
+				replierEngine.getInlineCount(),
+				replierEngine.getFailedCount()));
+		if (requestHandler.getMismatchCount() > 0)
+			print(requestHandler.getMismatchCount()
+					+ " requests were not expected");
 
 		print("Run() DONE");
 	}
@@ -208,7 +231,8 @@ public class RRDirectReplier extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
+		if (replierEngine != null)
+			replierEngine.stop();
 
 		finish_Disconnect(sessionHandle);
 
@@ -219,82 +243,48 @@ public class RRDirectReplier extends AbstractSample {
 		finish_Solclient();
 	}
 
-	public static class ReplierMessageReceivedCallback implements
-			MessageCallback {
+	/**
+	 * Replies with the number of the request. The workers serve requests in
+	 * any order, so each number is checked against those expected, 0 to
+	 * expectedMax - 1 once each, rather than against the one before.
+	 */
+	static class RequestNumberHandler implements ReplierEngine.RequestHandler {
 
-		private int messageCount = 0;
+		// 1 once the request of that number came
+		private final AtomicIntegerArray received;
 
-		int expectedMax;
+		private final AtomicLong mismatchCount = new AtomicLong();
 
-		public ReplierMessageReceivedCallback(int max, String destination) {
-			expectedMax = max;
+		RequestNumberHandler(int expectedMax) {
+			received = new AtomicIntegerArray(expectedMax);
 		}
 
 		@Override
-		public void onMessage(Handle handle) {
-			try {
-
-				SessionHandle sessionHandle = (SessionHandle) handle;
-				MessageHandle rxMessage = sessionHandle.getRxMessage();
-
-				rxContent.clear();
-				// Get the binary attachment from the received message
-				rxMessage.getBinaryAttachment(rxContent);
-				rxContent.flip();
-
-				int requestInt = rxContent.getInt();
-				int expectedRequestInt = messageCount;
-
-				print("-> RRDirectReplier -> Received request [" + requestInt
-						+ "]");
-
-				if (requestInt != expectedRequestInt) {
-					throw new IllegalStateException(String.format(
-							"[%d] was expected, got this request instead [%d]",
-							expectedRequestInt, requestInt));
-				}
-				messageCount++;
-
-				if (!txMessageHandle.isBound()) {
-					// Allocate the message
-					int rc = Solclient.createMessageForHandle(txMessageHandle);
-					assertReturnCode("Solclient.createMessageForHandle()", rc,
-							SolEnum.ReturnCode.OK);
-				}
-
-				// Reuse the same rxMessage handle to reply
-				Destination destination = rxMessage.getReplyTo();
-
-				txMessageHandle.setDestination(destination);
-
-				// The Use the tx buffer
-				txContent.clear();
-				txContent.putInt(requestInt);
-				txContent.flip();
-
-				txMessageHandle.setBinaryAttachment(txContent);
-
-				print("Sending reply [" + requestInt + "] to ["
-						+ destination.getName() + "]");
-
-				// Response
-				int rc = sessionHandle.sendReply(rxMessage, txMessageHandle);
-				assertReturnCode("sessionHandle.sendReply", rc,
-						SolEnum.ReturnCode.OK);
-
-			} catch (IllegalStateException ise) {
-				quit = true;
-				throw ise;
-			} catch (SolclientException sce) {
-				quit = true;
-				throw sce;
-			} finally {
-				if (!quit && (messageCount >= expectedMax))
-					quit = true;
+		public boolean onRequest(MessageHandle request,
+				ByteBuffer requestPayload, ByteBuffer replyPayload) {
+			int requestInt = requestPayload.getInt();
+
+			print("-> RRDirectReplier -> Received request [" + requestInt
+					+ "]");
+
+			if (requestInt < 0 || requestInt >= received.length()
+					|| !received.compareAndSet(requestInt, 0, 1)) {
+				mismatchCount.incrementAndGet();
+				print(String.format(
+						"[%d] was not expected, out of range or received twice",
+						requestInt));
 			}
 
+			replyPayload.putInt(requestInt);
+			return true;
 		}
 
+		/**
+		 * @return requests whose number was not expected
+		 */
+		long getMismatchCount() {
+			return mismatchCount.get();
+		}
 	}
 
 /**
@@ -5,13 +5,16 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.event.MessageCallback;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
 import com.solacesystems.solclientj.core.resource.Topic;
@@ -24,8 +27,8 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * 
  * <dl>
  * <dt>RRDirectRequester
- * <dd>A message Endpoint that sends a request message and waits to receive a
- * reply message as a response.
+ * <dd>A message Endpoint that sends request messages and receives reply
+ * messages as responses.
  * <dt>RRDirectReplier
  * <dd>A message Endpoint that waits to receive a request message and responses
  * to it by sending a reply message.
@@ -37,6 +40,18 @@ import com.solacesystems.solclientj.core.resource.Topic;
  *  |-------------------|  <--ReplyToTopic---- |------------------|
  * </pre>
  * 
+ * Requests are sent through an {@link AsyncRequester}: up to a window of them
+ * (-w) wait for their reply at once, instead of blocking for each reply in
+ * sessionHandle.sendRequest, so the request rate is no longer capped at one
+ * per round trip. Replies come to a temporary topic and are correlated back
+ * to their request on the context thread. A {@link TimingWheel} times out each
+ * request left without a reply, as sendRequest did.
+ * 
+ * With -hedge a request still waiting after that percentile of the recent
+ * round trips is sent again, the first reply wins and the other is
+ * discarded, cutting the tail latency a slow replier or path causes. Run
+ * several RRDirectRepliers for the copies to take different paths.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -52,11 +67,29 @@ public class RRDirectRequester extends AbstractSample {
 
 	private MessageHandle txMessageHandle = Solclient.Allocator
 			.newMessageHandle();
-	private MessageHandle rxMessageHandle = Solclient.Allocator
+
+	private MessageHandle hedgeMessageHandle = Solclient.Allocator
 			.newMessageHandle();
 
 	private ByteBuffer txContent = ByteBuffer.allocateDirect(200);
-	private ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
+
+	// Most requests waiting for their reply, unless told otherwise
+	private static final int DEFAULT_WINDOW_SIZE = 100;
+
+	// How long to wait for a reply, as sendRequest used to
+	private static final int REPLY_TIMEOUT_MS = 5000;
+
+	// Resolution of the request timeouts, the wheel covers the timeout in a lap
+	private static final int TIMEOUT_TICK_MS = 10;
+
+	private AsyncRequester asyncRequester;
+
+	private TimingWheel timingWheel;
+
+	// Resolution of the hedges, a fraction of a round trip
+	private static final int HEDGE_TICK_US = 100;
+
+	private TimingWheel hedgeWheel;
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -65,10 +98,44 @@ public class RRDirectRequester extends AbstractSample {
 		usage += "\t[-t topic]\t Topic, default:" + SampleUtils.SAMPLE_TOPIC
 				+ "\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-w window]\t Number of requests waiting for their reply at once, default: "
+				+ DEFAULT_WINDOW_SIZE + "\n";
+		usage += "\t[-hedge percentile]\t Send a request again once it waited that percentile of the recent round trips, 95 for instance.\n";
+		usage += "\t\t Hedging starts after " + AsyncRequester.HEDGE_SAMPLES
+				+ " replies, default: off\n";
 		System.out.println(usage);
 		finish(1);
 	}
 
+	/**
+	 * Checks each response carries the number of its request, on the context
+	 * thread
+	 */
+	static class ResponseChecker implements AsyncRequester.ReplyListener {
+
+		int responseCount = 0;
+
+		int mismatchCount = 0;
+
+		@Override
+		public void onReply(long requestId, MessageHandle reply,
+				ByteBuffer payload, long roundTripNanos) {
+			int response = payload.getInt();
+			responseCount++;
+			if (response != requestId) {
+				mismatchCount++;
+				print(String.format(
+						"[%d] was expected, got this response instead [%d]",
+						requestId, response));
+			}
+		}
+
+		@Override
+		public void onTimeout(long requestId) {
+			// Counted by the AsyncRequester
+		}
+	}
+
 	public void sendRequests(int maxRequestMessages, String aDestinationName) {
 
 		Topic topic = Solclient.Allocator.newTopic(aDestinationName);
@@ -89,46 +156,65 @@ public class RRDirectRequester extends AbstractSample {
 		// Set the destination/topic
 		txMessageHandle.setDestination(topic);
 
+		if (asyncRequester.isHedging()) {
+			// Hedges go where the requests go, sent by the tick thread
+			if (!hedgeMessageHandle.isBound()) {
+				rc = Solclient.createMessageForHandle(hedgeMessageHandle);
+				assertReturnCode("Solclient.createMessageForHandle()", rc,
+						SolEnum.ReturnCode.OK);
+			}
+			hedgeMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+			hedgeMessageHandle.setDestination(topic);
+		}
+
+		ResponseChecker responseChecker = new ResponseChecker();
+
+		print("Sending " + maxRequestMessages + " requests, up to "
+				+ asyncRequester.getWindowSize() + " waiting for a response");
+		long startTime = System.nanoTime();
+
 		for (int i = 0; i < maxRequestMessages; i++) {
 
 			txContent.clear();
 			txContent.putInt(i);
 			txContent.flip();
 
-			/* Add some content to the message. */
-			txMessageHandle.setBinaryAttachment(txContent);
-
-			/* Send the message. */
-			print("Sending Request [" + i + "] and blocking for a response");
-			rc = sessionHandle.sendRequest(txMessageHandle, rxMessageHandle,
-					5000);
-			print("Response was "+ rc);
-			assertReturnCode("aSessionHandle.sendRequest()", rc,
-					SolEnum.ReturnCode.OK);
-
-			// Clear the buffer and copy message content into it.
-			rxContent.clear();
-			rxMessageHandle.getBinaryAttachment(rxContent);
-			rxContent.flip();
-
-			int response = rxContent.getInt();
-			print("Received response [" + response + "]");
-
-			// Do some assertion for the expected response
-			if (response != i) {
-				throw new IllegalStateException(String.format(
-						"[%d] was expected, got this response instead [%d]", i,
-						response));
-			}
-
-			if (rxMessageHandle.isBound()) {
-				// Clean up time
-				print("rxMessageHandle.destroy()");
-				rxMessageHandle.destroy();
-			}
+			/* Send the request, the response comes to the responseChecker. */
+			asyncRequester.request(txMessageHandle, txContent, i,
+					responseChecker);
 
 		} // EndFor
 
+		// Every request is replied to or times out, a tick late at most
+		asyncRequester.awaitEmpty(REPLY_TIMEOUT_MS + 2 * TIMEOUT_TICK_MS);
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+		print(String.format(
+				"Received %d responses in %.3f seconds, %.0f requests/second, %d timed out, %d unknown replies, %d sent without timeout",
+				responseChecker.responseCount, elapsedSeconds,
+				responseChecker.responseCount / elapsedSeconds,
+				asyncRequester.getTimedOutCount(),
+				asyncRequester.getUnknownReplyCount(),
+				asyncRequester.getUntimedCount()));
+		asyncRequester.getRoundTripLatency().printPercentiles(
+				"Request round trip");
+		if (asyncRequester.isHedging())
+			asyncRequester.printHedgeReport();
+
+		// Do some assertion for the expected responses
+		if (asyncRequester.getTimedOutCount() > 0
+				|| asyncRequester.getInFlight() > 0) {
+			throw new IllegalStateException(String.format(
+					"%d requests without a response after %d ms",
+					asyncRequester.getTimedOutCount()
+							+ asyncRequester.getInFlight(), REPLY_TIMEOUT_MS));
+		}
+		if (responseChecker.mismatchCount > 0) {
+			throw new IllegalStateException(responseChecker.mismatchCount
+					+ " responses did not match their request");
+		}
+
 	}
 
 	/**
@@ -146,14 +232,27 @@ public class RRDirectRequester extends AbstractSample {
 		}
 
 		int numberOfRequestMessages = 5;
+		int windowSize = DEFAULT_WINDOW_SIZE;
+		double hedgePercentile = 0;
 
 		String strCount = config.getArgBag().get("-n");
-		if (strCount != null) {
-			try {
+		String strWindow = config.getArgBag().get("-w");
+		String strHedge = config.getArgBag().get("-hedge");
+		try {
+			if (strCount != null)
 				numberOfRequestMessages = Integer.parseInt(strCount);
-			} catch (NumberFormatException e) {
-				printUsage(config instanceof SecureSessionConfiguration);
-			}
+			if (strWindow != null)
+				windowSize = Integer.parseInt(strWindow);
+			if (strHedge != null)
+				hedgePercentile = Double.parseDouble(strHedge);
+		} catch (NumberFormatException e) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
+		}
+		if (windowSize < 1
+				|| (strHedge != null && (hedgePercentile <= 0 || hedgePercentile >= 100))) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
 		}
 
 		// Init
@@ -209,7 +308,17 @@ public class RRDirectRequester extends AbstractSample {
 		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.DISABLE;
 
 		SessionEventCallback sessionEventCallback = getDefaultSessionEventCallback();
-		MessageCallbackSample messageCallback = getMessageCallback(false);
+		// Replies are correlated as they come, the asyncRequester is set
+		// before any request is sent
+		MessageCallback messageCallback = new MessageCallback() {
+			@Override
+			public void onMessage(Handle handle) {
+				MessageHandle rxMessage = ((SessionHandle) handle)
+						.getRxMessage();
+				if (rxMessage.isReplyMessage())
+					asyncRequester.onReply(rxMessage);
+			}
+		};
 
 		/* Create the Session. */
 		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
@@ -222,6 +331,26 @@ public class RRDirectRequester extends AbstractSample {
 		rc = sessionHandle.connect();
 		assertReturnCode("sessionHandle.connect()", rc, SolEnum.ReturnCode.OK);
 
+		/* Subscribe to a temporary topic for the replies. */
+		Topic replyTopic = sessionHandle.createTemporaryTopic();
+		rc = sessionHandle.subscribe(replyTopic,
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+		assertReturnCode("sessionHandle.subscribe() to reply topic "
+				+ replyTopic.getName(), rc, SolEnum.ReturnCode.OK);
+
+		timingWheel = new TimingWheel(windowSize, TIMEOUT_TICK_MS,
+				TimeUnit.MILLISECONDS, REPLY_TIMEOUT_MS / TIMEOUT_TICK_MS)
+				.start();
+		asyncRequester = new AsyncRequester(sessionHandle, replyTopic,
+				windowSize, txContent.capacity()).setTimeout(timingWheel,
+				REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		if (strHedge != null) {
+			hedgeWheel = new TimingWheel(windowSize, HEDGE_TICK_US,
+					TimeUnit.MICROSECONDS, 1024).start();
+			asyncRequester.setHedging(hedgeWheel, hedgeMessageHandle,
+					hedgePercentile);
+		}
+
 		/* Send the requests and wait for the responses. */
 		sendRequests(numberOfRequestMessages, destinationName);
 
@@ -241,8 +370,16 @@ public class RRDirectRequester extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
+		if (timingWheel != null)
+			timingWheel.stop();
+
+		if (hedgeWheel != null)
+			hedgeWheel.stop();
+
 		finish_DestroyHandle(txMessageHandle, "messageHandle");
 
+		finish_DestroyHandle(hedgeMessageHandle, "hedgeMessageHandle");
+
 		finish_Disconnect(sessionHandle);
 
 		finish_DestroyHandle(sessionHandle, "sessionHandle");
@@ -5,20 +5,19 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.Solclient;
 import com.solacesystems.solclientj.core.SolclientException;
 import com.solacesystems.solclientj.core.event.FlowEventCallback;
-import com.solacesystems.solclientj.core.event.MessageCallback;
 import com.solacesystems.solclientj.core.event.SessionEventCallback;
 import com.solacesystems.solclientj.core.handle.ContextHandle;
 import com.solacesystems.solclientj.core.handle.FlowHandle;
-import com.solacesystems.solclientj.core.handle.Handle;
 import com.solacesystems.solclientj.core.handle.MessageHandle;
 import com.solacesystems.solclientj.core.handle.SessionHandle;
-import com.solacesystems.solclientj.core.resource.Destination;
 import com.solacesystems.solclientj.core.resource.Endpoint;
 import com.solacesystems.solclientj.core.resource.Topic;
 
@@ -47,6 +46,19 @@ import com.solacesystems.solclientj.core.resource.Topic;
  * <b>Notes: the RRGuaranteedReplier supports request queue or topic formats,
  * but not both at the same time.</b>
  * 
+ * Requests are served by a {@link ReplierEngine}: the flow callback hands them
+ * to a pool of workers (-workers), each replying with its own message and
+ * buffers, so that the context thread only receives.
+ * 
+ * The replies changed with it. The replier used to send each reply from the
+ * flow callback, a new PERSISTENT message sent to the request's reply-to with
+ * sessionHandle.send. The workers now send it with sessionHandle.sendReply, on
+ * the session the context thread receives on: still PERSISTENT and still to
+ * the reply-to, but flagged as a reply and carrying the correlation id of the
+ * request. A requester filtering on isReplyMessage or matching correlation
+ * ids finds its replies, one expecting plain messages sees the reply flag.
+ * The workers also reply in any order, not the order the requests came.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -60,14 +72,13 @@ public class RRGuaranteedReplier extends AbstractSample {
 	private ContextHandle contextHandle = Solclient.Allocator
 			.newContextHandle();
 
-	private static MessageHandle txMessageHandle = Solclient.Allocator
-			.newMessageHandle();
-
 	FlowHandle flowHandle = Solclient.Allocator.newFlowHandle();
 
-	private static ByteBuffer txContent = ByteBuffer.allocateDirect(200);
+	private static final int MAX_PAYLOAD_SIZE = 200;
 
-	private static ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
+	private ReplierEngine replierEngine;
+
+	private RequestNumberHandler requestHandler;
 
 	private static boolean quit = false;
 
@@ -83,6 +94,8 @@ public class RRGuaranteedReplier extends AbstractSample {
 		usage += "\t[-q queue]\t Guaranteed Message Queue.\n";
 		usage += "\t\t Topic and Queue are mutually exclusive, just pick one\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-workers number]\t Number of threads replying, default: "
+				+ ReplierEngine.DEFAULT_WORKERS + "\n";
 		System.out.println(usage);
 		finish(1);
 	}
@@ -111,14 +124,17 @@ public class RRGuaranteedReplier extends AbstractSample {
 		}
 		
 		int numberOfRequestMessages = 5;
+		int workerCount = ReplierEngine.DEFAULT_WORKERS;
 
 		String strCount = config.getArgBag().get("-n");
-		if (strCount != null) {
-			try {
+		String strWorkers = config.getArgBag().get("-workers");
+		try {
+			if (strCount != null)
 				numberOfRequestMessages = Integer.parseInt(strCount);
-			} catch (NumberFormatException e) {
-				printUsage(config instanceof SecureSessionConfiguration);
-			}
+			if (strWorkers != null)
+				workerCount = Integer.parseInt(strWorkers);
+		} catch (NumberFormatException e) {
+			printUsage(config instanceof SecureSessionConfiguration);
 		}
 
 		// Init
@@ -247,12 +263,15 @@ public class RRGuaranteedReplier extends AbstractSample {
 		flowProperties[flowProps++] = SolEnum.BooleanValue.ENABLE;
 
 		FlowEventCallback flowEventCallback = getDefaultFlowEventCallback();
-		FlowMessageReceivedCallback flowMessageReceivedCallback = new FlowMessageReceivedCallback(
-				numberOfRequestMessages);
+		requestHandler = new RequestNumberHandler(numberOfRequestMessages);
+		// The engine is the flow's message callback, its workers reply
+		replierEngine = new ReplierEngine(sessionHandle, workerCount,
+				ReplierEngine.DEFAULT_RING_CAPACITY, MAX_PAYLOAD_SIZE,
+				SolEnum.MessageDeliveryMode.PERSISTENT,
+				MessageHandoffRing.WaitStrategy.PARK, requestHandler).start();
 
 		rc = sessionHandle.createFlowForHandle(flowHandle, flowProperties,
-				endpoint, topic, flowMessageReceivedCallback,
-				flowEventCallback);
+				endpoint, topic, replierEngine, flowEventCallback);
 
 		assertReturnCode("sessionHandle.createFlowForHandle()", rc,
 				SolEnum.ReturnCode.OK);
@@ -268,9 +287,10 @@ public class RRGuaranteedReplier extends AbstractSample {
 			}
 		});
 
-		// Do some waiting, the registered callback withh handle messages with
-		// replies, it will quit when done
-		while (!quit) {
+		// Do some waiting, the workers reply to the requests, quit when done
+		while (!quit
+				&& replierEngine.getRepliedCount()
+						+ replierEngine.getFailedCount() < numberOfRequestMessages) {
 			try {
 				Thread.sleep(300);
 			} catch (InterruptedException e) {
@@ -279,6 +299,16 @@ public class RRGuaranteedReplier extends AbstractSample {
 		}
 
 		print("Quitting time");
+		print(String.format(
+				"%d requests, %d replies from %d workers, %d served on the context thread, %d failed",
+				replierEngine.getReceivedCount(),
+				replierEngine.getRepliedCount(),
+				replierEngine.getWorkerCount(),
+				replierEngine.getInlineCount(),
+				replierEngine.getFailedCount()));
+		if (requestHandler.getMismatchCount() > 0)
+			print(requestHandler.getMismatchCount()
+					+ " requests were not expected");
 
 		print("Run() DONE");
 	}
@@ -295,11 +325,12 @@ public class RRGuaranteedReplier extends AbstractSample {
 
 		finish_DestroyHandle(flowHandle, "flowHandle");
 
+		if (replierEngine != null)
+			replierEngine.stop();
+
 		if (endpointProvisioned)
 			finish_Deprovision(endpoint, sessionHandle);
 
-		finish_DestroyHandle(txMessageHandle, "messageHandle");
-
 		finish_Disconnect(sessionHandle);
 
 		finish_DestroyHandle(sessionHandle, "sessionHandle");
@@ -309,91 +340,47 @@ public class RRGuaranteedReplier extends AbstractSample {
 		finish_Solclient();
 	}
 
-	public static class FlowMessageReceivedCallback implements MessageCallback {
+	/**
+	 * Replies with the number of the request. The workers serve requests in
+	 * any order, so each number is checked against those expected, 0 to
+	 * expectedMax - 1 once each, rather than against the one before.
+	 */
+	static class RequestNumberHandler implements ReplierEngine.RequestHandler {
 
-		private int messageCount = 0;
-		int expectedMax;
+		// 1 once the request of that number came
+		private final AtomicIntegerArray received;
 
-		public FlowMessageReceivedCallback(int max) {
-			expectedMax = max;
+		private final AtomicLong mismatchCount = new AtomicLong();
+
+		RequestNumberHandler(int expectedMax) {
+			received = new AtomicIntegerArray(expectedMax);
 		}
 
 		@Override
-		public void onMessage(Handle handle) {
-
-			try {
-
-				FlowHandle flowHandle = (FlowHandle) handle;
-				MessageHandle rxMessage = flowHandle.getRxMessage();
-
-				/* Get reply queue address. */
-				Destination replyTo = rxMessage.getReplyTo();
-
-				rxContent.clear();
-				// Get the binary attachment from the received message
-				rxMessage.getBinaryAttachment(rxContent);
-				rxContent.flip();
+		public boolean onRequest(MessageHandle request,
+				ByteBuffer requestPayload, ByteBuffer replyPayload) {
+			int requestInt = requestPayload.getInt();
 
-				int requestInt = rxContent.getInt();
-
-				int expectedRequestInt = messageCount;
-
-				print("-> RRGuaranteedReplier -> Received request ["
-						+ requestInt + "]");
-
-				if (requestInt != expectedRequestInt) {
-					throw new IllegalStateException(String.format(
-							"[%d] was expected, got this request instead [%d]",
-							expectedRequestInt, requestInt));
-				}
-
-				// Send a response
-				if (!txMessageHandle.isBound()) {
-					// Allocate the message
-					int rc = Solclient.createMessageForHandle(txMessageHandle);
-					assertReturnCode("Solclient.createMessageForHandle()", rc,
-							SolEnum.ReturnCode.OK);
-				}
-
-				/* Set the message delivery mode. */
-				txMessageHandle
-						.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
-
-				txMessageHandle.setDestination(replyTo);
-
-				// The Use the tx buffer
-				txContent.clear();
-				txContent.putInt(requestInt);
-				txContent.flip();
-
-				txMessageHandle.setBinaryAttachment(txContent);
-
-				print("Sending response [" + requestInt + "] to ["
-						+ replyTo.getName() + "]");
-
-				// Response
-				int rc = sessionHandle.send(txMessageHandle);
-				assertReturnCode("sessionHandle.send", rc,
-						SolEnum.ReturnCode.OK);
-
-				messageCount++;
-
-			} catch (IllegalStateException ise) {
-				quit = true;
-				throw ise;
+			print("-> RRGuaranteedReplier -> Received request [" + requestInt
+					+ "]");
 
-			} finally {
-				if (!quit && (messageCount >= expectedMax))
-					quit = true;
+			if (requestInt < 0 || requestInt >= received.length()
+					|| !received.compareAndSet(requestInt, 0, 1)) {
+				mismatchCount.incrementAndGet();
+				print(String.format(
+						"[%d] was not expected, out of range or received twice",
+						requestInt));
 			}
-		}
 
-		public int getMessageCount() {
-			return messageCount;
+			replyPayload.putInt(requestInt);
+			return true;
 		}
 
-		public void setMessageCount(int messageCount) {
-			this.messageCount = messageCount;
+		/**
+		 * @return requests whose number was not expected
+		 */
+		long getMismatchCount() {
+			return mismatchCount.get();
 		}
 	}
 
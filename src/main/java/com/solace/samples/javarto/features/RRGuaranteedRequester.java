@@ -5,6 +5,7 @@
 package com.solace.samples.javarto.features;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import com.solacesystems.solclientj.core.SolEnum;
@@ -46,6 +47,12 @@ import com.solacesystems.solclientj.core.resource.Queue;
  * <b>Notes: the RRGuaranteedReplier supports request queue or topic formats,
  * but not both at the same time.</b>
  * 
+ * Requests go through an {@link AsyncRequester}, one at a time unless -w
+ * lets more wait for their reply, with the reply flow handing the replies
+ * over. With -hedge a request still waiting after that percentile of the
+ * recent round trips is sent again, the first reply wins and the other is
+ * discarded.
+ * 
  * <strong>This sample illustrates the ease of use of concepts, and may not be
  * GC-free.<br>
  * See Perf* samples for GC-free examples. </strong>
@@ -64,10 +71,25 @@ public class RRGuaranteedRequester extends AbstractSample {
 
 	private FlowHandle flowHandle = Solclient.Allocator.newFlowHandle();
 
+	private MessageHandle hedgeMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+
 	private ByteBuffer txContent = ByteBuffer.allocateDirect(200);
-	private static ByteBuffer rxContent = ByteBuffer.allocateDirect(200);
 
-	static boolean[] requestReceived;
+	// How long to wait for a reply
+	private static final int REPLY_TIMEOUT_MS = 10000;
+
+	// Resolution of the request timeouts
+	private static final int TIMEOUT_TICK_MS = 10;
+
+	// Resolution of the hedges, a fraction of a round trip
+	private static final int HEDGE_TICK_US = 100;
+
+	private AsyncRequester asyncRequester;
+
+	private TimingWheel timingWheel;
+
+	private TimingWheel hedgeWheel;
 
 	@Override
 	protected void printUsage(boolean secureSession) {
@@ -77,10 +99,47 @@ public class RRGuaranteedRequester extends AbstractSample {
 		usage += "\t[-q queue]\t Guaranteed Message Queue.\n";
 		usage += "\t\t Topic and Queue are mutually exclusive, just pick one\n";
 		usage += "\t[-n number]\t Number of request messages to send, default: 5\n";
+		usage += "\t[-w window]\t Number of requests waiting for their reply at once, default: 1\n";
+		usage += "\t[-hedge percentile]\t Send a request again once it waited that percentile of the recent round trips, 95 for instance.\n";
+		usage += "\t\t Hedging starts after " + AsyncRequester.HEDGE_SAMPLES
+				+ " replies, default: off\n";
 		System.out.println(usage);
 		finish(1);
 	}
 
+	/**
+	 * Checks each response carries the number of its request, on the context
+	 * thread
+	 */
+	static class ResponseChecker implements AsyncRequester.ReplyListener {
+
+		int responseCount = 0;
+
+		int mismatchCount = 0;
+
+		@Override
+		public void onReply(long requestId, MessageHandle reply,
+				ByteBuffer payload, long roundTripNanos) {
+			int requestInt = payload.getInt();
+			responseCount++;
+
+			print("-> RRGuaranteedRequester -> Received reponse [" + requestInt
+					+ "]");
+
+			if (requestInt != requestId) {
+				mismatchCount++;
+				print(String.format(
+						"[%d] was expected, got this request instead [%d]",
+						requestId, requestInt));
+			}
+		}
+
+		@Override
+		public void onTimeout(long requestId) {
+			print("Request message timeout.");
+		}
+	}
+
 	public boolean sendRequests(int maxRequestMessages, Destination destination,
 			FlowHandle flowHandle) {
 
@@ -100,49 +159,55 @@ public class RRGuaranteedRequester extends AbstractSample {
 		// Set the destination
 		txMessageHandle.setDestination(destination);
 
+		if (asyncRequester.isHedging()) {
+			// Hedges go where the requests go, sent by the tick thread
+			if (!hedgeMessageHandle.isBound()) {
+				rc = Solclient.createMessageForHandle(hedgeMessageHandle);
+				assertReturnCode("Solclient.createMessageForHandle()", rc,
+						SolEnum.ReturnCode.OK);
+			}
+			hedgeMessageHandle
+					.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.PERSISTENT);
+			hedgeMessageHandle.setDestination(destination);
+		}
+
 		/*
-		 * Retrieve the temporary queue name from the Flow.
+		 * The replyTo address, the temporary queue of the Flow, is set by the
+		 * asyncRequester.
 		 */
-		Destination replyToAddress = flowHandle.getDestination();
-		/* set the replyTo address. */
-		txMessageHandle.setReplyTo(replyToAddress);
+		ResponseChecker responseChecker = new ResponseChecker();
 
 		for (int i = 0; i < maxRequestMessages; i++) {
 
-			int waitInSec = 10;
-
 			txContent.clear();
 			txContent.putInt(i);
 			txContent.flip();
 
-			/* Add some content to the message. */
-			txMessageHandle.setBinaryAttachment(txContent);
-
-			/* Send the message. */
+			/* Send the message, the response comes to the responseChecker. */
 			print("Sending Request [" + i + "]");
-			rc = sessionHandle.send(txMessageHandle);
-			assertReturnCode("aSessionHandle.send()", rc, SolEnum.ReturnCode.OK);
-
-			requestReceived[i] = false;
-
-			/* Wait until a reply message or being interrupted. */
-			while ((!requestReceived[i]) && (waitInSec > 0)) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				waitInSec--;
-			}
+			asyncRequester.request(txMessageHandle, txContent, i,
+					responseChecker);
 
-			if (waitInSec == 0) {
-				print("Request message timeout.");
+			if (asyncRequester.getTimedOutCount() > 0) {
 				//break;
 				return false;
 			}
 
 		} // EndFor
-		return true;
+
+		// Every request is replied to or times out, a tick late at most
+		asyncRequester.awaitEmpty(REPLY_TIMEOUT_MS + 2 * TIMEOUT_TICK_MS);
+		if (asyncRequester.getUntimedCount() > 0)
+			print(asyncRequester.getUntimedCount()
+					+ " requests sent without timeout, the timing wheel full");
+		asyncRequester.getRoundTripLatency().printPercentiles(
+				"Request round trip");
+		if (asyncRequester.isHedging())
+			asyncRequester.printHedgeReport();
+
+		return asyncRequester.getTimedOutCount() == 0
+				&& asyncRequester.getInFlight() == 0
+				&& responseChecker.mismatchCount == 0;
 	}
 
 	/**
@@ -169,17 +234,28 @@ public class RRGuaranteedRequester extends AbstractSample {
 		}
 
 		int numberOfRequestMessages = 5;
+		int windowSize = 1;
+		double hedgePercentile = 0;
 
 		String strCount = config.getArgBag().get("-n");
-		if (strCount != null) {
-			try {
+		String strWindow = config.getArgBag().get("-w");
+		String strHedge = config.getArgBag().get("-hedge");
+		try {
+			if (strCount != null)
 				numberOfRequestMessages = Integer.parseInt(strCount);
-			} catch (NumberFormatException e) {
-				printUsage(config instanceof SecureSessionConfiguration);
-			}
+			if (strWindow != null)
+				windowSize = Integer.parseInt(strWindow);
+			if (strHedge != null)
+				hedgePercentile = Double.parseDouble(strHedge);
+		} catch (NumberFormatException e) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
+		}
+		if (windowSize < 1
+				|| (strHedge != null && (hedgePercentile <= 0 || hedgePercentile >= 100))) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
 		}
-
-		requestReceived = new boolean[numberOfRequestMessages];
 
 		// Init
 		print(" Initializing the Java RTO Messaging API...");
@@ -261,7 +337,14 @@ public class RRGuaranteedRequester extends AbstractSample {
 		flowProperties[flowProps++] = SolEnum.BooleanValue.ENABLE;
 
 		FlowEventCallback flowEventCallback = getDefaultFlowEventCallback();
-		FlowMessageReceivedCallback flowMessageReceivedCallback = new FlowMessageReceivedCallback();
+		// Replies are correlated as they come, the asyncRequester is set
+		// before any request is sent
+		MessageCallback flowMessageReceivedCallback = new MessageCallback() {
+			@Override
+			public void onMessage(Handle handle) {
+				asyncRequester.onReply(((FlowHandle) handle).getRxMessage());
+			}
+		};
 		Queue tempQueue = sessionHandle.createTemporaryQueue();
 
 		print("Created tempQueue [" + tempQueue.getName() + "] isTemporary? ["
@@ -275,6 +358,25 @@ public class RRGuaranteedRequester extends AbstractSample {
 		assertReturnCode("sessionHandle.createFlowForHandle()", rc,
 				SolEnum.ReturnCode.OK);
 
+		/*
+		 * Retrieve the temporary queue name from the Flow, the replyTo of the
+		 * requests.
+		 */
+		Destination replyToAddress = flowHandle.getDestination();
+
+		timingWheel = new TimingWheel(windowSize, TIMEOUT_TICK_MS,
+				TimeUnit.MILLISECONDS, REPLY_TIMEOUT_MS / TIMEOUT_TICK_MS)
+				.start();
+		asyncRequester = new AsyncRequester(sessionHandle, replyToAddress,
+				windowSize, txContent.capacity()).setTimeout(timingWheel,
+				REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		if (strHedge != null) {
+			hedgeWheel = new TimingWheel(windowSize, HEDGE_TICK_US,
+					TimeUnit.MICROSECONDS, 1024).start();
+			asyncRequester.setHedging(hedgeWheel, hedgeMessageHandle,
+					hedgePercentile);
+		}
+
 		/*************************************************************************
 		 * Request Message
 		 *************************************************************************/
@@ -308,10 +410,18 @@ public class RRGuaranteedRequester extends AbstractSample {
 		 * Cleanup
 		 *************************************************************************/
 
+		if (timingWheel != null)
+			timingWheel.stop();
+
+		if (hedgeWheel != null)
+			hedgeWheel.stop();
+
 		finish_DestroyHandle(flowHandle, "flowHandle");
 
 		finish_DestroyHandle(txMessageHandle, "messageHandle");
 
+		finish_DestroyHandle(hedgeMessageHandle, "hedgeMessageHandle");
+
 		finish_Disconnect(sessionHandle);
 
 		finish_DestroyHandle(sessionHandle, "sessionHandle");
@@ -321,49 +431,6 @@ public class RRGuaranteedRequester extends AbstractSample {
 		finish_Solclient();
 	}
 
-	public static class FlowMessageReceivedCallback implements MessageCallback {
-
-		private int messageCount = 0;
-
-		@Override
-		public void onMessage(Handle handle) {
-
-			FlowHandle flowHandle = (FlowHandle) handle;
-			MessageHandle rxMessage = flowHandle.getRxMessage();
-
-			rxContent.clear();
-			// Get the binary attachment from the received message
-			rxMessage.getBinaryAttachment(rxContent);
-			rxContent.flip();
-
-			int requestInt = rxContent.getInt();
-
-			int expectedRequestInt = messageCount;
-
-			print("-> RRGuaranteedRequester -> Received reponse [" + requestInt
-					+ "]");
-
-			if (requestInt != expectedRequestInt) {
-				throw new IllegalStateException(String.format(
-						"[%d] was expected, got this request instead [%d]",
-						expectedRequestInt, requestInt));
-			}
-
-			// Mark as received
-			requestReceived[requestInt] = true;
-
-			messageCount++;
-		}
-
-		public int getMessageCount() {
-			return messageCount;
-		}
-
-		public void setMessageCount(int messageCount) {
-			this.messageCount = messageCount;
-		}
-	}
-
 /**
      * Boilerplate, calls {@link #run(String[])
      * @param args
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.SolclientException;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.event.SessionEventCallback;
+import com.solacesystems.solclientj.core.handle.ContextHandle;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Topic;
+
+/**
+ * RRScatterGatherRequester.java
+ * 
+ * This sample shows how to send a request to a group of repliers and gather
+ * their replies, where
+ * 
+ * <dl>
+ * <dt>RRScatterGatherRequester
+ * <dd>A message Endpoint that sends each request once to all the repliers
+ * subscribed to the request topic, and gathers replies until a quorum of them
+ * came or a deadline passed.
+ * <dt>RRDirectReplier
+ * <dd>A message Endpoint that waits to receive a request message and responses
+ * to it by sending a reply message. Run several of them on the same topic.
+ * </dl>
+ * 
+ * <pre>
+ *                             ---RequestTopic --> |------------------|
+ *                            |                    | RRDirectReplier  |
+ *  |--------------------------|  <--ReplyToTopic--|------------------|
+ *  | RRScatterGatherRequester |                          ...
+ *  |--------------------------|  <--ReplyToTopic--|------------------|
+ *                            |                    | RRDirectReplier  |
+ *                             ---RequestTopic --> |------------------|
+ * </pre>
+ * 
+ * Requests go through a {@link ScatterGatherRequester}: each carries a
+ * correlation id and the reply-to of a temporary topic, which the repliers
+ * copy into their replies, so the replies of up to a window (-w) of requests
+ * are gathered at once on the context thread. A request completes with the
+ * first -q replies, or with those received by its deadline (-d), which a
+ * {@link TimingWheel} enforces.
+ * 
+ * <strong>This sample illustrates the ease of use of concepts, and may not be
+ * GC-free.<br>
+ * See Perf* samples for GC-free examples. </strong>
+ * 
+ */
+public class RRScatterGatherRequester extends AbstractSample {
+
+	private SessionHandle sessionHandle = Solclient.Allocator
+			.newSessionHandle();
+
+	private ContextHandle contextHandle = Solclient.Allocator
+			.newContextHandle();
+
+	private MessageHandle txMessageHandle = Solclient.Allocator
+			.newMessageHandle();
+
+	private ByteBuffer txContent = ByteBuffer.allocateDirect(200);
+
+	// Most requests gathering replies at once, unless told otherwise
+	private static final int DEFAULT_WINDOW_SIZE = 10;
+
+	// Replies completing a request, unless told otherwise
+	private static final int DEFAULT_QUORUM = 1;
+
+	// How long a request gathers replies, unless told otherwise
+	private static final int DEFAULT_DEADLINE_MS = 1000;
+
+	// Resolution of the deadlines
+	private static final int DEADLINE_TICK_MS = 1;
+
+	private ScatterGatherRequester scatterGatherRequester;
+
+	private TimingWheel timingWheel;
+
+	@Override
+	protected void printUsage(boolean secureSession) {
+		String usage = ArgumentsParser.getCommonUsage(secureSession);
+		usage += "This sample:\n";
+		usage += "\t[-t topic]\t Topic, default:" + SampleUtils.SAMPLE_TOPIC
+				+ "\n";
+		usage += "\t[-n number]\t Number of requests to send, default: 5\n";
+		usage += "\t[-q quorum]\t Number of replies completing a request, default: "
+				+ DEFAULT_QUORUM + "\n";
+		usage += "\t[-d deadline]\t Milliseconds a request gathers replies for at most, default: "
+				+ DEFAULT_DEADLINE_MS + "\n";
+		usage += "\t[-w window]\t Number of requests gathering replies at once, default: "
+				+ DEFAULT_WINDOW_SIZE + "\n";
+		System.out.println(usage);
+		finish(1);
+	}
+
+	/**
+	 * Checks each reply carries the number of its request and counts the
+	 * replies gathered, on the context thread or on the tick thread
+	 */
+	static class ResultChecker implements
+			ScatterGatherRequester.GatherListener {
+
+		int resultCount = 0;
+
+		int emptyCount = 0;
+
+		long replyCount = 0;
+
+		int mismatchCount = 0;
+
+		@Override
+		public synchronized void onGathered(
+				ScatterGatherRequester.Result result) {
+			resultCount++;
+			if (result.getReplies().isEmpty())
+				emptyCount++;
+			for (int i = 0; i < result.getReplies().size(); i++) {
+				ScatterGatherRequester.Reply reply = result.getReplies().get(i);
+				replyCount++;
+				int response = ByteBuffer.wrap(reply.getPayload()).getInt();
+				if (response != result.getRequestId()) {
+					mismatchCount++;
+					print(String.format(
+							"[%d] was expected, got this response from %s instead [%d]",
+							result.getRequestId(), reply.getSenderId(),
+							response));
+				}
+			}
+		}
+	}
+
+	public void sendRequests(int maxRequestMessages, String aDestinationName,
+			int quorum, int deadlineMs) {
+
+		Topic topic = Solclient.Allocator.newTopic(aDestinationName);
+
+		int rc = 0;
+
+		if (!txMessageHandle.isBound()) {
+			// Allocate the message
+			rc = Solclient.createMessageForHandle(txMessageHandle);
+			assertReturnCode("Solclient.createMessageForHandle()", rc,
+					SolEnum.ReturnCode.OK);
+		}
+
+		/* Set the message delivery mode. */
+		txMessageHandle
+				.setMessageDeliveryMode(SolEnum.MessageDeliveryMode.DIRECT);
+
+		// Set the destination/topic
+		txMessageHandle.setDestination(topic);
+
+		ResultChecker resultChecker = new ResultChecker();
+
+		print("Sending " + maxRequestMessages + " requests, each gathering "
+				+ quorum + " replies or for " + deadlineMs + " ms, up to "
+				+ scatterGatherRequester.getMaxOutstanding() + " at once");
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < maxRequestMessages; i++) {
+
+			txContent.clear();
+			txContent.putInt(i);
+			txContent.flip();
+
+			/* Send the request, the replies are gathered for the resultChecker. */
+			scatterGatherRequester.scatter(txMessageHandle, txContent, quorum,
+					deadlineMs, TimeUnit.MILLISECONDS, i, resultChecker);
+
+		} // EndFor
+
+		// Every request completes by its deadline, a tick late at most
+		scatterGatherRequester.awaitEmpty(deadlineMs + 2 * DEADLINE_TICK_MS);
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+		synchronized (resultChecker) {
+			print(String.format(
+					"Completed %d requests in %.3f seconds, %.0f requests/second, %.2f replies per request",
+					resultChecker.resultCount, elapsedSeconds,
+					resultChecker.resultCount / elapsedSeconds,
+					resultChecker.resultCount == 0 ? 0.0
+							: (double) resultChecker.replyCount
+									/ resultChecker.resultCount));
+			print(String.format(
+					"%d reached their quorum, %d partial at their deadline (%d without any reply), %d late replies, %d unknown replies, %d sent without deadline",
+					scatterGatherRequester.getQuorumCount(),
+					scatterGatherRequester.getPartialCount(),
+					resultChecker.emptyCount,
+					scatterGatherRequester.getLateReplyCount(),
+					scatterGatherRequester.getUnknownReplyCount(),
+					scatterGatherRequester.getUntimedCount()));
+			scatterGatherRequester.getQuorumLatency().printPercentiles(
+					"Request to quorum");
+
+			// Partial results are results, but every reply must match
+			if (scatterGatherRequester.getOutstanding() > 0) {
+				throw new IllegalStateException(
+						scatterGatherRequester.getOutstanding()
+								+ " requests not completed by their deadline");
+			}
+			if (resultChecker.mismatchCount > 0) {
+				throw new IllegalStateException(resultChecker.mismatchCount
+						+ " responses did not match their request");
+			}
+		}
+
+	}
+
+	/**
+	 * This is the main method of the sample
+	 */
+	@Override
+	protected void run(String[] args, SessionConfiguration config, Level logLevel)
+			throws SolclientException {
+
+		// Determine a destinationName (topic), default to
+		// SampleUtils.SAMPLE_TOPIC
+		String destinationName = config.getArgBag().get("-t");
+		if (destinationName == null) {
+			destinationName = SampleUtils.SAMPLE_TOPIC;
+		}
+
+		int numberOfRequestMessages = 5;
+		int quorum = DEFAULT_QUORUM;
+		int deadlineMs = DEFAULT_DEADLINE_MS;
+		int windowSize = DEFAULT_WINDOW_SIZE;
+
+		String strCount = config.getArgBag().get("-n");
+		String strQuorum = config.getArgBag().get("-q");
+		String strDeadline = config.getArgBag().get("-d");
+		String strWindow = config.getArgBag().get("-w");
+		try {
+			if (strCount != null)
+				numberOfRequestMessages = Integer.parseInt(strCount);
+			if (strQuorum != null)
+				quorum = Integer.parseInt(strQuorum);
+			if (strDeadline != null)
+				deadlineMs = Integer.parseInt(strDeadline);
+			if (strWindow != null)
+				windowSize = Integer.parseInt(strWindow);
+		} catch (NumberFormatException e) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
+		}
+		if (quorum < 1 || deadlineMs < 1 || windowSize < 1) {
+			printUsage(config instanceof SecureSessionConfiguration);
+			return;
+		}
+
+		// Init
+		print(" Initializing the Java RTO Messaging API...");
+		int rc = Solclient.init(new String[0]);
+		assertReturnCode("Solclient.init()", rc, SolEnum.ReturnCode.OK);
+
+		// Set a log level (not necessary as there is a default)
+		Solclient.setLogLevel(logLevel);
+		
+		// Context
+		print(" Creating a context ...");
+		rc = Solclient.createContextForHandle(contextHandle, new String[0]);
+		assertReturnCode("Solclient.createContext()", rc, SolEnum.ReturnCode.OK);
+
+		/* Create a Session */
+		print(" Create a Session.");
+
+		int spareRoom = 10;
+		String[] sessionProps = getSessionProps(config, spareRoom);
+		int sessionPropsIndex = sessionProps.length - spareRoom;
+
+		/*
+		 * Note: Reapplying subscriptions allows Sessions to reconnect after
+		 * failure and have all their subscriptions automatically restored. For
+		 * Sessions with many subscriptions this can increase the amount of time
+		 * required for a successful reconnect.
+		 */
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.REAPPLY_SUBSCRIPTIONS;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+		/*
+		 * Note: Including meta data fields such as sender timestamp, sender ID,
+		 * and sequence number will reduce the maximum attainable throughput as
+		 * significant extra encoding/decoding is required. This is true whether
+		 * the fields are autogenerated or manually added.
+		 */
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.GENERATE_SEND_TIMESTAMPS;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.GENERATE_SENDER_ID;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.GENERATE_SEQUENCE_NUMBER;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.ENABLE;
+
+		/*
+		 * The certificate validation property is ignored on non-SSL sessions.
+		 * For simple demo applications, disable it on SSL sesssions (host
+		 * string begins with tcps:) so a local trusted root and certificate
+		 * store is not required. See the API users guide for documentation on
+		 * how to setup a trusted root so the servers certificate returned on
+		 * the secure connection can be verified if this is desired.
+		 */
+		sessionProps[sessionPropsIndex++] = SessionHandle.PROPERTIES.SSL_VALIDATE_CERTIFICATE;
+		sessionProps[sessionPropsIndex++] = SolEnum.BooleanValue.DISABLE;
+
+		SessionEventCallback sessionEventCallback = getDefaultSessionEventCallback();
+		// Replies are gathered as they come, the scatterGatherRequester is
+		// set before any request is sent
+		MessageCallback messageCallback = new MessageCallback() {
+			@Override
+			public void onMessage(Handle handle) {
+				MessageHandle rxMessage = ((SessionHandle) handle)
+						.getRxMessage();
+				if (rxMessage.isReplyMessage())
+					scatterGatherRequester.onReply(rxMessage);
+			}
+		};
+
+		/* Create the Session. */
+		rc = contextHandle.createSessionForHandle(sessionHandle, sessionProps,
+				messageCallback, sessionEventCallback);
+		assertReturnCode("contextHandle.createSession() - session", rc,
+				SolEnum.ReturnCode.OK);
+
+		/* Connect the Session. */
+		print(" Connecting session ...");
+		rc = sessionHandle.connect();
+		assertReturnCode("sessionHandle.connect()", rc, SolEnum.ReturnCode.OK);
+
+		/* Subscribe to a temporary topic for the replies. */
+		Topic replyTopic = sessionHandle.createTemporaryTopic();
+		rc = sessionHandle.subscribe(replyTopic,
+				SolEnum.SubscribeFlags.WAIT_FOR_CONFIRM, 0);
+		assertReturnCode("sessionHandle.subscribe() to reply topic "
+				+ replyTopic.getName(), rc, SolEnum.ReturnCode.OK);
+
+		timingWheel = new TimingWheel(windowSize, DEADLINE_TICK_MS,
+				TimeUnit.MILLISECONDS, deadlineMs / DEADLINE_TICK_MS).start();
+		scatterGatherRequester = new ScatterGatherRequester(sessionHandle,
+				replyTopic, timingWheel, windowSize, txContent.capacity());
+
+		/* Send the requests and gather the responses. */
+		sendRequests(numberOfRequestMessages, destinationName, quorum,
+				deadlineMs);
+
+		// ///////////////////////////////////////////// SHUTDOWN
+		// ///////////////////////////////////
+
+		print("Test Passed");
+		print("Run() DONE");
+	}
+
+	/**
+	 * Invoked when the sample finishes
+	 */
+	@Override
+	protected void finish(int status) {
+		/*************************************************************************
+		 * Cleanup
+		 *************************************************************************/
+
+		if (timingWheel != null)
+			timingWheel.stop();
+
+		finish_DestroyHandle(txMessageHandle, "messageHandle");
+
+		finish_Disconnect(sessionHandle);
+
+		finish_DestroyHandle(sessionHandle, "sessionHandle");
+
+		finish_DestroyHandle(contextHandle, "contextHandle");
+
+		finish_Solclient();
+	}
+
+/**
+     * Boilerplate, calls {@link #run(String[])
+     * @param args
+     */
+	public static void main(String[] args) {
+		RRScatterGatherRequester sample = new RRScatterGatherRequester();
+		sample.run(args);
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a publisher at a fixed rate.
+ *
+ * The schedule is absolute: message n is intended to be sent at
+ * start + n / rate, regardless of when message n-1 actually went out. When the
+ * publisher falls behind it sends immediately until it catches up, and
+ * latency should be measured from the intended send time returned by
+ * {@link #awaitNext()} so that such stalls are not hidden (coordinated
+ * omission).
+ *
+ * Waiting parks the thread with {@link LockSupport#parkNanos(long)} and spins
+ * for the last stretch, the spin threshold being calibrated from the measured
+ * park overshoot of this JVM and OS.
+ */
+public class RateController {
+
+	private static final int CALIBRATION_SAMPLES = 200;
+
+	private static final long CALIBRATION_PARK_NANOS = 50000;
+
+	private final double intervalNanos;
+
+	private final long spinThresholdNanos;
+
+	private long startNanos;
+
+	private long count;
+
+	/**
+	 * @param messagesPerSecond
+	 *            the target rate
+	 */
+	public RateController(double messagesPerSecond) {
+		this(messagesPerSecond, calibrateParkOvershoot());
+	}
+
+	/**
+	 * @param messagesPerSecond
+	 *            the target rate
+	 * @param spinThresholdNanos
+	 *            remaining wait time below which the controller spins rather
+	 *            than parks
+	 */
+	public RateController(double messagesPerSecond, long spinThresholdNanos) {
+		if (messagesPerSecond <= 0)
+			throw new IllegalArgumentException("rate must be positive");
+		this.intervalNanos = 1e9 / messagesPerSecond;
+		this.spinThresholdNanos = spinThresholdNanos;
+	}
+
+	/**
+	 * Starts the schedule, the first message is intended to go out now.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		count = 0;
+	}
+
+	/**
+	 * Waits until the intended send time of the next message.
+	 *
+	 * @return the intended send time, in System.nanoTime() terms
+	 */
+	public long awaitNext() {
+		long intendedNanos = startNanos + (long) (count * intervalNanos);
+		count++;
+
+		long remaining;
+		while ((remaining = intendedNanos - System.nanoTime()) > 0) {
+			if (remaining > spinThresholdNanos) {
+				LockSupport.parkNanos(remaining - spinThresholdNanos);
+			}
+			// else spin
+		}
+		return intendedNanos;
+	}
+
+	public long getSpinThresholdNanos() {
+		return spinThresholdNanos;
+	}
+
+	public double getIntervalNanos() {
+		return intervalNanos;
+	}
+
+	/**
+	 * Measures how late parkNanos() wakes up, the high percentile of the
+	 * overshoot is how early the controller has to stop parking and start
+	 * spinning.
+	 *
+	 * @return the 99th percentile park overshoot in nanoseconds
+	 */
+	public static long calibrateParkOvershoot() {
+		long[] overshoots = new long[CALIBRATION_SAMPLES];
+		for (int i = 0; i < CALIBRATION_SAMPLES; i++) {
+			long before = System.nanoTime();
+			LockSupport.parkNanos(CALIBRATION_PARK_NANOS);
+			long overshoot = System.nanoTime() - before
+					- CALIBRATION_PARK_NANOS;
+			overshoots[i] = Math.max(0, overshoot);
+		}
+		Arrays.sort(overshoots);
+		return overshoots[(CALIBRATION_SAMPLES * 99) / 100];
+	}
+
+}
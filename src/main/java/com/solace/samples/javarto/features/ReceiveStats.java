@@ -0,0 +1,244 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.Arrays;
+
+/**
+ * Receive side statistics: counts the messages received and verifies their
+ * sequence numbers, per publisher, for loss, duplicates and reordering.
+ *
+ * Each publisher has a sliding window of the last {@link #WINDOW_SIZE}
+ * sequence numbers kept as a bitmap in a long[], a bit being set once its
+ * sequence is received. A sequence above the highest one seen moves the window
+ * forward, the sequences skipped counting as missing until they show up. A
+ * sequence inside the window is a duplicate if its bit is set, or a reordered
+ * message filling a gap otherwise. A sequence behind the window is late, it
+ * stays counted as missing. Recording a message allocates nothing.
+ *
+ * Sequence numbers come either from the payload, a stamp written with
+ * {@link #stamp(int, long)} carrying a publisher id and a counter, or from the
+ * sequence number generated by the API (GENERATE_SEQUENCE_NUMBER) for a single
+ * publisher.
+ *
+ * The statistics are written by the receiving thread only, as volatile
+ * counters an {@link IntervalReporter} can follow: a send rate says nothing of
+ * the direct messages discarded under overload.
+ */
+public class ReceiveStats {
+
+	/** Sequences tracked behind the highest one, per publisher */
+	public static final int WINDOW_SIZE = 1 << 16;
+
+	/** Size of a payload stamp */
+	public static final int STAMP_SIZE = 8;
+
+	// Publisher id in the high bits of a stamp, the counter in the low bits
+	private static final int PUBLISHER_SHIFT = 48;
+
+	private static final long SEQUENCE_MASK = (1L << PUBLISHER_SHIFT) - 1;
+
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	private final long firstSequence;
+
+	private final SequenceWindow[] windows;
+
+	// Single writer (the receiving thread), volatile for the reporter
+	private volatile long receivedCount = 0;
+	private volatile long missingCount = 0;
+	private volatile long duplicateCount = 0;
+	private volatile long reorderedCount = 0;
+	private volatile long lateCount = 0;
+	private volatile long unsequencedCount = 0;
+
+	/**
+	 * @param publishers
+	 *            number of publishers, ids 0 to publishers - 1
+	 * @param firstSequence
+	 *            sequence of the first message of each publisher, 0 for
+	 *            payload stamps, 1 for generated sequence numbers
+	 */
+	public ReceiveStats(int publishers, long firstSequence) {
+		if (publishers < 1 || publishers > (1 << (63 - PUBLISHER_SHIFT)))
+			throw new IllegalArgumentException("publishers out of range: "
+					+ publishers);
+		this.firstSequence = firstSequence;
+		this.windows = new SequenceWindow[publishers];
+		for (int i = 0; i < publishers; i++) {
+			windows[i] = new SequenceWindow(firstSequence);
+		}
+	}
+
+	/**
+	 * Received sequences of one publisher
+	 */
+	static final class SequenceWindow {
+
+		final long[] bits = new long[WINDOW_SIZE / 64];
+
+		// Lowest sequence still tracked, and highest received
+		long base;
+		long highest;
+
+		SequenceWindow(long firstSequence) {
+			this.base = firstSequence;
+			this.highest = firstSequence - 1;
+		}
+
+		boolean isSet(long sequence) {
+			int bit = (int) sequence & WINDOW_MASK;
+			return (bits[bit >>> 6] & (1L << bit)) != 0;
+		}
+
+		void set(long sequence) {
+			int bit = (int) sequence & WINDOW_MASK;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+
+		void clear(long sequence) {
+			int bit = (int) sequence & WINDOW_MASK;
+			bits[bit >>> 6] &= ~(1L << bit);
+		}
+
+		/**
+		 * Slides the window so that it ends at the sequence, clearing the bits
+		 * of the sequences leaving it
+		 */
+		void advanceTo(long sequence) {
+			long newBase = Math.max(base, sequence - WINDOW_SIZE + 1);
+			if (newBase - base >= WINDOW_SIZE) {
+				Arrays.fill(bits, 0L);
+			} else {
+				// Only sequences up to highest may have a bit set
+				long end = Math.min(newBase, highest + 1);
+				for (long s = base; s < end; s++) {
+					clear(s);
+				}
+			}
+			base = newBase;
+			highest = sequence;
+		}
+	}
+
+	/**
+	 * @return the payload stamp of a publisher's sequence number
+	 */
+	public static long stamp(int publisher, long sequence) {
+		return ((long) publisher << PUBLISHER_SHIFT)
+				| (sequence & SEQUENCE_MASK);
+	}
+
+	/**
+	 * Records a message carrying a payload stamp
+	 */
+	public void recordStamp(long stamp) {
+		record((int) (stamp >>> PUBLISHER_SHIFT), stamp & SEQUENCE_MASK);
+	}
+
+	/**
+	 * Records a message of a publisher
+	 */
+	public void record(int publisher, long sequence) {
+		receivedCount = receivedCount + 1;
+		if (publisher < 0 || publisher >= windows.length
+				|| sequence < firstSequence) {
+			unsequencedCount = unsequencedCount + 1;
+			return;
+		}
+		SequenceWindow window = windows[publisher];
+		if (sequence > window.highest) {
+			long skipped = sequence - window.highest - 1;
+			if (skipped > 0)
+				missingCount = missingCount + skipped;
+			window.advanceTo(sequence);
+			window.set(sequence);
+		} else if (sequence < window.base) {
+			lateCount = lateCount + 1;
+		} else if (window.isSet(sequence)) {
+			duplicateCount = duplicateCount + 1;
+		} else {
+			window.set(sequence);
+			reorderedCount = reorderedCount + 1;
+			missingCount = missingCount - 1;
+		}
+	}
+
+	/**
+	 * Records a message with no sequence number
+	 */
+	public void recordUnsequenced() {
+		receivedCount = receivedCount + 1;
+		unsequencedCount = unsequencedCount + 1;
+	}
+
+	/**
+	 * @return the number of distinct sequence numbers received
+	 */
+	public long getUniqueCount() {
+		return receivedCount - unsequencedCount - duplicateCount - lateCount;
+	}
+
+	/**
+	 * Prints the totals, to be called once the receiving thread is done
+	 *
+	 * @param expected
+	 *            number of sequenced messages sent by all the publishers, the
+	 *            difference with those received counting as lost
+	 */
+	public void printSummary(String title, long expected) {
+		long lost = expected - getUniqueCount();
+		System.out.printf(
+				"%n%s: received %d messages, %d of %d expected, %d lost (%.4f%%)%n",
+				title, receivedCount, getUniqueCount(), expected, lost,
+				expected > 0 ? 100.0 * lost / expected : 0.0);
+		System.out.printf(
+				"\t %d duplicates, %d reordered, %d late, %d without a sequence number%n",
+				duplicateCount, reorderedCount, lateCount, unsequencedCount);
+		if (windows.length > 1) {
+			for (int i = 0; i < windows.length; i++) {
+				System.out.printf("\t publisher %d: highest sequence %d%n", i,
+						windows[i].highest);
+			}
+		}
+	}
+
+	public int getPublisherCount() {
+		return windows.length;
+	}
+
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
+	/**
+	 * @return sequences skipped and not received since, lost unless they still
+	 *         show up reordered
+	 */
+	public long getMissingCount() {
+		return missingCount;
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	public long getReorderedCount() {
+		return reorderedCount;
+	}
+
+	/**
+	 * @return messages behind the window, duplicates or messages that were
+	 *         counted missing
+	 */
+	public long getLateCount() {
+		return lateCount;
+	}
+
+	public long getUnsequencedCount() {
+		return unsequencedCount;
+	}
+
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.Solclient;
+import com.solacesystems.solclientj.core.event.MessageCallback;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Serves requests on a pool of worker threads rather than on the context
+ * thread, so that handlers doing real work use as many cores as there are
+ * workers instead of one.
+ *
+ * The engine is the message callback of the session or flow the requests come
+ * on. It takes each request into a slot of a {@link MessageHandoffRing} and
+ * returns, the context thread never computes nor sends a reply. A worker runs
+ * the {@link RequestHandler} on the request, then replies with its own
+ * MessageHandle and buffers through sessionHandle.sendReply, which addresses
+ * the reply to the request's reply-to and flags it as a reply, so requesters
+ * checking isReplyMessage or blocked in sendRequest recognise it. The
+ * request's correlation id is copied into the reply for the requester to
+ * match it, whatever thread sent it.
+ *
+ * The workers share the session the requests came on, where the Perf samples
+ * give each publishing thread its own context and session. A reply is tied to
+ * its request's session, a send is safe from any thread, the API serialising
+ * it within the session, and that short section is small next to the
+ * handler's work the workers exist to spread. A context and session per
+ * worker would also take a connection to the router each.
+ *
+ * Should the workers fall a whole ring behind, a request is served on the
+ * context thread instead of being dropped, which holds the context thread up
+ * as the callback used to, and is counted.
+ */
+public class ReplierEngine implements MessageCallback {
+
+	/** Worker threads unless told otherwise */
+	public static final int DEFAULT_WORKERS = 4;
+
+	/** Requests waiting for a worker, at most */
+	public static final int DEFAULT_RING_CAPACITY = 1024;
+
+	/**
+	 * Computes the reply to a request. Called on the worker threads at once,
+	 * so an instance must be thread safe or hold no state.
+	 */
+	public interface RequestHandler {
+
+		/**
+		 * @param requestPayload
+		 *            the request's binary attachment, valid during the call only
+		 * @param replyPayload
+		 *            a cleared buffer of the worker to put the reply into
+		 * @return false to send no reply
+		 */
+		boolean onRequest(MessageHandle request, ByteBuffer requestPayload,
+				ByteBuffer replyPayload);
+	}
+
+	/**
+	 * The reply handle and buffers of one thread
+	 */
+	final class Worker implements MessageHandoffRing.Handler {
+
+		private final MessageHandle txMessageHandle = newReplyMessage();
+
+		private final ByteBuffer rxContent;
+
+		private final ByteBuffer txContent;
+
+		Worker(int maxPayloadSize) {
+			this.rxContent = ByteBuffer.allocateDirect(maxPayloadSize);
+			this.txContent = ByteBuffer.allocateDirect(maxPayloadSize);
+		}
+
+		@Override
+		public void onSlot(MessageHandoffRing.Slot slot) {
+			reply(slot.getMessage());
+		}
+
+		void reply(MessageHandle request) {
+			if (!txMessageHandle.isBound()) {
+				// Allocate the message
+				int rc = Solclient.createMessageForHandle(txMessageHandle);
+				AbstractSample.assertReturnCode(
+						"Solclient.createMessageForHandle()", rc,
+						SolEnum.ReturnCode.OK);
+				txMessageHandle.setMessageDeliveryMode(deliveryMode);
+			}
+
+			rxContent.clear();
+			request.getBinaryAttachment(rxContent);
+			rxContent.flip();
+			txContent.clear();
+			if (!requestHandler.onRequest(request, rxContent, txContent))
+				return;
+			txContent.flip();
+
+			txMessageHandle.setCorrelationIdFromMessage(request);
+			txMessageHandle.setBinaryAttachment(txContent);
+
+			int rc = sessionHandle.sendReply(request, txMessageHandle);
+			if (rc == SolEnum.ReturnCode.OK)
+				repliedCount.incrementAndGet();
+			else
+				failedCount.incrementAndGet();
+		}
+
+		void destroy() {
+			if (txMessageHandle.isBound())
+				txMessageHandle.destroy();
+		}
+	}
+
+	private final SessionHandle sessionHandle;
+
+	private final int deliveryMode;
+
+	private final RequestHandler requestHandler;
+
+	private final MessageHandoffRing ring;
+
+	private final Worker[] workers;
+
+	// Serves the requests the ring had no room for, on the context thread
+	private final Worker inlineWorker;
+
+	// Written by the context thread only, with ordered writes rather than a
+	// full volatile store per request
+	private volatile long receivedCount = 0;
+
+	private volatile long inlineCount = 0;
+
+	private static final AtomicLongFieldUpdater<ReplierEngine> RECEIVED_COUNT = AtomicLongFieldUpdater
+			.newUpdater(ReplierEngine.class, "receivedCount");
+
+	private static final AtomicLongFieldUpdater<ReplierEngine> INLINE_COUNT = AtomicLongFieldUpdater
+			.newUpdater(ReplierEngine.class, "inlineCount");
+
+	private final AtomicLong repliedCount = new AtomicLong();
+
+	private final AtomicLong failedCount = new AtomicLong();
+
+	/**
+	 * @param sessionHandle
+	 *            the session replies are sent on
+	 * @param workerCount
+	 *            number of worker threads
+	 * @param ringCapacity
+	 *            most requests waiting for a worker
+	 * @param maxPayloadSize
+	 *            largest request and reply binary attachment
+	 * @param deliveryMode
+	 *            of the replies, a SolEnum.MessageDeliveryMode
+	 */
+	public ReplierEngine(SessionHandle sessionHandle, int workerCount,
+			int ringCapacity, int maxPayloadSize, int deliveryMode,
+			MessageHandoffRing.WaitStrategy waitStrategy,
+			RequestHandler requestHandler) {
+		if (workerCount < 1)
+			throw new IllegalArgumentException("workerCount must be positive");
+		this.sessionHandle = sessionHandle;
+		this.deliveryMode = deliveryMode;
+		this.requestHandler = requestHandler;
+		// Requests are taken whole, the workers need their reply-to and
+		// correlation id
+		this.ring = new MessageHandoffRing(ringCapacity, 0, waitStrategy);
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(maxPayloadSize);
+		}
+		this.inlineWorker = new Worker(maxPayloadSize);
+	}
+
+	/**
+	 * @return an unbound reply handle, one per worker, a test can hand out
+	 *         its own
+	 */
+	MessageHandle newReplyMessage() {
+		return Solclient.Allocator.newMessageHandle();
+	}
+
+	/**
+	 * Starts the workers, call before the requests can come.
+	 *
+	 * @return this
+	 */
+	public ReplierEngine start() {
+		ring.start(workers);
+		return this;
+	}
+
+	/**
+	 * Called on the context thread with each request.
+	 */
+	@Override
+	public void onMessage(Handle handle) {
+		MessageSupport messageSupport = (MessageSupport) handle;
+		RECEIVED_COUNT.lazySet(this, receivedCount + 1);
+		if (!ring.offer(messageSupport)) {
+			INLINE_COUNT.lazySet(this, inlineCount + 1);
+			inlineWorker.reply(messageSupport.getRxMessage());
+		}
+	}
+
+	/**
+	 * Lets the workers reply to the requests already taken, then stops them
+	 * and frees their messages. No request must come any more.
+	 */
+	public void stop() {
+		ring.stop();
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].destroy();
+		}
+		inlineWorker.destroy();
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
+	public long getRepliedCount() {
+		return repliedCount.get();
+	}
+
+	/**
+	 * @return replies the session did not accept
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return requests served on the context thread, the workers being a ring
+	 *         behind
+	 */
+	public long getInlineCount() {
+		return inlineCount;
+	}
+
+	/**
+	 * @return requests waiting for a worker
+	 */
+	public long getBacklog() {
+		return ring.getBacklog();
+	}
+
+}
@@ -4,6 +4,8 @@
  */
 package com.solace.samples.javarto.features;
 
+import java.nio.ByteBuffer;
+
 /**
  * Common utilities to support the samples
  */
@@ -15,6 +17,34 @@ public class SampleUtils {
 	public static final String SAMPLE_CONFIGURED_QUEUE = "my_sample_queue";
 	public static final String COMMON_DMQ_NAME = "#DEAD_MSG_QUEUE";
 
+	/**
+	 * Making up some pay-load for the Perf samples, leaves the buffer flipped
+	 * and ready to be copied into a message.
+	 * 
+	 * @param buffer
+	 *            heap or direct buffer of at least msgSize capacity
+	 * @param msgSize
+	 *            number of bytes to fill
+	 * @param seed
+	 *            varies the content, typically the message number
+	 */
+	public static void fillPayload(ByteBuffer buffer, int msgSize, int seed) {
+
+		buffer.clear();
+
+		// Fill the byte buffer, using int ( 4 bytes )
+		for (int x = 0; x < msgSize / 4; x++) {
+			buffer.putInt(seed + x);
+		}
+
+		// Top up with bytes
+		int remainder = msgSize % 4;
+		for (byte b = 0; b < remainder; b++) {
+			buffer.put(b);
+		}
+
+		buffer.flip();
+	}
 
 	/**
 	 * Structure representing a Username/VPN combination.
@@ -0,0 +1,469 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+import com.solacesystems.solclientj.core.resource.Destination;
+
+/**
+ * Sends one request to a topic many repliers listen on and gathers their
+ * replies until a quorum of them came or a deadline passed, whichever is
+ * first, completing with the replies gathered so far. sessionHandle.sendRequest
+ * takes the first reply only and blocks for it, it cannot ask a group.
+ *
+ * Each scatter gets a long correlation key from {@link CorrelationSlots}
+ * indexing a slot, as in the {@link AsyncRequester}. The key goes out as the
+ * request's correlation id, {@link #CORRELATION_PREFIX} followed by the key,
+ * with the reply-to set to a topic of the requester: repliers answer with
+ * sessionHandle.sendReply, which addresses the reply and keeps the
+ * correlation id, as the {@link ReplierEngine} does, and
+ * {@link #onReply(MessageHandle)} finds the scatter back from the correlation
+ * id. A {@link TimingWheel} timer per scatter enforces the deadline, no thread
+ * waits for any scatter.
+ *
+ * A scatter completes once, by its {@link GatherListener} called on the
+ * context thread with the reply reaching the quorum, or on the tick thread at
+ * the deadline. Replies coming after are counted as late. The thread
+ * completing a scatter cancels its timer before freeing its slot, so a wheel
+ * with room for maxOutstanding timers has room for the next scatter; should
+ * it still be full the scatter waits for its quorum only, and is counted. The
+ * replies outlive the callback they came in, so each is copied: unlike the
+ * AsyncRequester a scatter allocates its result.
+ */
+public class ScatterGatherRequester {
+
+	/** Prefix of the correlation id of each request, before its key */
+	public static final String CORRELATION_PREFIX = "sg:";
+
+	/**
+	 * A reply gathered
+	 */
+	public static final class Reply {
+
+		private final byte[] payload;
+
+		private final String senderId;
+
+		private final long latencyNanos;
+
+		Reply(byte[] payload, String senderId, long latencyNanos) {
+			this.payload = payload;
+			this.senderId = senderId;
+			this.latencyNanos = latencyNanos;
+		}
+
+		/**
+		 * @return the reply's binary attachment
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		/**
+		 * @return the sender id of the replier, null unless it generates one
+		 */
+		public String getSenderId() {
+			return senderId;
+		}
+
+		/**
+		 * @return time from the request being sent to this reply
+		 */
+		public long getLatencyNanos() {
+			return latencyNanos;
+		}
+	}
+
+	/**
+	 * The replies of a scatter, in the order they came
+	 */
+	public static final class Result {
+
+		private final long requestId;
+
+		private final int quorum;
+
+		private final List<Reply> replies;
+
+		private final long elapsedNanos;
+
+		Result(long requestId, int quorum, List<Reply> replies,
+				long elapsedNanos) {
+			this.requestId = requestId;
+			this.quorum = quorum;
+			this.replies = Collections.unmodifiableList(replies);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		public int getQuorum() {
+			return quorum;
+		}
+
+		public List<Reply> getReplies() {
+			return replies;
+		}
+
+		/**
+		 * @return false when the deadline passed first, the replies being
+		 *         partial
+		 */
+		public boolean isQuorumReached() {
+			return replies.size() >= quorum;
+		}
+
+		/**
+		 * @return time from the request being sent to its completion
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+
+	/**
+	 * Completes a scatter, on the context thread or on the tick thread of the
+	 * {@link TimingWheel}: it must not block nor scatter
+	 */
+	public interface GatherListener {
+
+		void onGathered(Result result);
+	}
+
+	// A scatter, its final fields safely published to the context and tick
+	// threads. The replies and done are guarded by the gather itself, its
+	// reply and its deadline racing to complete it.
+	private static final class Gather {
+
+		final long key;
+
+		final long requestId;
+
+		final int quorum;
+
+		final GatherListener listener;
+
+		final long sendNanos;
+
+		final long timerId;
+
+		final ArrayList<Reply> replies;
+
+		boolean done = false;
+
+		Gather(long key, long requestId, int quorum, GatherListener listener,
+				long sendNanos, long timerId) {
+			this.key = key;
+			this.requestId = requestId;
+			this.quorum = quorum;
+			this.listener = listener;
+			this.sendNanos = sendNanos;
+			this.timerId = timerId;
+			this.replies = new ArrayList<Reply>(quorum);
+		}
+	}
+
+	private final SessionHandle sessionHandle;
+
+	private final Destination replyTo;
+
+	private final TimingWheel timingWheel;
+
+	// Publishing a key publishes the gather of its slot
+	private final CorrelationSlots slots;
+
+	private final Gather[] gathers;
+
+	private final TimingWheel.ExpiryListener expiryListener = new TimingWheel.ExpiryListener() {
+		public void onExpiry(long key) {
+			expire(key);
+		}
+	};
+
+	// Written by the context thread only
+	private final ByteBuffer rxContent;
+
+	private volatile long quorumCount = 0;
+
+	private volatile long lateReplyCount = 0;
+
+	private volatile long unknownReplyCount = 0;
+
+	private final LatencyHistogram quorumLatency = new LatencyHistogram();
+
+	// Written by the requester thread only
+	private volatile long untimedCount = 0;
+
+	// Written by the tick thread only
+	private volatile long partialCount = 0;
+
+	/**
+	 * @param replyTo
+	 *            where replies are sent, a topic the session subscribed to
+	 * @param timingWheel
+	 *            a started wheel, with room for maxOutstanding timers
+	 * @param maxOutstanding
+	 *            most scatters gathering at once
+	 * @param maxPayloadSize
+	 *            largest reply payload
+	 */
+	public ScatterGatherRequester(SessionHandle sessionHandle,
+			Destination replyTo, TimingWheel timingWheel, int maxOutstanding,
+			int maxPayloadSize) {
+		this.sessionHandle = sessionHandle;
+		this.replyTo = replyTo;
+		this.timingWheel = timingWheel;
+		this.slots = new CorrelationSlots(maxOutstanding);
+		this.gathers = new Gather[slots.getCapacity()];
+		this.rxContent = ByteBuffer.allocateDirect(maxPayloadSize);
+	}
+
+	/**
+	 * Sends a request to all the repliers of the message's destination,
+	 * waiting while maxOutstanding scatters are gathering.
+	 *
+	 * @param payload
+	 *            the request content, from its position to its limit
+	 * @param quorum
+	 *            number of replies completing the scatter
+	 * @param deadline
+	 *            time after which the scatter completes with fewer replies
+	 * @param requestId
+	 *            the application's id for the request, handed back with the
+	 *            result
+	 * @return the correlation key of the scatter
+	 * @throws IllegalStateException
+	 *             if the request could not be sent, the listener is not
+	 *             called
+	 */
+	public long scatter(MessageHandle txMessageHandle, ByteBuffer payload,
+			int quorum, long deadline, TimeUnit unit, long requestId,
+			GatherListener listener) {
+		if (quorum < 1)
+			throw new IllegalArgumentException("quorum must be positive");
+		long key = slots.acquire();
+		int slot = slots.indexOf(key);
+
+		txMessageHandle.setCorrelationId(CORRELATION_PREFIX + key);
+		txMessageHandle.setReplyTo(replyTo);
+		txMessageHandle.setBinaryAttachment(payload);
+
+		// Scheduled before the key publishes the gather, the timer is a tick
+		// away at least
+		long timerId = timingWheel.schedule(unit.toNanos(deadline), key,
+				expiryListener);
+		if (timerId == 0)
+			untimedCount = untimedCount + 1;
+		Gather gather = new Gather(key, requestId, quorum, listener,
+				System.nanoTime(), timerId);
+		gathers[slot] = gather;
+		slots.publish(key);
+
+		int rc = sessionHandle.send(txMessageHandle);
+		if (rc != SolEnum.ReturnCode.OK) {
+			synchronized (gather) {
+				if (gather.done)
+					gather = null;
+				else
+					gather.done = true;
+			}
+			if (gather != null)
+				free(slot, gather);
+			AbstractSample.assertReturnCode("sessionHandle.send()", rc,
+					SolEnum.ReturnCode.OK);
+		}
+		return key;
+	}
+
+	/**
+	 * Sends a request to all the repliers of the message's destination and
+	 * returns a future of the replies gathered.
+	 */
+	public CompletableFuture<Result> scatter(MessageHandle txMessageHandle,
+			ByteBuffer payload, int quorum, long deadline, TimeUnit unit) {
+		final CompletableFuture<Result> future = new CompletableFuture<Result>();
+		scatter(txMessageHandle, payload, quorum, deadline, unit, 0,
+				new GatherListener() {
+					public void onGathered(Result result) {
+						future.complete(result);
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Called from the session message callback with a reply.
+	 *
+	 * @return true if the reply was gathered, false for an unknown reply, or
+	 *         one coming after its scatter completed
+	 */
+	public boolean onReply(MessageHandle reply) {
+		long now = System.nanoTime();
+		long key = CorrelationSlots.parseKey(reply.getCorrelationId(),
+				CORRELATION_PREFIX);
+		if (key <= 0) {
+			unknownReplyCount = unknownReplyCount + 1;
+			return false;
+		}
+		int slot = slots.indexOf(key);
+		// The key first, its volatile read makes the gather written before it
+		// visible
+		boolean inFlight = slots.isInFlight(key);
+		Gather gather = gathers[slot];
+		if (!inFlight || gather == null || gather.key != key) {
+			if (slots.isAcquired(key))
+				lateReplyCount = lateReplyCount + 1;
+			else
+				unknownReplyCount = unknownReplyCount + 1;
+			return false;
+		}
+
+		rxContent.clear();
+		reply.getBinaryAttachment(rxContent);
+		rxContent.flip();
+		byte[] content = new byte[rxContent.remaining()];
+		rxContent.get(content);
+
+		Result result = null;
+		synchronized (gather) {
+			if (gather.done) {
+				// The deadline passed meanwhile
+				lateReplyCount = lateReplyCount + 1;
+				return false;
+			}
+			gather.replies.add(new Reply(content, reply.getSenderId(), now
+					- gather.sendNanos));
+			if (gather.replies.size() >= gather.quorum) {
+				gather.done = true;
+				result = new Result(gather.requestId, gather.quorum,
+						gather.replies, now - gather.sendNanos);
+			}
+		}
+		if (result != null) {
+			free(slot, gather);
+			quorumCount = quorumCount + 1;
+			quorumLatency.record(result.getElapsedNanos());
+			if (gather.listener != null)
+				gather.listener.onGathered(result);
+		}
+		return true;
+	}
+
+	// Called on the tick thread
+	private void expire(long key) {
+		int slot = slots.indexOf(key);
+		boolean inFlight = slots.isInFlight(key);
+		Gather gather = gathers[slot];
+		if (!inFlight || gather == null || gather.key != key)
+			return;
+		Result result;
+		synchronized (gather) {
+			// Unless the quorum was reached meanwhile
+			if (gather.done)
+				return;
+			gather.done = true;
+			result = new Result(gather.requestId, gather.quorum,
+					gather.replies, System.nanoTime() - gather.sendNanos);
+		}
+		free(slot, gather);
+		partialCount = partialCount + 1;
+		if (gather.listener != null)
+			gather.listener.onGathered(result);
+	}
+
+	// Called by the thread that completed the scatter, its timer is
+	// cancelled before the requester can reuse the slot and schedule its own
+	private void free(int slot, Gather gather) {
+		timingWheel.cancel(gather.timerId);
+		gathers[slot] = null;
+		if (slots.claim(gather.key))
+			slots.release(gather.key);
+	}
+
+	/**
+	 * Waits for all the scatters to complete, by quorum or deadline.
+	 *
+	 * @return true if they did before the timeout
+	 */
+	public boolean awaitEmpty(long timeoutMs) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (getOutstanding() > 0) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getMaxOutstanding() {
+		return slots.getWindowSize();
+	}
+
+	public long getOutstanding() {
+		return slots.getInFlight();
+	}
+
+	public long getSentCount() {
+		return slots.getAcquiredCount();
+	}
+
+	/**
+	 * @return scatters completed by their quorum
+	 */
+	public long getQuorumCount() {
+		return quorumCount;
+	}
+
+	/**
+	 * @return scatters completed by their deadline, with fewer replies
+	 */
+	public long getPartialCount() {
+		return partialCount;
+	}
+
+	/**
+	 * @return replies coming after their scatter completed
+	 */
+	public long getLateReplyCount() {
+		return lateReplyCount;
+	}
+
+	public long getUnknownReplyCount() {
+		return unknownReplyCount;
+	}
+
+	/**
+	 * @return scatters sent without a deadline, the wheel being full
+	 */
+	public long getUntimedCount() {
+		return untimedCount;
+	}
+
+	/**
+	 * Read once all scatters completed, it is recorded by the context thread.
+	 *
+	 * @return the time from each request to its quorum
+	 */
+	public LatencyHistogram getQuorumLatency() {
+		return quorumLatency;
+	}
+
+}
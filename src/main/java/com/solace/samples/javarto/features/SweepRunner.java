@@ -0,0 +1,166 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a {@link PayloadSizeSweep} for the Perf samples: each size with a heap
+ * then a direct ByteBuffer, warming up before measuring each step, sending
+ * through a {@link Publisher} and waiting for the messages to come back, or
+ * for none to come for a while.
+ *
+ * The throughput, latency and, with a {@link CpuMeter}, CPU time per message
+ * of each step are recorded in the sweep.
+ */
+public class SweepRunner {
+
+	/**
+	 * Sends one message of a step, from the sweeping thread
+	 */
+	public interface Publisher {
+
+		/**
+		 * @param payload
+		 *            filled with the message content, the latency stamps to
+		 *            be written at its start
+		 */
+		void send(ByteBuffer payload);
+	}
+
+	private static final String[] VARIANTS = { "heap", "direct" };
+
+	private final PayloadSizeSweep sweep;
+
+	private final CpuMeter cpuMeter;
+
+	private final IntervalReporter.Counter received;
+
+	private final LatencyHistogram latency;
+
+	private final long idleTimeoutNanos;
+
+	/**
+	 * @param cpuMeter
+	 *            null to not measure CPU time
+	 * @param received
+	 *            messages received so far
+	 * @param latency
+	 *            the histogram the receiver records into, safe to copy once
+	 *            the received count is read
+	 * @param idleTimeoutNanos
+	 *            most time a step waits with no message coming back
+	 */
+	public SweepRunner(PayloadSizeSweep sweep, CpuMeter cpuMeter,
+			IntervalReporter.Counter received, LatencyHistogram latency,
+			long idleTimeoutNanos) {
+		this.sweep = sweep;
+		this.cpuMeter = cpuMeter;
+		this.received = received;
+		this.latency = latency;
+		this.idleTimeoutNanos = idleTimeoutNanos;
+	}
+
+	/**
+	 * Runs every step, then prints the table and exports it
+	 *
+	 * @param compression
+	 *            the compression setting of the session, for the report
+	 */
+	public void run(String compression, Publisher publisher,
+			BenchmarkResult result) {
+		ByteBuffer[] payloads = { ByteBuffer.allocate(sweep.getMaxSize()),
+				ByteBuffer.allocateDirect(sweep.getMaxSize()) };
+		LatencyHistogram before = new LatencyHistogram();
+		LatencyHistogram stepLatency = new LatencyHistogram();
+		// Send and receive time, then publisher and process CPU time
+		long[] stepNanos = new long[4];
+		int[] sizes = sweep.getSizes();
+
+		System.out.printf(
+				"%nWill sweep %d sizes from %d to %d bytes, heap and direct ByteBuffers, compression %s%n",
+				sizes.length, sweep.getMinSize(), sweep.getMaxSize(),
+				compression);
+
+		for (int size : sizes) {
+			for (int v = 0; v < VARIANTS.length; v++) {
+				// Warm-up, not measured
+				sendStep(publisher, payloads[v], size,
+						sweep.warmupMessagesFor(size), stepNanos);
+
+				// The histogram is safe to copy once the count is read
+				before.copyFrom(latency);
+				long messages = sweep.messagesFor(size);
+				long stepReceived = sendStep(publisher, payloads[v], size,
+						messages, stepNanos);
+				stepLatency.copyFrom(latency);
+				stepLatency.subtract(before);
+
+				sweep.record(VARIANTS[v], size, messages, stepReceived,
+						stepNanos[0], stepNanos[1], stepLatency);
+				if (cpuMeter != null)
+					sweep.recordCpu(stepNanos[2] / 1000.0 / messages,
+							stepNanos[3] / 1000.0 / messages);
+				System.out.printf("Size %d, %s: %d messages, %d received%n",
+						size, VARIANTS[v], messages, stepReceived);
+			}
+		}
+
+		sweep.printTable("Payload size sweep, compression " + compression);
+		sweep.exportTo(result);
+	}
+
+	/**
+	 * Sends messages of a size and waits for them to come back, or for none to
+	 * come back for a while
+	 *
+	 * @param stepNanos
+	 *            set to the time taken to send them, and until the last one
+	 *            came back, then to the CPU time of this thread and of the
+	 *            process
+	 * @return the number of messages received
+	 */
+	long sendStep(Publisher publisher, ByteBuffer payload, int size,
+			long messages, long[] stepNanos) {
+		long firstCount = received.get();
+		long startProcessCpuNanos = (cpuMeter != null) ? cpuMeter
+				.getProcessCpuNanos() : 0;
+		long startCpuNanos = (cpuMeter != null) ? cpuMeter
+				.getCurrentThreadCpuNanos() : 0;
+		long startNanos = System.nanoTime();
+		for (long i = 0; i < messages; i++) {
+			SampleUtils.fillPayload(payload, size, (int) i);
+			publisher.send(payload);
+		}
+		long sentNanos = System.nanoTime();
+		long cpuNanos = (cpuMeter != null) ? cpuMeter
+				.getCurrentThreadCpuNanos() - startCpuNanos : 0;
+
+		long expected = firstCount + messages;
+		long lastCount = received.get();
+		long lastChangeNanos = System.nanoTime();
+		while (lastCount < expected
+				&& System.nanoTime() - lastChangeNanos < idleTimeoutNanos) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			long count = received.get();
+			if (count != lastCount) {
+				lastCount = count;
+				lastChangeNanos = System.nanoTime();
+			}
+		}
+		stepNanos[0] = sentNanos - startNanos;
+		stepNanos[1] = lastChangeNanos - startNanos;
+		stepNanos[2] = cpuNanos;
+		stepNanos[3] = (cpuMeter != null) ? cpuMeter.getProcessCpuNanos()
+				- startProcessCpuNanos : 0;
+		return lastCount - firstCount;
+	}
+
+}
@@ -0,0 +1,354 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel expiring the timeouts of outstanding operations,
+ * requests waiting for a reply, messages waiting for their acknowledgement or
+ * cache requests, in O(1) per timer and without allocating anything per
+ * timer, where a ScheduledExecutorService creates a task object per timeout
+ * and orders them in a heap.
+ *
+ * Time is cut into ticks, the wheel is a power of two array of buckets and a
+ * timer due at tick t goes to bucket t modulo the wheel size, with the timers
+ * due a lap or more later sharing it until their turn comes. Timers are nodes
+ * of primitive arrays allocated up front, linked into their bucket by index,
+ * so {@link #schedule(long, long, ExpiryListener)} and {@link #cancel(long)}
+ * each take a node from or back to a free list and link or unlink it. A timer
+ * id carries the node index and its generation, a cancel for a timer already
+ * expired, or whose node was reused, does nothing.
+ *
+ * A single tick thread, {@link #start()}, advances the wheel and calls the
+ * {@link ExpiryListener} of each due timer, outside the lock the other
+ * threads take to schedule and cancel. A timer fires up to one tick late,
+ * never early.
+ */
+public class TimingWheel {
+
+	/**
+	 * Called on the tick thread when a timer expires, it must not block
+	 */
+	public interface ExpiryListener {
+
+		/**
+		 * @param payload
+		 *            the value the timer was scheduled with, a correlation key
+		 *            for instance
+		 */
+		void onExpiry(long payload);
+	}
+
+	private static final int NONE = -1;
+
+	// Bucket of a node not linked in any bucket: free, or being expired
+	private static final int FREE = -1;
+
+	private static final int EXPIRING = -2;
+
+	private final long tickNanos;
+
+	private final int wheelMask;
+
+	// First node of each bucket
+	private final int[] heads;
+
+	private final int[] next;
+
+	private final int[] previous;
+
+	private final int[] buckets;
+
+	private final int[] generations;
+
+	private final long[] deadlineTicks;
+
+	private final long[] payloads;
+
+	private final ExpiryListener[] listeners;
+
+	private int freeHead;
+
+	private int size = 0;
+
+	private final long startNanos = System.nanoTime();
+
+	// The last tick expired, advanced by the tick thread
+	private long currentTick = 0;
+
+	// Due nodes unlinked by the tick thread, expired outside the lock
+	private int expiringHead = NONE;
+
+	private long expiredCount = 0;
+
+	private long cancelledCount = 0;
+
+	private long fullCount = 0;
+
+	private volatile boolean running = false;
+
+	private Thread ticker;
+
+	/**
+	 * @param capacity
+	 *            most timers pending at once
+	 * @param tick
+	 *            the resolution of the wheel
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two, ideally
+	 *            covering the usual timeout in one lap
+	 */
+	public TimingWheel(int capacity, long tick, TimeUnit unit, int wheelSize) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (wheelSize < 1 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("wheelSize out of range: "
+					+ wheelSize);
+		this.tickNanos = unit.toNanos(tick);
+		if (tickNanos < 1)
+			throw new IllegalArgumentException("tick must be positive");
+		int wheel = Integer.highestOneBit(wheelSize);
+		if (wheel < wheelSize)
+			wheel <<= 1;
+		this.wheelMask = wheel - 1;
+		this.heads = new int[wheel];
+		for (int i = 0; i < wheel; i++) {
+			heads[i] = NONE;
+		}
+		this.next = new int[capacity];
+		this.previous = new int[capacity];
+		this.buckets = new int[capacity];
+		this.generations = new int[capacity];
+		this.deadlineTicks = new long[capacity];
+		this.payloads = new long[capacity];
+		this.listeners = new ExpiryListener[capacity];
+		for (int i = 0; i < capacity; i++) {
+			next[i] = (i + 1 < capacity) ? i + 1 : NONE;
+			buckets[i] = FREE;
+		}
+		this.freeHead = 0;
+	}
+
+	/**
+	 * Starts the tick thread.
+	 *
+	 * @return this
+	 */
+	public synchronized TimingWheel start() {
+		if (ticker == null) {
+			running = true;
+			ticker = new Thread("TimingWheel") {
+				public void run() {
+					while (running) {
+						long waitNanos = startNanos + (getTick() + 1)
+								* tickNanos - System.nanoTime();
+						if (waitNanos > 0)
+							LockSupport.parkNanos(waitNanos);
+						advance(System.nanoTime());
+					}
+				}
+			};
+			ticker.setDaemon(true);
+			ticker.start();
+		}
+		return this;
+	}
+
+	/**
+	 * Stops the tick thread, pending timers do not fire any more.
+	 */
+	public void stop() {
+		Thread toJoin;
+		synchronized (this) {
+			running = false;
+			toJoin = ticker;
+			ticker = null;
+		}
+		if (toJoin == null)
+			return;
+		LockSupport.unpark(toJoin);
+		try {
+			toJoin.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Schedules a timer.
+	 *
+	 * @param delayNanos
+	 *            time until the timer expires
+	 * @param payload
+	 *            handed to the listener on expiry
+	 * @return a timer id for {@link #cancel(long)}, or 0 if the wheel holds
+	 *         capacity timers already
+	 */
+	public synchronized long schedule(long delayNanos, long payload,
+			ExpiryListener listener) {
+		int node = freeHead;
+		if (node == NONE) {
+			fullCount++;
+			return 0;
+		}
+		freeHead = next[node];
+
+		// From the clock rather than the current tick, which lags it by up
+		// to a tick or more if the tick thread is late
+		long deadlineNanos = System.nanoTime() - startNanos
+				+ Math.max(delayNanos, 0);
+		long deadlineTick = Math.max((deadlineNanos + tickNanos - 1)
+				/ tickNanos, currentTick + 1);
+		int bucket = (int) (deadlineTick & wheelMask);
+		deadlineTicks[node] = deadlineTick;
+		payloads[node] = payload;
+		listeners[node] = listener;
+		buckets[node] = bucket;
+		previous[node] = NONE;
+		next[node] = heads[bucket];
+		if (heads[bucket] != NONE)
+			previous[heads[bucket]] = node;
+		heads[bucket] = node;
+		size++;
+		return ((long) generations[node] << 32) | (node + 1);
+	}
+
+	/**
+	 * Cancels a timer.
+	 *
+	 * @return true if the timer was pending, false if it expired, is expiring
+	 *         or was cancelled already
+	 */
+	public synchronized boolean cancel(long timerId) {
+		int node = (int) timerId - 1;
+		if (node < 0 || node >= next.length
+				|| generations[node] != (int) (timerId >>> 32)
+				|| buckets[node] < 0)
+			return false;
+		unlink(node);
+		free(node);
+		cancelledCount++;
+		return true;
+	}
+
+	/**
+	 * Expires the timers due by now, called by the tick thread, or by the
+	 * application driving the wheel itself.
+	 *
+	 * @return the number of timers expired
+	 */
+	public int advance(long nowNanos) {
+		long nowTick = (nowNanos - startNanos) / tickNanos;
+		int expired = 0;
+		for (;;) {
+			synchronized (this) {
+				if (currentTick >= nowTick)
+					break;
+				currentTick++;
+				collectDue((int) (currentTick & wheelMask));
+			}
+			expired += expireCollected();
+		}
+		return expired;
+	}
+
+	// Called holding the lock, moves the due nodes of the bucket to the
+	// expiring list
+	private void collectDue(int bucket) {
+		int node = heads[bucket];
+		while (node != NONE) {
+			int following = next[node];
+			if (deadlineTicks[node] <= currentTick) {
+				unlink(node);
+				buckets[node] = EXPIRING;
+				next[node] = expiringHead;
+				expiringHead = node;
+			}
+			node = following;
+		}
+	}
+
+	// Calls the listeners outside the lock, then frees the nodes
+	private int expireCollected() {
+		int expired = 0;
+		int node;
+		synchronized (this) {
+			node = expiringHead;
+			expiringHead = NONE;
+		}
+		while (node != NONE) {
+			// The node is the tick thread's until freed
+			int following = next[node];
+			ExpiryListener listener = listeners[node];
+			long payload = payloads[node];
+			synchronized (this) {
+				free(node);
+				expiredCount++;
+			}
+			listener.onExpiry(payload);
+			expired++;
+			node = following;
+		}
+		return expired;
+	}
+
+	// Called holding the lock
+	private void unlink(int node) {
+		int bucket = buckets[node];
+		if (previous[node] != NONE)
+			next[previous[node]] = next[node];
+		else
+			heads[bucket] = next[node];
+		if (next[node] != NONE)
+			previous[next[node]] = previous[node];
+	}
+
+	// Called holding the lock
+	private void free(int node) {
+		generations[node]++;
+		buckets[node] = FREE;
+		listeners[node] = null;
+		next[node] = freeHead;
+		freeHead = node;
+		size--;
+	}
+
+	public synchronized long getTick() {
+		return currentTick;
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	public int getCapacity() {
+		return next.length;
+	}
+
+	/**
+	 * @return the number of timers pending
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public synchronized long getExpiredCount() {
+		return expiredCount;
+	}
+
+	public synchronized long getCancelledCount() {
+		return cancelledCount;
+	}
+
+	/**
+	 * @return how many timers could not be scheduled, the wheel being full
+	 */
+	public synchronized long getFullCount() {
+		return fullCount;
+	}
+
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * A set of topics laid out as a hierarchy, and the way a publisher picks among
+ * them.
+ *
+ * The topics are root/a/b/c..., depth levels below the root with fanOut
+ * values per level, the first cardinality of them in order. They are encoded
+ * once into a single byte array so that picking a topic on the publish path is
+ * an index, an offset and a length, no String and no allocation.
+ *
+ * Topics are picked uniformly, round-robin or with a Zipf skew, where the
+ * topic of popularity rank k is picked with a probability proportional to
+ * 1/k^s. Zipf picks use an alias table (Vose), so each pick costs one random
+ * number and two array reads whatever the cardinality. Ranks are shuffled over
+ * the hierarchy so that the hot topics do not all share a branch.
+ *
+ * A TopicWorkload is immutable and can be shared, each publisher thread picks
+ * through its own {@link Picker}.
+ */
+public class TopicWorkload {
+
+	public enum Distribution {
+		UNIFORM, ROUND_ROBIN, ZIPF;
+
+		/**
+		 * @param name
+		 *            uniform, rr or zipf
+		 */
+		public static Distribution fromName(String name) {
+			if ("uniform".equalsIgnoreCase(name))
+				return UNIFORM;
+			if ("rr".equalsIgnoreCase(name))
+				return ROUND_ROBIN;
+			if ("zipf".equalsIgnoreCase(name))
+				return ZIPF;
+			throw new IllegalArgumentException("Unknown distribution [" + name
+					+ "], expected uniform, rr or zipf");
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String root;
+
+	private final int depth;
+
+	private final int fanOut;
+
+	private final int cardinality;
+
+	private final Distribution distribution;
+
+	private final double zipfExponent;
+
+	// All topics back to back, topic i starts at offsets[i]
+	private final byte[] topicBytes;
+
+	private final int[] offsets;
+
+	private final int maxTopicLength;
+
+	// Zipf only: alias table over ranks, and rank to topic index
+	private final double[] aliasProbability;
+
+	private final int[] alias;
+
+	private final int[] topicOfRank;
+
+	/**
+	 * @param root
+	 *            topic prefix, without a trailing /
+	 * @param depth
+	 *            number of levels below the root
+	 * @param cardinality
+	 *            number of topics, the fan out per level being the smallest
+	 *            that gives this many
+	 * @param distribution
+	 *            how topics are picked
+	 * @param zipfExponent
+	 *            the skew s of a Zipf distribution, 1.0 being the classic Zipf
+	 */
+	public TopicWorkload(String root, int depth, int cardinality,
+			Distribution distribution, double zipfExponent) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+		if (cardinality < 1)
+			throw new IllegalArgumentException(
+					"cardinality must be at least 1");
+		this.root = root;
+		this.depth = depth;
+		this.cardinality = cardinality;
+		this.distribution = distribution;
+		this.zipfExponent = zipfExponent;
+		this.fanOut = fanOutFor(cardinality, depth);
+
+		// Encode all topics once
+		byte[] rootBytes = root.getBytes(UTF8);
+		int digitsPerLevel = Integer.toString(fanOut - 1).length();
+		this.maxTopicLength = rootBytes.length + depth * (1 + digitsPerLevel);
+		long totalBytes = (long) cardinality * maxTopicLength;
+		if (totalBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many topics");
+		byte[] bytes = new byte[(int) totalBytes];
+		this.offsets = new int[cardinality + 1];
+		int[] levels = new int[depth];
+		int position = 0;
+		for (int i = 0; i < cardinality; i++) {
+			offsets[i] = position;
+			System.arraycopy(rootBytes, 0, bytes, position, rootBytes.length);
+			position += rootBytes.length;
+			for (int level = 0; level < depth; level++) {
+				bytes[position++] = '/';
+				position = putDecimal(bytes, position, levels[level]);
+			}
+			// Next topic, the last level varies fastest
+			for (int level = depth - 1; level >= 0; level--) {
+				if (++levels[level] < fanOut)
+					break;
+				levels[level] = 0;
+			}
+		}
+		offsets[cardinality] = position;
+		this.topicBytes = bytes;
+
+		if (distribution == Distribution.ZIPF) {
+			this.aliasProbability = new double[cardinality];
+			this.alias = new int[cardinality];
+			buildZipfAliasTable(cardinality, zipfExponent, aliasProbability,
+					alias);
+			this.topicOfRank = shuffledIndexes(cardinality);
+		} else {
+			this.aliasProbability = null;
+			this.alias = null;
+			this.topicOfRank = null;
+		}
+	}
+
+	/**
+	 * Picks topics for a single thread.
+	 */
+	public class Picker {
+
+		private long randomState;
+
+		private int nextRoundRobin = 0;
+
+		Picker(long seed) {
+			// xorshift state must not be 0
+			this.randomState = (seed == 0) ? 0x9E3779B97F4A7C15L : seed;
+		}
+
+		/**
+		 * @return the index of the next topic to publish to
+		 */
+		public int next() {
+			switch (distribution) {
+			case ROUND_ROBIN:
+				int index = nextRoundRobin;
+				nextRoundRobin = (index + 1 == cardinality) ? 0 : index + 1;
+				return index;
+			case ZIPF:
+				long r = nextRandom();
+				int rank = boundedInt(r, cardinality);
+				// The low bits, unused by boundedInt, choose within the column
+				double coin = (r & 0xFFFFFFFFL) / 4294967296.0;
+				if (coin >= aliasProbability[rank])
+					rank = alias[rank];
+				return topicOfRank[rank];
+			default:
+				return boundedInt(nextRandom(), cardinality);
+			}
+		}
+
+		// xorshift64*
+		private long nextRandom() {
+			long x = randomState;
+			x ^= x >>> 12;
+			x ^= x << 25;
+			x ^= x >>> 27;
+			randomState = x;
+			return x * 0x2545F4914F6CDD1DL;
+		}
+	}
+
+	/**
+	 * @param seed
+	 *            for uniform and Zipf picks, use a different seed per thread
+	 */
+	public Picker newPicker(long seed) {
+		return new Picker(seed);
+	}
+
+	/**
+	 * @return the array holding all the encoded topics
+	 */
+	public byte[] getTopicBytes() {
+		return topicBytes;
+	}
+
+	public int offsetOf(int topicIndex) {
+		return offsets[topicIndex];
+	}
+
+	public int lengthOf(int topicIndex) {
+		return offsets[topicIndex + 1] - offsets[topicIndex];
+	}
+
+	/**
+	 * Allocates, not for the publish path
+	 */
+	public String topicName(int topicIndex) {
+		return new String(topicBytes, offsetOf(topicIndex),
+				lengthOf(topicIndex), UTF8);
+	}
+
+	/**
+	 * @return a wildcard subscription matching all the topics
+	 */
+	public String getSubscription() {
+		return root + "/>";
+	}
+
+	public int getCardinality() {
+		return cardinality;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getFanOut() {
+		return fanOut;
+	}
+
+	public int getMaxTopicLength() {
+		return maxTopicLength;
+	}
+
+	public Distribution getDistribution() {
+		return distribution;
+	}
+
+	public double getZipfExponent() {
+		return zipfExponent;
+	}
+
+	@Override
+	public String toString() {
+		String s = cardinality + " topics " + root + "/... depth " + depth
+				+ " fan out " + fanOut + ", " + distribution;
+		if (distribution == Distribution.ZIPF)
+			s += " s=" + zipfExponent;
+		return s;
+	}
+
+	static int fanOutFor(int cardinality, int depth) {
+		int fanOut = Math.max(1,
+				(int) Math.floor(Math.pow(cardinality, 1.0 / depth)));
+		// Correct floating point rounding either way
+		while (pow(fanOut, depth) < cardinality)
+			fanOut++;
+		while (fanOut > 1 && pow(fanOut - 1, depth) >= cardinality)
+			fanOut--;
+		return Math.max(fanOut, 1);
+	}
+
+	private static long pow(long base, int exponent) {
+		long result = 1;
+		for (int i = 0; i < exponent; i++) {
+			result *= base;
+			if (result >= Integer.MAX_VALUE)
+				return Integer.MAX_VALUE;
+		}
+		return result;
+	}
+
+	private static int putDecimal(byte[] bytes, int position, int value) {
+		int divisor = 1;
+		while (divisor <= value / 10)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10) {
+			bytes[position++] = (byte) ('0' + (value / divisor) % 10);
+		}
+		return position;
+	}
+
+	// Unbiased enough for load generation: the high 32 bits scaled to n
+	private static int boundedInt(long random, int n) {
+		return (int) (((random >>> 32) * n) >>> 32);
+	}
+
+	/*
+	 * Vose's alias method: column i is picked uniformly, then i itself with
+	 * probability[i], alias[i] otherwise.
+	 */
+	private static void buildZipfAliasTable(int n, double s,
+			double[] probability, int[] alias) {
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			sum += 1.0 / Math.pow(k + 1, s);
+		}
+		// Scaled so that the average column holds 1
+		double[] scaled = probability;
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int k = 0; k < n; k++) {
+			scaled[k] = n / Math.pow(k + 1, s) / sum;
+			if (scaled[k] < 1.0)
+				small[smallCount++] = k;
+			else
+				large[largeCount++] = k;
+		}
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			// probability[less] stays scaled[less]
+			alias[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+			if (scaled[more] < 1.0)
+				small[smallCount++] = more;
+			else
+				large[largeCount++] = more;
+		}
+		while (largeCount > 0) {
+			probability[large[--largeCount]] = 1.0;
+		}
+		while (smallCount > 0) {
+			// Only left by rounding errors
+			probability[small[--smallCount]] = 1.0;
+		}
+	}
+
+	private static int[] shuffledIndexes(int n) {
+		int[] indexes = new int[n];
+		for (int i = 0; i < n; i++) {
+			indexes[i] = i;
+		}
+		// Fixed seed, the same topics are hot from run to run
+		Random random = new Random(42);
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = indexes[i];
+			indexes[i] = indexes[j];
+			indexes[j] = t;
+		}
+		return indexes;
+	}
+
+}
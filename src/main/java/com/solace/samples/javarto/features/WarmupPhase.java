@@ -0,0 +1,204 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A warm-up phase run before a benchmark is measured, so that the interpreted
+ * and C1 compiled first messages, class loading and connection set up are not
+ * mixed into the result.
+ *
+ * The phase lasts a number of messages, -warmup 100000, or a duration,
+ * -warmup 10s or -warmup 500ms. Optionally it also lasts until the JIT settles:
+ * the total compilation time of the {@link CompilationMXBean} must not grow
+ * for {@link #STABLE_SAMPLES} samples in a row, {@link #SAMPLE_PERIOD_MS} apart,
+ * while the warm-up messages keep the hot code running. Should it never
+ * settle, the phase ends after a longest duration and says so.
+ *
+ * The values recorded meanwhile are taken out of the latency histograms by
+ * {@link #markHistograms(LatencyHistogram...)} at the end of the phase and
+ * {@link #measuredPart(LatencyHistogram)} when reporting.
+ */
+public class WarmupPhase {
+
+	/** Compilation time samples without growth for the JIT to count as settled */
+	static final int STABLE_SAMPLES = 3;
+
+	/** Time between compilation time samples */
+	static final long SAMPLE_PERIOD_MS = 200;
+
+	/**
+	 * Warm-up of the runs measuring per message costs when none is given, the
+	 * first messages load classes and fill caches
+	 */
+	public static final int DEFAULT_MESSAGES = 10000;
+
+	/** Longest warm-up waiting for the JIT, unless told otherwise */
+	public static final long DEFAULT_MAX_DURATION_MS = 60000;
+
+	private final long messages;
+
+	private final long durationNanos;
+
+	private final boolean waitForJit;
+
+	private final long maxDurationNanos;
+
+	private final CompilationMXBean compilation;
+
+	private long startNanos;
+
+	private long nextSampleNanos;
+
+	private long lastCompilationMs;
+
+	private int stableSamples;
+
+	private boolean jitSettled;
+
+	private long endNanos;
+
+	private final Map<LatencyHistogram, LatencyHistogram> marks = new IdentityHashMap<LatencyHistogram, LatencyHistogram>();
+
+	/**
+	 * @param spec
+	 *            a number of messages, or a duration ending in s or ms
+	 * @param waitForJit
+	 *            also wait for the compilation time to settle
+	 * @param maxDurationMs
+	 *            longest warm-up when waiting for the JIT
+	 */
+	public WarmupPhase(String spec, boolean waitForJit, long maxDurationMs) {
+		try {
+			if (spec.endsWith("ms")) {
+				messages = 0;
+				durationNanos = Long.parseLong(spec.substring(0,
+						spec.length() - 2)) * 1000 * 1000;
+			} else if (spec.endsWith("s")) {
+				messages = 0;
+				durationNanos = Long.parseLong(spec.substring(0,
+						spec.length() - 1)) * 1000 * 1000 * 1000;
+			} else {
+				messages = spec.length() == 0 ? 0 : Long.parseLong(spec);
+				durationNanos = 0;
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad warm-up [" + spec
+					+ "], expected a number of messages, or a duration such as 10s or 500ms");
+		}
+		if (messages < 0 || durationNanos < 0)
+			throw new IllegalArgumentException("Negative warm-up [" + spec
+					+ "]");
+		this.waitForJit = waitForJit;
+		this.maxDurationNanos = maxDurationMs * 1000 * 1000;
+		CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+		this.compilation = (bean != null && bean
+				.isCompilationTimeMonitoringSupported()) ? bean : null;
+		if (waitForJit && compilation == null)
+			System.out
+					.println("Compilation time is not monitored by this JVM, not waiting for the JIT to settle");
+	}
+
+	/**
+	 * Starts the phase clock
+	 */
+	public void begin() {
+		startNanos = System.nanoTime();
+		nextSampleNanos = startNanos + SAMPLE_PERIOD_MS * 1000 * 1000;
+		lastCompilationMs = getCompilationMs();
+		stableSamples = 0;
+		jitSettled = !waitForJit || compilation == null;
+	}
+
+	/**
+	 * @param sent
+	 *            messages sent since {@link #begin()}
+	 * @return true once the phase is over, then ends it
+	 */
+	public boolean isDone(long sent) {
+		long now = System.nanoTime();
+		if (!jitSettled && now >= nextSampleNanos) {
+			long compilationMs = getCompilationMs();
+			stableSamples = (compilationMs == lastCompilationMs) ? stableSamples + 1
+					: 0;
+			lastCompilationMs = compilationMs;
+			jitSettled = stableSamples >= STABLE_SAMPLES;
+			nextSampleNanos = now + SAMPLE_PERIOD_MS * 1000 * 1000;
+		}
+		boolean done = sent >= messages && now - startNanos >= durationNanos
+				&& (jitSettled || now - startNanos >= maxDurationNanos);
+		if (done)
+			endNanos = now;
+		return done;
+	}
+
+	/**
+	 * @return how many messages to send before checking {@link #isDone(long)}
+	 *         again, no more than the count left to send
+	 */
+	public int nextChunk(long sent, int maxChunk) {
+		if (sent < messages)
+			return (int) Math.min(maxChunk, messages - sent);
+		return maxChunk;
+	}
+
+	private long getCompilationMs() {
+		return compilation == null ? 0 : compilation.getTotalCompilationTime();
+	}
+
+	/**
+	 * Prints how long the phase took and whether the JIT settled
+	 */
+	public void printSummary(long sent) {
+		System.out.printf("%nWarm-up: %d messages in %.1f seconds, not measured",
+				sent, (endNanos - startNanos) / 1e9);
+		if (waitForJit && compilation != null)
+			System.out.printf(", %s, total compilation time %d ms",
+					jitSettled ? "JIT settled" : "JIT still compiling",
+					lastCompilationMs);
+		System.out.println();
+	}
+
+	public boolean isJitSettled() {
+		return jitSettled;
+	}
+
+	public long getElapsedNanos() {
+		return endNanos - startNanos;
+	}
+
+	/**
+	 * Copies the histograms as they are at the end of the phase, their writers
+	 * being done with the warm-up messages
+	 */
+	public void markHistograms(LatencyHistogram... histograms) {
+		for (LatencyHistogram histogram : histograms) {
+			if (histogram == null)
+				continue;
+			LatencyHistogram mark = new LatencyHistogram();
+			mark.copyFrom(histogram);
+			marks.put(histogram, mark);
+		}
+	}
+
+	/**
+	 * @return the values recorded in the histogram since it was marked, the
+	 *         histogram itself if it was not
+	 */
+	public LatencyHistogram measuredPart(LatencyHistogram histogram) {
+		LatencyHistogram mark = marks.get(histogram);
+		if (mark == null)
+			return histogram;
+		LatencyHistogram measured = new LatencyHistogram();
+		measured.copyFrom(histogram);
+		measured.subtract(mark);
+		return measured;
+	}
+
+}
@@ -64,6 +64,11 @@ public abstract class AbstractSample {
 
 	private ByteBuffer messageContentBuffer = ByteBuffer.allocateDirect(512);
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] COMMON_PAYLOAD_PREFIX = "Some message about topic "
+			.getBytes(UTF8);
+
 	protected static void beSilent() {
 		printAssertionSuccess = false;
 		logCallbacks = false;
@@ -432,9 +437,9 @@ public abstract class AbstractSample {
 		// Set the destination/topic
 		aMessageHandle.setDestination(destination);
 
-		String message = "Some message about topic " + destination.getName();
 		messageContentBuffer.clear();
-		messageContentBuffer.put(message.getBytes(Charset.defaultCharset()));
+		messageContentBuffer.put(COMMON_PAYLOAD_PREFIX);
+		messageContentBuffer.put(destination.getName().getBytes(UTF8));
 		messageContentBuffer.flip();
 
 		/* Add some content to the message. */
@@ -442,8 +447,10 @@ public abstract class AbstractSample {
 
 		/* Send the message. */
 		rc = aSessionHandle.send(aMessageHandle);
-		assertReturnCode("SessionHandle.send()", rc, SolEnum.ReturnCode.OK,
-				SolEnum.ReturnCode.OK);
+		// Only go through the assertion when it fails or is printed, it
+		// allocates
+		if (rc != SolEnum.ReturnCode.OK || printAssertionSuccess)
+			assertReturnCode("SessionHandle.send()", rc, SolEnum.ReturnCode.OK);
 	}
 
 	protected abstract void run(String[] args, SessionConfiguration config,
@@ -510,8 +517,14 @@ public abstract class AbstractSample {
 
 	public static class MessageCallbackSample implements MessageCallback {
 
+		// Most kept messages held in native memory at once
+		static final int KEPT_RX_MESSAGES_CAPACITY = 1024;
+
 		private boolean _keepRxMessage = false;
-		private java.util.List<MessageHandle> _rxMessages = new java.util.LinkedList<MessageHandle>();
+		private java.util.List<MessageHandle> _rxMessages = new ArrayList<MessageHandle>();
+		// Handles of released messages, reused for the next kept ones
+		private java.util.List<MessageHandle> _freeRxHandles = new ArrayList<MessageHandle>();
+		private int droppedCount = 0;
 		private int messageCount = 0;
 
 		String m_id;
@@ -526,11 +539,20 @@ public abstract class AbstractSample {
 			setMessageCount(getMessageCount() + 1);
 
 			if (this._keepRxMessage) {
+				if (_rxMessages.size() >= KEPT_RX_MESSAGES_CAPACITY) {
+					droppedCount++;
+					if (logCallbacks)
+						print(m_id + " -> Received message [" + messageCount
+								+ "], all " + KEPT_RX_MESSAGES_CAPACITY
+								+ " kept message handles in use, not keeping it");
+					return;
+				}
 				if (logCallbacks)
 					print(m_id + " -> Received message [" + messageCount
 							+ "], adding it to received messages list");
-				MessageHandle takenMessage = Solclient.Allocator
-						.newMessageHandle();
+				MessageHandle takenMessage = _freeRxHandles.isEmpty() ? Solclient.Allocator
+						.newMessageHandle() : _freeRxHandles
+						.remove(_freeRxHandles.size() - 1);
 				messageSupport.takeRxMessage(takenMessage);
 				this._rxMessages.add(takenMessage);
 			} else {
@@ -558,10 +580,33 @@ public abstract class AbstractSample {
 			this.m_id = id;
 		}
 
+		/**
+		 * @return the kept messages not released yet
+		 */
 		public java.util.List<MessageHandle> getRxMessages() {
 			return this._rxMessages;
 		}
 
+		/**
+		 * Frees a kept message once processed, its handle is reused for the
+		 * next one
+		 */
+		public void releaseRxMessage(MessageHandle messageHandle) {
+			if (!_rxMessages.remove(messageHandle))
+				throw new IllegalArgumentException(
+						"MessageHandle not kept or released twice");
+			if (messageHandle.isBound())
+				messageHandle.destroy();
+			_freeRxHandles.add(messageHandle);
+		}
+
+		/**
+		 * @return received messages not kept, all handles being in use
+		 */
+		public int getDroppedCount() {
+			return droppedCount;
+		}
+
 		public int getMessageCount() {
 			return messageCount;
 		}
@@ -586,6 +631,9 @@ public abstract class AbstractSample {
 					print(".");
 				}
 			}
+			if (droppedCount > 0)
+				print(String.format("%d messages were not kept",
+						droppedCount));
 		}
 
 	}
@@ -11,7 +11,10 @@ import java.lang.reflect.Array;
  * key
  * 
  * @param <T>
+ * @deprecated slots in flight get overwritten, use
+ *             {@link com.solace.samples.javarto.features.CorrelationRegistry}
  */
+@Deprecated
 public class CorrelationArrayUtil<T> {
 
 	private static final int WINDOWSIZE = 255;
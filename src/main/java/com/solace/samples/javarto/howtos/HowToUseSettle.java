@@ -1,5 +1,6 @@
 package com.solace.samples.javarto.howtos;
 
+import com.solace.samples.javarto.features.AckAccumulator;
 import com.solace.samples.javarto.features.common.AbstractSample;
 import com.solacesystems.solclientj.core.SolEnum;
 import com.solacesystems.solclientj.core.SolEnum.MessageOutcome;
@@ -140,4 +141,56 @@ public class HowToUseSettle {
                     }
                 }, new AbstractSample.FlowEventCallbackSample());
     }
+
+    /**
+     * Example of how to settle messages with MessageOutcome.ACCEPTED in batches,
+     * the ids are collected on the callback and settled once batchSize of them are
+     * pending, or once the oldest has waited maxDelayMs. Unsettled messages are
+     * redelivered if the flow goes down, close the returned accumulator before
+     * destroying the flow.
+     *
+     * @param sessionHandle the session handle
+     * @param queueToConsumeFrom queue to consume messages from
+     * @param batchSize number of messages settled at once
+     * @param maxDelayMs longest time a message waits to be settled
+     * @return the accumulator settling the messages
+     */
+    public static AckAccumulator settleMessagesInBatches(SessionHandle sessionHandle,
+                                                         Queue queueToConsumeFrom,
+                                                         int batchSize, long maxDelayMs) {
+
+        FlowHandle flowHandle = Solclient.Allocator.newFlowHandle();
+
+        /* Setting Flow Properties */
+        int propsIndex = 0;
+        String[] flowProps = new String[10];
+
+        flowProps[propsIndex++] = FlowHandle.PROPERTIES.BIND_BLOCKING;
+        flowProps[propsIndex++] = SolEnum.BooleanValue.ENABLE;
+
+        /* AUTO ACKMODE will give settle() no effect since acks are automatically sent by the API.
+         * Therefore, use CLIENT ACKMODE. */
+        flowProps[propsIndex++] = FlowHandle.PROPERTIES.ACKMODE;
+        flowProps[propsIndex++] = SolEnum.AckMode.CLIENT;
+
+        /* Flushed from the callback when a batch fills, from its own timer otherwise */
+        final AckAccumulator accumulator = new AckAccumulator(flowHandle, batchSize,
+                maxDelayMs, MessageOutcome.ACCEPTED).start();
+
+        sessionHandle.createFlowForHandle(flowHandle, flowProps, queueToConsumeFrom, null,
+                new AbstractSample.MessageCallbackSample("") {
+                    @Override
+                    public void onMessage(Handle handle) {
+                        FlowHandle flowHandle = (FlowHandle) handle;
+                        MessageHandle msgHandle = flowHandle.getRxMessage();
+                        long msgId = msgHandle.getGuaranteedMessageId();
+
+                        /* Attempt to process the message. */
+                        /* Successfully processed the message, settle it with the next batch */
+                        accumulator.add(msgId);
+                    }
+                }, new AbstractSample.FlowEventCallbackSample());
+
+        return accumulator;
+    }
 }
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Sends the requests on a fake session and replies by hand, the timeouts
+ * being driven with {@link TimingWheel#advance(long)}.
+ */
+public class AsyncRequesterTest {
+
+	private static final long MS = 1000L * 1000;
+
+	/**
+	 * A message holding a correlation id and an int attachment
+	 */
+	private static final class FakeMessage implements InvocationHandler {
+		String correlationId;
+		int attachment;
+		final MessageHandle handle = (MessageHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { MessageHandle.class }, this);
+
+		FakeMessage(String correlationId, int attachment) {
+			this.correlationId = correlationId;
+			this.attachment = attachment;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getCorrelationId"))
+				return correlationId;
+			if (name.equals("setCorrelationId")) {
+				correlationId = (String) args[0];
+				return null;
+			}
+			if (name.equals("getBinaryAttachment")) {
+				((ByteBuffer) args[0]).putInt(attachment);
+				return null;
+			}
+			if (name.equals("setBinaryAttachment")) {
+				ByteBuffer payload = (ByteBuffer) args[0];
+				attachment = payload.getInt(payload.position());
+				return null;
+			}
+			if (name.equals("setReplyTo"))
+				return null;
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	/**
+	 * Records the requests sent, as correlation id=attachment
+	 */
+	private static final class FakeSession implements InvocationHandler {
+		final List<String> sent = new ArrayList<String>();
+		final SessionHandle handle = (SessionHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { SessionHandle.class }, this);
+
+		public synchronized Object invoke(Object proxy, Method method,
+				Object[] args) {
+			if (!method.getName().equals("send"))
+				throw new UnsupportedOperationException(method.getName());
+			FakeMessage request = (FakeMessage) Proxy
+					.getInvocationHandler(args[0]);
+			sent.add(request.correlationId + "=" + request.attachment);
+			return SolEnum.ReturnCode.OK;
+		}
+	}
+
+	/**
+	 * Records the completions, as requestId=payload or requestId:timeout
+	 */
+	private static final class RecordingListener implements
+			AsyncRequester.ReplyListener {
+		final List<String> completions = new ArrayList<String>();
+
+		public synchronized void onReply(long requestId, MessageHandle reply,
+				ByteBuffer payload, long roundTripNanos) {
+			completions.add(requestId + "=" + payload.getInt(0));
+		}
+
+		public synchronized void onTimeout(long requestId) {
+			completions.add(requestId + ":timeout");
+		}
+	}
+
+	private final FakeSession session = new FakeSession();
+
+	private final FakeMessage txMessage = new FakeMessage(null, 0);
+
+	private final RecordingListener listener = new RecordingListener();
+
+	private static ByteBuffer payload(int value) {
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(0, value);
+		return payload;
+	}
+
+	private static MessageHandle reply(long key, int value) {
+		return new FakeMessage(AsyncRequester.CORRELATION_PREFIX + key,
+				value).handle;
+	}
+
+	@Test
+	public void replyCompletesItsRequestOnce() {
+		AsyncRequester requester = new AsyncRequester(session.handle, null,
+				4, 64);
+		long first = requester.request(txMessage.handle, payload(10), 1,
+				listener);
+		long second = requester.request(txMessage.handle, payload(20), 2,
+				listener);
+
+		assertEquals("[rq:" + first + "=10, rq:" + second + "=20]",
+				session.sent.toString());
+		assertEquals(2, requester.getInFlight());
+		assertTrue(requester.onReply(reply(second, 21)));
+		assertTrue(requester.onReply(reply(first, 11)));
+		assertFalse("duplicate", requester.onReply(reply(first, 11)));
+		assertFalse(requester.onReply(new FakeMessage("other:1", 0).handle));
+
+		assertEquals("[2=21, 1=11]", listener.completions.toString());
+		assertEquals(0, requester.getInFlight());
+		assertEquals(2, requester.getCompletedCount());
+		assertEquals(2, requester.getUnknownReplyCount());
+		assertEquals(2, requester.getRoundTripLatency().getTotalCount());
+	}
+
+	@Test
+	public void fullWindowHoldsTheRequesterBack() throws Exception {
+		final AsyncRequester requester = new AsyncRequester(session.handle,
+				null, 2, 64);
+		long first = requester.request(txMessage.handle, payload(1), 1,
+				listener);
+		requester.request(txMessage.handle, payload(2), 2, listener);
+		Thread third = new Thread() {
+			public void run() {
+				requester.request(new FakeMessage(null, 0).handle,
+						payload(3), 3, listener);
+			}
+		};
+		third.start();
+		third.join(50);
+		assertTrue(third.isAlive());
+		assertEquals(2, session.sent.size());
+
+		requester.onReply(reply(first, 1));
+		third.join(5000);
+		assertFalse(third.isAlive());
+		assertEquals(3, session.sent.size());
+		assertEquals(2, requester.getInFlight());
+	}
+
+	@Test
+	public void requestWithoutReplyTimesOut() {
+		TimingWheel wheel = new TimingWheel(16, 1, TimeUnit.MILLISECONDS, 64);
+		AsyncRequester requester = new AsyncRequester(session.handle, null,
+				4, 64).setTimeout(wheel, 10, TimeUnit.MILLISECONDS);
+		long late = requester.request(txMessage.handle, payload(1), 1,
+				listener);
+		long replied = requester.request(txMessage.handle, payload(2), 2,
+				listener);
+		assertTrue(requester.onReply(reply(replied, 2)));
+		// The reply cancelled its timer
+		assertEquals(1, wheel.getSize());
+
+		wheel.advance(System.nanoTime() + 50 * MS);
+		assertEquals("[2=2, 1:timeout]", listener.completions.toString());
+		assertEquals(1, requester.getTimedOutCount());
+		assertEquals(0, requester.getInFlight());
+
+		assertFalse("late", requester.onReply(reply(late, 1)));
+		assertEquals(1, requester.getUnknownReplyCount());
+	}
+
+	@Test
+	public void fullWheelLeavesTheRequestUntimed() {
+		TimingWheel wheel = new TimingWheel(1, 1, TimeUnit.MILLISECONDS, 64);
+		AsyncRequester requester = new AsyncRequester(session.handle, null,
+				4, 64).setTimeout(wheel, 10, TimeUnit.MILLISECONDS);
+		requester.request(txMessage.handle, payload(1), 1, listener);
+		long untimed = requester.request(txMessage.handle, payload(2), 2,
+				listener);
+
+		assertEquals(1, requester.getUntimedCount());
+		wheel.advance(System.nanoTime() + 50 * MS);
+		assertEquals(1, requester.getInFlight());
+		assertTrue(requester.onReply(reply(untimed, 2)));
+		assertEquals("[1:timeout, 2=2]", listener.completions.toString());
+	}
+
+	@Test
+	public void futureCompletesWithThePayload() throws Exception {
+		AsyncRequester requester = new AsyncRequester(session.handle, null,
+				4, 64);
+		CompletableFuture<byte[]> future = requester.request(
+				txMessage.handle, payload(5));
+		assertFalse(future.isDone());
+
+		long key = CorrelationSlots.parseKey(txMessage.correlationId,
+				AsyncRequester.CORRELATION_PREFIX);
+		requester.onReply(reply(key, 0x01020304));
+		byte[] content = future.get(1, TimeUnit.SECONDS);
+		assertEquals(4, content.length);
+		assertEquals(0x01020304, ByteBuffer.wrap(content).getInt());
+	}
+
+}
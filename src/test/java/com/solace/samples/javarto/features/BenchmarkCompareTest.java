@@ -0,0 +1,65 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BenchmarkCompareTest {
+
+	private static BenchmarkResult result(double rate, double latencyUs,
+			double other) {
+		BenchmarkResult result = new BenchmarkResult("PerfPubSub",
+				new String[0]);
+		result.putMetric("publish_rate", rate);
+		result.putMetric("latency_avg_us", latencyUs);
+		result.putMetric("messages", other);
+		return result;
+	}
+
+	@Test
+	public void directionFollowsTheSuffix() {
+		assertEquals(1, BenchmarkCompare.directionOf("publish_rate"));
+		assertEquals(-1, BenchmarkCompare.directionOf("rtt_p99_us"));
+		assertEquals(-1, BenchmarkCompare.directionOf("gc_ms"));
+		assertEquals(0, BenchmarkCompare.directionOf("messages"));
+	}
+
+	@Test
+	public void changesWithinTheThresholdPass() {
+		assertEquals(0, BenchmarkCompare.compare(result(1000, 100, 1),
+				result(960, 104, 2), 5.0));
+	}
+
+	@Test
+	public void lowerRateAndHigherLatencyAreRegressions() {
+		BenchmarkResult baseline = result(1000, 100, 1);
+		assertEquals(1, BenchmarkCompare.compare(baseline,
+				result(900, 100, 1), 5.0));
+		assertEquals(1, BenchmarkCompare.compare(baseline,
+				result(1000, 110, 1), 5.0));
+		assertEquals(2, BenchmarkCompare.compare(baseline,
+				result(900, 110, 1), 5.0));
+		assertEquals(0, BenchmarkCompare.compare(baseline,
+				result(900, 110, 1), 20.0));
+	}
+
+	@Test
+	public void improvementsAndUnknownMetricsAreNotRegressions() {
+		assertEquals(0, BenchmarkCompare.compare(result(1000, 100, 1),
+				result(2000, 50, 1000), 5.0));
+	}
+
+	@Test
+	public void missingMetricsAreNotRegressions() {
+		BenchmarkResult candidate = new BenchmarkResult("PerfPubSub",
+				new String[0]);
+		candidate.putMetric("publish_rate", 1000);
+		assertEquals(0, BenchmarkCompare.compare(result(1000, 100, 1),
+				candidate, 5.0));
+	}
+
+}
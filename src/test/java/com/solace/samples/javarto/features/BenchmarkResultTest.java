@@ -0,0 +1,93 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BenchmarkResultTest {
+
+	private static File tempFile(String suffix) throws IOException {
+		File file = File.createTempFile("benchmark", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void jsonRoundTrip() throws IOException {
+		BenchmarkResult result = new BenchmarkResult("PerfPubSub",
+				new String[] { "-h", "broker", "-w", "secret", "-n", "10" });
+		result.putMetadata("note", "quote \" and\ttab");
+		result.putMetric("publish_rate", 123456.5);
+		result.putMetric("gc_ms", 12);
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long us = 1; us <= 100; us++) {
+			histogram.record(us * 1000);
+		}
+		result.putHistogram("latency", histogram);
+		List<double[]> rows = new ArrayList<double[]>();
+		rows.add(new double[] { 1, 1000.25 });
+		rows.add(new double[] { 2, 2000 });
+		result.putSeries("interval", Arrays.asList("second", "rate"), rows);
+
+		File file = tempFile(".json");
+		result.writeJson(file);
+		BenchmarkResult read = BenchmarkResult.readJson(file);
+
+		assertEquals("PerfPubSub", read.getSample());
+		assertEquals(result.getMetadata(), read.getMetadata());
+		assertEquals("-h broker -w **** -n 10", read.getMetadata().get("args"));
+		assertEquals(result.getMetrics(), read.getMetrics());
+		// Written with 3 decimals
+		Map<String, Double> latency = read.getHistograms().get("latency");
+		for (Map.Entry<String, Double> statistic : result.getHistograms()
+				.get("latency").entrySet()) {
+			assertEquals(statistic.getValue(),
+					latency.get(statistic.getKey()), 0.001);
+		}
+		assertEquals(100.0, latency.get("count"), 0);
+		BenchmarkResult.Series series = read.getSeries().get("interval");
+		assertEquals(Arrays.asList("second", "rate"), series.getColumns());
+		assertEquals(2, series.getRows().size());
+		assertEquals(1000.25, series.getRows().get(0)[1], 0);
+		assertEquals(2000, series.getRows().get(1)[1], 0);
+	}
+
+	@Test
+	public void comparableMetricsFlattenTheHistograms() {
+		BenchmarkResult result = new BenchmarkResult("s", new String[0]);
+		result.putMetric("publish_rate", 10);
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5000);
+		result.putHistogram("rtt", histogram);
+
+		Map<String, Double> comparable = result.getComparableMetrics();
+		assertEquals(10, comparable.get("publish_rate"), 0);
+		assertEquals(5.0, comparable.get("rtt_max_us"), 0.05);
+		assertTrue(comparable.containsKey("rtt_p99_us"));
+		assertTrue(comparable.containsKey("rtt_p99.9_us"));
+		assertFalse(comparable.containsKey("rtt_count"));
+	}
+
+	@Test(expected = IOException.class)
+	public void readingSomethingElseFails() throws IOException {
+		File file = tempFile(".csv");
+		BenchmarkResult result = new BenchmarkResult("s", new String[0]);
+		result.putMetric("publish_rate", 10);
+		result.writeCsv(file);
+		BenchmarkResult.readJson(file);
+	}
+
+}
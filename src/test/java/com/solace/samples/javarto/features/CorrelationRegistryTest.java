@@ -0,0 +1,95 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CorrelationRegistryTest {
+
+	@Test
+	public void uncorrelateReturnsTheObject() {
+		CorrelationRegistry<String> registry = new CorrelationRegistry<String>(
+				4);
+		long a = registry.tryCorrelate("a");
+		long b = registry.tryCorrelate("b");
+
+		assertTrue(a != 0 && b != 0 && a != b);
+		assertSame("b", registry.peek(b));
+		assertSame("a", registry.uncorrelate(a));
+		assertNull(registry.peek(a));
+		assertEquals(1, registry.getInFlight());
+	}
+
+	@Test
+	public void fullRegistryDoesNotOverwrite() {
+		CorrelationRegistry<String> registry = new CorrelationRegistry<String>(
+				4);
+		long first = registry.tryCorrelate("0");
+		for (int i = 1; i < 4; i++) {
+			registry.tryCorrelate(Integer.toString(i));
+		}
+
+		assertEquals(0, registry.tryCorrelate("4"));
+		assertEquals(0, registry.correlate("4", 1, TimeUnit.MILLISECONDS));
+		assertSame("0", registry.peek(first));
+	}
+
+	@Test
+	public void staleGenerationIsDetected() {
+		CorrelationRegistry<String> registry = new CorrelationRegistry<String>(
+				2);
+		long old = registry.tryCorrelate("old");
+		long other = registry.tryCorrelate("other");
+		registry.uncorrelate(old);
+		// Wraps around to the slot of old
+		long current = registry.tryCorrelate("current");
+
+		assertEquals(registry.indexOf(old), registry.indexOf(current));
+		assertEquals(registry.generationOf(old) + 1,
+				registry.generationOf(current));
+		assertNull(registry.uncorrelate(old));
+		assertNull(registry.uncorrelate(0));
+		assertEquals(2, registry.getStaleCount());
+		assertSame("current", registry.uncorrelate(current));
+		assertSame("other", registry.uncorrelate(other));
+	}
+
+	@Test
+	public void concurrentCorrelateAndUncorrelate() throws Exception {
+		final CorrelationRegistry<Long> registry = new CorrelationRegistry<Long>(
+				8);
+		final AtomicLong mismatches = new AtomicLong();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (long i = 0; i < 20000; i++) {
+						Long value = Long.valueOf(i);
+						long key = registry.correlate(value);
+						if (registry.uncorrelate(key) != value)
+							mismatches.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, mismatches.get());
+		assertEquals(0, registry.getInFlight());
+		assertEquals(0, registry.getStaleCount());
+	}
+
+}
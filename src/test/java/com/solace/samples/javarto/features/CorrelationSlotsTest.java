@@ -0,0 +1,82 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CorrelationSlotsTest {
+
+	@Test
+	public void keyIsInFlightBetweenPublishAndClaim() {
+		CorrelationSlots slots = new CorrelationSlots(4);
+		long key = slots.tryAcquire();
+
+		assertFalse(slots.isInFlight(key));
+		slots.publish(key);
+		assertTrue(slots.isInFlight(key));
+		assertTrue(slots.claim(key));
+		assertFalse("claimed twice", slots.claim(key));
+		assertFalse(slots.isInFlight(key));
+		slots.release(key);
+
+		assertFalse(slots.claim(key));
+		assertEquals(0, slots.getInFlight());
+		assertEquals(1, slots.getReleasedCount());
+	}
+
+	@Test
+	public void windowSmallerThanTheSlots() {
+		// 3 keys in 4 slots
+		CorrelationSlots slots = new CorrelationSlots(3);
+		assertEquals(4, slots.getCapacity());
+		long first = slots.tryAcquire();
+		slots.tryAcquire();
+		slots.tryAcquire();
+
+		assertEquals(0, slots.tryAcquire());
+		assertEquals(0, slots.acquire(1, TimeUnit.MILLISECONDS));
+		slots.release(first);
+		assertTrue(slots.tryAcquire() != 0);
+	}
+
+	@Test
+	public void heldSlotIsNotHandedOutAgain() {
+		CorrelationSlots slots = new CorrelationSlots(2);
+		long first = slots.tryAcquire();
+		long second = slots.tryAcquire();
+		slots.publish(first);
+		slots.release(second);
+
+		// The next key maps to the slot of first, still in flight
+		assertEquals(0, slots.tryAcquire());
+		assertTrue(slots.claim(first));
+		slots.release(first);
+		long next = slots.tryAcquire();
+		assertEquals(slots.indexOf(first), slots.indexOf(next));
+		assertEquals(slots.generationOf(first) + 1, slots.generationOf(next));
+		assertTrue(slots.isAcquired(first));
+		assertFalse(slots.isAcquired(next + 1));
+	}
+
+	@Test
+	public void parsesKeysInPlace() {
+		assertEquals(42, CorrelationSlots.parseKey("rq:42", "rq:"));
+		assertEquals(Long.parseLong("999999999999999999"),
+				CorrelationSlots.parseKey("rq:999999999999999999", "rq:"));
+		assertEquals(0, CorrelationSlots.parseKey("rq:", "rq:"));
+		assertEquals(0, CorrelationSlots.parseKey("rq:4x2", "rq:"));
+		assertEquals(0, CorrelationSlots.parseKey("rqh:42", "rq:"));
+		assertEquals(0,
+				CorrelationSlots.parseKey("rq:9999999999999999999", "rq:"));
+		assertEquals(0, CorrelationSlots.parseKey(null, "rq:"));
+	}
+
+}
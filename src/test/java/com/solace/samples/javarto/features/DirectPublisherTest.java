@@ -0,0 +1,138 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Publishes on a fake session, recording a copy of the payload of each
+ * message sent.
+ */
+public class DirectPublisherTest {
+
+	/**
+	 * A message recording its destination and a copy of its attachment
+	 */
+	private static final class FakeMessage implements InvocationHandler {
+		Object destination;
+		ByteBuffer attachment;
+		final MessageHandle handle = (MessageHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { MessageHandle.class }, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setDestination")) {
+				destination = args[0];
+				return null;
+			}
+			if (name.equals("setBinaryAttachment")) {
+				ByteBuffer payload = ((ByteBuffer) args[0]).duplicate();
+				attachment = ByteBuffer.allocate(payload.remaining());
+				attachment.put(payload).flip();
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private final FakeMessage message = new FakeMessage();
+
+	private final List<ByteBuffer> sent = new ArrayList<ByteBuffer>();
+
+	private final SessionHandle session = (SessionHandle) Proxy
+			.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { SessionHandle.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (!method.getName().equals("send"))
+								throw new UnsupportedOperationException(method
+										.getName());
+							sent.add(message.attachment);
+							return SolEnum.ReturnCode.OK;
+						}
+					});
+
+	private final NativeDestinationHandle topic = (NativeDestinationHandle) Proxy
+			.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { NativeDestinationHandle.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							throw new UnsupportedOperationException(method
+									.getName());
+						}
+					});
+
+	private DirectPublisher newPublisher(int msgSize) {
+		return new DirectPublisher(session, message.handle, topic,
+				ByteBuffer.allocate(msgSize), msgSize);
+	}
+
+	@Test
+	public void sequenceCarriesOnAcrossCalls() {
+		DirectPublisher publisher = newPublisher(24).stampSequence(3);
+		assertSame(topic, message.destination);
+
+		publisher.publish(2);
+		publisher.publish(1);
+
+		assertEquals(3, sent.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(24, sent.get(i).remaining());
+			assertEquals(ReceiveStats.stamp(3, i),
+					sent.get(i).getLong(PerfPubSub.SEQUENCE_STAMP_OFFSET));
+		}
+		assertEquals(3, publisher.getSentCount());
+	}
+
+	@Test
+	public void latencyStampIsTheSendTime() {
+		DirectPublisher publisher = newPublisher(16).stampLatency();
+		long before = System.nanoTime();
+		publisher.publish(1);
+		long stamp = sent.get(0).getLong(0);
+		assertTrue(stamp >= before && stamp <= System.nanoTime());
+	}
+
+	@Test
+	public void emptyPayloadIsNotAttached() {
+		DirectPublisher publisher = newPublisher(0);
+		publisher.publish(2);
+		assertEquals(2, sent.size());
+		assertEquals(null, sent.get(0));
+		assertEquals(2, publisher.getSentCount());
+	}
+
+	@Test
+	public void sweepMessagesAreStamped() {
+		DirectPublisher publisher = newPublisher(8);
+		ByteBuffer payload = ByteBuffer.allocateDirect(64);
+		long before = System.nanoTime();
+		publisher.send(payload);
+
+		assertEquals(64, sent.get(0).remaining());
+		assertTrue(sent.get(0).getLong(0) >= before);
+		assertEquals(1, publisher.getSentCount());
+	}
+
+}
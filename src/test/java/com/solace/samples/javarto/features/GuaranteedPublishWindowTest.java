@@ -0,0 +1,117 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The publisher and callback sides run on the test thread, the ack timeouts
+ * on a wheel driven with {@link TimingWheel#advance(long)}.
+ */
+public class GuaranteedPublishWindowTest {
+
+	private static final long MS = 1000L * 1000;
+
+	private static long send(GuaranteedPublishWindow window) {
+		long key = window.acquire();
+		window.markSent(key);
+		return key;
+	}
+
+	@Test
+	public void acknowledgesKeysInFlight() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(4);
+		long first = send(window);
+		long second = send(window);
+
+		assertTrue(first != 0 && second != first);
+		assertEquals(2, window.getInFlight());
+		assertTrue(window.acknowledge(second, true));
+		assertTrue(window.acknowledge(first, false));
+
+		assertEquals(0, window.getInFlight());
+		assertEquals(2, window.getAcknowledgedCount());
+		assertEquals(1, window.getRejectedCount());
+		assertEquals(2, window.getAckLatency().getTotalCount());
+	}
+
+	@Test
+	public void duplicateAndUnknownAcksAreCounted() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(4);
+		long key = send(window);
+		assertTrue(window.acknowledge(key, true));
+
+		assertFalse(window.acknowledge(key, true));
+		assertFalse(window.acknowledge(0, true));
+		assertFalse(window.acknowledge(key + 1, true));
+		assertEquals(3, window.getUnknownAckCount());
+		assertEquals(1, window.getAcknowledgedCount());
+	}
+
+	@Test
+	public void cancelReleasesTheKey() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(1);
+		long key = send(window);
+		window.cancel(key);
+
+		assertEquals(0, window.getInFlight());
+		assertFalse(window.acknowledge(key, true));
+		// The window of one has room again
+		long next = send(window);
+		assertTrue(window.acknowledge(next, true));
+	}
+
+	@Test
+	public void reusesSlotsAcrossLaps() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(3);
+		for (int i = 0; i < 1000; i++) {
+			long key = send(window);
+			assertTrue(window.acknowledge(key, true));
+		}
+		assertEquals(0, window.getInFlight());
+		assertEquals(1000, window.getAckLatency().getTotalCount());
+		assertEquals(0, window.getUnknownAckCount());
+	}
+
+	@Test
+	public void timesOutUnacknowledgedMessages() {
+		TimingWheel wheel = new TimingWheel(4, 1, TimeUnit.MILLISECONDS, 64);
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(4)
+				.setAckTimeout(wheel, 5, TimeUnit.MILLISECONDS);
+		long late = send(window);
+		long acked = send(window);
+		assertTrue(window.acknowledge(acked, true));
+		assertEquals(1, wheel.getSize());
+
+		wheel.advance(System.nanoTime() + 20 * MS);
+
+		assertEquals(1, window.getTimedOutCount());
+		assertEquals(0, window.getInFlight());
+		// Its acknowledgement coming after all
+		assertFalse(window.acknowledge(late, true));
+		assertEquals(1, window.getUnknownAckCount());
+	}
+
+	@Test
+	public void countsMessagesWithoutTimerWhenWheelIsFull() {
+		TimingWheel wheel = new TimingWheel(1, 1, TimeUnit.MILLISECONDS, 64);
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(4)
+				.setAckTimeout(wheel, 5, TimeUnit.MILLISECONDS);
+		send(window);
+		long untimed = send(window);
+
+		assertEquals(1, window.getUntimedCount());
+		assertEquals(1, wheel.getFullCount());
+		// Still acknowledged normally
+		assertTrue(window.acknowledge(untimed, true));
+	}
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Publishes on a fake session, recording the correlation key and a copy of
+ * the payload of each message sent.
+ */
+public class GuaranteedPublisherTest {
+
+	/**
+	 * A message recording its correlation key and a copy of its attachment
+	 */
+	private static final class FakeMessage implements InvocationHandler {
+		long correlationKey;
+		ByteBuffer attachment;
+		final MessageHandle handle = (MessageHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { MessageHandle.class }, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setCorrelationKey")) {
+				correlationKey = (Long) args[0];
+				return null;
+			}
+			if (name.equals("setBinaryAttachment")) {
+				ByteBuffer payload = ((ByteBuffer) args[0]).duplicate();
+				attachment = ByteBuffer.allocate(payload.remaining());
+				attachment.put(payload).flip();
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	/**
+	 * Records the messages sent, returning the set return code
+	 */
+	private final class FakeSession implements InvocationHandler {
+		final List<ByteBuffer> sent = new ArrayList<ByteBuffer>();
+		final List<Long> correlationKeys = new ArrayList<Long>();
+		int returnCode = SolEnum.ReturnCode.OK;
+		final SessionHandle handle = (SessionHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { SessionHandle.class }, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("send"))
+				throw new UnsupportedOperationException(method.getName());
+			sent.add(message.attachment);
+			correlationKeys.add(message.correlationKey);
+			return returnCode;
+		}
+	}
+
+	private final FakeMessage message = new FakeMessage();
+
+	private final FakeSession session = new FakeSession();
+
+	private GuaranteedPublisher newPublisher(int msgSize,
+			GuaranteedPublishWindow publishWindow) {
+		return new GuaranteedPublisher(session.handle, message.handle,
+				ByteBuffer.allocateDirect(msgSize), msgSize, publishWindow);
+	}
+
+	@Test
+	public void eachSendTakesAWindowSlot() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(4);
+		GuaranteedPublisher publisher = newPublisher(32, window);
+
+		publisher.publish(3);
+		assertEquals(3, window.getInFlight());
+		assertEquals(3, publisher.getSentCount());
+		long first = session.correlationKeys.get(0);
+		assertTrue(window.acknowledge(first, true));
+		assertEquals(2, window.getInFlight());
+		assertTrue(first != session.correlationKeys.get(1));
+	}
+
+	@Test
+	public void failedSendGivesItsSlotBack() {
+		GuaranteedPublishWindow window = new GuaranteedPublishWindow(2);
+		session.returnCode = SolEnum.ReturnCode.FAIL;
+		GuaranteedPublisher publisher = newPublisher(32, window);
+
+		publisher.publish(3);
+		assertEquals(0, window.getInFlight());
+		assertEquals(3, session.sent.size());
+		assertEquals(3, publisher.getSentCount());
+	}
+
+	@Test
+	public void sequenceCarriesOnAcrossCalls() {
+		GuaranteedPublisher publisher = newPublisher(32, null)
+				.stampSequence();
+		publisher.publish(1);
+		publisher.publish(2);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(ReceiveStats.stamp(0, i),
+					session.sent.get(i).getLong(
+							PerfADPubSub.SEQUENCE_STAMP_OFFSET));
+		}
+	}
+
+	@Test
+	public void fixedRateStampsIntendedThenActualTime() {
+		RateController rateController = new RateController(100000, 0);
+		GuaranteedPublisher publisher = newPublisher(
+				PerfADPubSub.LATENCY_STAMPS_SIZE, null).atFixedRate(
+				rateController);
+		rateController.start();
+		publisher.publish(5);
+
+		long previous = 0;
+		for (ByteBuffer payload : session.sent) {
+			long intended = payload.getLong(0);
+			assertTrue(intended > previous);
+			assertTrue(payload.getLong(8) >= intended);
+			previous = intended;
+		}
+	}
+
+	@Test
+	public void sweepMessagesCarryTheSendTimeTwice() {
+		GuaranteedPublisher publisher = newPublisher(16, null);
+		publisher.send(ByteBuffer.allocate(64));
+
+		ByteBuffer sent = session.sent.get(0);
+		assertEquals(64, sent.remaining());
+		assertEquals(sent.getLong(0), sent.getLong(8));
+		assertEquals(1, publisher.getSentCount());
+	}
+
+}
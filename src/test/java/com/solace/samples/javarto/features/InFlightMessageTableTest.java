@@ -0,0 +1,61 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InFlightMessageTableTest {
+
+	@Test
+	public void acknowledgeReturnsTheSlotOnce() {
+		InFlightMessageTable table = new InFlightMessageTable(4);
+		long key = table.add(7, 1000);
+		int slot = table.acknowledge(key, true);
+
+		assertEquals(-1, table.slotOf(key));
+		assertEquals(7, table.getId(slot));
+		assertEquals(1000, table.getSendNanos(slot));
+		assertTrue(table.isAcked(slot));
+		assertTrue(table.isAccepted(slot));
+		assertEquals("duplicate", -1, table.acknowledge(key, true));
+		table.release(key);
+		assertEquals(0, table.getInFlight());
+		assertEquals(-1, table.acknowledge(key, true));
+	}
+
+	@Test
+	public void retryPutsTheKeyBackInFlight() {
+		InFlightMessageTable table = new InFlightMessageTable(4);
+		long key = table.add(1, 1000);
+		int slot = table.acknowledge(key, false);
+		assertFalse(table.isAccepted(slot));
+
+		table.markRetry(key, 2000);
+		assertEquals(slot, table.slotOf(key));
+		assertEquals(1, table.getRetryCount(slot));
+		assertEquals(InFlightMessageTable.SENT, table.getFlags(slot));
+		assertEquals(slot, table.acknowledge(key, true));
+		assertEquals(2000, table.getSendNanos(slot));
+	}
+
+	@Test
+	public void fullTableWaits() {
+		InFlightMessageTable table = new InFlightMessageTable(2);
+		long first = table.add(0, 0);
+		table.add(1, 0);
+
+		assertEquals(0, table.add(2, 0, 1, TimeUnit.MILLISECONDS));
+		table.acknowledge(first, true);
+		table.release(first);
+		assertTrue(table.add(2, 0, 1, TimeUnit.MILLISECONDS) != 0);
+	}
+
+}
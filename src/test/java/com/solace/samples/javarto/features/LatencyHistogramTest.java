@@ -0,0 +1,95 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	// Within bucket precision, 8 sub-bucket bits
+	private static final double PRECISION = 0.01;
+
+	private static void assertNear(long expected, long actual) {
+		assertEquals(expected, actual, expected * PRECISION);
+	}
+
+	@Test
+	public void percentilesOfUniformValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long us = 1; us <= 10000; us++) {
+			histogram.record(us * 1000);
+		}
+
+		assertEquals(10000, histogram.getTotalCount());
+		assertNear(1000, histogram.getMinValue());
+		assertEquals(10000L * 1000, histogram.getMaxValue());
+		assertNear(5000L * 1000, histogram.getValueAtPercentile(50.0));
+		assertNear(9900L * 1000, histogram.getValueAtPercentile(99.0));
+		assertEquals(10000L * 1000, histogram.getValueAtPercentile(100.0));
+		assertEquals(5000.5 * 1000, histogram.getMean(), 5000.5 * 1000
+				* PRECISION);
+	}
+
+	@Test
+	public void negativeValuesRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+
+		assertEquals(1, histogram.getTotalCount());
+		assertEquals(0, histogram.getMinValue());
+		assertEquals(0, histogram.getMaxValue());
+	}
+
+	@Test
+	public void valuesAboveRangeKeepExactMax() {
+		LatencyHistogram histogram = new LatencyHistogram(1000 * 1000);
+		histogram.record(5L * 1000 * 1000);
+
+		assertEquals(1, histogram.getTotalCount());
+		assertEquals(5L * 1000 * 1000, histogram.getMaxValue());
+	}
+
+	@Test
+	public void subtractLeavesTheLaterValues() {
+		LatencyHistogram live = new LatencyHistogram();
+		for (int i = 0; i < 100; i++) {
+			live.record(1000);
+		}
+		LatencyHistogram before = new LatencyHistogram();
+		before.copyFrom(live);
+		for (int i = 0; i < 10; i++) {
+			live.record(1000 * 1000);
+		}
+
+		LatencyHistogram interval = new LatencyHistogram();
+		interval.copyFrom(live);
+		interval.subtract(before);
+
+		assertEquals(10, interval.getTotalCount());
+		assertNear(1000 * 1000, interval.getMinValue());
+		assertNear(1000 * 1000, interval.getValueAtPercentile(50.0));
+	}
+
+	@Test
+	public void addMergesCounts() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		a.record(2000);
+		b.record(4000);
+		b.record(8000);
+		a.add(b);
+
+		assertEquals(3, a.getTotalCount());
+		assertNear(2000, a.getMinValue());
+		assertNear(8000, a.getMaxValue());
+
+		a.reset();
+		assertEquals(0, a.getTotalCount());
+		assertEquals(0, a.getValueAtPercentile(99.0));
+	}
+
+}
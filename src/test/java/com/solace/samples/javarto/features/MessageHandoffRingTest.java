@@ -0,0 +1,151 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+
+/**
+ * Runs the ring in payload copy mode, the received message being a fake whose
+ * binary attachment is the int last set.
+ */
+public class MessageHandoffRingTest {
+
+	private static final class FakeReceiver implements InvocationHandler {
+		int attachment;
+
+		final MessageSupport messageSupport;
+
+		FakeReceiver() {
+			final MessageHandle rxMessage = (MessageHandle) Proxy
+					.newProxyInstance(getClass().getClassLoader(),
+							new Class<?>[] { MessageHandle.class }, this);
+			messageSupport = (MessageSupport) Proxy.newProxyInstance(
+					getClass().getClassLoader(),
+					new Class<?>[] { MessageSupport.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (method.getName().equals("getRxMessage"))
+								return rxMessage;
+							throw new UnsupportedOperationException(method
+									.getName());
+						}
+					});
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("getBinaryAttachment")) {
+				((ByteBuffer) args[0]).putInt(attachment);
+				return null;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+
+		boolean offer(MessageHandoffRing ring, int value) {
+			attachment = value;
+			return ring.offer(messageSupport);
+		}
+	}
+
+	/**
+	 * Records what it was handed, checking the order
+	 */
+	private static final class RecordingHandler implements
+			MessageHandoffRing.Handler {
+		volatile long handled = 0;
+		volatile String error;
+
+		public void onSlot(MessageHandoffRing.Slot slot) {
+			long expected = handled;
+			if (slot.getSequence() != expected)
+				error = "sequence " + slot.getSequence() + " instead of "
+						+ expected;
+			else if (slot.getPayload().getInt(0) != (int) expected * 3)
+				error = "payload " + slot.getPayload().getInt(0)
+						+ " at sequence " + expected;
+			handled = expected + 1;
+		}
+	}
+
+	@Test
+	public void rejectsWhenFull() {
+		MessageHandoffRing ring = new MessageHandoffRing(4, 64,
+				MessageHandoffRing.WaitStrategy.YIELD);
+		FakeReceiver receiver = new FakeReceiver();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(receiver.offer(ring, i * 3));
+		}
+
+		assertFalse(receiver.offer(ring, 12));
+		assertEquals(1, ring.getRejectedCount());
+		assertEquals(4, ring.getOfferedCount());
+		assertEquals(4, ring.getBacklog());
+	}
+
+	@Test
+	public void wrapsAroundOnceSlotsAreHandedBack() throws Exception {
+		MessageHandoffRing ring = new MessageHandoffRing(4, 64,
+				MessageHandoffRing.WaitStrategy.YIELD);
+		FakeReceiver receiver = new FakeReceiver();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(receiver.offer(ring, i * 3));
+		}
+		RecordingHandler handler = new RecordingHandler();
+		ring.start(new MessageHandoffRing.Handler[] { handler });
+
+		// Many laps of the 4 slots
+		int messages = 10000;
+		for (int i = 4; i < messages; i++) {
+			while (!receiver.offer(ring, i * 3)) {
+				Thread.yield();
+			}
+		}
+		ring.stop();
+
+		assertEquals(null, handler.error);
+		assertEquals(messages, handler.handled);
+		assertEquals(messages, ring.getOfferedCount());
+		assertEquals(0, ring.getBacklog());
+	}
+
+	@Test
+	public void capacityRoundedUpToPowerOfTwo() {
+		MessageHandoffRing ring = new MessageHandoffRing(5, 64,
+				MessageHandoffRing.WaitStrategy.BUSY_SPIN);
+		assertEquals(8, ring.getCapacity());
+	}
+
+	@Test
+	public void singleSlotRingStillFills() {
+		MessageHandoffRing ring = new MessageHandoffRing(1, 64,
+				MessageHandoffRing.WaitStrategy.YIELD);
+		FakeReceiver receiver = new FakeReceiver();
+		assertEquals(2, ring.getCapacity());
+		assertTrue(receiver.offer(ring, 0));
+		assertTrue(receiver.offer(ring, 3));
+		assertFalse(receiver.offer(ring, 6));
+	}
+
+	@Test
+	public void waitStrategyFromName() {
+		assertEquals(MessageHandoffRing.WaitStrategy.PARK,
+				MessageHandoffRing.WaitStrategy.fromName("park"));
+		assertEquals(MessageHandoffRing.WaitStrategy.BUSY_SPIN,
+				MessageHandoffRing.WaitStrategy.fromName("SPIN"));
+	}
+
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.handle.NativeDestinationHandle;
+
+/**
+ * Runs the cache on fake native destinations, which only know their topic
+ * and whether they were destroyed.
+ */
+public class NativeDestinationCacheTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final class FakeDestination implements InvocationHandler {
+		final String topic;
+		boolean destroyed = false;
+
+		FakeDestination(String topic) {
+			this.topic = topic;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("isBound"))
+				return !destroyed;
+			if (name.equals("destroy")) {
+				destroyed = true;
+				return null;
+			}
+			if (name.equals("getName") || name.equals("toString"))
+				return topic;
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private static final class TestCache extends NativeDestinationCache {
+		final Map<NativeDestinationHandle, FakeDestination> created = new HashMap<NativeDestinationHandle, FakeDestination>();
+
+		TestCache(int capacity) {
+			super(capacity);
+		}
+
+		TestCache(int capacity, int maxTopicBytes) {
+			super(capacity, maxTopicBytes);
+		}
+
+		@Override
+		NativeDestinationHandle createNativeDestination(byte[] topic,
+				int offset, int length) {
+			FakeDestination fake = new FakeDestination(new String(topic,
+					offset, length, UTF8));
+			NativeDestinationHandle handle = (NativeDestinationHandle) Proxy
+					.newProxyInstance(getClass().getClassLoader(),
+							new Class<?>[] { NativeDestinationHandle.class },
+							fake);
+			created.put(handle, fake);
+			return handle;
+		}
+
+		String topicOf(NativeDestinationHandle handle) {
+			return created.get(handle).topic;
+		}
+
+		boolean isDestroyed(NativeDestinationHandle handle) {
+			return created.get(handle).destroyed;
+		}
+	}
+
+	private static int homeOf(String topic, int tableSize) {
+		byte[] bytes = topic.getBytes(UTF8);
+		return NativeDestinationCache.hash(bytes, 0, bytes.length)
+				& (tableSize - 1);
+	}
+
+	/**
+	 * @return topics whose table position is the same, probing one after the
+	 *         other
+	 */
+	private static List<String> collidingTopics(int count, int tableSize) {
+		List<String> topics = new ArrayList<String>();
+		int home = homeOf("t/0", tableSize);
+		for (int i = 0; topics.size() < count; i++) {
+			String topic = "t/" + i;
+			if (homeOf(topic, tableSize) == home)
+				topics.add(topic);
+		}
+		return topics;
+	}
+
+	@Test
+	public void hitReturnsTheCachedHandle() {
+		TestCache cache = new TestCache(4);
+		NativeDestinationHandle handle = cache.get("a/b");
+
+		assertSame(handle, cache.get("a/b"));
+		byte[] bytes = "x/a/b".getBytes(UTF8);
+		assertSame(handle, cache.get(bytes, 2, 3));
+		assertEquals("a/b", cache.topicOf(handle));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void nonAsciiTopicsAreUtf8() {
+		TestCache cache = new TestCache(4);
+		NativeDestinationHandle handle = cache.get("caf\u00e9/\u00fcber");
+		byte[] bytes = "caf\u00e9/\u00fcber".getBytes(UTF8);
+
+		assertSame(handle, cache.get(bytes, 0, bytes.length));
+		assertEquals("caf\u00e9/\u00fcber", cache.topicOf(handle));
+	}
+
+	@Test
+	public void evictsAndDestroysLeastRecentlyUsed() {
+		TestCache cache = new TestCache(2);
+		NativeDestinationHandle a = cache.get("a");
+		NativeDestinationHandle b = cache.get("b");
+		// a is now the most recent
+		cache.get("a");
+		cache.get("c");
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue(cache.isDestroyed(b));
+		assertFalse(cache.isDestroyed(a));
+		assertSame(a, cache.get("a"));
+		assertNotSame(b, cache.get("b"));
+	}
+
+	@Test
+	public void evictionShiftsCollidingEntriesBack() {
+		// Capacity 4 gives a table of 16
+		TestCache cache = new TestCache(4);
+		List<String> colliding = collidingTopics(3, 16);
+		NativeDestinationHandle first = cache.get(colliding.get(0));
+		NativeDestinationHandle second = cache.get(colliding.get(1));
+		NativeDestinationHandle third = cache.get(colliding.get(2));
+		cache.get("other");
+
+		// Evicts the first, the head of the probe sequence
+		cache.get("another");
+		assertTrue(cache.isDestroyed(first));
+
+		// Still found past the hole it left
+		long misses = cache.getMissCount();
+		assertSame(second, cache.get(colliding.get(1)));
+		assertSame(third, cache.get(colliding.get(2)));
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	@Test
+	public void keepsTheMostRecentUnderChurn() {
+		TestCache cache = new TestCache(4);
+		List<NativeDestinationHandle> handles = new ArrayList<NativeDestinationHandle>();
+		for (int i = 0; i < 2000; i++) {
+			handles.add(cache.get("churn/" + i));
+			// Oldest first, keeping the recency order
+			for (int j = Math.max(0, i - 3); j <= i; j++) {
+				assertSame("topic " + j + " after " + i, handles.get(j),
+						cache.get("churn/" + j));
+			}
+		}
+		assertEquals(4, cache.size());
+		assertEquals(2000, cache.getMissCount());
+		assertEquals(1996, cache.getEvictionCount());
+		for (int i = 0; i < 1996; i++) {
+			assertTrue(cache.isDestroyed(handles.get(i)));
+		}
+	}
+
+	@Test
+	public void destroyReleasesEverything() {
+		TestCache cache = new TestCache(4);
+		NativeDestinationHandle a = cache.get("a");
+		NativeDestinationHandle b = cache.get("b");
+		cache.destroy();
+
+		assertEquals(0, cache.size());
+		assertTrue(cache.isDestroyed(a));
+		assertTrue(cache.isDestroyed(b));
+		assertNotSame(a, cache.get("a"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTopicsTooLong() {
+		new TestCache(4, 8).get("0123456789");
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateControllerTest {
+
+	@Test
+	public void scheduleIsAbsolute() {
+		RateController controller = new RateController(10000, 0);
+		assertEquals(100000, controller.getIntervalNanos(), 0.001);
+
+		controller.start();
+		long first = controller.awaitNext();
+		long previous = first;
+		for (int n = 1; n <= 100; n++) {
+			long intended = controller.awaitNext();
+			assertEquals(first + n * 100000L, intended);
+			assertTrue(System.nanoTime() >= intended);
+			previous = intended;
+		}
+		assertEquals(first + 10000000L, previous);
+	}
+
+	@Test
+	public void fallingBehindDoesNotMoveTheSchedule() throws Exception {
+		RateController controller = new RateController(1000, 0);
+		controller.start();
+		long first = controller.awaitNext();
+		// Stall for about 10 intervals, the next sends go out at once
+		Thread.sleep(10);
+		long before = System.nanoTime();
+		for (int n = 1; n <= 5; n++) {
+			assertEquals(first + n * 1000000L, controller.awaitNext());
+		}
+		assertTrue(System.nanoTime() - before < 5000000L);
+	}
+
+	@Test
+	public void paceMatchesTheRate() {
+		RateController controller = new RateController(20000);
+		controller.start();
+		long start = System.nanoTime();
+		for (int n = 0; n < 2000; n++) {
+			controller.awaitNext();
+		}
+		// 2000 messages at 20000/s take 100 ms, the last one is due at 99.95
+		long elapsedMs = (System.nanoTime() - start) / 1000000L;
+		assertTrue("too fast: " + elapsedMs, elapsedMs >= 99);
+		assertTrue("too slow: " + elapsedMs, elapsedMs < 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rateMustBePositive() {
+		new RateController(0, 0);
+	}
+
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.Handle;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.MessageSupport;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Runs the engine unstarted with a ring of two slots: the first two requests
+ * wait in the ring, the next ones are served inline on the calling thread,
+ * with fake messages and session, the workers taking messages from the API.
+ */
+public class ReplierEngineTest {
+
+	/**
+	 * A message holding a correlation id and an int attachment
+	 */
+	private static final class FakeMessage implements InvocationHandler {
+		String correlationId;
+		int attachment;
+		boolean destroyed;
+		final MessageHandle handle = (MessageHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { MessageHandle.class }, this);
+
+		FakeMessage(String correlationId, int attachment) {
+			this.correlationId = correlationId;
+			this.attachment = attachment;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("isBound"))
+				return !destroyed;
+			if (name.equals("destroy")) {
+				destroyed = true;
+				return null;
+			}
+			if (name.equals("getBinaryAttachment")) {
+				((ByteBuffer) args[0]).putInt(attachment);
+				return null;
+			}
+			if (name.equals("setBinaryAttachment")) {
+				attachment = ((ByteBuffer) args[0]).getInt(0);
+				return null;
+			}
+			if (name.equals("getCorrelationId"))
+				return correlationId;
+			if (name.equals("setCorrelationIdFromMessage")) {
+				correlationId = ((MessageHandle) args[0]).getCorrelationId();
+				return null;
+			}
+			if (name.equals("setMessageDeliveryMode"))
+				return null;
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	/**
+	 * Records the replies sent, as correlation id=attachment
+	 */
+	private static final class FakeSession implements InvocationHandler {
+		final List<String> replies = new ArrayList<String>();
+		int returnCode = SolEnum.ReturnCode.OK;
+		final SessionHandle handle = (SessionHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { SessionHandle.class }, this);
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (!method.getName().equals("sendReply"))
+				throw new UnsupportedOperationException(method.getName());
+			FakeMessage reply = (FakeMessage) Proxy
+					.getInvocationHandler(args[1]);
+			replies.add(reply.correlationId + "=" + reply.attachment);
+			return returnCode;
+		}
+	}
+
+	/**
+	 * The handle of the session the message callback is given
+	 */
+	private static Handle received(final MessageHandle request) {
+		return (Handle) Proxy.newProxyInstance(
+				ReplierEngineTest.class.getClassLoader(),
+				new Class<?>[] { Handle.class, MessageSupport.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getRxMessage"))
+							return request;
+						if (method.getName().equals("takeRxMessage"))
+							return SolEnum.ReturnCode.OK;
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+
+	/**
+	 * Replies with twice the request, none to negative requests
+	 */
+	private static final ReplierEngine.RequestHandler DOUBLER = new ReplierEngine.RequestHandler() {
+		public boolean onRequest(MessageHandle request,
+				ByteBuffer requestPayload, ByteBuffer replyPayload) {
+			int value = requestPayload.getInt(0);
+			if (value < 0)
+				return false;
+			replyPayload.putInt(value * 2);
+			return true;
+		}
+	};
+
+	private static final List<FakeMessage> replyMessages = new ArrayList<FakeMessage>();
+
+	private static ReplierEngine newEngine(SessionHandle sessionHandle) {
+		replyMessages.clear();
+		return new ReplierEngine(sessionHandle, 2, 2, 64,
+				SolEnum.MessageDeliveryMode.DIRECT,
+				MessageHandoffRing.WaitStrategy.YIELD, DOUBLER) {
+			@Override
+			MessageHandle newReplyMessage() {
+				FakeMessage reply = new FakeMessage(null, 0);
+				replyMessages.add(reply);
+				return reply.handle;
+			}
+		};
+	}
+
+	private static void fillRing(ReplierEngine engine) {
+		engine.onMessage(received(new FakeMessage("x", 1).handle));
+		engine.onMessage(received(new FakeMessage("y", 1).handle));
+	}
+
+	@Test
+	public void repliesInlineOnceTheRingIsFull() {
+		FakeSession session = new FakeSession();
+		ReplierEngine engine = newEngine(session.handle);
+
+		fillRing(engine);
+		engine.onMessage(received(new FakeMessage("b", 2).handle));
+		engine.onMessage(received(new FakeMessage("c", 3).handle));
+
+		assertEquals(4, engine.getReceivedCount());
+		assertEquals(2, engine.getInlineCount());
+		assertEquals(2, engine.getBacklog());
+		assertEquals(2, engine.getRepliedCount());
+		assertEquals(0, engine.getFailedCount());
+		// The reply copies the correlation id of its request
+		assertEquals("[b=4, c=6]", session.replies.toString());
+	}
+
+	@Test
+	public void handlerDeclining() {
+		FakeSession session = new FakeSession();
+		ReplierEngine engine = newEngine(session.handle);
+
+		fillRing(engine);
+		engine.onMessage(received(new FakeMessage("b", -1).handle));
+
+		assertEquals(1, engine.getInlineCount());
+		assertEquals(0, engine.getRepliedCount());
+		assertEquals(0, session.replies.size());
+	}
+
+	@Test
+	public void failedRepliesAreCounted() {
+		FakeSession session = new FakeSession();
+		session.returnCode = SolEnum.ReturnCode.FAIL;
+		ReplierEngine engine = newEngine(session.handle);
+
+		fillRing(engine);
+		engine.onMessage(received(new FakeMessage("b", 2).handle));
+
+		assertEquals(0, engine.getRepliedCount());
+		assertEquals(1, engine.getFailedCount());
+	}
+
+	@Test
+	public void stopFreesTheReplyMessages() {
+		ReplierEngine engine = newEngine(new FakeSession().handle);
+		assertEquals(2, engine.getWorkerCount());
+		// One per worker and the inline one
+		assertEquals(3, replyMessages.size());
+
+		engine.stop();
+		for (FakeMessage reply : replyMessages) {
+			assertEquals(true, reply.destroyed);
+		}
+	}
+
+}
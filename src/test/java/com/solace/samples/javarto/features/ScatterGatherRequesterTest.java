@@ -0,0 +1,204 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solacesystems.solclientj.core.SolEnum;
+import com.solacesystems.solclientj.core.handle.MessageHandle;
+import com.solacesystems.solclientj.core.handle.SessionHandle;
+
+/**
+ * Scatters on a fake session and replies by hand, the deadlines being driven
+ * with {@link TimingWheel#advance(long)}.
+ */
+public class ScatterGatherRequesterTest {
+
+	private static final long MS = 1000L * 1000;
+
+	/**
+	 * A message holding a correlation id, a sender id and an int attachment
+	 */
+	private static final class FakeMessage implements InvocationHandler {
+		String correlationId;
+		String senderId;
+		int attachment;
+		final MessageHandle handle = (MessageHandle) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { MessageHandle.class }, this);
+
+		FakeMessage(String correlationId, String senderId, int attachment) {
+			this.correlationId = correlationId;
+			this.senderId = senderId;
+			this.attachment = attachment;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getCorrelationId"))
+				return correlationId;
+			if (name.equals("setCorrelationId")) {
+				correlationId = (String) args[0];
+				return null;
+			}
+			if (name.equals("getSenderId"))
+				return senderId;
+			if (name.equals("getBinaryAttachment")) {
+				((ByteBuffer) args[0]).putInt(attachment);
+				return null;
+			}
+			if (name.equals("setBinaryAttachment")
+					|| name.equals("setReplyTo"))
+				return null;
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private final SessionHandle session = (SessionHandle) Proxy
+			.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { SessionHandle.class },
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							if (method.getName().equals("send"))
+								return SolEnum.ReturnCode.OK;
+							throw new UnsupportedOperationException(method
+									.getName());
+						}
+					});
+
+	private final FakeMessage txMessage = new FakeMessage(null, null, 0);
+
+	private final List<ScatterGatherRequester.Result> results = new ArrayList<ScatterGatherRequester.Result>();
+
+	private final ScatterGatherRequester.GatherListener listener = new ScatterGatherRequester.GatherListener() {
+		public void onGathered(ScatterGatherRequester.Result result) {
+			results.add(result);
+		}
+	};
+
+	private final TimingWheel wheel = new TimingWheel(16, 1,
+			TimeUnit.MILLISECONDS, 64);
+
+	private static MessageHandle reply(long key, String senderId, int value) {
+		return new FakeMessage(ScatterGatherRequester.CORRELATION_PREFIX
+				+ key, senderId, value).handle;
+	}
+
+	private long scatter(ScatterGatherRequester requester, int quorum,
+			long requestId) {
+		return requester.scatter(txMessage.handle, ByteBuffer.allocate(4),
+				quorum, 10, TimeUnit.MILLISECONDS, requestId, listener);
+	}
+
+	@Test
+	public void quorumCompletesTheScatter() {
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				session, null, wheel, 4, 64);
+		long key = scatter(requester, 2, 7);
+		assertEquals(ScatterGatherRequester.CORRELATION_PREFIX + key,
+				txMessage.correlationId);
+
+		assertTrue(requester.onReply(reply(key, "a", 1)));
+		assertTrue(results.isEmpty());
+		assertTrue(requester.onReply(reply(key, "b", 2)));
+		assertEquals(1, results.size());
+		assertFalse("late", requester.onReply(reply(key, "c", 3)));
+
+		ScatterGatherRequester.Result result = results.get(0);
+		assertEquals(7, result.getRequestId());
+		assertTrue(result.isQuorumReached());
+		assertEquals(2, result.getReplies().size());
+		assertEquals("b", result.getReplies().get(1).getSenderId());
+		assertEquals(2,
+				ByteBuffer.wrap(result.getReplies().get(1).getPayload())
+						.getInt());
+		assertEquals(1, requester.getQuorumCount());
+		assertEquals(1, requester.getLateReplyCount());
+		assertEquals(0, requester.getOutstanding());
+		// The quorum cancelled the deadline
+		assertEquals(0, wheel.getSize());
+	}
+
+	@Test
+	public void deadlineCompletesWithTheRepliesSoFar() {
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				session, null, wheel, 4, 64);
+		long key = scatter(requester, 3, 8);
+		requester.onReply(reply(key, "a", 1));
+
+		wheel.advance(System.nanoTime() + 50 * MS);
+		assertEquals(1, results.size());
+		ScatterGatherRequester.Result result = results.get(0);
+		assertFalse(result.isQuorumReached());
+		assertEquals(1, result.getReplies().size());
+		assertEquals(1, requester.getPartialCount());
+		assertEquals(0, requester.getOutstanding());
+
+		assertFalse(requester.onReply(reply(key, "b", 2)));
+		assertEquals(1, requester.getLateReplyCount());
+		assertEquals(1, results.size());
+	}
+
+	@Test
+	public void unknownRepliesAreCounted() {
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				session, null, wheel, 4, 64);
+		long key = scatter(requester, 1, 1);
+
+		assertFalse(requester.onReply(reply(key + 1, "a", 1)));
+		assertFalse(requester.onReply(new FakeMessage("rq:" + key, "a", 1)
+				.handle));
+		assertEquals(2, requester.getUnknownReplyCount());
+		assertEquals(1, requester.getOutstanding());
+	}
+
+	@Test
+	public void fullWheelLeavesTheScatterUntimed() {
+		TimingWheel smallWheel = new TimingWheel(1, 1, TimeUnit.MILLISECONDS,
+				64);
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				session, null, smallWheel, 4, 64);
+		scatter(requester, 1, 1);
+		long untimed = scatter(requester, 1, 2);
+
+		assertEquals(1, requester.getUntimedCount());
+		smallWheel.advance(System.nanoTime() + 50 * MS);
+		assertEquals(1, requester.getOutstanding());
+		assertTrue(requester.onReply(reply(untimed, "a", 1)));
+		assertEquals(0, requester.getOutstanding());
+	}
+
+	@Test
+	public void futureCompletesWithTheResult() throws Exception {
+		ScatterGatherRequester requester = new ScatterGatherRequester(
+				session, null, wheel, 4, 64);
+		CompletableFuture<ScatterGatherRequester.Result> future = requester
+				.scatter(txMessage.handle, ByteBuffer.allocate(4), 1, 10,
+						TimeUnit.MILLISECONDS);
+		long key = CorrelationSlots.parseKey(txMessage.correlationId,
+				ScatterGatherRequester.CORRELATION_PREFIX);
+		requester.onReply(reply(key, "a", 5));
+
+		ScatterGatherRequester.Result result = future.get(1, TimeUnit.SECONDS);
+		assertTrue(result.isQuorumReached());
+		assertEquals(5, ByteBuffer.wrap(result.getReplies().get(0)
+				.getPayload()).getInt());
+	}
+
+}
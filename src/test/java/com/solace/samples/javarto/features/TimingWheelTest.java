@@ -0,0 +1,118 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Drives the wheel with {@link TimingWheel#advance(long)}, without its tick
+ * thread.
+ */
+public class TimingWheelTest {
+
+	private static final long MS = 1000L * 1000;
+
+	private final List<Long> expired = new ArrayList<Long>();
+
+	private final TimingWheel.ExpiryListener listener = new TimingWheel.ExpiryListener() {
+		public void onExpiry(long payload) {
+			expired.add(payload);
+		}
+	};
+
+	@Test
+	public void expiresOnlyOnceDue() {
+		TimingWheel wheel = new TimingWheel(16, 1, TimeUnit.MILLISECONDS, 64);
+		wheel.schedule(20 * MS, 42, listener);
+
+		assertEquals(0, wheel.advance(System.nanoTime()));
+		assertTrue(expired.isEmpty());
+
+		assertEquals(1, wheel.advance(System.nanoTime() + 40 * MS));
+		assertEquals(1, expired.size());
+		assertEquals(42L, (long) expired.get(0));
+		assertEquals(0, wheel.getSize());
+		assertEquals(1, wheel.getExpiredCount());
+	}
+
+	@Test
+	public void expiresTimersLapsAhead() {
+		// 8 buckets of 1ms, the timer goes round the wheel several times
+		TimingWheel wheel = new TimingWheel(16, 1, TimeUnit.MILLISECONDS, 8);
+		wheel.schedule(30 * MS, 7, listener);
+		wheel.schedule(2 * MS, 3, listener);
+
+		wheel.advance(System.nanoTime() + 10 * MS);
+		assertEquals(1, expired.size());
+		assertEquals(3L, (long) expired.get(0));
+
+		wheel.advance(System.nanoTime() + 50 * MS);
+		assertEquals(2, expired.size());
+		assertEquals(7L, (long) expired.get(1));
+	}
+
+	@Test
+	public void cancelledTimerDoesNotFire() {
+		TimingWheel wheel = new TimingWheel(16, 1, TimeUnit.MILLISECONDS, 64);
+		long timerId = wheel.schedule(5 * MS, 1, listener);
+
+		assertTrue(wheel.cancel(timerId));
+		assertFalse("cancelled twice", wheel.cancel(timerId));
+		assertEquals(0, wheel.advance(System.nanoTime() + 20 * MS));
+		assertTrue(expired.isEmpty());
+		assertEquals(1, wheel.getCancelledCount());
+	}
+
+	@Test
+	public void cancelOfExpiredTimerIsIgnored() {
+		TimingWheel wheel = new TimingWheel(16, 1, TimeUnit.MILLISECONDS, 64);
+		long timerId = wheel.schedule(1 * MS, 1, listener);
+		wheel.advance(System.nanoTime() + 10 * MS);
+
+		assertFalse(wheel.cancel(timerId));
+		assertEquals(0, wheel.getCancelledCount());
+	}
+
+	@Test
+	public void staleIdDoesNotCancelReusedNode() {
+		// One node, reused by the second timer with the next generation
+		TimingWheel wheel = new TimingWheel(1, 1, TimeUnit.MILLISECONDS, 64);
+		long first = wheel.schedule(5 * MS, 1, listener);
+		assertTrue(wheel.cancel(first));
+		long second = wheel.schedule(5 * MS, 2, listener);
+
+		assertTrue(first != second);
+		assertEquals((int) first, (int) second);
+		assertFalse(wheel.cancel(first));
+		assertEquals(1, wheel.getSize());
+
+		wheel.advance(System.nanoTime() + 20 * MS);
+		assertEquals(1, expired.size());
+		assertEquals(2L, (long) expired.get(0));
+	}
+
+	@Test
+	public void scheduleReturnsZeroWhenFull() {
+		TimingWheel wheel = new TimingWheel(2, 1, TimeUnit.MILLISECONDS, 64);
+		assertTrue(wheel.schedule(5 * MS, 1, listener) != 0);
+		assertTrue(wheel.schedule(5 * MS, 2, listener) != 0);
+
+		assertEquals(0, wheel.schedule(5 * MS, 3, listener));
+		assertEquals(1, wheel.getFullCount());
+
+		// Room again once they expired
+		wheel.advance(System.nanoTime() + 20 * MS);
+		assertTrue(wheel.schedule(5 * MS, 4, listener) != 0);
+	}
+
+}
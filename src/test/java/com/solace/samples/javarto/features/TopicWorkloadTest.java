@@ -0,0 +1,105 @@
+/**
+ * Copyright 2004-2021 Solace Corporation. All rights reserved.
+ *
+ */
+package com.solace.samples.javarto.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TopicWorkloadTest {
+
+	@Test
+	public void encodesEveryTopicOfTheHierarchy() {
+		TopicWorkload workload = new TopicWorkload("perf", 2, 10,
+				TopicWorkload.Distribution.ROUND_ROBIN, 0);
+
+		// 4 x 4 covers 10 topics, 3 x 3 does not
+		assertEquals(4, workload.getFanOut());
+		assertEquals("perf/0/0", workload.topicName(0));
+		assertEquals("perf/0/3", workload.topicName(3));
+		assertEquals("perf/1/0", workload.topicName(4));
+		assertEquals("perf/2/1", workload.topicName(9));
+		assertEquals("perf/>", workload.getSubscription());
+		for (int i = 0; i < workload.getCardinality(); i++) {
+			assertTrue(workload.lengthOf(i) <= workload.getMaxTopicLength());
+		}
+	}
+
+	@Test
+	public void fanOutIsTheSmallestCoveringTheCardinality() {
+		assertEquals(10, TopicWorkload.fanOutFor(1000, 3));
+		assertEquals(11, TopicWorkload.fanOutFor(1001, 3));
+		assertEquals(1, TopicWorkload.fanOutFor(1, 4));
+		assertEquals(1000000, TopicWorkload.fanOutFor(1000000, 1));
+	}
+
+	@Test
+	public void roundRobinVisitsEachTopicInTurn() {
+		TopicWorkload workload = new TopicWorkload("rr", 1, 3,
+				TopicWorkload.Distribution.ROUND_ROBIN, 0);
+		TopicWorkload.Picker picker = workload.newPicker(1);
+		for (int i = 0; i < 7; i++) {
+			assertEquals(i % 3, picker.next());
+		}
+	}
+
+	@Test
+	public void uniformPicksStayInRangeAndCoverAll() {
+		TopicWorkload workload = new TopicWorkload("u", 2, 50,
+				TopicWorkload.Distribution.UNIFORM, 0);
+		TopicWorkload.Picker picker = workload.newPicker(42);
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < 10000; i++) {
+			int index = picker.next();
+			assertTrue(index >= 0 && index < 50);
+			seen.add(index);
+		}
+		assertEquals(50, seen.size());
+	}
+
+	@Test
+	public void zipfFavoursTheTopRanks() {
+		int cardinality = 100;
+		TopicWorkload workload = new TopicWorkload("z", 2, cardinality,
+				TopicWorkload.Distribution.ZIPF, 1.0);
+		TopicWorkload.Picker picker = workload.newPicker(7);
+		int[] counts = new int[cardinality];
+		int picks = 200000;
+		for (int i = 0; i < picks; i++) {
+			counts[picker.next()]++;
+		}
+		int hottest = 0;
+		for (int count : counts) {
+			hottest = Math.max(hottest, count);
+		}
+		// Rank 1 of 100 with s=1 is 1/H(100), about 19% of the picks
+		double harmonic = 0;
+		for (int k = 1; k <= cardinality; k++) {
+			harmonic += 1.0 / k;
+		}
+		assertEquals(1.0 / harmonic, (double) hottest / picks, 0.01);
+	}
+
+	@Test
+	public void samePickerSeedGivesTheSameSequence() {
+		TopicWorkload workload = new TopicWorkload("s", 3, 1000,
+				TopicWorkload.Distribution.ZIPF, 0.8);
+		TopicWorkload.Picker a = workload.newPicker(99);
+		TopicWorkload.Picker b = workload.newPicker(99);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(a.next(), b.next());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownDistribution() {
+		TopicWorkload.Distribution.fromName("pareto");
+	}
+
+}